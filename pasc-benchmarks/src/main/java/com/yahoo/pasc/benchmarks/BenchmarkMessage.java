@@ -0,0 +1,52 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc.benchmarks;
+
+import com.yahoo.pasc.Message;
+
+/**
+ * Message used by all the benchmarks.
+ * 
+ * It doesn't implement CloneableDeep nor EqualsDeep, so the input message protection goes through the
+ * reflective fallbacks in PascRuntime, as most user messages do.
+ */
+public class BenchmarkMessage extends Message {
+    int key;
+    String name;
+    long value;
+    long crc;
+
+    public BenchmarkMessage(int key, String name, long value) {
+        this.key = key;
+        this.name = name;
+        this.value = value;
+    }
+
+    @Override
+    protected boolean verify() {
+        return crc == checksum();
+    }
+
+    @Override
+    public void storeReplica(Message m) {
+        crc = ((BenchmarkMessage) m).checksum();
+    }
+
+    private long checksum() {
+        return key * 31L + name.hashCode() * 17L + value;
+    }
+}
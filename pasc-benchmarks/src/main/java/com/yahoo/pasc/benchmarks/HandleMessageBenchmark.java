@@ -0,0 +1,181 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yahoo.pasc.DescriptorlessMessageHandler;
+import com.yahoo.pasc.FailureHandler;
+import com.yahoo.pasc.Message;
+import com.yahoo.pasc.PascRuntime;
+import com.yahoo.pasc.ProcessState;
+
+/**
+ * Measures PascRuntime.handleMessage() with protection on (invoke() and criticalSection()) and off
+ * (unsafeInvoke()), over different state shapes.
+ * 
+ * Handlers don't generate output messages, so the numbers reflect the cost of the runtime and the generated
+ * encapsulators, not the cost of the handlers.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class HandleMessageBenchmark {
+
+    private static final int MESSAGES = 1024;
+
+    @Param({ "true", "false" })
+    boolean protection;
+
+    @Param({ "scalar", "primitiveKey", "objectKey", "objectValue" })
+    String shape;
+
+    private PascRuntime<ProcessState> runtime;
+    private Message messages[] = new Message[MESSAGES];
+    private int next;
+
+    @Setup
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void setUp() {
+        PascRuntime runtime = new PascRuntime(protection);
+        if (shape.equals("scalar")) {
+            runtime.setState(new ScalarState());
+            runtime.addHandler(BenchmarkMessage.class, new ScalarHandler());
+        } else if (shape.equals("primitiveKey")) {
+            runtime.setState(new IndexedState());
+            runtime.addHandler(BenchmarkMessage.class, new PrimitiveKeyHandler());
+        } else if (shape.equals("objectKey")) {
+            runtime.setState(new IndexedState());
+            runtime.addHandler(BenchmarkMessage.class, new ObjectKeyHandler());
+        } else if (shape.equals("objectValue")) {
+            runtime.setState(new ObjectState());
+            runtime.addHandler(BenchmarkMessage.class, new ObjectValueHandler());
+        } else {
+            throw new IllegalArgumentException("Unknown state shape: " + shape);
+        }
+        runtime.setFailureHandler(new FailureHandler() {
+            @Override
+            public void handleFailure(Exception e) {
+                throw new IllegalStateException("Benchmark handler failed", e);
+            }
+        });
+        this.runtime = runtime;
+
+        for (int i = 0; i < MESSAGES; ++i) {
+            Message m = new BenchmarkMessage(i, "key" + i, i * 7L);
+            m.storeReplica(m);
+            messages[i] = m;
+        }
+    }
+
+    private Message nextMessage() {
+        Message m = messages[next];
+        next = (next + 1) & (MESSAGES - 1);
+        return m;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public List<Message> throughput() {
+        return runtime.handleMessage(nextMessage());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public List<Message> latency() {
+        return runtime.handleMessage(nextMessage());
+    }
+
+    static class ScalarHandler extends DescriptorlessMessageHandler<BenchmarkMessage, ScalarState> {
+        @Override
+        public boolean guardPredicate(BenchmarkMessage receivedMessage) {
+            return true;
+        }
+
+        @Override
+        public List<Message> processMessage(BenchmarkMessage message, ScalarState state) {
+            state.setA(state.getA() + message.key);
+            state.setB(state.getB() ^ message.value);
+            return null;
+        }
+    }
+
+    static class PrimitiveKeyHandler extends DescriptorlessMessageHandler<BenchmarkMessage, IndexedState> {
+        @Override
+        public boolean guardPredicate(BenchmarkMessage receivedMessage) {
+            return true;
+        }
+
+        @Override
+        public List<Message> processMessage(BenchmarkMessage message, IndexedState state) {
+            int key = message.key;
+            int other = (key + 1) & (IndexedState.SIZE - 1);
+            state.setSlot(key, state.getSlot(key) + message.value);
+            state.setSlot(other, state.getSlot(other) - message.value);
+            return null;
+        }
+    }
+
+    static class ObjectKeyHandler extends DescriptorlessMessageHandler<BenchmarkMessage, IndexedState> {
+        @Override
+        public boolean guardPredicate(BenchmarkMessage receivedMessage) {
+            return true;
+        }
+
+        @Override
+        public List<Message> processMessage(BenchmarkMessage message, IndexedState state) {
+            state.setCount(message.name, state.getCount(message.name) + message.value);
+            return null;
+        }
+    }
+
+    static class ObjectValueHandler extends DescriptorlessMessageHandler<BenchmarkMessage, ObjectState> {
+        @Override
+        public boolean guardPredicate(BenchmarkMessage receivedMessage) {
+            return true;
+        }
+
+        @Override
+        public List<Message> processMessage(BenchmarkMessage message, ObjectState state) {
+            ObjectState.Value entry = state.getEntry(message.key);
+            entry.count++;
+            entry.total += message.value;
+            state.setEntry(message.key, entry);
+
+            ObjectState.Value value = state.getValue();
+            value.count++;
+            state.setValue(value);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc.benchmarks;
+
+import com.yahoo.pasc.ProcessState;
+
+/**
+ * State made of indexed fields with primitive values, one with a primitive key and another one with
+ * an object key.
+ */
+public class IndexedState implements ProcessState {
+    static final int SIZE = 1024;
+
+    long slots[] = new long[SIZE];
+    long counts[] = new long[SIZE];
+
+    public long getSlot(int i) {
+        return slots[i];
+    }
+
+    public void setSlot(int i, long value) {
+        slots[i] = value;
+    }
+
+    public long getCount(String key) {
+        return counts[key.hashCode() & (SIZE - 1)];
+    }
+
+    public void setCount(String key, long value) {
+        counts[key.hashCode() & (SIZE - 1)] = value;
+    }
+}
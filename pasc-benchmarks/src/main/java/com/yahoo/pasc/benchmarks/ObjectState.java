@@ -0,0 +1,65 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc.benchmarks;
+
+import com.yahoo.pasc.ProcessState;
+
+/**
+ * State made of object valued fields, which are protected through PascRuntime.clone() and 
+ * PascRuntime.compare().
+ */
+public class ObjectState implements ProcessState {
+    static final int SIZE = 1024;
+
+    Value value = new Value("scalar");
+    Value entries[] = new Value[SIZE];
+
+    public ObjectState() {
+        for (int i = 0; i < SIZE; ++i) {
+            entries[i] = new Value("entry" + i);
+        }
+    }
+
+    public Value getValue() {
+        return value;
+    }
+
+    public void setValue(Value value) {
+        this.value = value;
+    }
+
+    public Value getEntry(int i) {
+        return entries[i];
+    }
+
+    public void setEntry(int i, Value value) {
+        entries[i] = value;
+    }
+
+    /**
+     * Plain value type, it doesn't implement CloneableDeep nor EqualsDeep.
+     */
+    public static class Value {
+        String name;
+        long count;
+        long total;
+
+        public Value(String name) {
+            this.name = name;
+        }
+    }
+}
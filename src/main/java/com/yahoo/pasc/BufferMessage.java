@@ -0,0 +1,181 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.yahoo.pasc;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.yahoo.pasc.generation.Checksummer;
+
+/**
+ * Base class for flyweight messages, whose fields are accessors over a slice of a ByteBuffer.
+ * 
+ * Subclasses define their fields as getters and setters reading and writing {@link #buffer} at fixed offsets,
+ * so a message can be read in place from the buffer it was received on, without materializing it first. The
+ * runtime copies and compares these messages as a single block of bytes, eight bytes at a time, whatever the
+ * structure of their fields, and the message is protected by a checksum of its bytes so subclasses don't
+ * have to implement {@link #verify()} nor {@link #storeReplica(Message)}.
+ * 
+ * Subclasses implement {@link #cloneDeep()} through the copy constructor. Copies are heap buffers with the
+ * byte order of the original, allocating direct memory for each received message would be much slower than
+ * the copy itself. The bytes of a message must not change once it has been sent, and a message read from a
+ * buffer shares its contents, so the buffer must not be reused while the message is in use.
+ * 
+ * On the wire each message is followed by its checksum, {@link #CHECKSUM_SIZE} big endian bytes written by
+ * {@link #writeTo(ByteBuffer)} and loaded by {@link #BufferMessage(ByteBuffer, int)}, so a message read in place
+ * is verified against the checksum its sender computed. The runtime stores the checksum of output messages,
+ * messages built elsewhere must call {@link #storeReplica(Message)} before being written.
+ *
+ * @param <M> the message class
+ */
+public abstract class BufferMessage<M extends BufferMessage<M>> extends Message
+        implements CloneableDeep<M>, EqualsDeep<M> {
+
+    /**
+     * Size of the checksum following each message on the wire
+     */
+    public static final int CHECKSUM_SIZE = 8;
+
+    protected final ByteBuffer buffer;
+    private long checksum;
+
+    /**
+     * Creates a message backed by a new direct buffer, all zero.
+     * 
+     * @param size size of the message in bytes
+     */
+    protected BufferMessage(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Invalid message size: " + size);
+        }
+        this.buffer = ByteBuffer.allocateDirect(size);
+    }
+
+    /**
+     * Creates a message backed by the next bytes of the given buffer, which aren't copied, and loads the checksum
+     * following them. The position of the buffer is advanced past the checksum.
+     * 
+     * @param source buffer holding the message, usually the one it was received on
+     * @param size size of the message in bytes, without the checksum
+     * @throws BufferUnderflowException if the buffer doesn't hold the whole message and its checksum
+     */
+    protected BufferMessage(ByteBuffer source, int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Invalid message size: " + size);
+        }
+        if (source.remaining() < size + CHECKSUM_SIZE) {
+            throw new BufferUnderflowException();
+        }
+        ByteBuffer slice = source.slice();
+        slice.limit(size);
+        this.buffer = slice.slice().order(source.order());
+        source.position(source.position() + size);
+        this.checksum = bigEndian(source.getLong(), source.order());
+    }
+
+    /**
+     * Creates a copy of the given message.
+     */
+    protected BufferMessage(M other) {
+        BufferMessage<M> source = other;
+        this.buffer = ByteBuffer.allocate(source.buffer.capacity()).order(source.buffer.order());
+        buffer.put(source.buffer.duplicate());
+        buffer.clear();
+        this.checksum = source.checksum;
+    }
+
+    /**
+     * @return size of the message in bytes
+     */
+    public final int size() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Copies the bytes of this message followed by its stored checksum to the given buffer, advancing its
+     * position.
+     * 
+     * @param out buffer to write the message to
+     * @throws BufferOverflowException if the buffer can't hold the message and its checksum, nothing is
+     *             written then
+     */
+    public final void writeTo(ByteBuffer out) {
+        if (out.remaining() < buffer.capacity() + CHECKSUM_SIZE) {
+            throw new BufferOverflowException();
+        }
+        out.put(buffer.duplicate());
+        out.putLong(bigEndian(checksum, out.order()));
+    }
+
+    @Override
+    public boolean equalsDeep(M other) {
+        BufferMessage<M> message = other;
+        if (message == this) {
+            return true;
+        }
+        ByteBuffer otherBuffer = message.buffer;
+        int size = buffer.capacity();
+        if (otherBuffer.capacity() != size) {
+            return false;
+        }
+        if (otherBuffer.order() != buffer.order()) {
+            return buffer.equals(otherBuffer);
+        }
+        int i = 0;
+        for (; i + 8 <= size; i += 8) {
+            if (buffer.getLong(i) != otherBuffer.getLong(i)) {
+                return false;
+            }
+        }
+        for (; i < size; ++i) {
+            if (buffer.get(i) != otherBuffer.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected final boolean verify() {
+        return checksum == checksum(buffer);
+    }
+
+    @Override
+    public final void storeReplica(Message m) {
+        checksum = checksum(((BufferMessage<?>) m).buffer);
+    }
+
+    /**
+     * @return the checksum stored on this message
+     */
+    public final long getChecksum() {
+        return checksum;
+    }
+
+    private static long bigEndian(long value, ByteOrder order) {
+        return order == ByteOrder.BIG_ENDIAN ? value : Long.reverseBytes(value);
+    }
+
+    private static long checksum(ByteBuffer buffer) {
+        // the checksum doesn't depend on the byte order the fields are accessed with
+        if (buffer.order() != ByteOrder.BIG_ENDIAN) {
+            buffer = buffer.duplicate();
+        }
+        return Checksummer.checksum(buffer, 0, buffer.capacity());
+    }
+}
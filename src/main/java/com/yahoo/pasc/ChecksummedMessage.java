@@ -0,0 +1,50 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc;
+
+import com.yahoo.pasc.generation.Checksummer;
+
+/**
+ * Base class for messages protected by a checksum instead of a redundant copy.
+ * 
+ * The checksum is computed over all the non transient fields of the message, with a field by field checksummer
+ * generated for each message class, so subclasses don't have to implement {@link #verify()} nor
+ * {@link #storeReplica(Message)}. Fields must keep their values once the message has been sent, and field
+ * types the checksummer can't traverse (JDK classes other than strings, boxed values and lists) must
+ * implement hashCode() consistently with their contents.
+ */
+public abstract class ChecksummedMessage extends Message {
+
+    private long checksum;
+
+    @Override
+    protected final boolean verify() {
+        return checksum == Checksummer.checksumFields(this);
+    }
+
+    @Override
+    public final void storeReplica(Message m) {
+        checksum = Checksummer.checksumFields(m);
+    }
+
+    /**
+     * @return the checksum stored on this message
+     */
+    public final long getChecksum() {
+        return checksum;
+    }
+}
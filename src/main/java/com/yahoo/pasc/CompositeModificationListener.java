@@ -0,0 +1,52 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.yahoo.pasc;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Forwards the modifications to several listeners, in order, e.g. to a write-ahead log and a checkpointer.
+ * 
+ * See {@link PascRuntime#setModificationListener(ModificationListener)}. An exception thrown by a listener
+ * reaches the runtime before the following listeners are called.
+ */
+public class CompositeModificationListener implements ModificationListener {
+
+    private final ModificationListener[] listeners;
+
+    public CompositeModificationListener(ModificationListener... listeners) {
+        this.listeners = listeners.clone();
+    }
+
+    public List<ModificationListener> getListeners() {
+        return Arrays.asList(listeners.clone());
+    }
+
+    @Override
+    public void modified(String field, Object key, Object value) {
+        for (ModificationListener listener : listeners) {
+            listener.modified(field, key, value);
+        }
+    }
+
+    @Override
+    public void committed() {
+        for (ModificationListener listener : listeners) {
+            listener.committed();
+        }
+    }
+}
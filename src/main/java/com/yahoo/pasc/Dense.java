@@ -0,0 +1,43 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares an indexed state field as dense: its keys are ints in [0, value()).
+ * 
+ * The encapsulators track the keys of dense fields with a bitset and a parallel array of values instead of hash
+ * maps, and apply the modifications in key order. Use it for fields that are effectively arrays, the memory used
+ * by each encapsulator is proportional to the bound. Either accessor of the field can be annotated.
+ * 
+ * <pre>
+ * &#64;Dense(1024)
+ * public long getSlot(int i) { ... }
+ * </pre>
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Dense {
+    /**
+     * Number of keys of the field, at least one.
+     */
+    int value();
+}
@@ -0,0 +1,28 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.yahoo.pasc;
+
+/**
+ * How a state field is protected, see {@link Protection}.
+ */
+public enum FieldProtection {
+    /** The replica keeps a copy of the field, every corruption is detected */
+    REPLICA,
+    /** The replica keeps a 64 bit checksum per value of the field, corruptions are detected with a very high probability */
+    CHECKSUM,
+    /** The replica keeps nothing and reads aren't checked, for data that can be rebuilt such as caches */
+    NONE
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.yahoo.pasc;
+
+/**
+ * How the runtime executes a handler, chosen when registering it with
+ * {@link PascRuntime#addHandler(Class, MessageHandler, HandlerProtection)}.
+ */
+public enum HandlerProtection {
+    /**
+     * Executed twice, on the state and on the replica, both executions are checked against each other. Detects
+     * corruptions of the state and errors while executing the handler.
+     */
+    DUAL,
+    /**
+     * Executed once, checking every read against the replica. The modifications are applied to the state and to
+     * the replica, and the output messages get their checksums as usual. Detects corruptions of the state, but
+     * not errors while executing the handler.
+     */
+    SINGLE,
+    /**
+     * Executed once without checks. The modifications are still applied to the replica, so handlers with other
+     * levels can check their reads against it.
+     */
+    NONE
+}
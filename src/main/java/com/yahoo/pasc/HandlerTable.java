@@ -0,0 +1,151 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps message classes to their handlers.
+ * 
+ * Each registered message class gets a dense id, its position in the handlers array. A message class is
+ * resolved once to the id of its closest registered superclass (or to none), and the result is cached in an
+ * identity hash table, so dispatching a message is a probe of that table plus an array access. Registering a
+ * handler drops the cached resolutions.
+ * 
+ * Lookups don't lock, the cache is copied on write since it only changes the first time a class is seen.
+ * 
+ * @param <H> handler type
+ */
+final class HandlerTable<H> {
+
+    private static final int NONE = -1;
+    private static final int UNKNOWN = -2;
+
+    private final Map<Class<?>, Integer> ids = new HashMap<Class<?>, Integer>();
+    private volatile Object[] handlers = new Object[0];
+    private volatile Resolutions resolutions = new Resolutions(16);
+
+    synchronized void put(Class<? extends Message> messageType, H handler) {
+        Integer id = ids.get(messageType);
+        Object[] newHandlers;
+        if (id == null) {
+            id = ids.size();
+            ids.put(messageType, id);
+            newHandlers = new Object[id + 1];
+            System.arraycopy(handlers, 0, newHandlers, 0, id);
+        } else {
+            newHandlers = handlers.clone();
+        }
+        newHandlers[id] = handler;
+        handlers = newHandlers;
+        resolutions = new Resolutions(16);
+    }
+
+    @SuppressWarnings("unchecked")
+    H get(Class<?> messageType) {
+        // handlers must be read after the resolutions, so it has all the ids they contain
+        int id = resolutions.get(messageType);
+        Object[] handlers = this.handlers;
+        if (id == UNKNOWN) {
+            synchronized (this) {
+                handlers = this.handlers;
+                id = resolve(messageType);
+            }
+        }
+        return id == NONE ? null : (H) handlers[id];
+    }
+
+    private int resolve(Class<?> messageType) {
+        int id = resolutions.get(messageType);
+        if (id != UNKNOWN) {
+            return id;
+        }
+        id = NONE;
+        for (Class<?> type = messageType; type != null; type = type.getSuperclass()) {
+            Integer registered = ids.get(type);
+            if (registered != null) {
+                id = registered;
+                break;
+            }
+        }
+        resolutions = resolutions.with(messageType, id);
+        return id;
+    }
+
+    /**
+     * Immutable open addressing table from classes to handler ids.
+     */
+    private static final class Resolutions {
+        private final Class<?>[] types;
+        private final int[] ids;
+        private final int size;
+
+        Resolutions(int capacity) {
+            types = new Class<?>[capacity];
+            ids = new int[capacity];
+            size = 0;
+        }
+
+        private Resolutions(Resolutions other, int capacity) {
+            types = new Class<?>[capacity];
+            ids = new int[capacity];
+            size = other.size + 1;
+            for (int i = 0; i < other.types.length; ++i) {
+                if (other.types[i] != null) {
+                    insert(other.types[i], other.ids[i]);
+                }
+            }
+        }
+
+        int get(Class<?> type) {
+            int mask = types.length - 1;
+            for (int i = index(type, mask);; i = (i + 1) & mask) {
+                Class<?> current = types[i];
+                if (current == type) {
+                    return ids[i];
+                }
+                if (current == null) {
+                    return UNKNOWN;
+                }
+            }
+        }
+
+        Resolutions with(Class<?> type, int id) {
+            // keep the load factor at 1/2 at most
+            int capacity = (size + 1) * 2 > types.length ? types.length * 2 : types.length;
+            Resolutions copy = new Resolutions(this, capacity);
+            copy.insert(type, id);
+            return copy;
+        }
+
+        private void insert(Class<?> type, int id) {
+            int mask = types.length - 1;
+            int i = index(type, mask);
+            while (types[i] != null) {
+                i = (i + 1) & mask;
+            }
+            types[i] = type;
+            ids[i] = id;
+        }
+
+        private static int index(Class<?> type, int mask) {
+            int h = System.identityHashCode(type);
+            return (h ^ (h >>> 16)) & mask;
+        }
+    }
+}
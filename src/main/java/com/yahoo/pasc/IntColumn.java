@@ -0,0 +1,55 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc;
+
+import java.nio.IntBuffer;
+
+/**
+ * Off heap column of int values, see {@link OffHeapColumn}.
+ */
+public final class IntColumn extends OffHeapColumn<IntColumn> {
+
+    private final IntBuffer values;
+
+    /**
+     * Creates a column of the given number of values, all zero.
+     * 
+     * @param capacity number of values
+     */
+    public IntColumn(int capacity) {
+        super(capacity, 4);
+        this.values = (IntBuffer) buffer.asIntBuffer().limit(capacity());
+    }
+
+    private IntColumn(IntColumn other) {
+        super(other);
+        this.values = (IntBuffer) buffer.asIntBuffer().limit(capacity());
+    }
+
+    public int get(int key) {
+        return values.get(key);
+    }
+
+    public void set(int key, int value) {
+        values.put(key, value);
+    }
+
+    @Override
+    public IntColumn cloneDeep() {
+        return new IntColumn(this);
+    }
+}
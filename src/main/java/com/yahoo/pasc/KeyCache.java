@@ -0,0 +1,49 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Sets how many keys of an indexed state field are cached by the encapsulators.
+ * 
+ * The encapsulators keep the latest keys accessed in a small array, and only spill them to their read and written
+ * maps when that array is full. A handler that uses a few keys of the same field while processing a message should
+ * cache at least as many of them. Either accessor of the field can be annotated, fields without the annotation
+ * cache {@link #DEFAULT} keys.
+ * 
+ * <pre>
+ * &#64;KeyCache(8)
+ * public Value getValue(long key) { ... }
+ * </pre>
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface KeyCache {
+    /**
+     * Number of keys cached for fields without the annotation.
+     */
+    public static final int DEFAULT = 4;
+
+    /**
+     * Number of keys cached, at least one.
+     */
+    int value();
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc;
+
+/**
+ * Enumerates the keys of the indexed fields of a state, used by the state scrubber.
+ * 
+ * See {@link PascRuntime#setScrubber(KeyEnumerator, long, double)}. Fields annotated with {@link Dense} don't
+ * need to be enumerated.
+ *
+ * @param <S> state class used by this application
+ */
+public interface KeyEnumerator<S extends ProcessState> {
+
+    /**
+     * Lists the keys of an indexed field currently in use. Only the keys present in the state need to be
+     * enumerated, each key is compared against the replica. The returned keys are copied before the state is
+     * modified again, see {@link OrderedKeyEnumerator} to scrub large fields without copying their keys.
+     * 
+     * @param state The process state, not the replica
+     * @param field Name of the indexed field, as derived from its accessors
+     * @return the keys of the field, or null if the field mustn't be scrubbed
+     */
+    public Iterable<?> keys(S state, String field);
+}
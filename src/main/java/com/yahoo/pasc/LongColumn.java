@@ -0,0 +1,55 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc;
+
+import java.nio.LongBuffer;
+
+/**
+ * Off heap column of long values, see {@link OffHeapColumn}.
+ */
+public final class LongColumn extends OffHeapColumn<LongColumn> {
+
+    private final LongBuffer values;
+
+    /**
+     * Creates a column of the given number of values, all zero.
+     * 
+     * @param capacity number of values
+     */
+    public LongColumn(int capacity) {
+        super(capacity, 8);
+        this.values = (LongBuffer) buffer.asLongBuffer().limit(capacity());
+    }
+
+    private LongColumn(LongColumn other) {
+        super(other);
+        this.values = (LongBuffer) buffer.asLongBuffer().limit(capacity());
+    }
+
+    public long get(int key) {
+        return values.get(key);
+    }
+
+    public void set(int key, long value) {
+        values.put(key, value);
+    }
+
+    @Override
+    public LongColumn cloneDeep() {
+        return new LongColumn(this);
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc;
+
+/**
+ * Maps messages to the partition of the state that must handle them.
+ * 
+ * Used by {@link PartitionedPascRuntime}. All the messages that access the same part of the state must be mapped
+ * to the same partition.
+ */
+public interface MessagePartitioner {
+
+    /**
+     * Computes the partition for the given message.
+     * 
+     * @param message Received message
+     * @param partitions Number of partitions
+     * @return a partition number between 0 (inclusive) and partitions (exclusive)
+     */
+    public int partition(Message message, int partitions);
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.yahoo.pasc;
+
+/**
+ * Receives the modifications applied to the state at the end of each message.
+ * 
+ * See {@link PascRuntime#setModificationListener(ModificationListener)}. The listener is called from the thread
+ * applying the modifications, after they have been checked against the replica and applied to the state, so it
+ * must return quickly. Values are passed as stored in the state and mustn't be modified. Primitive keys and
+ * values are boxed.
+ */
+public interface ModificationListener {
+
+    /**
+     * Called for each modified field of the state.
+     * 
+     * @param field Name of the field, as derived from its accessors
+     * @param key Key of the modified entry, or null if the field isn't indexed
+     * @param value New value of the field
+     */
+    public void modified(String field, Object key, Object value);
+
+    /**
+     * Called after all the modifications of a message, or of a batch, have been applied. If applying fails
+     * halfway, the modifications already applied are reported again before the next call.
+     */
+    public void committed();
+}
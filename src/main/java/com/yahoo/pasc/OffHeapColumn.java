@@ -0,0 +1,93 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * Base class of the off heap columns, arrays of primitive values stored in direct memory and addressed by key.
+ * 
+ * Columns are meant to back large primitive indexed fields of the state: the getter and setter of the field
+ * read and write the column, so the generated encapsulators work unchanged. The garbage collector doesn't scan
+ * their contents, and the replica gets its own copy in direct memory through {@link #cloneDeep()}. Copies are
+ * made and compared in bulk, eight bytes at a time. The memory is released when the column is collected, and
+ * it counts against the direct memory limit of the JVM (-XX:MaxDirectMemorySize).
+ * 
+ * Columns are initialized to zero and hold up to 2 GB. Keys out of the capacity of the column throw
+ * IndexOutOfBoundsException.
+ *
+ * @param <C> the column class
+ */
+public abstract class OffHeapColumn<C extends OffHeapColumn<C>> implements CloneableDeep<C>, EqualsDeep<C> {
+
+    private final int capacity;
+    protected final ByteBuffer buffer;
+    private final LongBuffer words;
+
+    /**
+     * @param capacity number of values of the column
+     * @param width size of each value in bytes
+     */
+    protected OffHeapColumn(int capacity, int width) {
+        if (capacity < 0 || (long) capacity * width > Integer.MAX_VALUE - 7) {
+            throw new IllegalArgumentException("Invalid column capacity: " + capacity);
+        }
+        this.capacity = capacity;
+        // padded to whole words, so columns can be compared eight bytes at a time
+        this.buffer = ByteBuffer.allocateDirect((capacity * width + 7) & ~7).order(ByteOrder.nativeOrder());
+        this.words = buffer.asLongBuffer();
+    }
+
+    /**
+     * Creates a copy of the given column.
+     */
+    protected OffHeapColumn(C other) {
+        OffHeapColumn<C> source = other;
+        this.capacity = source.capacity;
+        this.buffer = ByteBuffer.allocateDirect(source.buffer.capacity()).order(ByteOrder.nativeOrder());
+        buffer.put(source.buffer.duplicate());
+        buffer.clear();
+        this.words = buffer.asLongBuffer();
+    }
+
+    /**
+     * @return number of values of the column
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    @Override
+    public boolean equalsDeep(C other) {
+        OffHeapColumn<C> column = other;
+        if (column == this) {
+            return true;
+        }
+        if (column.capacity != capacity || column.buffer.capacity() != buffer.capacity()) {
+            return false;
+        }
+        LongBuffer otherWords = column.words;
+        for (int i = 0, n = words.limit(); i < n; ++i) {
+            if (words.get(i) != otherWords.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
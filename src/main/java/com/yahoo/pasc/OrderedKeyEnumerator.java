@@ -0,0 +1,39 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.yahoo.pasc;
+
+/**
+ * Key enumerator that can resume after a given key, so the state scrubber compares a large field a slice at a
+ * time without copying its keys nor holding an iterator while the state is modified.
+ * 
+ * The keys must be enumerated in a stable order, e.g. from a sorted map: the scrubber asks for the keys
+ * following the last one it compared at the start of each slice.
+ *
+ * @param <S> state class used by this application
+ */
+public interface OrderedKeyEnumerator<S extends ProcessState> extends KeyEnumerator<S> {
+
+    /**
+     * Lists the keys of an indexed field currently in use that follow the given key, e.g. a tail set of the
+     * keys excluding it. The given key may have been removed from the state meanwhile.
+     * 
+     * @param state The process state, not the replica
+     * @param field Name of the indexed field, as derived from its accessors
+     * @param after Last key compared
+     * @return the keys of the field following the given one, or null if the field mustn't be scrubbed
+     */
+    public Iterable<?> keysAfter(S state, String field, Object after);
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.yahoo.pasc.metrics.PascMetrics;
+
+/**
+ * Runtime that shards the process state across several worker threads.
+ * 
+ * Each partition has its own state, replica and encapsulators, wrapped in an independent {@link PascRuntime}, and
+ * its own worker thread. Received messages are routed by a {@link MessagePartitioner} and handled by the worker of
+ * their partition, in the order they were received.
+ * 
+ * Handlers are shared by all partitions, so they must not keep mutable fields of their own.
+ *
+ * @param <S> state class used by this application
+ */
+public final class PartitionedPascRuntime<S extends ProcessState> {
+
+    private final List<PascRuntime<S>> runtimes;
+    private final List<ExecutorService> workers;
+    private final MessagePartitioner partitioner;
+    private final int partitions;
+
+    /**
+     * Create a new partitioned runtime with protection against failures
+     * 
+     * @param partitions Number of partitions
+     * @param partitioner Function mapping messages to partitions
+     */
+    public PartitionedPascRuntime(int partitions, MessagePartitioner partitioner) {
+        this(partitions, partitioner, true);
+    }
+
+    /**
+     * Create a new partitioned runtime
+     * 
+     * @param partitions Number of partitions
+     * @param partitioner Function mapping messages to partitions
+     * @param protection Whether to use protection against corruptions/failures or not
+     */
+    public PartitionedPascRuntime(int partitions, MessagePartitioner partitioner, boolean protection) {
+        this(partitions, partitioner, protection, new WorkerThreadFactory());
+    }
+
+    /**
+     * Create a new partitioned runtime
+     * 
+     * The thread factory is called once per partition. It can be used to pin each worker to its own core with
+     * an affinity library.
+     * 
+     * @param partitions Number of partitions
+     * @param partitioner Function mapping messages to partitions
+     * @param protection Whether to use protection against corruptions/failures or not
+     * @param threadFactory Factory of the worker threads
+     */
+    public PartitionedPascRuntime(int partitions, MessagePartitioner partitioner, boolean protection,
+            ThreadFactory threadFactory) {
+        if (partitions <= 0) {
+            throw new IllegalArgumentException("Invalid number of partitions: " + partitions);
+        }
+        this.partitions = partitions;
+        this.partitioner = partitioner;
+        this.runtimes = new ArrayList<PascRuntime<S>>(partitions);
+        this.workers = new ArrayList<ExecutorService>(partitions);
+        for (int i = 0; i < partitions; ++i) {
+            runtimes.add(new PascRuntime<S>(protection));
+            workers.add(Executors.newSingleThreadExecutor(threadFactory));
+        }
+    }
+
+    /**
+     * Stablishes the state objects for this application, one per partition.
+     * 
+     * @param states The states used by this application, state i belongs to partition i
+     */
+    public void setStates(List<? extends S> states) {
+        if (states.size() != partitions) {
+            throw new IllegalArgumentException("Expected " + partitions + " states, got " + states.size());
+        }
+        for (int i = 0; i < partitions; ++i) {
+            runtimes.get(i).setState(states.get(i));
+        }
+    }
+
+    /**
+     * Registers a new handler for the specified message type on all the partitions.
+     * 
+     * @param messageType Type of message the handler will handle
+     * @param handler Implementation of the handler
+     */
+    public void addHandler(Class<? extends Message> messageType, 
+            MessageHandler<? extends Message, S, ?> handler) 
+    {
+        for (PascRuntime<S> runtime : runtimes) {
+            runtime.addHandler(messageType, handler);
+        }
+    }
+
+    /**
+     * Registers a new handler for the specified message type on all the partitions, with its own protection.
+     * 
+     * @param messageType Type of message the handler will handle
+     * @param handler Implementation of the handler
+     * @param protection How the handler is executed, see {@link HandlerProtection}
+     */
+    public void addHandler(Class<? extends Message> messageType, 
+            MessageHandler<? extends Message, S, ?> handler, HandlerProtection protection) 
+    {
+        for (PascRuntime<S> runtime : runtimes) {
+            runtime.addHandler(messageType, handler, protection);
+        }
+    }
+
+    /**
+     * Handle a new message in the worker of its partition.
+     * 
+     * @param receivedMessage Received message requiring handling
+     * @return Future list of output messages generated by the handler
+     */
+    public Future<List<Message>> handleMessage(final Message receivedMessage) {
+        int partition = partitioner.partition(receivedMessage, partitions);
+        if (partition < 0 || partition >= partitions) {
+            throw new IllegalArgumentException("Invalid partition " + partition + " for message " + receivedMessage);
+        }
+        final PascRuntime<S> runtime = runtimes.get(partition);
+        return workers.get(partition).submit(new Callable<List<Message>>() {
+            @Override
+            public List<Message> call() {
+                return runtime.handleMessage(receivedMessage);
+            }
+        });
+    }
+
+    /**
+     * Stops the worker threads. Messages already received are handled before stopping.
+     */
+    public void shutdown() {
+        for (ExecutorService worker : workers) {
+            worker.shutdown();
+        }
+    }
+
+    public void setFailureHandler(FailureHandler failureHandler) {
+        for (PascRuntime<S> runtime : runtimes) {
+            runtime.setFailureHandler(failureHandler);
+        }
+    }
+
+    /**
+     * Sets the metrics sink of all the partitions, it is shared by their workers.
+     */
+    public void setMetrics(PascMetrics metrics) {
+        for (PascRuntime<S> runtime : runtimes) {
+            runtime.setMetrics(metrics);
+        }
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    PascRuntime<S> getRuntime(int partition) {
+        return runtimes.get(partition);
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private static final AtomicInteger runtimeCount = new AtomicInteger();
+        private final int runtime = runtimeCount.getAndIncrement();
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "pasc-" + runtime + "-partition-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,331 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.yahoo.pasc;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Single writer front end of a {@link PascRuntime}, accepting messages from any number of threads.
+ * 
+ * Producers put the received messages in a preallocated ring buffer, claiming slots with a compare and set, and
+ * a dedicated writer thread takes them out in order and handles them with {@link PascRuntime#handleMessage}. The
+ * output messages are delivered to a {@link ResultSink} on the writer thread, or through a Future. Producers
+ * never take a lock, and the runtime is only touched by the writer thread, so it must not be used directly
+ * while the executor is running.
+ * 
+ * Both the writer waiting for messages and producers waiting for a free slot when the ring is full follow the
+ * configured {@link WaitStrategy}.
+ *
+ * @param <S> state class used by this application
+ */
+public final class PascExecutor<S extends ProcessState> {
+
+    /**
+     * How threads wait for the ring buffer.
+     */
+    public enum WaitStrategy {
+        /** Spins on the ring, lowest latency but keeps a core busy */
+        BUSY_SPIN,
+        /** Yields the processor between checks */
+        YIELD,
+        /** Parks for a few microseconds between checks, leaving the core to other threads */
+        PARK;
+
+        void idle() {
+            switch (this) {
+            case YIELD:
+                Thread.yield();
+                break;
+            case PARK:
+                LockSupport.parkNanos(PARK_NANOS);
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    /**
+     * Receives the outcome of each message, called on the writer thread in the order messages were handled.
+     * Exceptions thrown by the sink are logged and don't stop the writer thread.
+     */
+    public interface ResultSink {
+        /**
+         * @param receivedMessage handled message
+         * @param outputMessages output messages generated by the handler
+         */
+        void handled(Message receivedMessage, List<Message> outputMessages);
+
+        /**
+         * Called when handling the message raised an exception, usually rethrown by the failure handler.
+         * 
+         * @param receivedMessage message being handled
+         * @param cause exception raised
+         */
+        void failed(Message receivedMessage, Throwable cause);
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(PascExecutor.class);
+
+    private static final long PARK_NANOS = 1000;
+
+    private final PascRuntime<S> runtime;
+    private final WaitStrategy waitStrategy;
+    private final int mask;
+    private final Message[] messages;
+    private final ResultSink[] sinks;
+    // sequence of each slot: equal to the claiming position when free, one past it when published
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    /**
+     * Creates an executor for the given runtime and starts its writer thread.
+     * 
+     * @param runtime runtime handling the messages
+     * @param capacity number of slots of the ring buffer, a power of two
+     * @param waitStrategy how the writer and the producers wait for the ring buffer
+     */
+    public PascExecutor(PascRuntime<S> runtime, int capacity, WaitStrategy waitStrategy) {
+        this(runtime, capacity, waitStrategy, new WriterThreadFactory());
+    }
+
+    /**
+     * Creates an executor for the given runtime and starts its writer thread.
+     * 
+     * The thread factory can be used to pin the writer thread to its own core with an affinity library.
+     * 
+     * @param runtime runtime handling the messages
+     * @param capacity number of slots of the ring buffer, a power of two
+     * @param waitStrategy how the writer and the producers wait for the ring buffer
+     * @param threadFactory factory of the writer thread
+     */
+    public PascExecutor(PascRuntime<S> runtime, int capacity, WaitStrategy waitStrategy, 
+            ThreadFactory threadFactory) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        this.runtime = runtime;
+        this.waitStrategy = waitStrategy;
+        this.mask = capacity - 1;
+        this.messages = new Message[capacity];
+        this.sinks = new ResultSink[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; ++i) {
+            sequences.set(i, i);
+        }
+        this.writer = threadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                drive();
+            }
+        });
+        writer.start();
+    }
+
+    /**
+     * Queues a message, its outcome is delivered to the given sink. Waits for a free slot if the ring is full.
+     * 
+     * @param receivedMessage received message requiring handling
+     * @param sink receiver of the output messages
+     * @throws RejectedExecutionException if the executor has been shut down
+     */
+    public void submit(Message receivedMessage, ResultSink sink) {
+        if (receivedMessage == null || sink == null) {
+            throw new NullPointerException();
+        }
+        long position;
+        int index;
+        while (true) {
+            position = tail.get();
+            index = (int) position & mask;
+            long sequence = sequences.get(index);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (sequence < position) {
+                // full, wait for the writer
+                if (!running) {
+                    throw new RejectedExecutionException("Executor has been shut down");
+                }
+                waitStrategy.idle();
+            }
+        }
+        // the running flag must be read after claiming the slot, see drive()
+        if (!running) {
+            sequences.lazySet(index, position + 1);
+            throw new RejectedExecutionException("Executor has been shut down");
+        }
+        messages[index] = receivedMessage;
+        sinks[index] = sink;
+        sequences.lazySet(index, position + 1);
+    }
+
+    /**
+     * Queues a message. Waits for a free slot if the ring is full.
+     * 
+     * @param receivedMessage received message requiring handling
+     * @return future list of output messages generated by the handler
+     * @throws RejectedExecutionException if the executor has been shut down
+     */
+    public Future<List<Message>> submit(Message receivedMessage) {
+        PendingResult result = new PendingResult();
+        submit(receivedMessage, result);
+        return result;
+    }
+
+    /**
+     * Stops accepting messages. Messages already queued are handled before the writer thread stops.
+     */
+    public void shutdown() {
+        running = false;
+    }
+
+    /**
+     * Waits for the writer thread to stop after a shutdown.
+     * 
+     * @return true if the writer thread stopped
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        unit.timedJoin(writer, timeout);
+        return !writer.isAlive();
+    }
+
+    private void drive() {
+        while (true) {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1) {
+                // Producers read the flag after claiming their slot, so once the flag is down and every claimed 
+                // slot has been taken out no more messages can arrive
+                if (!running && tail.get() == head) {
+                    return;
+                }
+                waitStrategy.idle();
+                continue;
+            }
+            Message message = messages[index];
+            ResultSink sink = sinks[index];
+            messages[index] = null;
+            sinks[index] = null;
+            sequences.lazySet(index, head + mask + 1);
+            ++head;
+            if (message == null) {
+                // rejected after shutting down
+                continue;
+            }
+            List<Message> outputMessages = null;
+            Throwable failure = null;
+            try {
+                outputMessages = runtime.handleMessage(message);
+            } catch (Throwable e) {
+                failure = e;
+            }
+            try {
+                if (failure == null) {
+                    sink.handled(message, outputMessages);
+                } else {
+                    sink.failed(message, failure);
+                }
+            } catch (Throwable e) {
+                // the writer must go on, producers would wait for a free slot forever
+                LOG.error("Error delivering the result of " + message, e);
+            }
+        }
+    }
+
+    private static class PendingResult implements Future<List<Message>>, ResultSink {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private List<Message> outputMessages;
+        private Throwable cause;
+
+        @Override
+        public void handled(Message receivedMessage, List<Message> outputMessages) {
+            this.outputMessages = outputMessages;
+            done.countDown();
+        }
+
+        @Override
+        public void failed(Message receivedMessage, Throwable cause) {
+            this.cause = cause;
+            done.countDown();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public List<Message> get() throws InterruptedException, ExecutionException {
+            done.await();
+            return result();
+        }
+
+        @Override
+        public List<Message> get(long timeout, TimeUnit unit) 
+                throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return result();
+        }
+
+        private List<Message> result() throws ExecutionException {
+            if (cause != null) {
+                throw new ExecutionException(cause);
+            }
+            return outputMessages;
+        }
+    }
+
+    private static class WriterThreadFactory implements ThreadFactory {
+        private static final AtomicInteger executorCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "pasc-writer-" + executorCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -16,25 +16,43 @@
 
 package com.yahoo.pasc;
 
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.rits.cloning.Cloner;
+import com.yahoo.pasc.checkpoint.StateTransfer;
 import com.yahoo.pasc.exceptions.ControlFlowException;
 import com.yahoo.pasc.exceptions.GuardException;
 import com.yahoo.pasc.exceptions.InputMessageException;
 import com.yahoo.pasc.exceptions.MessagesGenerationException;
 import com.yahoo.pasc.exceptions.VariableCorruptionException;
+import com.yahoo.pasc.generation.ChecksumReplica;
+import com.yahoo.pasc.generation.ChecksumReplicaGenerator;
+import com.yahoo.pasc.generation.DeepCopier;
+import com.yahoo.pasc.generation.DeepCopierGenerator;
 import com.yahoo.pasc.generation.Encapsulator;
 import com.yahoo.pasc.generation.EncapsulatorGenerator;
 import com.yahoo.pasc.generation.LightEncapsulatorGenerator;
+import com.yahoo.pasc.generation.StateScrubber;
+import com.yahoo.pasc.metrics.NoOpMetrics;
+import com.yahoo.pasc.metrics.PascMetrics;
+import com.yahoo.pasc.metrics.PascMetrics.Phase;
 
 /**
  * The runtime is in charge of isolating and detecting state corruptions or failures.
@@ -48,20 +66,28 @@ public final class PascRuntime<S extends ProcessState> {
     
     private static final Logger LOG = LoggerFactory.getLogger(PascRuntime.class);
 
-    private Map<Class<? extends Message>, MessageHandler<Message, S, ?>> handlers = 
-        new HashMap<Class<? extends Message>, MessageHandler<Message, S, ?>>();
+    private HandlerTable<MessageHandler<Message, S, ?>> handlers = new HandlerTable<MessageHandler<Message, S, ?>>();
+    private HandlerTable<HandlerProtection> handlerProtections = new HandlerTable<HandlerProtection>();
 
     private S state;
     private S replica;
+    private ChecksumReplica checksumReplica;
 
     private FailureHandler failureHandler = new CrashFailureHandler();
 
+    private PascMetrics metrics = NoOpMetrics.INSTANCE;
+    private boolean measure = false;
+
+    private StateScrubber<S> scrubber;
+    private ModificationListener modificationListener;
+
     private static Cloner cloner = new Cloner();
 
     /**
      * Helper method to deep clone an object.
      * 
-     * If the object implements CloneableDeep, this method will use that interface.
+     * If the object implements CloneableDeep, this method will use that interface. Otherwise it uses a
+     * generated field by field copier when possible, see {@link DeepCopierGenerator}.
      * 
      * @param object Object to be cloned
      * @return a fresh copy of the received object
@@ -75,13 +101,18 @@ public final class PascRuntime<S extends ProcessState> {
             return (T) ((CloneableDeep<T>)object).cloneDeep();
         }
         if (object == null) return null;
+        DeepCopier copier = DeepCopierGenerator.getCopier(object.getClass());
+        if (copier != null) {
+            return (T) copier.cloneDeep(object);
+        }
         return cloner.deepClone(object);
     }
 
     /**
      * Helper method to compare two objects for equality.
      * 
-     * If the objects implement EqualsDeep this method will use that interface.
+     * If the objects implement EqualsDeep this method will use that interface. Otherwise it uses a
+     * generated field by field comparison when possible, see {@link DeepCopierGenerator}.
      * 
      * @param o1 first object to compare
      * @param o2 second object to compare
@@ -93,36 +124,152 @@ public final class PascRuntime<S extends ProcessState> {
         if (o1 instanceof EqualsDeep) {
             return ((EqualsDeep<T>)o1).equalsDeep(o2);
         }
-        
+        if (o1.getClass() == o2.getClass()) {
+            DeepCopier copier = DeepCopierGenerator.getCopier(o1.getClass());
+            if (copier != null) {
+                return copier.equalsDeep(o1, o2);
+            }
+        }
+
         return EqualsBuilder.reflectionEquals(o1, o2, false);
     }
 
     /**
      * Stablishes the state object for this application.
      * 
+     * If any field of the state is annotated with a {@link Protection} other than {@link FieldProtection#REPLICA},
+     * the replica is generated instead of cloned, see {@link #setState(ProcessState, KeyEnumerator)}.
+     * 
      * @param state The state used by this application
      */
     public void setState(S state) {
+        setState(state, (KeyEnumerator<S>) null);
+    }
+
+    /**
+     * Stablishes the state object for this application.
+     * 
+     * If any field of the state is annotated with a {@link Protection} other than {@link FieldProtection#REPLICA},
+     * the replica is generated: it keeps a copy of the fields protected by a full replica, a checksum of the
+     * fields protected by checksums and nothing for the unprotected ones. Entries of indexed fields that aren't
+     * dense and aren't enumerated are expected to hold the default value of their type (0, false or null).
+     * 
+     * @param state The state used by this application
+     * @param keys Enumerates the keys in use of the indexed fields that aren't dense, can be null if the state
+     *             is empty
+     */
+    public void setState(S state, KeyEnumerator<S> keys) {
+        if (ChecksumReplicaGenerator.hasPartialProtection(state.getClass())) {
+            setState(state, new ChecksumReplicaGenerator(state, FieldProtection.REPLICA).getReplica(state, keys));
+            this.checksumReplica = (ChecksumReplica) replica;
+        } else {
+            setState(state, clone(state));
+            this.checksumReplica = null;
+        }
+    }
+
+    /**
+     * Stablishes the state object for this application, protected with checksums instead of a full replica.
+     * 
+     * The replica keeps a 64 bit checksum per field and per entry of indexed fields, reads of the state are
+     * checked against them and the replica execution updates them. Corruptions are detected with a very high
+     * probability, instead of always, and the memory overhead is about 8 bytes per entry instead of a copy of
+     * the whole state. Entries of indexed fields that aren't dense and aren't enumerated are expected to hold
+     * the default value of their type (0, false or null). Fields annotated with {@link Protection} keep their
+     * own protection.
+     * 
+     * @param state The state used by this application
+     * @param keys Enumerates the keys in use of the indexed fields that aren't dense
+     * @throws IllegalArgumentException if a checksummed field holds values that aren't checksummed by their
+     *             content, such as objects without their own hashCode() that can't be checksummed field by field
+     */
+    public void setChecksummedState(S state, KeyEnumerator<S> keys) {
+        setState(state, new ChecksumReplicaGenerator(state).getReplica(state, keys));
+        this.checksumReplica = (ChecksumReplica) replica;
+    }
+
+    /**
+     * Streams the state to a peer, e.g. one rebuilding its state after a crash, as a sequence of self verifying
+     * chunks. Every entry is checked against the replica before being sent. It mustn't run concurrently with
+     * the handlers.
+     * 
+     * See {@link StateTransfer}.
+     * 
+     * @param out Channel the chunks are written to
+     * @param keys Enumerates the keys in use of the indexed fields that aren't dense
+     * @return number of entries written
+     * @throws VariableCorruptionException if an entry of the state and the replica differ
+     * @throws IllegalStateException if keys doesn't enumerate an indexed field that isn't dense
+     */
+    public long exportState(WritableByteChannel out, KeyEnumerator<S> keys) throws IOException {
+        return new StateTransfer<S>(state.getClass(), keys, StateTransfer.DEFAULT_CHUNK_SIZE)
+                .exportState(state, replica, out);
+    }
+
+    /**
+     * Stablishes the state object for this application reading it from a stream written by
+     * exportState(), building the replica in the same pass.
+     * 
+     * @param in Channel the chunks are read from
+     * @param state A freshly created state
+     * @param replica Another freshly created state
+     * @return number of entries read
+     * @throws com.yahoo.pasc.exceptions.CorruptionException if a chunk is corrupted or the stream is truncated
+     */
+    public long importState(ReadableByteChannel in, S state, S replica) throws IOException {
+        long entries = new StateTransfer<S>(state.getClass(), null, StateTransfer.DEFAULT_CHUNK_SIZE)
+                .importState(in, state, replica);
+        setState(state, replica);
+        this.checksumReplica = null;
+        return entries;
+    }
+
+    private void setState(S state, S replica) {
         this.state = state;
-        this.replica = clone(state);
+        this.replica = replica;
         this.lightEncapsulatorGenerator = new LightEncapsulatorGenerator(state);
         this.encapsulatorGenerator = new EncapsulatorGenerator(state);
 
         stateEncapsulator = generateEncapsulator(state, replica);
+        stateEncapsulator.setModificationListener(modificationListener);
         replicaEncapsulator = generateLightEncapsulator(replica, state);
     }
 
     /**
      * Registers a new handler for the specified message type.
      * 
+     * The handler also handles the subclasses of the message type, unless they have a handler of their own.
+     * Messages are dispatched to the handler of their closest registered superclass.
+     * 
      * @param messageType Type of message the handler will handle
      * @param handler Implementation of the handler
      */
-    @SuppressWarnings("unchecked")
     public void addHandler(Class<? extends Message> messageType, 
             MessageHandler<? extends Message, S, ?> handler) 
     {
+        addHandler(messageType, handler, HandlerProtection.DUAL);
+    }
+
+    /**
+     * Registers a new handler for the specified message type, with its own protection.
+     * 
+     * Handlers that are cheap to get wrong but expensive to run twice, or that only touch data that can be
+     * rebuilt, can trade protection for speed, see {@link HandlerProtection}. The protection only applies to
+     * handleMessage() with the runtime protection on, batches are always executed twice.
+     * 
+     * @param messageType Type of message the handler will handle
+     * @param handler Implementation of the handler
+     * @param protection How the handler is executed
+     */
+    @SuppressWarnings("unchecked")
+    public void addHandler(Class<? extends Message> messageType, 
+            MessageHandler<? extends Message, S, ?> handler, HandlerProtection protection) 
+    {
+        if (protection == null) {
+            throw new IllegalArgumentException("Missing protection for " + messageType.getName());
+        }
         handlers.put(messageType, (MessageHandler<Message, S, ?>) handler);
+        handlerProtections.put(messageType, protection);
     }
 
     private Encapsulator stateEncapsulator, replicaEncapsulator;
@@ -130,6 +277,7 @@ public final class PascRuntime<S extends ProcessState> {
     private LightEncapsulatorGenerator lightEncapsulatorGenerator;
     private final boolean protection;
     private final boolean protectionReplica;
+    private ExecutorService replicaExecutor;
 
     /**
      * Create a new runtime with protection against failures
@@ -147,6 +295,52 @@ public final class PascRuntime<S extends ProcessState> {
         this.protectionReplica = this.protection = protection;
     }
 
+    /**
+     * Turns on or off the parallel dual execution.
+     * 
+     * When turned on, the replica execution of each message runs in a dedicated thread, concurrently with the
+     * state execution, and both meet before applying the modifications. The replica execution takes care of
+     * checking the state against the replica. Handlers are invoked concurrently so they must not keep mutable
+     * fields of their own.
+     * 
+     * @param parallel Whether to run both executions in parallel or not
+     */
+    public void setParallelExecution(boolean parallel) {
+        setParallelExecution(parallel, new ReplicaThreadFactory());
+    }
+
+    /**
+     * Turns on or off the parallel dual execution.
+     * 
+     * The thread factory can be used to pin the replica execution thread to a different core than the thread
+     * calling handleMessage() with an affinity library.
+     * 
+     * @param parallel Whether to run both executions in parallel or not
+     * @param threadFactory Factory of the replica execution thread
+     */
+    public void setParallelExecution(boolean parallel, ThreadFactory threadFactory) {
+        if (replicaExecutor != null) {
+            replicaExecutor.shutdown();
+            replicaExecutor = null;
+        }
+        if (parallel) {
+            replicaExecutor = Executors.newSingleThreadExecutor(threadFactory);
+        }
+    }
+
+    public boolean isParallelExecution() {
+        return replicaExecutor != null;
+    }
+
+    private static class ReplicaThreadFactory implements ThreadFactory {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "pasc-replica");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
     private final List<Message> emptyMessages = Collections.emptyList();
 
     /**
@@ -155,11 +349,13 @@ public final class PascRuntime<S extends ProcessState> {
      * This method will dispatch the received message to the appropriate handler, and return the
      * output messages generated by the handler.
      * 
+     * With protection on and sequential execution, the runtime itself doesn't allocate in the steady state if
+     * the received message already carries its clone, see {@link Message#setCloned(Message)}.
+     * 
      * @param receivedMessage Received message requiring handling
      * @return List of output messages generated by the handler 
      */
     public List<Message> handleMessage(Message receivedMessage) {
-        ControlObject control = new ControlObject();
         MessageHandler<Message, S, ?> handler = handlers.get(receivedMessage.getClass());
         if (handler == null) {
             LOG.warn("No handler found for message {} ", receivedMessage);
@@ -173,11 +369,77 @@ public final class PascRuntime<S extends ProcessState> {
                 throw new VariableCorruptionException("protection", protection, protectionReplica);
             }
             if (protection || protectionReplica) {
-                return invoke(handler, receivedMessage, control);
+                if (scrubber != null) {
+                    scrubber.scrub(state, replica);
+                }
+                control.reset();
+                HandlerProtection level = handlerProtections.get(receivedMessage.getClass());
+                if (level == HandlerProtection.NONE) {
+                    return unprotectedInvoke(handler, receivedMessage);
+                }
+                return invoke(handler, receivedMessage, level, control);
             } else {
                 return unsafeInvoke(handler, receivedMessage);
             }
         } catch (Exception e) {
+            recordCorruption(e);
+            failureHandler.handleFailure(e);
+            return emptyMessages;
+        }
+    }
+
+    /**
+     * Handle a batch of messages and produce their output messages.
+     * 
+     * With protection on, the whole batch goes through the encapsulators and the modifications are applied to
+     * the state once, at the end of the batch. If any check fails the whole batch is rejected.
+     * 
+     * Within a batch, getOutputMessages() sees the state as it was right after processing its message, read
+     * through the encapsulators.
+     * 
+     * @param receivedMessages Received messages requiring handling
+     * @return List of output messages generated by all the handlers, in order
+     */
+    public List<Message> handleMessages(List<Message> receivedMessages) {
+        List<Result<Object>> results = new ArrayList<Result<Object>>(receivedMessages.size());
+        for (Message receivedMessage : receivedMessages) {
+            MessageHandler<Message, S, ?> handler = handlers.get(receivedMessage.getClass());
+            if (handler == null) {
+                LOG.warn("No handler found for message {} ", receivedMessage);
+                continue;
+            } else if (!handler.guardPredicate(receivedMessage)) {
+                LOG.warn("Handler's guard predicate doesn't hold: {} {}", handler, receivedMessage);
+                continue;
+            }
+            @SuppressWarnings("unchecked")
+            MessageHandler<Message, S, Object> batchHandler = (MessageHandler<Message, S, Object>) handler;
+            Result<Object> result = new Result<Object>();
+            result.handler = batchHandler;
+            result.receivedMessage = receivedMessage;
+            results.add(result);
+        }
+        try {
+            if (protection != protectionReplica) {
+                throw new VariableCorruptionException("protection", protection, protectionReplica);
+            }
+            if (protection || protectionReplica) {
+                if (scrubber != null) {
+                    scrubber.scrub(state, replica);
+                }
+                control.reset();
+                return invokeBatch(results, control);
+            } else {
+                List<Message> responses = new ArrayList<Message>();
+                for (Result<Object> result : results) {
+                    List<Message> messages = unsafeInvoke(result.handler, result.receivedMessage);
+                    if (messages != null) {
+                        responses.addAll(messages);
+                    }
+                }
+                return responses;
+            }
+        } catch (Exception e) {
+            recordCorruption(e);
             failureHandler.handleFailure(e);
             return emptyMessages;
         }
@@ -200,6 +462,41 @@ public final class PascRuntime<S extends ProcessState> {
           return result;
     }
 
+    /**
+     * Executes a handler once through the encapsulator without checks, so its modifications still reach the
+     * replica, see {@link HandlerProtection#NONE}.
+     */
+    @SuppressWarnings("unchecked")
+    private <D> List<Message> unprotectedInvoke(final MessageHandler<Message, S, D> handler, 
+            final Message receivedMessage) {
+        receivedMessage.verify();
+
+        stateEncapsulator.reset();
+        if (checksumReplica != null) {
+            checksumReplica.clearWrites();
+        }
+        stateEncapsulator.setCheckState(false);
+        long time = measure ? System.nanoTime() : 0;
+        List<D> descriptors = handler.processMessage(receivedMessage, (S) stateEncapsulator);
+        if (measure) time = record(handler, Phase.STATE_PASS, time);
+
+        // apply changes to process state and replica
+        stateEncapsulator.applySingleExecution();
+        if (measure) {
+            record(handler, Phase.APPLY_MODIFICATIONS, time);
+            stateEncapsulator.recordMetrics(metrics, null);
+        }
+
+        List<Message> result = handler.getOutputMessages(state, descriptors);
+        if (result != null) {
+            for (Message m : result) {
+                if (m != null)
+                    m.storeReplica(m);
+            }
+        }
+        return result;
+    }
+
     private Encapsulator generateEncapsulator(S state, S replica) {
         return encapsulatorGenerator.getEncapsulator(state, replica);
     }
@@ -212,8 +509,17 @@ public final class PascRuntime<S extends ProcessState> {
         public MessageHandler<Message, S, D> handler; 
         public Message receivedMessage;
         public Message clonedMessage;
+        public List<D> descriptors;
+        public List<D> replicaDescriptors;
         public List<Message> responses;
         public List<Message> replicas;
+
+        void clear() {
+            handler = null;
+            receivedMessage = clonedMessage = null;
+            descriptors = replicaDescriptors = null;
+            responses = replicas = null;
+        }
     }
     
     private class ControlObject {
@@ -222,14 +528,23 @@ public final class PascRuntime<S extends ProcessState> {
         ControlFlow cf__s, cf__r;
         
         public ControlObject() {
+            reset();
+        }
+
+        void reset() {
             cfs = cfr = cf_s = cf_r = cf__s = cf__r = ControlFlow.RESET;
         }
     }
 
+    // Reused by every protected handleMessage() so the steady state doesn't allocate
+    private final ControlObject control = new ControlObject();
+    private final Result<Object> result = new Result<Object>();
+
     private enum ControlFlow {
         SET, RESET
     }
 
+    @SuppressWarnings("unchecked")
     private <D> void criticalSection(Result<D> result, ControlObject control) {
         ControlFlow cfl, cfl_;
         ControlFlow cf_l, cf_l_;
@@ -240,22 +555,51 @@ public final class PascRuntime<S extends ProcessState> {
 
         stateEncapsulator.reset();
         replicaEncapsulator.reset();
-
-        // compute N
-        stateEncapsulator.setCheckState(true);
-        @SuppressWarnings("unchecked")
-        List<D> descriptors = handler.processMessage(receivedMessage, (S) stateEncapsulator);
-        
-        // check control flow
-        cfl = cfl_ = ControlFlow.SET;
-        if (control.cfs != control.cfr || control.cfs != ControlFlow.RESET) {
-            throw new ControlFlowException("cf =/= cfr or cf =/= RESET");
+        if (checksumReplica != null) {
+            checksumReplica.clearWrites();
         }
-        control.cfs = control.cfr = ControlFlow.SET;
 
-        // update R
-        @SuppressWarnings("unchecked")
-        List<D> replicaDescriptors = handler.processMessage(clonedMessage, (S) replicaEncapsulator);
+        List<D> descriptors;
+        List<D> replicaDescriptors;
+        long time = measure ? System.nanoTime() : 0;
+        if (replicaExecutor == null) {
+            // compute N
+            stateEncapsulator.setCheckState(true);
+            descriptors = handler.processMessage(receivedMessage, (S) stateEncapsulator);
+            if (measure) time = record(handler, Phase.STATE_PASS, time);
+
+            // check control flow
+            cfl = cfl_ = ControlFlow.SET;
+            if (control.cfs != control.cfr || control.cfs != ControlFlow.RESET) {
+                throw new ControlFlowException("cf =/= cfr or cf =/= RESET");
+            }
+            control.cfs = control.cfr = ControlFlow.SET;
+
+            // update R
+            replicaDescriptors = handler.processMessage(clonedMessage, (S) replicaEncapsulator);
+            if (measure) time = record(handler, Phase.REPLICA_PASS, time);
+        } else {
+            // update R concurrently, it checks the state against the replica
+            Future<List<D>> replicaExecution = replicaExecutor.submit(
+                    new ReplicaExecution<D>(handler, clonedMessage, control));
+
+            // compute N
+            stateEncapsulator.setCheckState(false);
+            try {
+                descriptors = handler.processMessage(receivedMessage, (S) stateEncapsulator);
+                if (measure) record(handler, Phase.STATE_PASS, time);
+            } finally {
+                replicaDescriptors = awaitReplicaExecution(replicaExecution);
+            }
+            if (measure) time = System.nanoTime();
+
+            // check control flow
+            cfl = cfl_ = ControlFlow.SET;
+            if (control.cfs != ControlFlow.RESET || control.cfr != ControlFlow.SET) {
+                throw new ControlFlowException("cf =/= RESET or cfr =/= SET");
+            }
+            control.cfs = ControlFlow.SET;
+        }
 
         if (control.cf_s != control.cf_r || control.cf_s != ControlFlow.RESET) {
             throw new ControlFlowException("cf_s =/= cf_r or cf_s =/= RESET");
@@ -265,6 +609,10 @@ public final class PascRuntime<S extends ProcessState> {
 
         // apply changes to process state
         stateEncapsulator.applyModifications(false, replicaEncapsulator);
+        if (measure) {
+            time = record(handler, Phase.APPLY_MODIFICATIONS, time);
+            stateEncapsulator.recordMetrics(metrics, replicaEncapsulator);
+        }
 
         // check control flow
         if (cfl != cfl_ || cfl != ControlFlow.SET) {
@@ -278,10 +626,133 @@ public final class PascRuntime<S extends ProcessState> {
         }
         control.cf__s = control.cf__r = ControlFlow.SET;
         
+        compareDescriptors(descriptors, replicaDescriptors);
+        if (measure) record(handler, Phase.DESCRIPTOR_COMPARE, time);
+
+        // generate messages
+        result.responses = handler.getOutputMessages(state, descriptors);
+        result.replicas = handler.getOutputMessages(replica, replicaDescriptors);
+    }
+
+    /**
+     * Executes a read only handler once, checking every read against the replica. Nothing is applied to the
+     * state, see {@link ReadOnlyMessageHandler}.
+     */
+    @SuppressWarnings("unchecked")
+    private <D> void readOnlySection(Result<D> result) {
+        MessageHandler<Message, S, D> handler = result.handler;
+
+        stateEncapsulator.reset();
+        stateEncapsulator.setCheckState(true);
+        stateEncapsulator.setReadOnly(true);
+        List<D> descriptors;
+        long time = measure ? System.nanoTime() : 0;
+        try {
+            descriptors = handler.processMessage(result.receivedMessage, (S) stateEncapsulator);
+        } finally {
+            stateEncapsulator.setReadOnly(false);
+        }
+        if (measure) record(handler, Phase.STATE_PASS, time);
+
+        // generate messages
+        result.responses = handler.getOutputMessages(state, descriptors);
+        result.replicas = handler.getOutputMessages(replica, descriptors);
+    }
+
+    /**
+     * Executes a handler once, checking every read against the replica, and applies its modifications to the
+     * state and to the replica, see {@link HandlerProtection#SINGLE}.
+     */
+    @SuppressWarnings("unchecked")
+    private <D> void singleSection(Result<D> result) {
+        MessageHandler<Message, S, D> handler = result.handler;
+
+        stateEncapsulator.reset();
+        if (checksumReplica != null) {
+            checksumReplica.clearWrites();
+        }
+        stateEncapsulator.setCheckState(true);
+        long time = measure ? System.nanoTime() : 0;
+        List<D> descriptors = handler.processMessage(result.receivedMessage, (S) stateEncapsulator);
+        if (measure) time = record(handler, Phase.STATE_PASS, time);
+
+        // apply changes to process state and replica
+        stateEncapsulator.applySingleExecution();
+        if (measure) {
+            record(handler, Phase.APPLY_MODIFICATIONS, time);
+            stateEncapsulator.recordMetrics(metrics, null);
+        }
+
+        // generate messages
+        result.responses = handler.getOutputMessages(state, descriptors);
+        result.replicas = handler.getOutputMessages(replica, descriptors);
+    }
+
+    private class ReplicaExecution<D> implements Callable<List<D>> {
+        private final MessageHandler<Message, S, D> handler;
+        private final Message clonedMessage;
+        private final ControlObject control;
+
+        ReplicaExecution(MessageHandler<Message, S, D> handler, Message clonedMessage, ControlObject control) {
+            this.handler = handler;
+            this.clonedMessage = clonedMessage;
+            this.control = control;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public List<D> call() {
+            long time = measure ? System.nanoTime() : 0;
+            List<D> replicaDescriptors = handler.processMessage(clonedMessage, (S) replicaEncapsulator);
+            if (measure) record(handler, Phase.REPLICA_PASS, time);
+            if (control.cfr != ControlFlow.RESET) {
+                throw new ControlFlowException("cfr =/= RESET");
+            }
+            control.cfr = ControlFlow.SET;
+            return replicaDescriptors;
+        }
+    }
+
+    private <T> T awaitReplicaExecution(Future<T> replicaExecution) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return replicaExecution.get();
+                } catch (InterruptedException e) {
+                    // the state can't be touched until the replica execution is over
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IllegalStateException("Replica execution failed", cause);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private <D> void compareDescriptors(List<D> descriptors, List<D> replicaDescriptors) {
         if (descriptors != null && replicaDescriptors != null) {
             if (descriptors.size() != replicaDescriptors.size()) {
                 throw new MessagesGenerationException(descriptors, replicaDescriptors);
             }
+            if (descriptors instanceof RandomAccess && replicaDescriptors instanceof RandomAccess) {
+                for (int i = 0; i < descriptors.size(); ++i) {
+                    if (!compare(descriptors.get(i), replicaDescriptors.get(i))) {
+                        throw new MessagesGenerationException(descriptors, replicaDescriptors);
+                    }
+                }
+                return;
+            }
             Iterator<?> it = descriptors.iterator();
             Iterator<?> itr = replicaDescriptors.iterator();
             while(it.hasNext()) {
@@ -292,20 +763,119 @@ public final class PascRuntime<S extends ProcessState> {
         } else if (descriptors != null || replicaDescriptors != null) {
             throw new MessagesGenerationException(descriptors, replicaDescriptors);
         }
+    }
 
-        // generate messages
-        result.responses = handler.getOutputMessages(state, descriptors);
-        result.replicas = handler.getOutputMessages(replica, replicaDescriptors);
+    @SuppressWarnings("unchecked")
+    private void batchStateExecution(List<Result<Object>> results) {
+        for (Result<Object> result : results) {
+            MessageHandler<Message, S, Object> handler = result.handler;
+            result.descriptors = handler.processMessage(result.receivedMessage, (S) stateEncapsulator);
+            result.responses = handler.getOutputMessages((S) stateEncapsulator, result.descriptors);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void batchReplicaExecution(List<Result<Object>> results) {
+        for (Result<Object> result : results) {
+            MessageHandler<Message, S, Object> handler = result.handler;
+            result.replicaDescriptors = handler.processMessage(result.clonedMessage, (S) replicaEncapsulator);
+            result.replicas = handler.getOutputMessages((S) replicaEncapsulator, result.replicaDescriptors);
+        }
+    }
+
+    private void batchCriticalSection(final List<Result<Object>> results, final ControlObject control) {
+        ControlFlow cfl, cfl_;
+        ControlFlow cf_l, cf_l_;
+
+        stateEncapsulator.reset();
+        replicaEncapsulator.reset();
+        if (checksumReplica != null) {
+            checksumReplica.clearWrites();
+        }
+
+        if (replicaExecutor == null) {
+            // compute N for the whole batch
+            stateEncapsulator.setCheckState(true);
+            batchStateExecution(results);
+
+            // check control flow
+            cfl = cfl_ = ControlFlow.SET;
+            if (control.cfs != control.cfr || control.cfs != ControlFlow.RESET) {
+                throw new ControlFlowException("cf =/= cfr or cf =/= RESET");
+            }
+            control.cfs = control.cfr = ControlFlow.SET;
+
+            // update R for the whole batch
+            batchReplicaExecution(results);
+        } else {
+            // update R concurrently, it checks the state against the replica
+            Future<Void> replicaExecution = replicaExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    batchReplicaExecution(results);
+                    if (control.cfr != ControlFlow.RESET) {
+                        throw new ControlFlowException("cfr =/= RESET");
+                    }
+                    control.cfr = ControlFlow.SET;
+                    return null;
+                }
+            });
+
+            // compute N for the whole batch
+            stateEncapsulator.setCheckState(false);
+            try {
+                batchStateExecution(results);
+            } finally {
+                awaitReplicaExecution(replicaExecution);
+            }
+
+            // check control flow
+            cfl = cfl_ = ControlFlow.SET;
+            if (control.cfs != ControlFlow.RESET || control.cfr != ControlFlow.SET) {
+                throw new ControlFlowException("cf =/= RESET or cfr =/= SET");
+            }
+            control.cfs = ControlFlow.SET;
+        }
+
+        if (control.cf_s != control.cf_r || control.cf_s != ControlFlow.RESET) {
+            throw new ControlFlowException("cf_s =/= cf_r or cf_s =/= RESET");
+        }
+        control.cf_s = control.cf_r = ControlFlow.SET;
+        cf_l = cf_l_ = ControlFlow.SET;
+
+        // compare before applying anything, so a failed batch leaves the state untouched
+        for (Result<Object> result : results) {
+            compareDescriptors(result.descriptors, result.replicaDescriptors);
+        }
+
+        // apply changes of the whole batch to process state
+        stateEncapsulator.applyModifications(false, replicaEncapsulator);
+        if (measure) {
+            stateEncapsulator.recordMetrics(metrics, replicaEncapsulator);
+        }
+
+        // check control flow
+        if (cfl != cfl_ || cfl != ControlFlow.SET) {
+            throw new ControlFlowException("cfl =/= cfl_ or cfl =/= SET");
+        }
+        if (cf_l != cf_l_ || cf_l != ControlFlow.SET) {
+            throw new ControlFlowException("cf_l =/= cf_l_ or cf_l =/= SET");
+        }
+        if (control.cf__s != control.cf__r || control.cf__s != ControlFlow.RESET) {
+            throw new ControlFlowException("cf__s =/= cf__r or cf__s =/= RESET");
+        }
+        control.cf__s = control.cf__r = ControlFlow.SET;
     }
 
     private <D> List<Message> invoke(final MessageHandler<Message, S, D> handler, 
-            final Message receivedMessage, ControlObject control) {
+            final Message receivedMessage, HandlerProtection level, ControlObject control) {
 
         List<Message> responses;
         List<Message> replicas;
         Message clonedMessage;
 
         // Clone and verify input message
+        long time = measure ? System.nanoTime() : 0;
         Message cloned = receivedMessage.getCloned();
         if (cloned != null) {
             clonedMessage = receivedMessage.getCloned();
@@ -314,29 +884,40 @@ public final class PascRuntime<S extends ProcessState> {
             if (!receivedMessage.verify())
                 return emptyMessages;
         }
+        if (measure) record(handler, Phase.INPUT_CLONE, time);
         
-        Result<D> result = new Result<D>();
+        @SuppressWarnings("unchecked")
+        Result<D> result = (Result<D>) this.result;
         result.receivedMessage = receivedMessage;
         result.clonedMessage = clonedMessage;
         result.handler = handler;
 
-        criticalSection(result, control);
+        try {
+            if (handler instanceof ReadOnlyMessageHandler) {
+                readOnlySection(result);
+            } else if (level == HandlerProtection.SINGLE) {
+                singleSection(result);
+            } else {
+                criticalSection(result, control);
+            }
+            responses = result.responses;
+            replicas = result.replicas;
+        } finally {
+            result.clear();
+        }
         
         // verify input message again
-        if (!compare(receivedMessage, result.clonedMessage)) {
-            throw new InputMessageException("Not equal", receivedMessage, result.clonedMessage);
+        if (!compare(receivedMessage, clonedMessage)) {
+            throw new InputMessageException("Not equal", receivedMessage, clonedMessage);
         }
         if (!receivedMessage.verify()) {
-            throw new InputMessageException("Verification failed", receivedMessage, result.clonedMessage);
+            throw new InputMessageException("Verification failed", receivedMessage, clonedMessage);
         }
 
         // verify guard
         if (!handler.guardPredicate(receivedMessage)) {
             throw new GuardException("Guard doesn't hold", handler, receivedMessage);
         }
-        
-        responses = result.responses;
-        replicas = result.replicas;
 
         if (responses == null || replicas == null) {
             return emptyMessages;
@@ -345,15 +926,85 @@ public final class PascRuntime<S extends ProcessState> {
             return emptyMessages;
         }
 
+        if (measure) time = System.nanoTime();
+        storeReplicas(responses, replicas);
+        if (measure) record(handler, Phase.OUTPUT_CRC, time);
+
+        return responses;
+    }
+
+    private List<Message> invokeBatch(List<Result<Object>> results, ControlObject control) {
+        // Clone and verify input messages, corrupt ones are dropped
+        Iterator<Result<Object>> it = results.iterator();
+        while (it.hasNext()) {
+            Result<Object> result = it.next();
+            Message receivedMessage = result.receivedMessage;
+            Message cloned = receivedMessage.getCloned();
+            if (cloned != null) {
+                result.clonedMessage = cloned;
+            } else {
+                result.clonedMessage = clone(receivedMessage);
+                if (!receivedMessage.verify())
+                    it.remove();
+            }
+        }
+
+        batchCriticalSection(results, control);
+
+        List<Message> outputs = new ArrayList<Message>();
+        for (Result<Object> result : results) {
+            Message receivedMessage = result.receivedMessage;
+
+            // verify input message again
+            if (!compare(receivedMessage, result.clonedMessage)) {
+                throw new InputMessageException("Not equal", receivedMessage, result.clonedMessage);
+            }
+            if (!receivedMessage.verify()) {
+                throw new InputMessageException("Verification failed", receivedMessage, result.clonedMessage);
+            }
+
+            // verify guard
+            if (!result.handler.guardPredicate(receivedMessage)) {
+                throw new GuardException("Guard doesn't hold", result.handler, receivedMessage);
+            }
+
+            List<Message> responses = result.responses;
+            List<Message> replicas = result.replicas;
+            if (responses == null || replicas == null || responses.size() != replicas.size()) {
+                continue;
+            }
+            storeReplicas(responses, replicas);
+            outputs.addAll(responses);
+        }
+        return outputs;
+    }
+
+    private long record(Object handler, Phase phase, long start) {
+        long now = System.nanoTime();
+        metrics.recordPhase(handler, phase, now - start);
+        return now;
+    }
+
+    private void recordCorruption(Exception e) {
+        if (measure && e instanceof VariableCorruptionException) {
+            metrics.recordCorruption(((VariableCorruptionException) e).getVariable());
+        }
+    }
+
+    private void storeReplicas(List<Message> responses, List<Message> replicas) {
         // set CRCs
+        if (responses instanceof RandomAccess && replicas instanceof RandomAccess) {
+            for (int i = 0; i < responses.size(); ++i) {
+                responses.get(i).storeReplica(replicas.get(i));
+            }
+            return;
+        }
         Iterator<Message> it1 = responses.iterator();
         Iterator<Message> it2 = replicas.iterator();
         while (it1.hasNext()) {
             Message response = it1.next();
             response.storeReplica(it2.next());
         }
-
-        return responses;
     }
     
     S getState() {
@@ -372,6 +1023,85 @@ public final class PascRuntime<S extends ProcessState> {
         this.failureHandler = failureHandler;
     }
 
+    public ModificationListener getModificationListener() {
+        return modificationListener;
+    }
+
+    /**
+     * Sets the listener notified of every modification applied to the state, by default there is none.
+     * 
+     * Modifications are only observed with protection on, after each message or batch has been checked against
+     * the replica. Fields modified several times by a batch are notified once, with their last value.
+     * 
+     * @param modificationListener The listener, or null to stop notifying modifications
+     */
+    public void setModificationListener(ModificationListener modificationListener) {
+        this.modificationListener = modificationListener;
+        if (stateEncapsulator != null) {
+            stateEncapsulator.setModificationListener(modificationListener);
+        }
+    }
+
+    public PascMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the sink of the metrics of this runtime, by default they are discarded.
+     * 
+     * With protection on, the duration of each phase of handleMessage() is recorded per handler, and after each
+     * message or batch the accesses to the indexed fields of the state are recorded. Corruptions of variables
+     * are recorded before calling the failure handler.
+     * 
+     * @param metrics Metrics sink
+     */
+    public void setMetrics(PascMetrics metrics) {
+        this.metrics = metrics == null ? NoOpMetrics.INSTANCE : metrics;
+        this.measure = this.metrics.isEnabled();
+    }
+
+    /**
+     * Turns on or off the state scrubber, which compares the whole state against the replica a slice at a time.
+     * 
+     * With protection on, a slice runs before handling each message or batch, so corruptions are detected
+     * before the state is used further. A mismatch is passed to the failure handler and the message isn't
+     * handled. Slices can also be run while idle with {@link #scrub()}. The state must be already set.
+     * 
+     * @param keys Enumerates the keys of indexed fields, null to only scrub plain and dense fields. An
+     *            {@link OrderedKeyEnumerator} lets large fields be scrubbed without copying their keys
+     * @param sliceNanos Maximum duration of each slice, zero or less turns the scrubber off
+     * @param maxShare Maximum fraction of the time spent scrubbing, slices are skipped while it's exceeded
+     */
+    public void setScrubber(KeyEnumerator<S> keys, long sliceNanos, double maxShare) {
+        if (sliceNanos <= 0) {
+            scrubber = null;
+        } else {
+            scrubber = new StateScrubber<S>(state.getClass(), keys, sliceNanos, maxShare);
+        }
+    }
+
+    public StateScrubber<S> getScrubber() {
+        return scrubber;
+    }
+
+    /**
+     * Runs a slice of the state scrubber, if turned on. Mismatches are passed to the failure handler.
+     * 
+     * It must not be called concurrently with handleMessage(), typically it's called by the thread handling
+     * messages while it has nothing else to do.
+     */
+    public void scrub() {
+        if (scrubber == null) {
+            return;
+        }
+        try {
+            scrubber.scrub(state, replica);
+        } catch (Exception e) {
+            recordCorruption(e);
+            failureHandler.handleFailure(e);
+        }
+    }
+
     public boolean isProtected() {
         return protection;
     }
@@ -0,0 +1,40 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.yahoo.pasc;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares the protection of a state field. Either accessor of the field can be annotated.
+ * 
+ * Fields that aren't annotated are protected by a full replica, or by checksums if the state was set with
+ * {@link PascRuntime#setChecksummedState}. As soon as a field of the state isn't protected by a full replica, the
+ * runtime uses a generated replica that keeps a copy, a checksum or nothing for each field, see
+ * {@link FieldProtection}. The generated encapsulators don't emit read checks for unprotected fields.
+ * 
+ * <pre>
+ * &#64;Protection(FieldProtection.NONE)
+ * public Entry getCachedEntry(String key) { ... }
+ * </pre>
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Protection {
+    FieldProtection value();
+}
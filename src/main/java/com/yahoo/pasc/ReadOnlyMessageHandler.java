@@ -0,0 +1,35 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.yahoo.pasc;
+
+/**
+ * Marks handlers that only read the state, such as queries.
+ * 
+ * The runtime executes them once, on an encapsulator that checks every read against the replica and rejects
+ * writes with an IllegalStateException, and skips the replica execution, the application of modifications and
+ * the comparison of descriptors. The output messages are still generated from the state and from the replica.
+ * 
+ * This covers corruptions of the state in memory, which is what reads are checked for. An error while
+ * computing the descriptors isn't caught by a second execution, handlers that must be protected against it
+ * shouldn't be marked as read only. Read only handlers are executed like the others within a batch, see
+ * {@link PascRuntime#handleMessages(java.util.List)}.
+ *
+ * @param <M> Message type that this handler will receive
+ * @param <S> User state type
+ * @param <D> Intermediate message descriptors type that this handler generates
+ */
+public interface ReadOnlyMessageHandler<M extends Message, S extends ProcessState, D> extends MessageHandler<M, S, D> {
+}
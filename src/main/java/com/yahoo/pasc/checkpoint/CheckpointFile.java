@@ -0,0 +1,320 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.yahoo.pasc.checkpoint;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import com.yahoo.pasc.exceptions.CorruptionException;
+
+/**
+ * Reads and writes checkpoint files: segments holding the entries modified during an interval, and images
+ * holding every entry of the state.
+ * 
+ * Entries are streamed to a temp file, which is forced to disk before being renamed to its final name, so a file
+ * with its final name is always complete. The header holds a magic number, the sequence number of the last
+ * segment included, the number of entries, and the length and CRC32 of the payload. Each entry is the field name
+ * followed by its key and value, see writeValue(). Neither the payload nor the file are held in memory, so
+ * images can be larger than the heap.
+ */
+class CheckpointFile {
+
+    static final int MAGIC = 0x50415343;
+    static final int HEADER_SIZE = 4 + 8 + 8 + 8 + 8;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final byte NULL = 0;
+    private static final byte BOOLEAN = 1;
+    private static final byte BYTE = 2;
+    private static final byte CHAR = 3;
+    private static final byte SHORT = 4;
+    private static final byte INT = 5;
+    private static final byte LONG = 6;
+    private static final byte FLOAT = 7;
+    private static final byte DOUBLE = 8;
+    private static final byte STRING = 9;
+    private static final byte SERIALIZED = 10;
+
+    /**
+     * Writes the entries, grouped by field and keyed by their key (null for fields that aren't indexed).
+     */
+    static void write(File file, long sequence, Map<String, Map<Object, Object>> entries) throws IOException {
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        try {
+            // a temp file left by a crash can be larger, its trailing bytes mustn't survive the rename
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            channel.position(HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE), crc));
+            long count = 0;
+            for (Map.Entry<String, Map<Object, Object>> field : entries.entrySet()) {
+                for (Map.Entry<Object, Object> entry : field.getValue().entrySet()) {
+                    out.writeUTF(field.getKey());
+                    writeValue(out, entry.getKey());
+                    writeValue(out, entry.getValue());
+                    count++;
+                }
+            }
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putLong(sequence);
+            header.putLong(count);
+            header.putLong(channel.position() - HEADER_SIZE);
+            header.putLong(crc.getValue());
+            header.flip();
+            for (long position = 0; header.hasRemaining(); ) {
+                position += channel.write(header, position);
+            }
+            channel.force(true);
+        } finally {
+            raf.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Couldn't rename " + temp + " to " + file);
+        }
+    }
+
+    /**
+     * Reads the entries of a file into the given map, replacing the previous values of the same entries. The
+     * payload is checksummed before any entry is read, so a corrupted file leaves the map untouched.
+     * 
+     * @return sequence number of the file
+     * @throws CorruptionException if the file is truncated or its checksum doesn't match
+     */
+    static long read(File file, Map<String, Map<Object, Object>> entries) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) {
+                    throw new CorruptionException("Truncated checkpoint file " + file);
+                }
+            }
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                throw new CorruptionException("Invalid checkpoint file " + file);
+            }
+            long sequence = header.getLong();
+            long count = header.getLong();
+            long length = header.getLong();
+            long checksum = header.getLong();
+            if (length != channel.size() - HEADER_SIZE) {
+                throw new CorruptionException("Truncated checkpoint file " + file);
+            }
+
+            CheckedInputStream checked = new CheckedInputStream(Channels.newInputStream(channel), new CRC32());
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (checked.read(buffer) >= 0) {
+            }
+            if (checked.getChecksum().getValue() != checksum) {
+                throw new CorruptionException("Checksum mismatch in checkpoint file " + file);
+            }
+
+            channel.position(HEADER_SIZE);
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE));
+            for (long i = 0; i < count; i++) {
+                String field = in.readUTF();
+                Object key = readValue(in);
+                Object value = readValue(in);
+                Map<Object, Object> values = entries.get(field);
+                if (values == null) {
+                    values = new LinkedHashMap<Object, Object>();
+                    entries.put(field, values);
+                }
+                values.put(key, value);
+            }
+            return sequence;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes a tagged value. Primitives and strings have their own tags, ints and longs are written as zigzag
+     * varints, strings as described in writeString(), other values use Java serialization.
+     */
+    static void writeValue(DataOutput out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Byte) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) value);
+        } else if (value instanceof Character) {
+            out.writeByte(CHAR);
+            out.writeChar((Character) value);
+        } else if (value instanceof Short) {
+            out.writeByte(SHORT);
+            out.writeShort((Short) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT);
+            writeVarLong(out, (Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            writeVarLong(out, (Long) value);
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else {
+            out.writeByte(SERIALIZED);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream object = new ObjectOutputStream(bytes);
+            object.writeObject(value);
+            object.close();
+            out.writeInt(bytes.size());
+            out.write(bytes.toByteArray());
+        }
+    }
+
+    static Object readValue(DataInput in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+        case NULL: return null;
+        case BOOLEAN: return in.readBoolean();
+        case BYTE: return in.readByte();
+        case CHAR: return in.readChar();
+        case SHORT: return in.readShort();
+        case INT: return (int) readVarLong(in);
+        case LONG: return readVarLong(in);
+        case FLOAT: return in.readFloat();
+        case DOUBLE: return in.readDouble();
+        case STRING: return readString(in);
+        case SERIALIZED:
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            ObjectInputStream object = new ObjectInputStream(new ByteArrayInputStream(bytes));
+            try {
+                return object.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Unknown class in checkpoint: " + e.getMessage());
+            } finally {
+                object.close();
+            }
+        default:
+            throw new CorruptionException("Unknown tag in checkpoint: " + tag);
+        }
+    }
+
+    /**
+     * Writes a string as an int length followed by its bytes in the modified UTF-8 of DataOutput.writeUTF(),
+     * which keeps every char, including unpaired surrogates, without writeUTF()'s limit of 64KB.
+     */
+    static void writeString(DataOutput out, String value) throws IOException {
+        int length = value.length();
+        int size = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            size += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+        }
+        byte[] bytes = new byte[size];
+        int pos = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                bytes[pos++] = (byte) c;
+            } else if (c <= 0x07FF) {
+                bytes[pos++] = (byte) (0xC0 | (c >> 6));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                bytes[pos++] = (byte) (0xE0 | (c >> 12));
+                bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        out.writeInt(size);
+        out.write(bytes);
+    }
+
+    static String readString(DataInput in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            throw new CorruptionException("Invalid string length in checkpoint: " + size);
+        }
+        byte[] bytes = new byte[size];
+        in.readFully(bytes);
+        char[] chars = new char[size];
+        int length = 0;
+        for (int pos = 0; pos < size; ) {
+            int b = bytes[pos++] & 0xFF;
+            if (b < 0x80) {
+                chars[length++] = (char) b;
+            } else if ((b & 0xE0) == 0xC0 && pos < size) {
+                chars[length++] = (char) (((b & 0x1F) << 6) | (bytes[pos++] & 0x3F));
+            } else if ((b & 0xF0) == 0xE0 && pos + 1 < size) {
+                chars[length++] = (char) (((b & 0x0F) << 12) | ((bytes[pos++] & 0x3F) << 6) | (bytes[pos++] & 0x3F));
+            } else {
+                throw new CorruptionException("Invalid string in checkpoint");
+            }
+        }
+        return new String(chars, 0, length);
+    }
+
+    static void writeVarLong(DataOutput out, long value) throws IOException {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            out.writeByte((int) (zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+        out.writeByte((int) zigzag);
+    }
+
+    static long readVarLong(DataInput in) throws IOException {
+        long zigzag = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            zigzag |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new CorruptionException("Invalid varint in checkpoint");
+    }
+}
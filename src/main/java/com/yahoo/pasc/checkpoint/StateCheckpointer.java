@@ -0,0 +1,343 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.yahoo.pasc.checkpoint;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yahoo.pasc.KeyEnumerator;
+import com.yahoo.pasc.ModificationListener;
+import com.yahoo.pasc.PascRuntime;
+import com.yahoo.pasc.ProcessState;
+import com.yahoo.pasc.checkpoint.StateFields.StateField;
+
+/**
+ * Checkpoints the state incrementally, writing only the entries modified since the previous checkpoint.
+ * 
+ * Register it with {@link PascRuntime#setModificationListener(ModificationListener)}: the modifications applied
+ * to the state are recorded in memory, keeping the last value of each entry, and each call to checkpoint() writes
+ * them to a new segment file. Segments are periodically compacted, together with the previous image, into a new
+ * image of the whole state. At startup restore() applies the last image and the segments written after it to a
+ * fresh state, before it's passed to the runtime.
+ * 
+ * Since modifications are only notified after they have been checked against the replica, checkpoints never
+ * contain modifications rejected by the runtime. The replica isn't checkpointed, after restoring the state the
+ * runtime clones it as usual. Values are kept by reference until written, which is safe as long as handlers
+ * don't modify objects after storing them in the state. Values that aren't primitives or strings must be
+ * serializable.
+ *
+ * @param <S> state class used by this application
+ */
+public class StateCheckpointer<S extends ProcessState> implements ModificationListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StateCheckpointer.class);
+
+    private static final String SEGMENT = "segment-";
+    private static final String IMAGE = "image-";
+    private static final String SUFFIX = ".ckp";
+
+    private final File directory;
+    private final KeyEnumerator<S> enumerator;
+    private final StateFields fields;
+    // serializes writes to the directory
+    private final Object writeLock = new Object();
+
+    // guarded by this
+    private Map<String, Map<Object, Object>> dirty = new LinkedHashMap<String, Map<Object, Object>>();
+
+    // guarded by writeLock
+    private long sequence;
+    private int segments;
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * Creates a checkpointer storing its files in the given directory, which is created if needed.
+     * 
+     * @param directory Directory of the checkpoint files, shouldn't be shared with other states
+     * @param stateType Class of the state
+     * @param enumerator Enumerates the keys of indexed fields for images, can be null if there are none or all
+     * are dense
+     */
+    public StateCheckpointer(File directory, Class<?> stateType, KeyEnumerator<S> enumerator) throws IOException {
+        this.directory = directory;
+        this.enumerator = enumerator;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Couldn't create checkpoint directory " + directory);
+        }
+        this.fields = new StateFields(stateType);
+        for (File file : list(IMAGE).values()) {
+            sequence = Math.max(sequence, sequenceOf(file, IMAGE));
+        }
+        for (File file : list(SEGMENT).values()) {
+            sequence = Math.max(sequence, sequenceOf(file, SEGMENT));
+        }
+    }
+
+    @Override
+    public synchronized void modified(String field, Object key, Object value) {
+        Map<Object, Object> values = dirty.get(field);
+        if (values == null) {
+            values = new LinkedHashMap<Object, Object>();
+            dirty.put(field, values);
+        }
+        values.put(key, value);
+    }
+
+    @Override
+    public void committed() {
+    }
+
+    /**
+     * Writes the entries modified since the previous checkpoint to a new segment. If writing fails the entries
+     * are kept for the next checkpoint.
+     * 
+     * @return true if a segment was written, false if nothing was modified
+     */
+    public boolean checkpoint() throws IOException {
+        synchronized (writeLock) {
+            Map<String, Map<Object, Object>> taken;
+            synchronized (this) {
+                if (dirty.isEmpty()) {
+                    return false;
+                }
+                taken = dirty;
+                dirty = new LinkedHashMap<String, Map<Object, Object>>();
+            }
+            try {
+                CheckpointFile.write(fileOf(SEGMENT, sequence + 1), sequence + 1, taken);
+            } catch (IOException e) {
+                synchronized (this) {
+                    // modifications recorded meanwhile are newer
+                    for (Map.Entry<String, Map<Object, Object>> field : dirty.entrySet()) {
+                        Map<Object, Object> values = taken.get(field.getKey());
+                        if (values == null) {
+                            taken.put(field.getKey(), field.getValue());
+                        } else {
+                            values.putAll(field.getValue());
+                        }
+                    }
+                    dirty = taken;
+                }
+                throw e;
+            }
+            sequence++;
+            segments++;
+            return true;
+        }
+    }
+
+    /**
+     * Writes a full image of the state, replacing the previous image and segments. The state mustn't be
+     * modified meanwhile, e.g. call it before the state is passed to the runtime or from a handler.
+     * 
+     * @param state The process state, not the replica
+     * @throws IllegalStateException if the keys of an indexed field that isn't dense can't be enumerated, nothing
+     *             is written then
+     */
+    public void writeImage(S state) throws IOException {
+        Map<String, Map<Object, Object>> entries = new LinkedHashMap<String, Map<Object, Object>>();
+        for (StateField field : fields.all()) {
+            if (field.getter == null) {
+                continue;
+            }
+            Map<Object, Object> values = new LinkedHashMap<Object, Object>();
+            Iterable<?> keys = StateFields.keys(field, state, enumerator);
+            if (keys == null) {
+                // the image replaces the segments holding the entries of this field
+                throw new IllegalStateException("Keys of field " + field.name + " can't be enumerated");
+            }
+            for (Object key : keys) {
+                Object value = StateFields.get(field, state, key);
+                if (field.denseSize == 0 || !StateFields.isDefault(field, value)) {
+                    values.put(key, value);
+                }
+            }
+            entries.put(field.name, values);
+        }
+        synchronized (writeLock) {
+            synchronized (this) {
+                dirty = new LinkedHashMap<String, Map<Object, Object>>();
+            }
+            CheckpointFile.write(fileOf(IMAGE, sequence), sequence, entries);
+            deleteUpTo(sequence);
+            segments = 0;
+        }
+    }
+
+    /**
+     * Merges the last image and the segments written after it into a new image, deleting them.
+     * 
+     * @return true if there were segments to compact
+     */
+    public boolean compact() throws IOException {
+        synchronized (writeLock) {
+            Map<String, Map<Object, Object>> entries = new LinkedHashMap<String, Map<Object, Object>>();
+            long last = load(entries);
+            if (last < 0) {
+                return false;
+            }
+            CheckpointFile.write(fileOf(IMAGE, last), last, entries);
+            deleteUpTo(last);
+            segments = 0;
+            return true;
+        }
+    }
+
+    /**
+     * Applies the last image and the segments written after it to the state through its setters. Fields
+     * without setter are ignored.
+     * 
+     * @param state A freshly created process state
+     * @return sequence number of the last segment applied, 0 if there were no checkpoints
+     * @throws com.yahoo.pasc.exceptions.CorruptionException if a checkpoint file is corrupted
+     */
+    public long restore(S state) throws IOException {
+        synchronized (writeLock) {
+            Map<String, Map<Object, Object>> entries = new LinkedHashMap<String, Map<Object, Object>>();
+            load(entries);
+            for (Map.Entry<String, Map<Object, Object>> values : entries.entrySet()) {
+                for (Map.Entry<Object, Object> entry : values.getValue().entrySet()) {
+                    if (!fields.set(state, values.getKey(), entry.getKey(), entry.getValue())) {
+                        LOG.warn("Ignoring checkpointed field {}", values.getKey());
+                        break;
+                    }
+                }
+            }
+            return sequence;
+        }
+    }
+
+    /**
+     * Checkpoints periodically in a background thread.
+     * 
+     * @param periodMillis Time between checkpoints
+     * @param compactAfter Number of segments after which they are compacted into a new image, 0 to never compact
+     */
+    public synchronized void start(long periodMillis, final int compactAfter) {
+        if (executor != null) {
+            throw new IllegalStateException("Checkpointer already started");
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "pasc-checkpointer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkpoint();
+                    if (compactAfter > 0 && getSegments() >= compactAfter) {
+                        compact();
+                    }
+                } catch (Exception e) {
+                    LOG.error("Error writing checkpoint to " + directory, e);
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the background checkpoints and writes the pending modifications.
+     */
+    public void stop() throws IOException, InterruptedException {
+        ScheduledExecutorService stopped;
+        synchronized (this) {
+            stopped = executor;
+            executor = null;
+        }
+        if (stopped != null) {
+            stopped.shutdown();
+            stopped.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        checkpoint();
+    }
+
+    /**
+     * @return number of segments written since the last image
+     */
+    public int getSegments() {
+        synchronized (writeLock) {
+            return segments;
+        }
+    }
+
+    private long load(Map<String, Map<Object, Object>> entries) throws IOException {
+        SortedMap<Long, File> images = list(IMAGE);
+        long base = 0;
+        if (!images.isEmpty()) {
+            base = CheckpointFile.read(images.get(images.lastKey()), entries);
+        }
+        SortedMap<Long, File> pending = list(SEGMENT).tailMap(base + 1);
+        for (File segment : pending.values()) {
+            CheckpointFile.read(segment, entries);
+        }
+        return pending.isEmpty() ? -1 : pending.lastKey();
+    }
+
+    private void deleteUpTo(long last) throws IOException {
+        for (Map.Entry<Long, File> segment : list(SEGMENT).headMap(last + 1).entrySet()) {
+            delete(segment.getValue());
+        }
+        for (Map.Entry<Long, File> image : list(IMAGE).headMap(last).entrySet()) {
+            delete(image.getValue());
+        }
+    }
+
+    private static void delete(File file) throws IOException {
+        if (!file.delete()) {
+            throw new IOException("Couldn't delete checkpoint file " + file);
+        }
+    }
+
+    private SortedMap<Long, File> list(String prefix) {
+        SortedMap<Long, File> files = new TreeMap<Long, File>();
+        File[] contents = directory.listFiles();
+        if (contents != null) {
+            for (File file : contents) {
+                String name = file.getName();
+                if (name.startsWith(prefix) && name.endsWith(SUFFIX)) {
+                    files.put(sequenceOf(file, prefix), file);
+                }
+            }
+        }
+        return files;
+    }
+
+    private static long sequenceOf(File file, String prefix) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(prefix.length(), name.length() - SUFFIX.length()));
+    }
+
+    private File fileOf(String prefix, long sequence) {
+        return new File(directory, String.format("%s%019d%s", prefix, sequence, SUFFIX));
+    }
+}
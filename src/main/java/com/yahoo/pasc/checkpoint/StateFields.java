@@ -0,0 +1,164 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.yahoo.pasc.checkpoint;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.yahoo.pasc.Dense;
+import com.yahoo.pasc.KeyEnumerator;
+import com.yahoo.pasc.ProcessState;
+
+/**
+ * Reads and writes the fields of a state through its accessors, by the names the encapsulators use.
+ */
+class StateFields {
+
+    static class StateField {
+        String name;
+        Class<?> type;
+        Method getter;
+        Method setter;
+        boolean indexed;
+        int denseSize;
+    }
+
+    private final Map<String, StateField> fields = new LinkedHashMap<String, StateField>();
+
+    StateFields(Class<?> stateType) {
+        for (Method method : stateType.getDeclaredMethods()) {
+            String methodName = method.getName();
+            boolean getter = methodName.startsWith("get");
+            boolean setter = methodName.startsWith("set");
+            if (methodName.length() <= 3 || !(getter || setter)) {
+                continue;
+            }
+            String name = methodName.substring(3, 4).toLowerCase() + methodName.substring(4);
+            StateField field = fields.get(name);
+            if (field == null) {
+                field = new StateField();
+                field.name = name;
+                fields.put(name, field);
+            }
+            method.setAccessible(true);
+            Class<?>[] parameters = method.getParameterTypes();
+            if (getter) {
+                field.getter = method;
+                field.type = method.getReturnType();
+                field.indexed = parameters.length > 0;
+            } else {
+                field.setter = method;
+                field.type = parameters[parameters.length - 1];
+                field.indexed = parameters.length > 1;
+            }
+            Dense dense = method.getAnnotation(Dense.class);
+            if (dense != null) {
+                field.denseSize = dense.value();
+            }
+        }
+    }
+
+    Collection<StateField> all() {
+        return fields.values();
+    }
+
+    /**
+     * Sets an entry of the state.
+     * 
+     * @return false if the state has no setter for this field
+     */
+    boolean set(Object state, String name, Object key, Object value) {
+        StateField field = fields.get(name);
+        if (field == null || field.setter == null) {
+            return false;
+        }
+        if (field.indexed) {
+            invoke(field.setter, state, key, value);
+        } else {
+            invoke(field.setter, state, value);
+        }
+        return true;
+    }
+
+    /**
+     * Lists the keys of the entries of a field: null for fields that aren't indexed, every index of dense
+     * fields and the enumerated keys of the other indexed fields.
+     * 
+     * @return the keys, or null if they can't be enumerated
+     */
+    static <S extends ProcessState> Iterable<?> keys(StateField field, S state, KeyEnumerator<S> enumerator) {
+        if (!field.indexed) {
+            return Collections.singletonList(null);
+        }
+        if (field.denseSize > 0) {
+            List<Integer> keys = new ArrayList<Integer>(field.denseSize);
+            for (int i = 0; i < field.denseSize; i++) {
+                keys.add(i);
+            }
+            return keys;
+        }
+        return enumerator == null ? null : enumerator.keys(state, field.name);
+    }
+
+    static Object get(StateField field, Object state, Object key) {
+        return field.indexed ? invoke(field.getter, state, key) : invoke(field.getter, state);
+    }
+
+    /**
+     * Checks whether the value is the default of the field type, which entries not stored have.
+     */
+    static boolean isDefault(StateField field, Object value) {
+        if (value == null) {
+            return true;
+        }
+        if (!field.type.isPrimitive()) {
+            return false;
+        }
+        if (value instanceof Boolean) {
+            return !(Boolean) value;
+        }
+        if (value instanceof Character) {
+            return (Character) value == 0;
+        }
+        if (value instanceof Float || value instanceof Double) {
+            return Double.doubleToRawLongBits(((Number) value).doubleValue()) == 0L;
+        }
+        return ((Number) value).longValue() == 0L;
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Error invoking " + method.getName(), cause);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Error invoking " + method.getName(), e);
+        }
+    }
+}
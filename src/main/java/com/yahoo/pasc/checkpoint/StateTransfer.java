@@ -0,0 +1,252 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.yahoo.pasc.checkpoint;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yahoo.pasc.KeyEnumerator;
+import com.yahoo.pasc.PascRuntime;
+import com.yahoo.pasc.ProcessState;
+import com.yahoo.pasc.checkpoint.StateFields.StateField;
+import com.yahoo.pasc.exceptions.CorruptionException;
+import com.yahoo.pasc.exceptions.VariableCorruptionException;
+
+/**
+ * Transfers the state between processes as a stream of self verifying chunks, e.g. to rebuild the state of a
+ * process restarted after a corruption.
+ * 
+ * Each chunk holds a magic number, the length and CRC32 of its payload, and the payload: a field name followed
+ * by a range of its entries, encoded as in checkpoint files. Chunks are cut at about chunkSize bytes, so neither
+ * side holds more than a chunk in memory besides the state itself, and a chunk of length 0 ends the stream.
+ * While exporting, every entry is compared against the replica, so a corrupted state isn't transferred. While
+ * importing, the state and the replica are built in the same pass, values that aren't immutable are decoded
+ * twice instead of cloned.
+ * 
+ * The stream can be written to any channel, e.g. a socket or a file that is later sent with
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)}. See
+ * {@link PascRuntime#exportState(WritableByteChannel, KeyEnumerator)}.
+ *
+ * @param <S> state class used by this application
+ */
+public class StateTransfer<S extends ProcessState> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StateTransfer.class);
+
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private static final int MAGIC = 0x50415354;
+    private static final int HEADER_SIZE = 4 + 4 + 4;
+
+    private final StateFields fields;
+    private final KeyEnumerator<S> enumerator;
+    private final int chunkSize;
+
+    /**
+     * @param stateType Class of the state
+     * @param enumerator Enumerates the keys of indexed fields to export, can be null if there are none or all are
+     * dense, or to import
+     * @param chunkSize Approximate size of the chunks in bytes
+     */
+    public StateTransfer(Class<?> stateType, KeyEnumerator<S> enumerator, int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+        }
+        this.fields = new StateFields(stateType);
+        this.enumerator = enumerator;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Writes the state to the channel. The state mustn't be modified meanwhile.
+     * 
+     * @param state The process state
+     * @param replica Replica each entry is checked against, can be null
+     * @return number of entries written
+     * @throws VariableCorruptionException if an entry of the state and the replica differ
+     * @throws IllegalStateException if the keys of an indexed field that isn't dense can't be enumerated, nothing
+     *             is written then
+     */
+    public long exportState(S state, S replica, WritableByteChannel out) throws IOException {
+        List<StateField> exported = new ArrayList<StateField>();
+        List<Iterable<?>> exportedKeys = new ArrayList<Iterable<?>>();
+        for (StateField field : fields.all()) {
+            if (field.getter == null) {
+                continue;
+            }
+            Iterable<?> keys = StateFields.keys(field, state, enumerator);
+            if (keys == null) {
+                // the peer would start from a state missing the entries of this field
+                throw new IllegalStateException("Keys of field " + field.name + " can't be enumerated");
+            }
+            exported.add(field);
+            exportedKeys.add(keys);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(chunkSize + chunkSize / 4);
+        DataOutputStream data = new DataOutputStream(bytes);
+        long entries = 0;
+        for (int i = 0; i < exported.size(); i++) {
+            StateField field = exported.get(i);
+            Iterable<?> keys = exportedKeys.get(i);
+            data.writeUTF(field.name);
+            int header = bytes.size();
+            for (Object key : keys) {
+                Object value = StateFields.get(field, state, key);
+                if (replica != null) {
+                    Object replicaValue = StateFields.get(field, replica, key);
+                    if (!equal(value, replicaValue)) {
+                        throw new VariableCorruptionException(field.name, value, replicaValue);
+                    }
+                }
+                if (field.denseSize > 0 && StateFields.isDefault(field, value)) {
+                    continue;
+                }
+                CheckpointFile.writeValue(data, key);
+                CheckpointFile.writeValue(data, value);
+                entries++;
+                if (bytes.size() >= chunkSize) {
+                    writeChunk(out, bytes);
+                    data.writeUTF(field.name);
+                }
+            }
+            if (bytes.size() > header) {
+                writeChunk(out, bytes);
+            } else {
+                bytes.reset();
+            }
+        }
+        writeChunk(out, bytes);
+        return entries;
+    }
+
+    /**
+     * Reads a stream written by exportState() into freshly created states, through their setters. Fields
+     * without setter are ignored.
+     * 
+     * @param state A freshly created process state
+     * @param replica Another freshly created process state, can be null
+     * @return number of entries read
+     * @throws CorruptionException if a chunk is corrupted or the stream is truncated
+     */
+    public long importState(ReadableByteChannel in, S state, S replica) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        Set<String> ignored = new HashSet<String>();
+        long entries = 0;
+        while (true) {
+            header.clear();
+            readFully(in, header);
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                throw new CorruptionException("Invalid chunk in state transfer");
+            }
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length == 0) {
+                return entries;
+            }
+            if (length < 0) {
+                throw new CorruptionException("Invalid chunk length in state transfer: " + length);
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(in, payload);
+            crc.reset();
+            crc.update(payload.array());
+            if ((int) crc.getValue() != checksum) {
+                throw new CorruptionException("Checksum mismatch in state transfer chunk");
+            }
+
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload.array()));
+            String field = data.readUTF();
+            while (data.available() > 0) {
+                Object key = CheckpointFile.readValue(data);
+                data.mark(length);
+                Object value = CheckpointFile.readValue(data);
+                if (!fields.set(state, field, key, value)) {
+                    if (ignored.add(field)) {
+                        LOG.warn("Ignoring transferred field {}", field);
+                    }
+                    break;
+                }
+                if (replica != null) {
+                    if (!isImmutable(value)) {
+                        data.reset();
+                        value = CheckpointFile.readValue(data);
+                    }
+                    fields.set(replica, field, key, value);
+                }
+                entries++;
+            }
+        }
+    }
+
+    private static void writeChunk(WritableByteChannel out, ByteArrayOutputStream bytes) throws IOException {
+        byte[] payload = bytes.toByteArray();
+        bytes.reset();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(payload.length);
+        header.putInt((int) crc.getValue());
+        header.flip();
+        writeFully(out, header);
+        writeFully(out, ByteBuffer.wrap(payload));
+    }
+
+    private static void writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private static void readFully(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) < 0) {
+                throw new CorruptionException("Truncated state transfer");
+            }
+        }
+    }
+
+    private static boolean isImmutable(Object value) {
+        return value == null || value instanceof String || value instanceof Integer || value instanceof Long
+                || value instanceof Boolean || value instanceof Byte || value instanceof Character
+                || value instanceof Short || value instanceof Float || value instanceof Double
+                || value instanceof Enum;
+    }
+
+    private static boolean equal(Object value, Object replicaValue) {
+        if (isImmutable(value)) {
+            return value == null ? replicaValue == null : value.equals(replicaValue);
+        }
+        return PascRuntime.compare(value, replicaValue);
+    }
+}
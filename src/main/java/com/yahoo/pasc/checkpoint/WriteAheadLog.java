@@ -0,0 +1,355 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.yahoo.pasc.checkpoint;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yahoo.pasc.CompositeModificationListener;
+import com.yahoo.pasc.ModificationListener;
+import com.yahoo.pasc.PascRuntime;
+import com.yahoo.pasc.ProcessState;
+
+/**
+ * Appends the modifications of each message to a write-ahead log, so the state can be rebuilt at startup by
+ * applying them instead of handling the messages again.
+ * 
+ * Register it with {@link PascRuntime#setModificationListener(ModificationListener)}. Each message, or batch,
+ * with modifications becomes a record holding its length, its CRC32 and the modified entries: field id, key and
+ * new value, encoded as in checkpoint files. Fields get an id the first time they are modified, the record
+ * defines the ids it introduces. Records are written and synced in groups, after a number of records or from a
+ * background thread, so the last records before a crash may be lost unless sync() is called. A torn record at the
+ * end of the log is discarded when the log is opened.
+ * 
+ * replay() applies the log to a fresh state before it's passed to the runtime, which clones it into the replica.
+ * The log can be combined with a {@link StateCheckpointer} through a {@link CompositeModificationListener},
+ * clearing it after writing an image: the state is restored from the image and the log is replayed on top.
+ *
+ * @param <S> state class used by this application
+ */
+public class WriteAheadLog<S extends ProcessState> implements ModificationListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    private static final int RECORD_HEADER = 4 + 4;
+
+    private final File file;
+    private final StateFields fields;
+    private final int groupSize;
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+    // record being built, only used by the runtime thread
+    private final List<String> newFields = new ArrayList<String>();
+    private final ByteArrayOutputStream entryBytes = new ByteArrayOutputStream();
+    private final DataOutputStream entries = new DataOutputStream(entryBytes);
+    private final ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+    private final DataOutputStream payload = new DataOutputStream(payloadBytes);
+    private final CRC32 crc = new CRC32();
+    private int entryCount;
+
+    // guarded by this
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private int pendingRecords;
+
+    // serializes writes to the channel
+    private final Object syncLock = new Object();
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * Opens the log, creating it if needed. Records are appended after the existing ones.
+     * 
+     * @param file File of the log
+     * @param stateType Class of the state
+     * @param groupSize Number of records written and synced together
+     */
+    public WriteAheadLog(File file, Class<?> stateType, int groupSize) throws IOException {
+        if (groupSize < 1) {
+            throw new IllegalArgumentException("Invalid group size: " + groupSize);
+        }
+        this.file = file;
+        this.fields = new StateFields(stateType);
+        this.groupSize = groupSize;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        long end = read(null);
+        if (end < channel.size()) {
+            LOG.warn("Discarding {} bytes at the end of the log {}", channel.size() - end, file);
+            channel.truncate(end);
+            channel.force(true);
+        }
+        channel.position(end);
+    }
+
+    @Override
+    public void modified(String field, Object key, Object value) {
+        try {
+            Integer id = ids.get(field);
+            if (id == null) {
+                id = ids.size();
+                ids.put(field, id);
+                newFields.add(field);
+            }
+            CheckpointFile.writeVarLong(entries, id);
+            CheckpointFile.writeValue(entries, key);
+            CheckpointFile.writeValue(entries, value);
+            entryCount++;
+        } catch (IOException e) {
+            throw new IllegalStateException("Error encoding " + field + " for the log " + file, e);
+        }
+    }
+
+    @Override
+    public void committed() {
+        if (entryCount == 0) {
+            return;
+        }
+        boolean full;
+        try {
+            payloadBytes.reset();
+            CheckpointFile.writeVarLong(payload, newFields.size());
+            for (String field : newFields) {
+                payload.writeUTF(field);
+            }
+            CheckpointFile.writeVarLong(payload, entryCount);
+            entries.flush();
+            entryBytes.writeTo(payload);
+            payload.flush();
+            crc.reset();
+            byte[] record = payloadBytes.toByteArray();
+            crc.update(record);
+            synchronized (this) {
+                DataOutputStream out = new DataOutputStream(pending);
+                out.writeInt(record.length);
+                out.writeInt((int) crc.getValue());
+                out.write(record);
+                full = ++pendingRecords >= groupSize;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Error encoding record for the log " + file, e);
+        } finally {
+            newFields.clear();
+            entryBytes.reset();
+            entryCount = 0;
+        }
+        if (full) {
+            try {
+                sync();
+            } catch (IOException e) {
+                throw new IllegalStateException("Error writing the log " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Writes the pending records and syncs the log.
+     */
+    public void sync() throws IOException {
+        synchronized (syncLock) {
+            ByteArrayOutputStream taken;
+            int takenRecords;
+            synchronized (this) {
+                if (pendingRecords == 0) {
+                    return;
+                }
+                taken = pending;
+                takenRecords = pendingRecords;
+                pending = new ByteArrayOutputStream(taken.size());
+                pendingRecords = 0;
+            }
+            long end = channel.position();
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(taken.toByteArray());
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                // the next sync rewrites the records from the last good one, they may define field ids
+                channel.position(end);
+                synchronized (this) {
+                    pending.writeTo(taken);
+                    pending = taken;
+                    pendingRecords += takenRecords;
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Syncs the log and discards its records, e.g. after writing an image of the state. The state mustn't be
+     * modified meanwhile.
+     */
+    public void clear() throws IOException {
+        synchronized (syncLock) {
+            sync();
+            channel.truncate(0);
+            channel.position(0);
+            channel.force(true);
+            ids.clear();
+        }
+    }
+
+    /**
+     * Applies the records of the log to the state through its setters. Fields without setter are ignored.
+     * 
+     * @param state A freshly created process state
+     * @return number of records applied
+     */
+    public long replay(S state) throws IOException {
+        sync();
+        long[] records = new long[1];
+        read(state, records);
+        return records[0];
+    }
+
+    /**
+     * Syncs the log periodically in a background thread, besides every groupSize records.
+     * 
+     * @param periodMillis Time between syncs
+     */
+    public synchronized void start(long periodMillis) {
+        if (executor != null) {
+            throw new IllegalStateException("Log already started");
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "pasc-log");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sync();
+                } catch (Exception e) {
+                    LOG.error("Error writing the log " + file, e);
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the background syncs, writes the pending records and closes the log.
+     */
+    public void close() throws IOException, InterruptedException {
+        ScheduledExecutorService stopped;
+        synchronized (this) {
+            stopped = executor;
+            executor = null;
+        }
+        if (stopped != null) {
+            stopped.shutdown();
+            stopped.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        sync();
+        raf.close();
+    }
+
+    private long read(S state) throws IOException {
+        return read(state, new long[1]);
+    }
+
+    /**
+     * Reads the valid records of the log, applying them to the state if it isn't null, and rebuilds the field
+     * ids.
+     * 
+     * @return position after the last valid record
+     */
+    private long read(S state, long[] records) throws IOException {
+        List<String> names = new ArrayList<String>();
+        Set<String> ignored = new HashSet<String>();
+        long end = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            CRC32 checksum = new CRC32();
+            while (true) {
+                byte[] record;
+                try {
+                    int length = in.readInt();
+                    int expected = in.readInt();
+                    if (length < 0 || length > file.length() - end - RECORD_HEADER) {
+                        break;
+                    }
+                    record = new byte[length];
+                    in.readFully(record);
+                    checksum.reset();
+                    checksum.update(record);
+                    if ((int) checksum.getValue() != expected) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                DataInputStream entries = new DataInputStream(new ByteArrayInputStream(record));
+                long defined = CheckpointFile.readVarLong(entries);
+                for (long i = 0; i < defined; i++) {
+                    names.add(entries.readUTF());
+                }
+                long count = CheckpointFile.readVarLong(entries);
+                for (long i = 0; i < count; i++) {
+                    String field = names.get((int) CheckpointFile.readVarLong(entries));
+                    Object key = CheckpointFile.readValue(entries);
+                    Object value = CheckpointFile.readValue(entries);
+                    if (state != null && !fields.set(state, field, key, value) && ignored.add(field)) {
+                        LOG.warn("Ignoring logged field {}", field);
+                    }
+                }
+                end += RECORD_HEADER + record.length;
+                records[0]++;
+            }
+        } finally {
+            in.close();
+        }
+        if (state == null) {
+            ids.clear();
+            for (String name : names) {
+                ids.put(name, ids.size());
+            }
+        }
+        return end;
+    }
+}
@@ -23,8 +23,11 @@ public class VariableCorruptionException extends CorruptionException {
 
     private static final long serialVersionUID = 5336446438577061165L;
 
+    private final String variable;
+
     public VariableCorruptionException(String variable, Object value, Object replica) {
         super(variable + " value: " + value + " replica: " + replica);
+        this.variable = variable;
     }
 
     public VariableCorruptionException(String variable, boolean value, boolean replica) {
@@ -54,4 +57,11 @@ public class VariableCorruptionException extends CorruptionException {
     public VariableCorruptionException(String variable, double value, double replica) {
         this(variable, (Object) value, replica);
     }
+
+    /**
+     * @return name of the corrupt variable
+     */
+    public String getVariable() {
+        return variable;
+    }
 }
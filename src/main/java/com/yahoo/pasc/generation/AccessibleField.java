@@ -16,6 +16,9 @@
 
 package com.yahoo.pasc.generation;
 
+import com.yahoo.pasc.FieldProtection;
+import com.yahoo.pasc.KeyCache;
+
 public class AccessibleField {
     private String getter;
     private String setter;
@@ -23,6 +26,9 @@ public class AccessibleField {
     private Class<?> type;
     private boolean indexed;
     private Class<?> indexType;
+    private int cacheSize = KeyCache.DEFAULT;
+    private int denseSize;
+    private FieldProtection protection;
 
     public AccessibleField() {
     }
@@ -74,4 +80,42 @@ public class AccessibleField {
     public void setIndexType(Class<?> indexType) {
         this.indexType = indexType;
     }
-}
\ No newline at end of file
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    public boolean isDense() {
+        return denseSize > 0;
+    }
+
+    public int getDenseSize() {
+        return denseSize;
+    }
+
+    public void setDenseSize(int denseSize) {
+        this.denseSize = denseSize;
+    }
+
+    /**
+     * @return the protection declared for the field, or null if it wasn't annotated
+     */
+    public FieldProtection getProtection() {
+        return protection;
+    }
+
+    public void setProtection(FieldProtection protection) {
+        this.protection = protection;
+    }
+
+    /**
+     * @return whether reads of the field are checked against the replica
+     */
+    public boolean isChecked() {
+        return protection != FieldProtection.NONE;
+    }
+}
@@ -0,0 +1,2094 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc.generation;
+
+import static com.yahoo.pasc.generation.GeneratorUtil.MAX_RETAINED_KEYS;
+import static com.yahoo.pasc.generation.GeneratorUtil.SPIKE_RESETS;
+import static com.yahoo.pasc.generation.GeneratorUtil.getEntrySetName;
+import static com.yahoo.pasc.generation.GeneratorUtil.getKeyName;
+import static com.yahoo.pasc.generation.GeneratorUtil.getMapGet;
+import static com.yahoo.pasc.generation.GeneratorUtil.getMapName;
+import static com.yahoo.pasc.generation.GeneratorUtil.getSetName;
+import static com.yahoo.pasc.generation.GeneratorUtil.getShortMapName;
+import static com.yahoo.pasc.generation.GeneratorUtil.getWrapper;
+import static com.yahoo.pasc.generation.GeneratorUtil.getValueName;
+import static com.yahoo.pasc.generation.GeneratorUtil.isImmutable;
+import static com.yahoo.pasc.generation.GeneratorUtil.obtainAccessibleFields;
+
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.List;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objenesis.instantiator.ObjectInstantiator;
+
+import com.yahoo.pasc.ModificationListener;
+import com.yahoo.pasc.PascRuntime;
+import com.yahoo.pasc.ProcessState;
+import com.yahoo.pasc.exceptions.AsymmetricalChangesException;
+import com.yahoo.pasc.exceptions.VariableCorruptionException;
+import com.yahoo.pasc.metrics.PascMetrics;
+
+/**
+ * Generates the encapsulator and light encapsulator classes emitting their bytecode directly with ASM, instead
+ * of rendering templates and compiling them with Javassist.
+ * 
+ * The generated classes have the same fields and behavior as the ones built by {@link EncapsulatorGenerator} and
+ * {@link LightEncapsulatorGenerator}, which use this generator when the system property pasc.generator is set to
+ * "asm". Values compared on the read paths are kept in locals and passed unboxed to the exceptions.
+ */
+class AsmEncapsulatorGenerator implements Opcodes {
+
+    static final boolean ENABLED = "asm".equals(System.getProperty("pasc.generator"));
+
+    private static final String ENCAPSULATOR = Type.getInternalName(Encapsulator.class);
+    private static final String OBJECT = Type.getInternalName(Object.class);
+    private static final String ITERATOR = Type.getInternalName(Iterator.class);
+    private static final String RUNTIME = Type.getInternalName(PascRuntime.class);
+    private static final String VARIABLE_CORRUPTION = Type.getInternalName(VariableCorruptionException.class);
+    private static final String ASYMMETRICAL_CHANGES = Type.getInternalName(AsymmetricalChangesException.class);
+    private static final String ILLEGAL_STATE = Type.getInternalName(IllegalStateException.class);
+    private static final String INSTANTIATOR_DESC = Type.getDescriptor(ObjectInstantiator.class);
+    private static final String METRICS_DESC = Type.getDescriptor(PascMetrics.class);
+    private static final String RECORD_METRICS_DESC = "(" + METRICS_DESC + "L" + ENCAPSULATOR + ";)V";
+    private static final String LISTENER = Type.getInternalName(ModificationListener.class);
+    private static final String LISTENER_DESC = Type.getDescriptor(ModificationListener.class);
+    private static final String SET_STATE_DESC = "(" + Type.getDescriptor(ProcessState.class)
+            + Type.getDescriptor(ProcessState.class) + INSTANTIATOR_DESC + ")V";
+
+    private final Class<?> stateType;
+    private final String state;
+    private final String stateDesc;
+    private final String facade;
+    private final String lightFacade;
+    private final List<AccessibleField> fields;
+
+    private AsmEncapsulatorGenerator(Class<?> stateType, String facadeSuffix) {
+        this.stateType = stateType;
+        this.state = Type.getInternalName(stateType);
+        this.stateDesc = Type.getDescriptor(stateType);
+        this.facade = state + facadeSuffix;
+        this.lightFacade = state + "LightEncapsulator";
+        this.fields = obtainAccessibleFields(stateType);
+    }
+
+    /**
+     * Generates and loads the encapsulator class of a state, its light encapsulator must be already loaded.
+     */
+    static Class<?> generateEncapsulator(Class<?> stateType) {
+        AsmEncapsulatorGenerator generator = new AsmEncapsulatorGenerator(stateType, "Encapsulator");
+        return generator.define(generator.buildEncapsulator());
+    }
+
+    /**
+     * Generates and loads the light encapsulator class of a state.
+     */
+    static Class<?> generateLightEncapsulator(Class<?> stateType) {
+        AsmEncapsulatorGenerator generator = new AsmEncapsulatorGenerator(stateType, "LightEncapsulator");
+        return generator.define(generator.buildLightEncapsulator());
+    }
+
+    private Class<?> define(byte[] bytecode) {
+        try {
+            Method defineClass = ClassLoader.class.getDeclaredMethod("defineClass", String.class, byte[].class,
+                    int.class, int.class);
+            defineClass.setAccessible(true);
+            return (Class<?>) defineClass.invoke(stateType.getClassLoader(), facade.replace('/', '.'), bytecode, 0,
+                    bytecode.length);
+        } catch (Exception e) {
+            throw new RuntimeException("Error loading encapsulator class: " + facade, e);
+        }
+    }
+
+    private ClassWriter newClass() {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+            @Override
+            protected String getCommonSuperClass(String type1, String type2) {
+                // locals are always merged with values of their own type, anything else is only seen as Object
+                return type1.equals(type2) ? type1 : OBJECT;
+            }
+        };
+        cw.visit(V1_6, ACC_PUBLIC | ACC_SUPER, facade, null, state, new String[] { ENCAPSULATOR });
+        addField(cw, 0, "state", stateDesc);
+        addField(cw, 0, "replica", stateDesc);
+        addField(cw, 0, "instantiator", INSTANTIATOR_DESC);
+        return cw;
+    }
+
+    private static void addField(ClassWriter cw, int access, String name, String desc) {
+        FieldVisitor fv = cw.visitField(access, name, desc, null, null);
+        fv.visitEnd();
+    }
+
+    // Encapsulator
+
+    byte[] buildEncapsulator() {
+        ClassWriter cw = newClass();
+        addField(cw, ACC_PRIVATE, "readOnly", "Z");
+        addField(cw, ACC_PRIVATE, "checkState", "Z");
+        addField(cw, ACC_PRIVATE, "modificationListener", LISTENER_DESC);
+        for (AccessibleField af : fields) {
+            String name = af.getName();
+            String desc = Type.getDescriptor(af.getType());
+            if (af.isDense()) {
+                addDenseFields(cw, af, name + "WrittenBits");
+                addField(cw, 0, name + "WrittenValues", arrayOf(Type.getType(af.getType())));
+                addField(cw, 0, name + "Gets", "I");
+                addField(cw, 0, name + "CacheHits", "I");
+            } else if (af.isIndexed()) {
+                addField(cw, ACC_PRIVATE, name + "Written", descriptorOf(getMapName(af.getIndexType(), af.getType())));
+                addField(cw, ACC_PRIVATE, name + "WrittenSinceSpike", "I");
+                addCacheFields(cw, af);
+                addField(cw, 0, name + "Gets", "I");
+                addField(cw, 0, name + "CacheHits", "I");
+            } else {
+                addField(cw, 0, name + "Read", "Z");
+                addField(cw, ACC_PRIVATE, name + "Written", "Z");
+                addField(cw, ACC_PRIVATE, name + "Ref", desc);
+            }
+        }
+
+        buildFlagSetter(cw, "setReadOnly", "readOnly");
+        buildFlagSetter(cw, "setCheckState", "checkState");
+        buildListenerSetter(cw);
+        buildApplyModifications(cw);
+        buildApplySingleExecution(cw);
+        buildReset(cw, true);
+        buildSetState(cw, true);
+        buildRecordMetrics(cw);
+        for (AccessibleField af : fields) {
+            if (af.isDense()) {
+                buildMark(cw, af, af.getName() + "WrittenBits");
+            } else if (af.isIndexed()) {
+                buildFindSlot(cw, af);
+                buildNewSlot(cw, af, true);
+            }
+            if (af.getGetter() != null) {
+                if (af.isDense()) {
+                    buildGetterDense(cw, af);
+                } else if (af.isIndexed()) {
+                    buildGetterMulti(cw, af);
+                } else {
+                    buildGetterSingle(cw, af);
+                }
+            }
+            if (af.getSetter() != null) {
+                if (af.isDense()) {
+                    buildSetterDense(cw, af);
+                } else if (af.isIndexed()) {
+                    buildSetterMulti(cw, af);
+                } else {
+                    buildSetterSingle(cw, af);
+                }
+            }
+        }
+        buildToString(cw);
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private void buildFlagSetter(ClassWriter cw, String method, String flag) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, method, "(Z)V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ILOAD, 1);
+        mv.visitFieldInsn(PUTFIELD, facade, flag, "Z");
+        mv.visitInsn(RETURN);
+        endMethod(mv);
+    }
+
+    private void buildListenerSetter(ClassWriter cw) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "setModificationListener", "(" + LISTENER_DESC + ")V", null, 
+                null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitFieldInsn(PUTFIELD, facade, "modificationListener", LISTENER_DESC);
+        mv.visitInsn(RETURN);
+        endMethod(mv);
+    }
+
+    private void buildGetterSingle(ClassWriter cw, AccessibleField af) {
+        String name = af.getName();
+        Type type = Type.getType(af.getType());
+        String getterDesc = "()" + type.getDescriptor();
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_FINAL, af.getGetter(), getterDesc, null, null);
+        mv.visitCode();
+        Label written = new Label();
+        Label done = new Label();
+        getField(mv, name + "Written", "Z");
+        mv.visitJumpInsn(IFNE, done);
+        getField(mv, name + "Read", "Z");
+        mv.visitJumpInsn(IFNE, written);
+        // If never read must be checked, unless the replica execution is checking it concurrently
+        putTrue(mv, name + "Read");
+        if (af.isChecked()) {
+            getField(mv, "checkState", "Z");
+            mv.visitJumpInsn(IFEQ, written);
+            int stateValue = 1;
+            int replicaValue = 1 + type.getSize();
+            callGetter(mv, "state", af, -1);
+            mv.visitVarInsn(type.getOpcode(ISTORE), stateValue);
+            callGetter(mv, "replica", af, -1);
+            mv.visitVarInsn(type.getOpcode(ISTORE), replicaValue);
+            jumpIfEqual(mv, type, stateValue, replicaValue, written);
+            throwCorruption(mv, VARIABLE_CORRUPTION, name, type, stateValue, replicaValue);
+        }
+
+        // If never written must be cloned
+        mv.visitLabel(written);
+        putTrue(mv, name + "Written");
+        mv.visitVarInsn(ALOAD, 0);
+        callGetter(mv, "state", af, -1);
+        cloneValue(mv, type);
+        mv.visitFieldInsn(PUTFIELD, facade, name + "Ref", type.getDescriptor());
+
+        mv.visitLabel(done);
+        getField(mv, name + "Ref", type.getDescriptor());
+        mv.visitInsn(type.getOpcode(IRETURN));
+        endMethod(mv);
+    }
+
+    private void buildGetterMulti(ClassWriter cw, AccessibleField af) {
+        String name = af.getName();
+        Type type = Type.getType(af.getType());
+        Type keyType = Type.getType(af.getIndexType());
+        Class<?> mapClass = classOf(getMapName(af.getIndexType(), af.getType()));
+        String mapDesc = Type.getDescriptor(mapClass);
+        String getterDesc = "(" + keyType.getDescriptor() + ")" + type.getDescriptor();
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_FINAL, af.getGetter(), getterDesc, null, null);
+        mv.visitCode();
+        int key = 1;
+        int temp = 1 + keyType.getSize();
+        int replicaValue = temp + type.getSize();
+        int slot = replicaValue + type.getSize();
+        Label miss = new Label();
+        Label check = new Label();
+        Label cache = new Label();
+        increment(mv, name + "Gets");
+        findSlot(mv, name, keyType, key, slot);
+        mv.visitJumpInsn(IFLT, miss);
+        // Cache hit, return it
+        increment(mv, name + "CacheHits");
+        getField(mv, name + "Values", arrayOf(type));
+        mv.visitVarInsn(ILOAD, slot);
+        mv.visitInsn(type.getOpcode(IALOAD));
+        mv.visitInsn(type.getOpcode(IRETURN));
+
+        // Cache miss, look for the key in the map
+        mv.visitLabel(miss);
+        getField(mv, name + "Written", mapDesc);
+        mv.visitJumpInsn(IFNULL, check);
+        getField(mv, name + "Written", mapDesc);
+        mv.visitVarInsn(keyType.getOpcode(ILOAD), key);
+        invoke(mv, mapClass, findMethod(mapClass, "containsKey", erasure(af.getIndexType())));
+        mv.visitJumpInsn(IFEQ, check);
+        // Written map hit, return value in map, but don't check it
+        getField(mv, name + "Written", mapDesc);
+        mv.visitVarInsn(keyType.getOpcode(ILOAD), key);
+        invoke(mv, mapClass, findMethod(mapClass, getMapGet(af.getIndexType(), af.getType()), 
+                erasure(af.getIndexType())));
+        castValue(mv, type);
+        mv.visitVarInsn(type.getOpcode(ISTORE), temp);
+        mv.visitJumpInsn(GOTO, cache);
+
+        // Cache and map miss, check replica unless the replica execution is checking it concurrently
+        mv.visitLabel(check);
+        callGetter(mv, "state", af, key);
+        cloneValue(mv, type);
+        mv.visitVarInsn(type.getOpcode(ISTORE), temp);
+        if (af.isChecked()) {
+            getField(mv, "checkState", "Z");
+            mv.visitJumpInsn(IFEQ, cache);
+            callGetter(mv, "replica", af, key);
+            mv.visitVarInsn(type.getOpcode(ISTORE), replicaValue);
+            jumpIfEqual(mv, type, temp, replicaValue, cache);
+            throwCorruption(mv, VARIABLE_CORRUPTION, name, type, temp, replicaValue);
+        }
+
+        // Write in cache, the key spilled from it (if any) has been moved to the map
+        mv.visitLabel(cache);
+        storeNewSlot(mv, name, type, keyType, key, temp, slot);
+        mv.visitVarInsn(type.getOpcode(ILOAD), temp);
+        mv.visitInsn(type.getOpcode(IRETURN));
+        endMethod(mv);
+    }
+
+    private void buildGetterDense(ClassWriter cw, AccessibleField af) {
+        String name = af.getName();
+        Type type = Type.getType(af.getType());
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_FINAL, af.getGetter(), "(I)" + type.getDescriptor(), 
+                null, null);
+        mv.visitCode();
+        int key = 1;
+        int temp = 2;
+        int replicaValue = temp + type.getSize();
+        Label miss = new Label();
+        Label store = new Label();
+        increment(mv, name + "Gets");
+        testBit(mv, name + "WrittenBits", key);
+        mv.visitJumpInsn(IFEQ, miss);
+        // Already read or written, return it
+        increment(mv, name + "CacheHits");
+        loadSlot(mv, name + "WrittenValues", type, key);
+        mv.visitInsn(type.getOpcode(IRETURN));
+
+        // Check replica, unless the replica execution is checking it concurrently
+        mv.visitLabel(miss);
+        callGetter(mv, "state", af, key);
+        cloneValue(mv, type);
+        mv.visitVarInsn(type.getOpcode(ISTORE), temp);
+        if (af.isChecked()) {
+            getField(mv, "checkState", "Z");
+            mv.visitJumpInsn(IFEQ, store);
+            callGetter(mv, "replica", af, key);
+            mv.visitVarInsn(type.getOpcode(ISTORE), replicaValue);
+            jumpIfEqual(mv, type, temp, replicaValue, store);
+            throwCorruption(mv, VARIABLE_CORRUPTION, name, type, temp, replicaValue);
+        }
+
+        mv.visitLabel(store);
+        storeSlot(mv, name + "WrittenValues", type, key, temp);
+        mark(mv, name, key);
+        mv.visitVarInsn(type.getOpcode(ILOAD), temp);
+        mv.visitInsn(type.getOpcode(IRETURN));
+        endMethod(mv);
+    }
+
+    private void checkWritable(MethodVisitor mv, String name) {
+        Label writable = new Label();
+        getField(mv, "readOnly", "Z");
+        mv.visitJumpInsn(IFEQ, writable);
+        mv.visitTypeInsn(NEW, ILLEGAL_STATE);
+        mv.visitInsn(DUP);
+        mv.visitLdcInsn("Field " + name + " written by a read only handler");
+        mv.visitMethodInsn(INVOKESPECIAL, ILLEGAL_STATE, "<init>", "(Ljava/lang/String;)V");
+        mv.visitInsn(ATHROW);
+        mv.visitLabel(writable);
+    }
+
+    private void buildSetterSingle(ClassWriter cw, AccessibleField af) {
+        String name = af.getName();
+        Type type = Type.getType(af.getType());
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_FINAL, af.getSetter(), 
+                "(" + type.getDescriptor() + ")V", null, null);
+        mv.visitCode();
+        checkWritable(mv, name);
+        putTrue(mv, name + "Written");
+        putTrue(mv, name + "Read");
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(type.getOpcode(ILOAD), 1);
+        mv.visitFieldInsn(PUTFIELD, facade, name + "Ref", type.getDescriptor());
+        mv.visitInsn(RETURN);
+        endMethod(mv);
+    }
+
+    private void buildSetterMulti(ClassWriter cw, AccessibleField af) {
+        String name = af.getName();
+        Type type = Type.getType(af.getType());
+        Type keyType = Type.getType(af.getIndexType());
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_FINAL, af.getSetter(), 
+                "(" + keyType.getDescriptor() + type.getDescriptor() + ")V", null, null);
+        mv.visitCode();
+        checkWritable(mv, name);
+        int key = 1;
+        int value = 1 + keyType.getSize();
+        int slot = value + type.getSize();
+        updateSlot(mv, name, type, keyType, key, value, slot);
+        mv.visitInsn(RETURN);
+        endMethod(mv);
+    }
+
+    private void buildSetterDense(ClassWriter cw, AccessibleField af) {
+        String name = af.getName();
+        Type type = Type.getType(af.getType());
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_FINAL, af.getSetter(), 
+                "(I" + type.getDescriptor() + ")V", null, null);
+        mv.visitCode();
+        checkWritable(mv, name);
+        int key = 1;
+        int value = 2;
+        storeSlot(mv, name + "WrittenValues", type, key, value);
+        mark(mv, name, key);
+        mv.visitInsn(RETURN);
+        endMethod(mv);
+    }
+
+    private void buildApplyModifications(ClassWriter cw) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "applyModifications", "(ZL" + ENCAPSULATOR + ";)V", null, null);
+        mv.visitCode();
+        int target = 3;
+        int lightEncap = 4;
+        Label toState = new Label();
+        Label targetSet = new Label();
+        mv.visitVarInsn(ILOAD, 1);
+        mv.visitJumpInsn(IFEQ, toState);
+        getField(mv, "replica", stateDesc);
+        mv.visitJumpInsn(GOTO, targetSet);
+        mv.visitLabel(toState);
+        getField(mv, "state", stateDesc);
+        mv.visitLabel(targetSet);
+        mv.visitVarInsn(ASTORE, target);
+        mv.visitVarInsn(ALOAD, 2);
+        mv.visitTypeInsn(CHECKCAST, lightFacade);
+        mv.visitVarInsn(ASTORE, lightEncap);
+
+        for (AccessibleField af : fields) {
+            if (af.getSetter() == null) {
+                continue;
+            }
+            if (af.isDense()) {
+                buildApplyDense(mv, af, target, lightEncap);
+            } else if (af.isIndexed()) {
+                buildApplyMulti(mv, af, target, lightEncap);
+            } else {
+                buildApplySingle(mv, af, target, lightEncap);
+            }
+        }
+        Label skip = new Label();
+        mv.visitVarInsn(ILOAD, 1);
+        mv.visitJumpInsn(IFNE, skip);
+        getField(mv, "modificationListener", LISTENER_DESC);
+        mv.visitJumpInsn(IFNULL, skip);
+        getField(mv, "modificationListener", LISTENER_DESC);
+        mv.visitMethodInsn(INVOKEINTERFACE, LISTENER, "committed", "()V");
+        mv.visitLabel(skip);
+        mv.visitInsn(RETURN);
+        endMethod(mv);
+    }
+
+    private void buildApplySingle(MethodVisitor mv, AccessibleField af, int target, int lightEncap) {
+        String name = af.getName();
+        Type type = Type.getType(af.getType());
+        Label next = new Label();
+        Label lightRead = new Label();
+        Label read = new Label();
+        getField(mv, name + "Written", "Z");
+        mv.visitJumpInsn(IFEQ, next);
+        mv.visitVarInsn(ALOAD, lightEncap);
+        mv.visitFieldInsn(GETFIELD, lightFacade, name + "Read", "Z");
+        mv.visitJumpInsn(IFNE, lightRead);
+        throwAsymmetrical(mv, name);
+        mv.visitLabel(lightRead);
+        getField(mv, name + "Read", "Z");
+        mv.visitJumpInsn(IFNE, read);
+        throwAsymmetrical(mv, name);
+        mv.visitLabel(read);
+        mv.visitVarInsn(ALOAD, target);
+        getField(mv, name + "Ref", type.getDescriptor());
+        mv.visitMethodInsn(INVOKEVIRTUAL, state, af.getSetter(), "(" + type.getDescriptor() + ")V");
+        Label skip = new Label();
+        beginNotify(mv, name, skip);
+        mv.visitInsn(ACONST_NULL);
+        getField(mv, name + "Ref", type.getDescriptor());
+        box(mv, af.getType());
+        endNotify(mv, skip);
+        mv.visitLabel(next);
+    }
+
+    private void buildApplyMulti(MethodVisitor mv, AccessibleField af, int target, int lightEncap) {
+        String name = af.getName();
+        Class<?> keyClass = af.getIndexType();
+        Class<?> valueClass = af.getType();
+        Type type = Type.getType(valueClass);
+        Type keyType = Type.getType(keyClass);
+        Class<?> setClass = classOf(getSetName(keyClass));
+        Class<?> mapClass = classOf(getMapName(keyClass, valueClass));
+        Class<?> entryClass = classOf(getShortMapName(keyClass, valueClass) + "$Entry");
+        String setDesc = Type.getDescriptor(setClass);
+        String mapDesc = Type.getDescriptor(mapClass);
+        String setterDesc = "(" + keyType.getDescriptor() + type.getDescriptor() + ")V";
+
+        int it = 5;
+        int entry = 6;
+        int spilled = 7;
+        int tempKey = 8;
+        int replicaKey = tempKey + keyType.getSize();
+        int i = replicaKey + keyType.getSize();
+
+        Label next = new Label();
+        Label loop = new Label();
+        Label contained = new Label();
+        Label cache = new Label();
+        Label written = new Label();
+        Label sameSize = new Label();
+        Label cacheLoop = new Label();
+        Label sameSpilled = new Label();
+
+        getField(mv, name + "Cached", "I");
+        mv.visitJumpInsn(IFNE, written);
+        mv.visitVarInsn(ALOAD, lightEncap);
+        mv.visitFieldInsn(GETFIELD, lightFacade, name + "Cached", "I");
+        mv.visitJumpInsn(IFEQ, next);
+        mv.visitLabel(written);
+        // First apply changes from the map, both sides must have spilled the same keys
+        size(mv, name + "Written", mapClass);
+        mv.visitInsn(DUP);
+        mv.visitVarInsn(ISTORE, spilled);
+        mv.visitVarInsn(ALOAD, lightEncap);
+        size(mv, lightFacade, name + "Read", setClass);
+        mv.visitJumpInsn(IF_ICMPEQ, sameSpilled);
+        throwAsymmetrical(mv, name);
+        mv.visitLabel(sameSpilled);
+        mv.visitVarInsn(ILOAD, spilled);
+        mv.visitJumpInsn(IFEQ, cache);
+
+        getField(mv, name + "Written", mapDesc);
+        Method entrySet = findMethod(mapClass, getEntrySetName(keyClass, valueClass));
+        invoke(mv, mapClass, entrySet);
+        Method fastIterator = findMethod(entrySet.getReturnType(), "fastIterator");
+        invoke(mv, entrySet.getReturnType(), fastIterator);
+        mv.visitVarInsn(ASTORE, it);
+
+        mv.visitLabel(loop);
+        mv.visitVarInsn(ALOAD, it);
+        mv.visitMethodInsn(INVOKEINTERFACE, ITERATOR, "hasNext", "()Z");
+        mv.visitJumpInsn(IFEQ, cache);
+        mv.visitVarInsn(ALOAD, it);
+        mv.visitMethodInsn(INVOKEINTERFACE, ITERATOR, "next", "()L" + OBJECT + ";");
+        mv.visitTypeInsn(CHECKCAST, Type.getInternalName(entryClass));
+        mv.visitVarInsn(ASTORE, entry);
+        mv.visitVarInsn(ALOAD, entry);
+        invoke(mv, entryClass, findMethod(entryClass, "get" + getKeyName(keyClass)));
+        castValue(mv, keyType);
+        mv.visitVarInsn(keyType.getOpcode(ISTORE), tempKey);
+        mv.visitVarInsn(ALOAD, lightEncap);
+        mv.visitFieldInsn(GETFIELD, lightFacade, name + "Read", setDesc);
+        mv.visitVarInsn(keyType.getOpcode(ILOAD), tempKey);
+        invoke(mv, setClass, findMethod(setClass, "contains", erasure(keyClass)));
+        mv.visitJumpInsn(IFNE, contained);
+        throwAsymmetrical(mv, name);
+        mv.visitLabel(contained);
+        mv.visitVarInsn(ALOAD, target);
+        mv.visitVarInsn(keyType.getOpcode(ILOAD), tempKey);
+        mv.visitVarInsn(ALOAD, entry);
+        invoke(mv, entryClass, findMethod(entryClass, "get" + getValueName(valueClass)));
+        castValue(mv, type);
+        mv.visitMethodInsn(INVOKEVIRTUAL, state, af.getSetter(), setterDesc);
+        beginNotify(mv, name, loop);
+        mv.visitVarInsn(keyType.getOpcode(ILOAD), tempKey);
+        box(mv, keyClass);
+        mv.visitVarInsn(ALOAD, entry);
+        invoke(mv, entryClass, findMethod(entryClass, "get" + getValueName(valueClass)));
+        castValue(mv, type);
+        box(mv, valueClass);
+        endNotify(mv, null);
+        mv.visitJumpInsn(GOTO, loop);
+
+        // Then apply changes from the cache (modified last)
+        mv.visitLabel(cache);
+        getField(mv, name + "Cached", "I");
+        mv.visitVarInsn(ALOAD, lightEncap);
+        mv.visitFieldInsn(GETFIELD, lightFacade, name + "Cached", "I");
+        mv.visitJumpInsn(IF_ICMPEQ, sameSize);
+        throwAsymmetrical(mv, name);
+        mv.visitLabel(sameSize);
+        mv.visitInsn(ICONST_0);
+        mv.visitVarInsn(ISTORE, i);
+        mv.visitLabel(cacheLoop);
+        mv.visitVarInsn(ILOAD, i);
+        getField(mv, name + "Cached", "I");
+        mv.visitJumpInsn(IF_ICMPGE, next);
+        getField(mv, name + "Keys", arrayOf(keyType));
+        mv.visitVarInsn(ILOAD, i);
+        mv.visitInsn(keyType.getOpcode(IALOAD));
+        mv.visitVarInsn(keyType.getOpcode(ISTORE), tempKey);
+        mv.visitVarInsn(ALOAD, lightEncap);
+        mv.visitFieldInsn(GETFIELD, lightFacade, name + "Keys", arrayOf(keyType));
+        mv.visitVarInsn(ILOAD, i);
+        mv.visitInsn(keyType.getOpcode(IALOAD));
+        mv.visitVarInsn(keyType.getOpcode(ISTORE), replicaKey);
+        checkKeys(mv, name, keyType, tempKey, replicaKey);
+        mv.visitVarInsn(ALOAD, target);
+        mv.visitVarInsn(keyType.getOpcode(ILOAD), tempKey);
+        getField(mv, name + "Values", arrayOf(type));
+        mv.visitVarInsn(ILOAD, i);
+        mv.visitInsn(type.getOpcode(IALOAD));
+        mv.visitMethodInsn(INVOKEVIRTUAL, state, af.getSetter(), setterDesc);
+        Label cached = new Label();
+        beginNotify(mv, name, cached);
+        mv.visitVarInsn(keyType.getOpcode(ILOAD), tempKey);
+        box(mv, keyClass);
+        getField(mv, name + "Values", arrayOf(type));
+        mv.visitVarInsn(ILOAD, i);
+        mv.visitInsn(type.getOpcode(IALOAD));
+        box(mv, valueClass);
+        endNotify(mv, cached);
+        mv.visitIincInsn(i, 1);
+        mv.visitJumpInsn(GOTO, cacheLoop);
+        mv.visitLabel(next);
+    }
+
+    private void buildApplyDense(MethodVisitor mv, AccessibleField af, int target, int lightEncap) {
+        String name = af.getName();
+        Type type = Type.getType(af.getType());
+        String setterDesc = "(I" + type.getDescriptor() + ")V";
+
+        int low = 5;
+        int high = 6;
+        int w = 7;
+        int word = 8;
+        int key = 10;
+
+        Label apply = new Label();
+        Label loop = new Label();
+        Label same = new Label();
+        Label bits = new Label();
+        Label nextWord = new Label();
+        Label next = new Label();
+
+        getField(mv, name + "HighWord", "I");
+        mv.visitJumpInsn(IFGT, apply);
+        mv.visitVarInsn(ALOAD, lightEncap);
+        mv.visitFieldInsn(GETFIELD, lightFacade, name + "HighWord", "I");
+        mv.visitJumpInsn(IFLE, next);
+        mv.visitLabel(apply);
+        getField(mv, name + "LowWord", "I");
+        mv.visitVarInsn(ALOAD, lightEncap);
+        mv.visitFieldInsn(GETFIELD, lightFacade, name + "LowWord", "I");
+        mv.visitMethodInsn(INVOKESTATIC, "java/lang/Math", "min", "(II)I");
+        mv.visitVarInsn(ISTORE, low);
+        getField(mv, name + "HighWord", "I");
+        mv.visitVarInsn(ALOAD, lightEncap);
+        mv.visitFieldInsn(GETFIELD, lightFacade, name + "HighWord", "I");
+        mv.visitMethodInsn(INVOKESTATIC, "java/lang/Math", "max", "(II)I");
+        mv.visitVarInsn(ISTORE, high);
+
+        // Both sides must have touched the same keys, apply them in order
+        mv.visitVarInsn(ILOAD, low);
+        mv.visitVarInsn(ISTORE, w);
+        mv.visitLabel(loop);
+        mv.visitVarInsn(ILOAD, w);
+        mv.visitVarInsn(ILOAD, high);
+        mv.visitJumpInsn(IF_ICMPGE, next);
+        loadSlot(mv, name + "WrittenBits", Type.LONG_TYPE, w);
+        mv.visitInsn(DUP2);
+        mv.visitVarInsn(LSTORE, word);
+        mv.visitVarInsn(ALOAD, lightEncap);
+        mv.visitFieldInsn(GETFIELD, lightFacade, name + "ReadBits", "[J");
+        mv.visitVarInsn(ILOAD, w);
+        mv.visitInsn(LALOAD);
+        mv.visitInsn(LCMP);
+        mv.visitJumpInsn(IFEQ, same);
+        throwAsymmetrical(mv, name);
+        mv.visitLabel(same);
+        mv.visitLabel(bits);
+        mv.visitVarInsn(LLOAD, word);
+        mv.visitInsn(LCONST_0);
+        mv.visitInsn(LCMP);
+        mv.visitJumpInsn(IFEQ, nextWord);
+        mv.visitVarInsn(ILOAD, w);
+        mv.visitIntInsn(BIPUSH, 6);
+        mv.visitInsn(ISHL);
+        mv.visitVarInsn(LLOAD, word);
+        mv.visitMethodInsn(INVOKESTATIC, "java/lang/Long", "numberOfTrailingZeros", "(J)I");
+        mv.visitInsn(IADD);
+        mv.visitVarInsn(ISTORE, key);
+        mv.visitVarInsn(ALOAD, target);
+        mv.visitVarInsn(ILOAD, key);
+        loadSlot(mv, name + "WrittenValues", type, key);
+        mv.visitMethodInsn(INVOKEVIRTUAL, state, af.getSetter(), setterDesc);
+        Label skip = new Label();
+        beginNotify(mv, name, skip);
+        mv.visitVarInsn(ILOAD, key);
+        box(mv, int.class);
+        loadSlot(mv, name + "WrittenValues", type, key);
+        box(mv, af.getType());
+        endNotify(mv, skip);
+        mv.visitVarInsn(LLOAD, word);
+        mv.visitVarInsn(LLOAD, word);
+        mv.visitInsn(LCONST_1);
+        mv.visitInsn(LSUB);
+        mv.visitInsn(LAND);
+        mv.visitVarInsn(LSTORE, word);
+        mv.visitJumpInsn(GOTO, bits);
+        mv.visitLabel(nextWord);
+        mv.visitIincInsn(w, 1);
+        mv.visitJumpInsn(GOTO, loop);
+        mv.visitLabel(next);
+    }
+
+    private void buildApplySingleExecution(ClassWriter cw) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "applySingleExecution", "()V", null, null);
+        mv.visitCode();
+        // beginNotify() skips the listener when local 1 is set, it's never set here
+        mv.visitInsn(ICONST_0);
+        mv.visitVarInsn(ISTORE, 1);
+        for (AccessibleField af : fields) {
+            if (af.getSetter() == null) {
+                continue;
+            }
+            if (af.isDense()) {
+                buildApplySingleExecutionDense(mv, af);
+            } else if (af.isIndexed()) {
+                buildApplySingleExecutionMulti(mv, af);
+            } else {
+                buildApplySingleExecutionSingle(mv, af);
+            }
+        }
+        Label skip = new Label();
+        getField(mv, "modificationListener", LISTENER_DESC);
+        mv.visitJumpInsn(IFNULL, skip);
+        getField(mv, "modificationListener", LISTENER_DESC);
+        mv.visitMethodInsn(INVOKEINTERFACE, LISTENER, "committed", "()V");
+        mv.visitLabel(skip);
+        mv.visitInsn(RETURN);
+        endMethod(mv);
+    }
+
+    private void buildApplySingleExecutionSingle(MethodVisitor mv, AccessibleField af) {
+        String name = af.getName();
+        Type type = Type.getType(af.getType());
+        int value = 4;
+        Label next = new Label();
+        getField(mv, name + "Written", "Z");
+        mv.visitJumpInsn(IFEQ, next);
+        getField(mv, name + "Ref", type.getDescriptor());
+        mv.visitVarInsn(type.getOpcode(ISTORE), value);
+        applyWrite(mv, af, -1, value);
+        mv.visitLabel(next);
+    }
+
+    private void buildApplySingleExecutionMulti(MethodVisitor mv, AccessibleField af) {
+        String name = af.getName();
+        Class<?> keyClass = af.getIndexType();
+        Class<?> valueClass = af.getType();
+        Type type = Type.getType(valueClass);
+        Type keyType = Type.getType(keyClass);
+        Class<?> mapClass = classOf(getMapName(keyClass, valueClass));
+        Class<?> entryClass = classOf(getShortMapName(keyClass, valueClass) + "$Entry");
+        String mapDesc = Type.getDescriptor(mapClass);
+
+        int key = 2;
+        int value = 4;
+        int it = 6;
+        int entry = 7;
+        int i = 8;
+
+        Label next = new Label();
+        Label loop = new Label();
+        Label cache = new Label();
+        Label cacheLoop = new Label();
+
+        getField(mv, name + "Cached", "I");
+        mv.visitJumpInsn(IFEQ, next);
+        // First apply changes from the map
+        getField(mv, name + "Written", mapDesc);
+        mv.visitJumpInsn(IFNULL, cache);
+        getField(mv, name + "Written", mapDesc);
+        Method entrySet = findMethod(mapClass, getEntrySetName(keyClass, valueClass));
+        invoke(mv, mapClass, entrySet);
+        Method fastIterator = findMethod(entrySet.getReturnType(), "fastIterator");
+        invoke(mv, entrySet.getReturnType(), fastIterator);
+        mv.visitVarInsn(ASTORE, it);
+
+        mv.visitLabel(loop);
+        mv.visitVarInsn(ALOAD, it);
+        mv.visitMethodInsn(INVOKEINTERFACE, ITERATOR, "hasNext", "()Z");
+        mv.visitJumpInsn(IFEQ, cache);
+        mv.visitVarInsn(ALOAD, it);
+        mv.visitMethodInsn(INVOKEINTERFACE, ITERATOR, "next", "()L" + OBJECT + ";");
+        mv.visitTypeInsn(CHECKCAST, Type.getInternalName(entryClass));
+        mv.visitVarInsn(ASTORE, entry);
+        mv.visitVarInsn(ALOAD, entry);
+        invoke(mv, entryClass, findMethod(entryClass, "get" + getKeyName(keyClass)));
+        castValue(mv, keyType);
+        mv.visitVarInsn(keyType.getOpcode(ISTORE), key);
+        mv.visitVarInsn(ALOAD, entry);
+        invoke(mv, entryClass, findMethod(entryClass, "get" + getValueName(valueClass)));
+        castValue(mv, type);
+        mv.visitVarInsn(type.getOpcode(ISTORE), value);
+        applyWrite(mv, af, key, value);
+        mv.visitJumpInsn(GOTO, loop);
+
+        // Then apply changes from the cache (modified last)
+        mv.visitLabel(cache);
+        mv.visitInsn(ICONST_0);
+        mv.visitVarInsn(ISTORE, i);
+        mv.visitLabel(cacheLoop);
+        mv.visitVarInsn(ILOAD, i);
+        getField(mv, name + "Cached", "I");
+        mv.visitJumpInsn(IF_ICMPGE, next);
+        getField(mv, name + "Keys", arrayOf(keyType));
+        mv.visitVarInsn(ILOAD, i);
+        mv.visitInsn(keyType.getOpcode(IALOAD));
+        mv.visitVarInsn(keyType.getOpcode(ISTORE), key);
+        getField(mv, name + "Values", arrayOf(type));
+        mv.visitVarInsn(ILOAD, i);
+        mv.visitInsn(type.getOpcode(IALOAD));
+        mv.visitVarInsn(type.getOpcode(ISTORE), value);
+        applyWrite(mv, af, key, value);
+        mv.visitIincInsn(i, 1);
+        mv.visitJumpInsn(GOTO, cacheLoop);
+        mv.visitLabel(next);
+    }
+
+    private void buildApplySingleExecutionDense(MethodVisitor mv, AccessibleField af) {
+        String name = af.getName();
+        Type type = Type.getType(af.getType());
+
+        int key = 2;
+        int value = 4;
+        int w = 6;
+        int word = 8;
+
+        Label loop = new Label();
+        Label bits = new Label();
+        Label nextWord = new Label();
+        Label next = new Label();
+
+        getField(mv, name + "LowWord", "I");
+        mv.visitVarInsn(ISTORE, w);
+        mv.visitLabel(loop);
+        mv.visitVarInsn(ILOAD, w);
+        getField(mv, name + "HighWord", "I");
+        mv.visitJumpInsn(IF_ICMPGE, next);
+        loadSlot(mv, name + "WrittenBits", Type.LONG_TYPE, w);
+        mv.visitVarInsn(LSTORE, word);
+        mv.visitLabel(bits);
+        mv.visitVarInsn(LLOAD, word);
+        mv.visitInsn(LCONST_0);
+        mv.visitInsn(LCMP);
+        mv.visitJumpInsn(IFEQ, nextWord);
+        mv.visitVarInsn(ILOAD, w);
+        mv.visitIntInsn(BIPUSH, 6);
+        mv.visitInsn(ISHL);
+        mv.visitVarInsn(LLOAD, word);
+        mv.visitMethodInsn(INVOKESTATIC, "java/lang/Long", "numberOfTrailingZeros", "(J)I");
+        mv.visitInsn(IADD);
+        mv.visitVarInsn(ISTORE, key);
+        loadSlot(mv, name + "WrittenValues", type, key);
+        mv.visitVarInsn(type.getOpcode(ISTORE), value);
+        applyWrite(mv, af, key, value);
+        mv.visitVarInsn(LLOAD, word);
+        mv.visitVarInsn(LLOAD, word);
+        mv.visitInsn(LCONST_1);
+        mv.visitInsn(LSUB);
+        mv.visitInsn(LAND);
+        mv.visitVarInsn(LSTORE, word);
+        mv.visitJumpInsn(GOTO, bits);
+        mv.visitLabel(nextWord);
+        mv.visitIincInsn(w, 1);
+        mv.visitJumpInsn(GOTO, loop);
+        mv.visitLabel(next);
+    }
+
+    /**
+     * Writes the value in the given local to the state and a copy of it to the replica, then notifies the
+     * listener. The key is ignored for fields that aren't indexed.
+     */
+    private void applyWrite(MethodVisitor mv, AccessibleField af, int key, int value) {
+        Type type = Type.getType(af.getType());
+        Type keyType = af.isIndexed() ? Type.getType(af.getIndexType()) : null;
+        String setterDesc = "(" + (keyType == null ? "" : keyType.getDescriptor()) + type.getDescriptor() + ")V";
+        for (String target : new String[] { "state", "replica" }) {
+            getField(mv, target, stateDesc);
+            if (keyType != null) {
+                mv.visitVarInsn(keyType.getOpcode(ILOAD), key);
+            }
+            mv.visitVarInsn(type.getOpcode(ILOAD), value);
+            if (target.equals("replica") && !isImmutable(af.getType())) {
+                cloneValue(mv, type);
+            }
+            mv.visitMethodInsn(INVOKEVIRTUAL, state, af.getSetter(), setterDesc);
+        }
+        Label skip = new Label();
+        beginNotify(mv, af.getName(), skip);
+        if (keyType != null) {
+            mv.visitVarInsn(keyType.getOpcode(ILOAD), key);
+            box(mv, af.getIndexType());
+        } else {
+            mv.visitInsn(ACONST_NULL);
+        }
+        mv.visitVarInsn(type.getOpcode(ILOAD), value);
+        box(mv, af.getType());
+        endNotify(mv, skip);
+    }
+
+    private void checkKeys(MethodVisitor mv, String name, Type keyType, int key, int replicaKey) {
+        Label equal = new Label();
+        if (isPrimitive(keyType)) {
+            jumpIfEqual(mv, keyType, key, replicaKey, equal);
+        } else {
+            mv.visitVarInsn(ALOAD, key);
+            mv.visitVarInsn(ALOAD, replicaKey);
+            mv.visitMethodInsn(INVOKEVIRTUAL, OBJECT, "equals", "(L" + OBJECT + ";)Z");
+            mv.visitJumpInsn(IFNE, equal);
+        }
+        throwCorruption(mv, ASYMMETRICAL_CHANGES, name, keyType, key, replicaKey);
+        mv.visitLabel(equal);
+    }
+
+    private void throwAsymmetrical(MethodVisitor mv, String name) {
+        mv.visitTypeInsn(NEW, ASYMMETRICAL_CHANGES);
+        mv.visitInsn(DUP);
+        mv.visitLdcInsn(name);
+        mv.visitInsn(ACONST_NULL);
+        mv.visitInsn(ACONST_NULL);
+        mv.visitMethodInsn(INVOKESPECIAL, ASYMMETRICAL_CHANGES, "<init>", 
+                "(Ljava/lang/String;L" + OBJECT + ";L" + OBJECT + ";)V");
+        mv.visitInsn(ATHROW);
+    }
+
+    private void buildRecordMetrics(ClassWriter cw) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "recordMetrics", RECORD_METRICS_DESC, null, null);
+        mv.visitCode();
+        for (AccessibleField af : fields) {
+            if (af.isDense()) {
+                recordDenseMetrics(mv, af);
+                continue;
+            }
+            if (!af.isIndexed()) {
+                continue;
+            }
+            String name = af.getName();
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitLdcInsn(name);
+            getField(mv, name + "CacheHits", "I");
+            getField(mv, name + "Gets", "I");
+            getField(mv, name + "CacheHits", "I");
+            mv.visitInsn(ISUB);
+            size(mv, name + "Written", classOf(getMapName(af.getIndexType(), af.getType())));
+            Label single = new Label();
+            Label read = new Label();
+            mv.visitVarInsn(ALOAD, 2);
+            mv.visitJumpInsn(IFNULL, single);
+            mv.visitVarInsn(ALOAD, 2);
+            mv.visitTypeInsn(CHECKCAST, lightFacade);
+            size(mv, lightFacade, name + "Read", classOf(getSetName(af.getIndexType())));
+            mv.visitJumpInsn(GOTO, read);
+            mv.visitLabel(single);
+            mv.visitInsn(ICONST_0);
+            mv.visitLabel(read);
+            getField(mv, name + "Cached", "I");
+            mv.visitMethodInsn(INVOKEINTERFACE, Type.getInternalName(PascMetrics.class), "recordIndexedField", 
+                    "(Ljava/lang/String;IIIII)V");
+        }
+        mv.visitInsn(RETURN);
+        endMethod(mv);
+    }
+
+    private void recordDenseMetrics(MethodVisitor mv, AccessibleField af) {
+        String name = af.getName();
+        int count = 3;
+        int read = 4;
+        int lightEncap = 6;
+        Label single = new Label();
+        countBits(mv, facade, 0, name, name + "WrittenBits", count);
+        mv.visitInsn(ICONST_0);
+        mv.visitVarInsn(ISTORE, read);
+        mv.visitVarInsn(ALOAD, 2);
+        mv.visitJumpInsn(IFNULL, single);
+        mv.visitVarInsn(ALOAD, 2);
+        mv.visitTypeInsn(CHECKCAST, lightFacade);
+        mv.visitVarInsn(ASTORE, lightEncap);
+        countBits(mv, lightFacade, lightEncap, name, name + "ReadBits", read);
+        mv.visitLabel(single);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitLdcInsn(name);
+        getField(mv, name + "CacheHits", "I");
+        getField(mv, name + "Gets", "I");
+        getField(mv, name + "CacheHits", "I");
+        mv.visitInsn(ISUB);
+        mv.visitVarInsn(ILOAD, count);
+        mv.visitVarInsn(ILOAD, read);
+        mv.visitInsn(ICONST_0);
+        mv.visitMethodInsn(INVOKEINTERFACE, Type.getInternalName(PascMetrics.class), "recordIndexedField", 
+                "(Ljava/lang/String;IIIII)V");
+    }
+
+    /**
+     * Stores in a local the number of bits set in the touched words of a dense field of the encapsulator held in
+     * the given local.
+     */
+    private static void countBits(MethodVisitor mv, String owner, int self, String name, String bits, int count) {
+        int w = 5;
+        Label loop = new Label();
+        Label done = new Label();
+        mv.visitInsn(ICONST_0);
+        mv.visitVarInsn(ISTORE, count);
+        mv.visitVarInsn(ALOAD, self);
+        mv.visitFieldInsn(GETFIELD, owner, name + "LowWord", "I");
+        mv.visitVarInsn(ISTORE, w);
+        mv.visitLabel(loop);
+        mv.visitVarInsn(ILOAD, w);
+        mv.visitVarInsn(ALOAD, self);
+        mv.visitFieldInsn(GETFIELD, owner, name + "HighWord", "I");
+        mv.visitJumpInsn(IF_ICMPGE, done);
+        mv.visitVarInsn(ILOAD, count);
+        mv.visitVarInsn(ALOAD, self);
+        mv.visitFieldInsn(GETFIELD, owner, bits, "[J");
+        mv.visitVarInsn(ILOAD, w);
+        mv.visitInsn(LALOAD);
+        mv.visitMethodInsn(INVOKESTATIC, "java/lang/Long", "bitCount", "(J)I");
+        mv.visitInsn(IADD);
+        mv.visitVarInsn(ISTORE, count);
+        mv.visitIincInsn(w, 1);
+        mv.visitJumpInsn(GOTO, loop);
+        mv.visitLabel(done);
+    }
+
+    private void buildToString(ClassWriter cw) {
+        String builder = Type.getInternalName(StringBuilder.class);
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "toString", "()Ljava/lang/String;", null, null);
+        mv.visitCode();
+        mv.visitTypeInsn(NEW, builder);
+        mv.visitInsn(DUP);
+        mv.visitMethodInsn(INVOKESPECIAL, builder, "<init>", "()V");
+        append(mv, "Encapsulated class: " + stateType.getName() + "\n");
+        for (AccessibleField af : fields) {
+            String name = af.getName();
+            if (af.isDense()) {
+                continue;
+            } else if (af.isIndexed()) {
+                append(mv, name + " writes: ");
+                appendField(mv, name + "Written", Type.getType(classOf(getMapName(af.getIndexType(), af.getType()))));
+                append(mv, "\n");
+            } else {
+                append(mv, name + " written? ");
+                appendField(mv, name + "Written", Type.BOOLEAN_TYPE);
+                append(mv, " read? ");
+                appendField(mv, name + "Read", Type.BOOLEAN_TYPE);
+                append(mv, "\n" + name + " value: ");
+                appendField(mv, name + "Ref", Type.getType(af.getType()));
+                append(mv, "\n");
+            }
+        }
+        mv.visitMethodInsn(INVOKEVIRTUAL, builder, "toString", "()Ljava/lang/String;");
+        mv.visitInsn(ARETURN);
+        endMethod(mv);
+    }
+
+    private static void append(MethodVisitor mv, String text) {
+        mv.visitLdcInsn(text);
+        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", 
+                "(Ljava/lang/String;)Ljava/lang/StringBuilder;");
+    }
+
+    private void appendField(MethodVisitor mv, String field, Type type) {
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitFieldInsn(GETFIELD, facade, field, type.getDescriptor());
+        String desc;
+        switch (type.getSort()) {
+        case Type.BYTE:
+        case Type.SHORT:
+            desc = "I";
+            break;
+        case Type.OBJECT:
+        case Type.ARRAY:
+            desc = "L" + OBJECT + ";";
+            break;
+        default:
+            desc = type.getDescriptor();
+        }
+        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", 
+                "(" + desc + ")Ljava/lang/StringBuilder;");
+    }
+
+    // LightEncapsulator
+
+    byte[] buildLightEncapsulator() {
+        ClassWriter cw = newClass();
+        for (AccessibleField af : fields) {
+            String name = af.getName();
+            if (af.isDense()) {
+                addDenseFields(cw, af, name + "ReadBits");
+            } else if (af.isIndexed()) {
+                Class<?> keyType = af.getIndexType();
+                addField(cw, 0, name + "Read", descriptorOf(getSetName(keyType)));
+                addField(cw, ACC_PRIVATE, name + "ReadSinceSpike", "I");
+                addCacheFields(cw, af);
+            } else {
+                addField(cw, 0, name + "Read", "Z");
+            }
+        }
+
+        buildEmptyMethod(cw, "setReadOnly", "(Z)V");
+        buildEmptyMethod(cw, "setCheckState", "(Z)V");
+        buildEmptyMethod(cw, "setModificationListener", "(" + LISTENER_DESC + ")V");
+        buildEmptyMethod(cw, "applyModifications", "(ZL" + ENCAPSULATOR + ";)V");
+        buildEmptyMethod(cw, "applySingleExecution", "()V");
+        buildReset(cw, false);
+        buildSetState(cw, false);
+        buildEmptyMethod(cw, "recordMetrics", RECORD_METRICS_DESC);
+        for (AccessibleField af : fields) {
+            if (af.isDense()) {
+                buildMark(cw, af, af.getName() + "ReadBits");
+            } else if (af.isIndexed()) {
+                buildFindSlot(cw, af);
+                buildNewSlot(cw, af, false);
+            }
+            if (af.getGetter() != null) {
+                if (af.isDense()) {
+                    buildLightGetterDense(cw, af);
+                } else if (af.isIndexed()) {
+                    buildLightGetterMulti(cw, af);
+                } else {
+                    buildLightGetterSingle(cw, af);
+                }
+            }
+            if (af.getSetter() != null) {
+                if (af.isDense()) {
+                    buildLightSetterDense(cw, af);
+                } else if (af.isIndexed()) {
+                    buildLightSetterMulti(cw, af);
+                } else {
+                    buildLightSetterSingle(cw, af);
+                }
+            }
+        }
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private void buildEmptyMethod(ClassWriter cw, String method, String desc) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, method, desc, null, null);
+        mv.visitCode();
+        mv.visitInsn(RETURN);
+        endMethod(mv);
+    }
+
+    private void buildLightGetterSingle(ClassWriter cw, AccessibleField af) {
+        String name = af.getName();
+        Type type = Type.getType(af.getType());
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_FINAL, af.getGetter(), "()" + type.getDescriptor(), 
+                null, null);
+        mv.visitCode();
+        Label done = new Label();
+        getField(mv, name + "Read", "Z");
+        mv.visitJumpInsn(IFNE, done);
+        // If never read must be checked
+        putTrue(mv, name + "Read");
+        if (af.isChecked()) {
+            int stateValue = 1;
+            int replicaValue = 1 + type.getSize();
+            callGetter(mv, "state", af, -1);
+            mv.visitVarInsn(type.getOpcode(ISTORE), stateValue);
+            callGetter(mv, "replica", af, -1);
+            mv.visitVarInsn(type.getOpcode(ISTORE), replicaValue);
+            jumpIfEqual(mv, type, stateValue, replicaValue, done);
+            throwCorruption(mv, VARIABLE_CORRUPTION, name, type, stateValue, replicaValue);
+        }
+        mv.visitLabel(done);
+        callGetter(mv, "state", af, -1);
+        mv.visitInsn(type.getOpcode(IRETURN));
+        endMethod(mv);
+    }
+
+    private void buildLightGetterMulti(ClassWriter cw, AccessibleField af) {
+        String name = af.getName();
+        Type type = Type.getType(af.getType());
+        Type keyType = Type.getType(af.getIndexType());
+        Class<?> setClass = classOf(getSetName(af.getIndexType()));
+        String getterDesc = "(" + keyType.getDescriptor() + ")" + type.getDescriptor();
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_FINAL, af.getGetter(), getterDesc, null, null);
+        mv.visitCode();
+        int key = 1;
+        int temp = 1 + keyType.getSize();
+        int replicaValue = temp + type.getSize();
+        int slot = replicaValue + type.getSize();
+        Label miss = new Label();
+        Label check = new Label();
+        Label cache = new Label();
+        findSlot(mv, name, keyType, key, slot);
+        mv.visitJumpInsn(IFLT, miss);
+        // Cache hit, return it
+        getField(mv, name + "Values", arrayOf(type));
+        mv.visitVarInsn(ILOAD, slot);
+        mv.visitInsn(type.getOpcode(IALOAD));
+        mv.visitInsn(type.getOpcode(IRETURN));
+
+        // Unless the key has been read and checked already, check replica
+        mv.visitLabel(miss);
+        callGetter(mv, "state", af, key);
+        mv.visitVarInsn(type.getOpcode(ISTORE), temp);
+        if (af.isChecked()) {
+            getField(mv, name + "Read", Type.getDescriptor(setClass));
+            mv.visitJumpInsn(IFNULL, check);
+            getField(mv, name + "Read", Type.getDescriptor(setClass));
+            mv.visitVarInsn(keyType.getOpcode(ILOAD), key);
+            invoke(mv, setClass, findMethod(setClass, "contains", erasure(af.getIndexType())));
+            mv.visitJumpInsn(IFNE, cache);
+            mv.visitLabel(check);
+            callGetter(mv, "replica", af, key);
+            mv.visitVarInsn(type.getOpcode(ISTORE), replicaValue);
+            jumpIfEqual(mv, type, temp, replicaValue, cache);
+            throwCorruption(mv, VARIABLE_CORRUPTION, name, type, temp, replicaValue);
+        }
+
+        mv.visitLabel(cache);
+        storeNewSlot(mv, name, type, keyType, key, temp, slot);
+        mv.visitVarInsn(type.getOpcode(ILOAD), temp);
+        mv.visitInsn(type.getOpcode(IRETURN));
+        endMethod(mv);
+    }
+
+    private void buildLightGetterDense(ClassWriter cw, AccessibleField af) {
+        String name = af.getName();
+        Type type = Type.getType(af.getType());
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_FINAL, af.getGetter(), "(I)" + type.getDescriptor(), 
+                null, null);
+        mv.visitCode();
+        int key = 1;
+        int temp = 2;
+        int replicaValue = temp + type.getSize();
+        Label checked = new Label();
+        Label mark = new Label();
+        callGetter(mv, "state", af, key);
+        mv.visitVarInsn(type.getOpcode(ISTORE), temp);
+        testBit(mv, name + "ReadBits", key);
+        mv.visitJumpInsn(IFNE, checked);
+        if (af.isChecked()) {
+            // Unless the key has been read and checked already, check replica
+            callGetter(mv, "replica", af, key);
+            mv.visitVarInsn(type.getOpcode(ISTORE), replicaValue);
+            jumpIfEqual(mv, type, temp, replicaValue, mark);
+            throwCorruption(mv, VARIABLE_CORRUPTION, name, type, temp, replicaValue);
+        }
+        mv.visitLabel(mark);
+        mark(mv, name, key);
+        mv.visitLabel(checked);
+        mv.visitVarInsn(type.getOpcode(ILOAD), temp);
+        mv.visitInsn(type.getOpcode(IRETURN));
+        endMethod(mv);
+    }
+
+    private void buildLightSetterSingle(ClassWriter cw, AccessibleField af) {
+        Type type = Type.getType(af.getType());
+        String setterDesc = "(" + type.getDescriptor() + ")V";
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_FINAL, af.getSetter(), setterDesc, null, null);
+        mv.visitCode();
+        putTrue(mv, af.getName() + "Read");
+        getField(mv, "state", stateDesc);
+        mv.visitVarInsn(type.getOpcode(ILOAD), 1);
+        mv.visitMethodInsn(INVOKEVIRTUAL, state, af.getSetter(), setterDesc);
+        mv.visitInsn(RETURN);
+        endMethod(mv);
+    }
+
+    private void buildLightSetterMulti(ClassWriter cw, AccessibleField af) {
+        String name = af.getName();
+        Type type = Type.getType(af.getType());
+        Type keyType = Type.getType(af.getIndexType());
+        String setterDesc = "(" + keyType.getDescriptor() + type.getDescriptor() + ")V";
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_FINAL, af.getSetter(), setterDesc, null, null);
+        mv.visitCode();
+        int key = 1;
+        int value = 1 + keyType.getSize();
+        int slot = value + type.getSize();
+        updateSlot(mv, name, type, keyType, key, value, slot);
+        getField(mv, "state", stateDesc);
+        mv.visitVarInsn(keyType.getOpcode(ILOAD), key);
+        mv.visitVarInsn(type.getOpcode(ILOAD), value);
+        mv.visitMethodInsn(INVOKEVIRTUAL, state, af.getSetter(), setterDesc);
+        mv.visitInsn(RETURN);
+        endMethod(mv);
+    }
+
+    private void buildLightSetterDense(ClassWriter cw, AccessibleField af) {
+        Type type = Type.getType(af.getType());
+        String setterDesc = "(I" + type.getDescriptor() + ")V";
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_FINAL, af.getSetter(), setterDesc, null, null);
+        mv.visitCode();
+        int key = 1;
+        int value = 2;
+        mark(mv, af.getName(), key);
+        getField(mv, "state", stateDesc);
+        mv.visitVarInsn(ILOAD, key);
+        mv.visitVarInsn(type.getOpcode(ILOAD), value);
+        mv.visitMethodInsn(INVOKEVIRTUAL, state, af.getSetter(), setterDesc);
+        mv.visitInsn(RETURN);
+        endMethod(mv);
+    }
+
+    // Shared methods
+
+    private void buildReset(ClassWriter cw, boolean full) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "reset", "()V", null, null);
+        mv.visitCode();
+        for (AccessibleField af : fields) {
+            String name = af.getName();
+            if (af.isDense()) {
+                if (full && !af.getType().isPrimitive()) {
+                    clearValues(mv, name, Type.getType(af.getType()));
+                }
+                clearBits(mv, name, name + (full ? "WrittenBits" : "ReadBits"));
+                if (full) {
+                    putZero(mv, name + "Gets");
+                    putZero(mv, name + "CacheHits");
+                }
+            } else if (af.isIndexed()) {
+                if (full) {
+                    clear(mv, name + "Written", classOf(getMapName(af.getIndexType(), af.getType())));
+                } else {
+                    clear(mv, name + "Read", classOf(getSetName(af.getIndexType())));
+                }
+                clearSlots(mv, name, af.getIndexType(), af.getType());
+                putZero(mv, name + "Cached");
+                putZero(mv, name + "Victim");
+                if (full) {
+                    putZero(mv, name + "Gets");
+                    putZero(mv, name + "CacheHits");
+                }
+            } else {
+                putFalse(mv, name + "Read");
+                if (full) {
+                    putFalse(mv, name + "Written");
+                }
+            }
+        }
+        mv.visitInsn(RETURN);
+        endMethod(mv);
+    }
+
+    /**
+     * Clears the words of a dense field touched since the last reset.
+     */
+    private void clearBits(MethodVisitor mv, String name, String bits) {
+        int w = 1;
+        Label loop = new Label();
+        Label done = new Label();
+        getField(mv, name + "LowWord", "I");
+        mv.visitVarInsn(ISTORE, w);
+        mv.visitLabel(loop);
+        mv.visitVarInsn(ILOAD, w);
+        getField(mv, name + "HighWord", "I");
+        mv.visitJumpInsn(IF_ICMPGE, done);
+        getField(mv, bits, "[J");
+        mv.visitVarInsn(ILOAD, w);
+        mv.visitInsn(LCONST_0);
+        mv.visitInsn(LASTORE);
+        mv.visitIincInsn(w, 1);
+        mv.visitJumpInsn(GOTO, loop);
+        mv.visitLabel(done);
+        resetRange(mv, name, bits);
+    }
+
+    /**
+     * Nulls the values of a dense field written since the last reset, so they don't outlive the message.
+     */
+    private void clearValues(MethodVisitor mv, String name, Type type) {
+        int w = 1;
+        int word = 2;
+        Label loop = new Label();
+        Label bits = new Label();
+        Label nextWord = new Label();
+        Label done = new Label();
+        getField(mv, name + "LowWord", "I");
+        mv.visitVarInsn(ISTORE, w);
+        mv.visitLabel(loop);
+        mv.visitVarInsn(ILOAD, w);
+        getField(mv, name + "HighWord", "I");
+        mv.visitJumpInsn(IF_ICMPGE, done);
+        loadSlot(mv, name + "WrittenBits", Type.LONG_TYPE, w);
+        mv.visitVarInsn(LSTORE, word);
+        mv.visitLabel(bits);
+        mv.visitVarInsn(LLOAD, word);
+        mv.visitInsn(LCONST_0);
+        mv.visitInsn(LCMP);
+        mv.visitJumpInsn(IFEQ, nextWord);
+        getField(mv, name + "WrittenValues", arrayOf(type));
+        mv.visitVarInsn(ILOAD, w);
+        mv.visitIntInsn(BIPUSH, 6);
+        mv.visitInsn(ISHL);
+        mv.visitVarInsn(LLOAD, word);
+        mv.visitMethodInsn(INVOKESTATIC, "java/lang/Long", "numberOfTrailingZeros", "(J)I");
+        mv.visitInsn(IADD);
+        mv.visitInsn(ACONST_NULL);
+        mv.visitInsn(AASTORE);
+        mv.visitVarInsn(LLOAD, word);
+        mv.visitVarInsn(LLOAD, word);
+        mv.visitInsn(LCONST_1);
+        mv.visitInsn(LSUB);
+        mv.visitInsn(LAND);
+        mv.visitVarInsn(LSTORE, word);
+        mv.visitJumpInsn(GOTO, bits);
+        mv.visitLabel(nextWord);
+        mv.visitIincInsn(w, 1);
+        mv.visitJumpInsn(GOTO, loop);
+        mv.visitLabel(done);
+    }
+
+    /**
+     * Nulls the cache slots used since the last reset, so they don't retain keys and values.
+     */
+    private void clearSlots(MethodVisitor mv, String name, Class<?> keyType, Class<?> type) {
+        if (keyType.isPrimitive() && type.isPrimitive()) {
+            return;
+        }
+        int i = 1;
+        Label loop = new Label();
+        Label done = new Label();
+        mv.visitInsn(ICONST_0);
+        mv.visitVarInsn(ISTORE, i);
+        mv.visitLabel(loop);
+        mv.visitVarInsn(ILOAD, i);
+        getField(mv, name + "Cached", "I");
+        mv.visitJumpInsn(IF_ICMPGE, done);
+        if (!keyType.isPrimitive()) {
+            getField(mv, name + "Keys", arrayOf(Type.getType(keyType)));
+            mv.visitVarInsn(ILOAD, i);
+            mv.visitInsn(ACONST_NULL);
+            mv.visitInsn(AASTORE);
+        }
+        if (!type.isPrimitive()) {
+            getField(mv, name + "Values", arrayOf(Type.getType(type)));
+            mv.visitVarInsn(ILOAD, i);
+            mv.visitInsn(ACONST_NULL);
+            mv.visitInsn(AASTORE);
+        }
+        mv.visitIincInsn(i, 1);
+        mv.visitJumpInsn(GOTO, loop);
+        mv.visitLabel(done);
+    }
+
+    private void resetRange(MethodVisitor mv, String name, String bits) {
+        mv.visitVarInsn(ALOAD, 0);
+        getField(mv, bits, "[J");
+        mv.visitInsn(ARRAYLENGTH);
+        mv.visitFieldInsn(PUTFIELD, facade, name + "LowWord", "I");
+        putZero(mv, name + "HighWord");
+    }
+
+    /**
+     * Clears a key tracking structure, or drops it once enough small messages followed a spike, see
+     * GeneratorUtil.clearTracking().
+     */
+    private void clear(MethodVisitor mv, String field, Class<?> type) {
+        String sinceSpike = field + "SinceSpike";
+        Label skip = new Label();
+        Label large = new Label();
+        Label clear = new Label();
+        getField(mv, field, Type.getDescriptor(type));
+        mv.visitJumpInsn(IFNULL, skip);
+        getField(mv, field, Type.getDescriptor(type));
+        invoke(mv, type, findMethod(type, "size"));
+        mv.visitLdcInsn(MAX_RETAINED_KEYS);
+        mv.visitJumpInsn(IF_ICMPGT, large);
+        getField(mv, sinceSpike, "I");
+        mv.visitJumpInsn(IFLE, clear);
+        mv.visitVarInsn(ALOAD, 0);
+        getField(mv, sinceSpike, "I");
+        mv.visitInsn(ICONST_1);
+        mv.visitInsn(IADD);
+        mv.visitFieldInsn(PUTFIELD, facade, sinceSpike, "I");
+        getField(mv, sinceSpike, "I");
+        mv.visitLdcInsn(SPIKE_RESETS);
+        mv.visitJumpInsn(IF_ICMPLE, clear);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitInsn(ACONST_NULL);
+        mv.visitFieldInsn(PUTFIELD, facade, field, Type.getDescriptor(type));
+        putZero(mv, sinceSpike);
+        mv.visitJumpInsn(GOTO, skip);
+        mv.visitLabel(large);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitInsn(ICONST_1);
+        mv.visitFieldInsn(PUTFIELD, facade, sinceSpike, "I");
+        mv.visitLabel(clear);
+        getField(mv, field, Type.getDescriptor(type));
+        invoke(mv, type, findMethod(type, "clear"));
+        mv.visitLabel(skip);
+    }
+
+    /**
+     * Pushes the size of a key tracking structure of this encapsulator, zero if it hasn't been created.
+     */
+    private void size(MethodVisitor mv, String field, Class<?> type) {
+        mv.visitVarInsn(ALOAD, 0);
+        size(mv, facade, field, type);
+    }
+
+    /**
+     * Consumes the encapsulator on the stack, pushing the size of one of its key tracking structures.
+     */
+    private static void size(MethodVisitor mv, String owner, String field, Class<?> type) {
+        Label empty = new Label();
+        Label done = new Label();
+        mv.visitFieldInsn(GETFIELD, owner, field, Type.getDescriptor(type));
+        mv.visitInsn(DUP);
+        mv.visitJumpInsn(IFNULL, empty);
+        invoke(mv, type, findMethod(type, "size"));
+        mv.visitJumpInsn(GOTO, done);
+        mv.visitLabel(empty);
+        mv.visitInsn(POP);
+        mv.visitInsn(ICONST_0);
+        mv.visitLabel(done);
+    }
+
+    private void createIfNull(MethodVisitor mv, String field, Class<?> type) {
+        Label exists = new Label();
+        getField(mv, field, Type.getDescriptor(type));
+        mv.visitJumpInsn(IFNONNULL, exists);
+        newInstance(mv, field, type.getName());
+        mv.visitLabel(exists);
+    }
+
+    private void buildSetState(ClassWriter cw, boolean full) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "setState", SET_STATE_DESC, null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitTypeInsn(CHECKCAST, state);
+        mv.visitFieldInsn(PUTFIELD, facade, "state", stateDesc);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ALOAD, 2);
+        mv.visitTypeInsn(CHECKCAST, state);
+        mv.visitFieldInsn(PUTFIELD, facade, "replica", stateDesc);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ALOAD, 3);
+        mv.visitFieldInsn(PUTFIELD, facade, "instantiator", INSTANTIATOR_DESC);
+        if (full) {
+            putTrue(mv, "checkState");
+        }
+        for (AccessibleField af : fields) {
+            if (af.isDense()) {
+                String name = af.getName();
+                String bits = name + (full ? "WrittenBits" : "ReadBits");
+                newArray(mv, bits, Type.LONG_TYPE, (af.getDenseSize() + 63) / 64);
+                if (full) {
+                    newArray(mv, name + "WrittenValues", Type.getType(af.getType()), af.getDenseSize());
+                }
+                resetRange(mv, name, bits);
+            } else if (af.isIndexed()) {
+                String name = af.getName();
+                if (full) {
+                    putNull(mv, name + "Written", descriptorOf(getMapName(af.getIndexType(), af.getType())));
+                } else {
+                    putNull(mv, name + "Read", descriptorOf(getSetName(af.getIndexType())));
+                }
+                newArray(mv, name + "Keys", Type.getType(af.getIndexType()), af.getCacheSize());
+                newArray(mv, name + "Values", Type.getType(af.getType()), af.getCacheSize());
+            }
+        }
+        mv.visitInsn(RETURN);
+        endMethod(mv);
+    }
+
+    private void newInstance(MethodVisitor mv, String field, String className) {
+        String internalName = className.replace('.', '/');
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitTypeInsn(NEW, internalName);
+        mv.visitInsn(DUP);
+        mv.visitMethodInsn(INVOKESPECIAL, internalName, "<init>", "()V");
+        mv.visitFieldInsn(PUTFIELD, facade, field, "L" + internalName + ";");
+    }
+
+    private void newArray(MethodVisitor mv, String field, Type type, int length) {
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitLdcInsn(length);
+        switch (type.getSort()) {
+        case Type.OBJECT:
+        case Type.ARRAY:
+            mv.visitTypeInsn(ANEWARRAY, type.getInternalName());
+            break;
+        default:
+            mv.visitIntInsn(NEWARRAY, arrayTypeOf(type));
+        }
+        mv.visitFieldInsn(PUTFIELD, facade, field, arrayOf(type));
+    }
+
+    private static void addCacheFields(ClassWriter cw, AccessibleField af) {
+        String name = af.getName();
+        addField(cw, 0, name + "Keys", arrayOf(Type.getType(af.getIndexType())));
+        addField(cw, 0, name + "Values", arrayOf(Type.getType(af.getType())));
+        addField(cw, 0, name + "Cached", "I");
+        addField(cw, 0, name + "Victim", "I");
+    }
+
+    private static void addDenseFields(ClassWriter cw, AccessibleField af, String bits) {
+        String name = af.getName();
+        addField(cw, 0, bits, "[J");
+        addField(cw, 0, name + "LowWord", "I");
+        addField(cw, 0, name + "HighWord", "I");
+    }
+
+    /**
+     * Builds the method that sets the bit of a dense key and widens the range of touched words.
+     */
+    private void buildMark(ClassWriter cw, AccessibleField af, String bits) {
+        String name = af.getName();
+        MethodVisitor mv = cw.visitMethod(ACC_PRIVATE | ACC_FINAL, name + "Mark", "(I)V", null, null);
+        mv.visitCode();
+        int key = 1;
+        int word = 2;
+        Label notLower = new Label();
+        Label notHigher = new Label();
+        mv.visitVarInsn(ILOAD, key);
+        mv.visitIntInsn(BIPUSH, 6);
+        mv.visitInsn(ISHR);
+        mv.visitVarInsn(ISTORE, word);
+        getField(mv, bits, "[J");
+        mv.visitVarInsn(ILOAD, word);
+        mv.visitInsn(DUP2);
+        mv.visitInsn(LALOAD);
+        mv.visitInsn(LCONST_1);
+        mv.visitVarInsn(ILOAD, key);
+        mv.visitInsn(LSHL);
+        mv.visitInsn(LOR);
+        mv.visitInsn(LASTORE);
+        mv.visitVarInsn(ILOAD, word);
+        getField(mv, name + "LowWord", "I");
+        mv.visitJumpInsn(IF_ICMPGE, notLower);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ILOAD, word);
+        mv.visitFieldInsn(PUTFIELD, facade, name + "LowWord", "I");
+        mv.visitLabel(notLower);
+        mv.visitVarInsn(ILOAD, word);
+        getField(mv, name + "HighWord", "I");
+        mv.visitJumpInsn(IF_ICMPLT, notHigher);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ILOAD, word);
+        mv.visitInsn(ICONST_1);
+        mv.visitInsn(IADD);
+        mv.visitFieldInsn(PUTFIELD, facade, name + "HighWord", "I");
+        mv.visitLabel(notHigher);
+        mv.visitInsn(RETURN);
+        endMethod(mv);
+    }
+
+    /**
+     * Pushes a non zero int if the bit of the dense key in the given local is set.
+     */
+    private void testBit(MethodVisitor mv, String bits, int key) {
+        getField(mv, bits, "[J");
+        mv.visitVarInsn(ILOAD, key);
+        mv.visitIntInsn(BIPUSH, 6);
+        mv.visitInsn(ISHR);
+        mv.visitInsn(LALOAD);
+        mv.visitInsn(LCONST_1);
+        mv.visitVarInsn(ILOAD, key);
+        mv.visitInsn(LSHL);
+        mv.visitInsn(LAND);
+        mv.visitInsn(LCONST_0);
+        mv.visitInsn(LCMP);
+    }
+
+    private void mark(MethodVisitor mv, String name, int key) {
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ILOAD, key);
+        mv.visitMethodInsn(INVOKESPECIAL, facade, name + "Mark", "(I)V");
+    }
+
+    /**
+     * Builds the method that returns the cache slot of a key, or -1 if it isn't cached. Object keys are compared
+     * with equals() and nulls.
+     */
+    private void buildFindSlot(ClassWriter cw, AccessibleField af) {
+        String name = af.getName();
+        Type keyType = Type.getType(af.getIndexType());
+        MethodVisitor mv = cw.visitMethod(ACC_PRIVATE | ACC_FINAL, name + "FindSlot", 
+                "(" + keyType.getDescriptor() + ")I", null, null);
+        mv.visitCode();
+        int key = 1;
+        int i = 1 + keyType.getSize();
+        Label loop = new Label();
+        Label next = new Label();
+        Label found = new Label();
+        Label notFound = new Label();
+        mv.visitInsn(ICONST_0);
+        mv.visitVarInsn(ISTORE, i);
+        mv.visitLabel(loop);
+        mv.visitVarInsn(ILOAD, i);
+        getField(mv, name + "Cached", "I");
+        mv.visitJumpInsn(IF_ICMPGE, notFound);
+        getField(mv, name + "Keys", arrayOf(keyType));
+        mv.visitVarInsn(ILOAD, i);
+        mv.visitInsn(keyType.getOpcode(IALOAD));
+        if (isPrimitive(keyType)) {
+            mv.visitVarInsn(keyType.getOpcode(ILOAD), key);
+            jumpIfEqual(mv, keyType, found);
+        } else {
+            Label isNull = new Label();
+            mv.visitInsn(DUP);
+            mv.visitJumpInsn(IFNULL, isNull);
+            mv.visitVarInsn(ALOAD, key);
+            mv.visitMethodInsn(INVOKEVIRTUAL, OBJECT, "equals", "(L" + OBJECT + ";)Z");
+            mv.visitJumpInsn(IFNE, found);
+            mv.visitJumpInsn(GOTO, next);
+            mv.visitLabel(isNull);
+            mv.visitInsn(POP);
+            mv.visitVarInsn(ALOAD, key);
+            mv.visitJumpInsn(IFNULL, found);
+        }
+        mv.visitLabel(next);
+        mv.visitIincInsn(i, 1);
+        mv.visitJumpInsn(GOTO, loop);
+        mv.visitLabel(found);
+        mv.visitVarInsn(ILOAD, i);
+        mv.visitInsn(IRETURN);
+        mv.visitLabel(notFound);
+        mv.visitInsn(ICONST_M1);
+        mv.visitInsn(IRETURN);
+        endMethod(mv);
+    }
+
+    /**
+     * Builds the method that returns a free cache slot. When the cache is full the oldest key is spilled, to the
+     * written map in the encapsulator and to the read set in the light encapsulator.
+     */
+    private void buildNewSlot(ClassWriter cw, AccessibleField af, boolean full) {
+        String name = af.getName();
+        Type type = Type.getType(af.getType());
+        Type keyType = Type.getType(af.getIndexType());
+        MethodVisitor mv = cw.visitMethod(ACC_PRIVATE | ACC_FINAL, name + "NewSlot", "()I", null, null);
+        mv.visitCode();
+        int slot = 1;
+        int next = 2;
+        Label spill = new Label();
+        Label wrap = new Label();
+        getField(mv, name + "Cached", "I");
+        mv.visitVarInsn(ISTORE, slot);
+        mv.visitVarInsn(ILOAD, slot);
+        getField(mv, name + "Keys", arrayOf(keyType));
+        mv.visitInsn(ARRAYLENGTH);
+        mv.visitJumpInsn(IF_ICMPGE, spill);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ILOAD, slot);
+        mv.visitInsn(ICONST_1);
+        mv.visitInsn(IADD);
+        mv.visitFieldInsn(PUTFIELD, facade, name + "Cached", "I");
+        mv.visitVarInsn(ILOAD, slot);
+        mv.visitInsn(IRETURN);
+
+        // Cache full, spill the oldest key, creating the map or set on the first spill
+        mv.visitLabel(spill);
+        getField(mv, name + "Victim", "I");
+        mv.visitVarInsn(ISTORE, slot);
+        mv.visitVarInsn(ILOAD, slot);
+        mv.visitInsn(ICONST_1);
+        mv.visitInsn(IADD);
+        mv.visitVarInsn(ISTORE, next);
+        mv.visitVarInsn(ILOAD, next);
+        getField(mv, name + "Keys", arrayOf(keyType));
+        mv.visitInsn(ARRAYLENGTH);
+        mv.visitJumpInsn(IF_ICMPLT, wrap);
+        mv.visitInsn(ICONST_0);
+        mv.visitVarInsn(ISTORE, next);
+        mv.visitLabel(wrap);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ILOAD, next);
+        mv.visitFieldInsn(PUTFIELD, facade, name + "Victim", "I");
+        if (full) {
+            Class<?> mapClass = classOf(getMapName(af.getIndexType(), af.getType()));
+            createIfNull(mv, name + "Written", mapClass);
+            getField(mv, name + "Written", Type.getDescriptor(mapClass));
+            loadSlot(mv, name + "Keys", keyType, slot);
+            loadSlot(mv, name + "Values", type, slot);
+            Method put = findMethod(mapClass, "put", erasure(af.getIndexType()), erasure(af.getType()));
+            invoke(mv, mapClass, put);
+            pop(mv, Type.getType(put.getReturnType()));
+        } else {
+            Class<?> setClass = classOf(getSetName(af.getIndexType()));
+            createIfNull(mv, name + "Read", setClass);
+            getField(mv, name + "Read", Type.getDescriptor(setClass));
+            loadSlot(mv, name + "Keys", keyType, slot);
+            invoke(mv, setClass, findMethod(setClass, "add", erasure(af.getIndexType())));
+            mv.visitInsn(POP);
+        }
+        mv.visitVarInsn(ILOAD, slot);
+        mv.visitInsn(IRETURN);
+        endMethod(mv);
+    }
+
+    /**
+     * Stores the cache slot of the key in the given local, leaving it also on the stack.
+     */
+    private void findSlot(MethodVisitor mv, String name, Type keyType, int key, int slot) {
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(keyType.getOpcode(ILOAD), key);
+        mv.visitMethodInsn(INVOKESPECIAL, facade, name + "FindSlot", "(" + keyType.getDescriptor() + ")I");
+        mv.visitInsn(DUP);
+        mv.visitVarInsn(ISTORE, slot);
+    }
+
+    /**
+     * Caches the key and value in the given locals in a new slot.
+     */
+    private void storeNewSlot(MethodVisitor mv, String name, Type type, Type keyType, int key, int value, 
+            int slot) {
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, facade, name + "NewSlot", "()I");
+        mv.visitVarInsn(ISTORE, slot);
+        storeSlot(mv, name + "Keys", keyType, slot, key);
+        storeSlot(mv, name + "Values", type, slot, value);
+    }
+
+    /**
+     * Updates the cached value of the key, caching the key in a new slot if needed.
+     */
+    private void updateSlot(MethodVisitor mv, String name, Type type, Type keyType, int key, int value, int slot) {
+        Label update = new Label();
+        findSlot(mv, name, keyType, key, slot);
+        mv.visitJumpInsn(IFGE, update);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, facade, name + "NewSlot", "()I");
+        mv.visitVarInsn(ISTORE, slot);
+        storeSlot(mv, name + "Keys", keyType, slot, key);
+        mv.visitLabel(update);
+        storeSlot(mv, name + "Values", type, slot, value);
+    }
+
+    private void loadSlot(MethodVisitor mv, String field, Type type, int slot) {
+        getField(mv, field, arrayOf(type));
+        mv.visitVarInsn(ILOAD, slot);
+        mv.visitInsn(type.getOpcode(IALOAD));
+    }
+
+    private void storeSlot(MethodVisitor mv, String field, Type type, int slot, int local) {
+        getField(mv, field, arrayOf(type));
+        mv.visitVarInsn(ILOAD, slot);
+        mv.visitVarInsn(type.getOpcode(ILOAD), local);
+        mv.visitInsn(type.getOpcode(IASTORE));
+    }
+
+    /**
+     * Compares two locals, primitives with == and objects with PascRuntime.compare().
+     */
+    private static void jumpIfEqual(MethodVisitor mv, Type type, int local1, int local2, Label equal) {
+        mv.visitVarInsn(type.getOpcode(ILOAD), local1);
+        mv.visitVarInsn(type.getOpcode(ILOAD), local2);
+        if (isPrimitive(type)) {
+            jumpIfEqual(mv, type, equal);
+        } else {
+            mv.visitMethodInsn(INVOKESTATIC, RUNTIME, "compare", "(L" + OBJECT + ";L" + OBJECT + ";)Z");
+            mv.visitJumpInsn(IFNE, equal);
+        }
+    }
+
+    private static void jumpIfEqual(MethodVisitor mv, Type type, Label equal) {
+        if (compare(mv, type)) {
+            mv.visitJumpInsn(IFEQ, equal);
+        } else {
+            mv.visitJumpInsn(IF_ICMPEQ, equal);
+        }
+    }
+
+    /**
+     * Emits the comparison instruction of long and floating point values.
+     * 
+     * @return false if the values are ints and must be compared by the jump itself
+     */
+    private static boolean compare(MethodVisitor mv, Type type) {
+        switch (type.getSort()) {
+        case Type.LONG:
+            mv.visitInsn(LCMP);
+            return true;
+        case Type.FLOAT:
+            mv.visitInsn(FCMPL);
+            return true;
+        case Type.DOUBLE:
+            mv.visitInsn(DCMPL);
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Throws the given exception with the values of the two locals, using the primitive constructors to avoid
+     * boxing them.
+     */
+    private static void throwCorruption(MethodVisitor mv, String exception, String name, Type type, int local1, 
+            int local2) {
+        String desc;
+        switch (type.getSort()) {
+        case Type.SHORT:
+            desc = "I";
+            break;
+        case Type.OBJECT:
+        case Type.ARRAY:
+            desc = "L" + OBJECT + ";";
+            break;
+        default:
+            desc = type.getDescriptor();
+        }
+        mv.visitTypeInsn(NEW, exception);
+        mv.visitInsn(DUP);
+        mv.visitLdcInsn(name);
+        mv.visitVarInsn(type.getOpcode(ILOAD), local1);
+        mv.visitVarInsn(type.getOpcode(ILOAD), local2);
+        mv.visitMethodInsn(INVOKESPECIAL, exception, "<init>", "(Ljava/lang/String;" + desc + desc + ")V");
+        mv.visitInsn(ATHROW);
+    }
+
+    /**
+     * Pushes the value of the state or replica getter, with the key in the given local if indexed.
+     */
+    private void callGetter(MethodVisitor mv, String target, AccessibleField af, int key) {
+        getField(mv, target, stateDesc);
+        String desc;
+        if (af.isIndexed()) {
+            Type keyType = Type.getType(af.getIndexType());
+            mv.visitVarInsn(keyType.getOpcode(ILOAD), key);
+            desc = "(" + keyType.getDescriptor() + ")";
+        } else {
+            desc = "()";
+        }
+        mv.visitMethodInsn(INVOKEVIRTUAL, state, af.getGetter(), desc + Type.getDescriptor(af.getType()));
+    }
+
+    private static void cloneValue(MethodVisitor mv, Type type) {
+        if (!isPrimitive(type)) {
+            mv.visitMethodInsn(INVOKESTATIC, RUNTIME, "clone", "(L" + OBJECT + ";)L" + OBJECT + ";");
+            castValue(mv, type);
+        }
+    }
+
+    private static void castValue(MethodVisitor mv, Type type) {
+        if (!isPrimitive(type) && !type.getInternalName().equals(OBJECT)) {
+            mv.visitTypeInsn(CHECKCAST, type.getInternalName());
+        }
+    }
+
+    private static void pop(MethodVisitor mv, Type type) {
+        if (type.getSize() == 2) {
+            mv.visitInsn(POP2);
+        } else if (type.getSize() == 1) {
+            mv.visitInsn(POP);
+        }
+    }
+
+    /**
+     * Pushes the modification listener and the field name, jumping to skip when applying to the replica or
+     * without listener. The caller pushes the boxed key and value and calls endNotify().
+     */
+    private void beginNotify(MethodVisitor mv, String name, Label skip) {
+        mv.visitVarInsn(ILOAD, 1);
+        mv.visitJumpInsn(IFNE, skip);
+        getField(mv, "modificationListener", LISTENER_DESC);
+        mv.visitJumpInsn(IFNULL, skip);
+        getField(mv, "modificationListener", LISTENER_DESC);
+        mv.visitLdcInsn(name);
+    }
+
+    private static void endNotify(MethodVisitor mv, Label skip) {
+        mv.visitMethodInsn(INVOKEINTERFACE, LISTENER, "modified", 
+                "(Ljava/lang/String;L" + OBJECT + ";L" + OBJECT + ";)V");
+        if (skip != null) {
+            mv.visitLabel(skip);
+        }
+    }
+
+    private static void box(MethodVisitor mv, Class<?> type) {
+        if (type.isPrimitive()) {
+            Class<?> wrapper = getWrapper(type);
+            mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(wrapper), "valueOf", 
+                    "(" + Type.getDescriptor(type) + ")" + Type.getDescriptor(wrapper));
+        }
+    }
+
+    private void getField(MethodVisitor mv, String field, String desc) {
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitFieldInsn(GETFIELD, facade, field, desc);
+    }
+
+    private void putTrue(MethodVisitor mv, String field) {
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitInsn(ICONST_1);
+        mv.visitFieldInsn(PUTFIELD, facade, field, "Z");
+    }
+
+    private void putFalse(MethodVisitor mv, String field) {
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitInsn(ICONST_0);
+        mv.visitFieldInsn(PUTFIELD, facade, field, "Z");
+    }
+
+    private void putNull(MethodVisitor mv, String field, String desc) {
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitInsn(ACONST_NULL);
+        mv.visitFieldInsn(PUTFIELD, facade, field, desc);
+    }
+
+    private void putZero(MethodVisitor mv, String field) {
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitInsn(ICONST_0);
+        mv.visitFieldInsn(PUTFIELD, facade, field, "I");
+    }
+
+    private void increment(MethodVisitor mv, String field) {
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitInsn(DUP);
+        mv.visitFieldInsn(GETFIELD, facade, field, "I");
+        mv.visitInsn(ICONST_1);
+        mv.visitInsn(IADD);
+        mv.visitFieldInsn(PUTFIELD, facade, field, "I");
+    }
+
+    private static void invoke(MethodVisitor mv, Class<?> owner, Method method) {
+        mv.visitMethodInsn(owner.isInterface() ? INVOKEINTERFACE : INVOKEVIRTUAL, Type.getInternalName(owner), 
+                method.getName(), Type.getMethodDescriptor(method));
+    }
+
+    private static void endMethod(MethodVisitor mv) {
+        // sizes are computed by the class writer
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private static boolean isPrimitive(Type type) {
+        return type.getSort() != Type.OBJECT && type.getSort() != Type.ARRAY;
+    }
+
+    private static Class<?> erasure(Class<?> type) {
+        return type.isPrimitive() ? type : Object.class;
+    }
+
+    private static String arrayOf(Type type) {
+        return "[" + type.getDescriptor();
+    }
+
+    private static int arrayTypeOf(Type type) {
+        switch (type.getSort()) {
+        case Type.BOOLEAN: return T_BOOLEAN;
+        case Type.BYTE: return T_BYTE;
+        case Type.CHAR: return T_CHAR;
+        case Type.SHORT: return T_SHORT;
+        case Type.INT: return T_INT;
+        case Type.LONG: return T_LONG;
+        case Type.FLOAT: return T_FLOAT;
+        default: return T_DOUBLE;
+        }
+    }
+
+    private static String descriptorOf(String className) {
+        return "L" + className.replace('.', '/') + ";";
+    }
+
+    private static Class<?> classOf(String className) {
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException("Unsupported collection class: " + className, e);
+        }
+    }
+
+    private static Method findMethod(Class<?> owner, String name, Class<?>... parameters) {
+        try {
+            return owner.getMethod(name, parameters);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException("Unsupported collection method: " + owner.getName() + "." + name, e);
+        }
+    }
+}
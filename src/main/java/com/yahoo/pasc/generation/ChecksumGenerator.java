@@ -0,0 +1,208 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc.generation;
+
+import static com.yahoo.pasc.generation.GeneratorUtil.getFastUtilsName;
+import static com.yahoo.pasc.generation.GeneratorUtil.isImmutable;
+import static com.yahoo.pasc.generation.GeneratorUtil.obtainInstanceFields;
+import static com.yahoo.pasc.generation.GeneratorUtil.supportsFieldByField;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.CtNewMethod;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yahoo.pasc.ChecksummedMessage;
+
+/**
+ * Generates field by field checksummers, used by {@link ChecksummedMessage} to protect messages with a checksum
+ * instead of a redundant copy.
+ * 
+ * Primitive fields are mixed in directly, the remaining references through Checksummer.mixObject(). Transient
+ * fields and the checksum stored by ChecksummedMessage are ignored. Checksummers aren't generated for JDK
+ * classes, arrays and classes that can reference themselves through their fields.
+ * 
+ * Checksummers are generated once per class and cached.
+ */
+public class ChecksumGenerator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChecksumGenerator.class);
+
+    private static final Checksummer NONE = new Checksummer() {
+        @Override
+        public long mixFields(long hash, Object object) {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    private static final ConcurrentMap<Class<?>, Checksummer> checksummers = 
+            new ConcurrentHashMap<Class<?>, Checksummer>();
+    private static Object lock = new Object();
+
+    /**
+     * Obtains the checksummer of the given class, generating it if needed.
+     * 
+     * @param type class of the objects to checksum
+     * @return the checksummer of this class, or null if it can't be checksummed field by field
+     */
+    public static Checksummer getChecksummer(Class<?> type) {
+        Checksummer checksummer = checksummers.get(type);
+        if (checksummer == null) {
+            synchronized (lock) {
+                checksummer = checksummers.get(type);
+                if (checksummer == null) {
+                    checksummer = generate(type);
+                    checksummers.put(type, checksummer);
+                }
+            }
+        }
+        return checksummer == NONE ? null : checksummer;
+    }
+
+    /**
+     * Checks whether values of the given type are checksummed by their content. Values that fall back to
+     * hashCode() without overriding it, directly or as elements of a collection, are checksummed by their
+     * identity, so two equal copies get different checksums.
+     * 
+     * @param type declared type of the values, with its type arguments if any
+     * @return true if equal values always get the same checksum
+     */
+    public static boolean checksumsContent(Type type) {
+        if (type instanceof GenericArrayType) {
+            return checksumsContent(((GenericArrayType) type).getGenericComponentType());
+        }
+        if (type instanceof ParameterizedType) {
+            ParameterizedType parameterized = (ParameterizedType) type;
+            Class<?> raw = (Class<?>) parameterized.getRawType();
+            if (Collection.class.isAssignableFrom(raw) || Map.class.isAssignableFrom(raw)) {
+                for (Type argument : parameterized.getActualTypeArguments()) {
+                    if (!checksumsContent(argument)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            return checksumsContent(raw);
+        }
+        if (!(type instanceof Class)) {
+            // type variables and wildcards
+            return false;
+        }
+        Class<?> c = (Class<?>) type;
+        if (c.isPrimitive() || isImmutable(c)) {
+            return true;
+        }
+        if (c.isArray()) {
+            return checksumsContent(c.getComponentType());
+        }
+        if (Collection.class.isAssignableFrom(c) || Map.class.isAssignableFrom(c)) {
+            // the type of the elements is unknown
+            return false;
+        }
+        if (getChecksummer(c) != null) {
+            for (Field field : obtainInstanceFields(c)) {
+                if (field.getDeclaringClass() != ChecksummedMessage.class 
+                        && !checksumsContent(field.getGenericType())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        try {
+            return c.getMethod("hashCode").getDeclaringClass() != Object.class;
+        } catch (NoSuchMethodException e) {
+            // interfaces that don't declare hashCode()
+            return false;
+        }
+    }
+
+    private static Checksummer generate(Class<?> type) {
+        if (!supportsFieldByField(type)) {
+            return NONE;
+        }
+        String checksummerClassName = type.getName() + "Checksummer";
+        try {
+            Class<?> checksummerClass;
+            try {
+                checksummerClass = Class.forName(checksummerClassName);
+            } catch (ClassNotFoundException ignore) {
+                checksummerClass = generateClass(type, checksummerClassName);
+            }
+            return (Checksummer) checksummerClass.newInstance();
+        } catch (Exception ex) {
+            LOG.warn("Error constructing checksummer class: " + checksummerClassName, ex);
+            return NONE;
+        }
+    }
+
+    private static Class<?> generateClass(Class<?> type, String checksummerClassName) throws Exception {
+        List<Field> fields = obtainInstanceFields(type);
+
+        ClassPool pool = ClassPool.getDefault();
+        CtClass checksummerCtClass = pool.makeClass(checksummerClassName);
+        checksummerCtClass.setSuperclass(pool.get(Checksummer.class.getName()));
+        UnsafeAccess.addUnsafeField(checksummerCtClass);
+
+        CtMethod mixFields = CtNewMethod.make(buildMixFields(fields), checksummerCtClass);
+        checksummerCtClass.addMethod(mixFields);
+
+        return checksummerCtClass.toClass();
+    }
+
+    private static String buildMixFields(List<Field> fields) {
+        StringBuilder method = new StringBuilder();
+        method.append("public long mixFields(long hash, Object object) {\n");
+        for (Field field : fields) {
+            if (field.getDeclaringClass() == ChecksummedMessage.class) {
+                continue;
+            }
+            Class<?> type = field.getType();
+            long offset = UnsafeAccess.objectFieldOffset(field);
+            if (type == float.class) {
+                method.append(String.format("hash = mix(hash, (long) Float.floatToIntBits(unsafe.getFloat(object, %dL)));\n",
+                        offset));
+            } else if (type == double.class) {
+                method.append(String.format("hash = mix(hash, Double.doubleToLongBits(unsafe.getDouble(object, %dL)));\n",
+                        offset));
+            } else if (type == boolean.class) {
+                method.append(String.format("hash = mix(hash, unsafe.getBoolean(object, %dL) ? 1L : 0L);\n", offset));
+            } else if (type.isPrimitive()) {
+                method.append(String.format("hash = mix(hash, (long) unsafe.get%s(object, %dL));\n", 
+                        getFastUtilsName(type), offset));
+            } else {
+                method.append(String.format("hash = mixObject(hash, unsafe.getObject(object, %dL));\n", offset));
+            }
+        }
+        method.append("return hash;\n");
+        method.append("}\n");
+        LOG.trace("Method: {}", method);
+        return method.toString();
+    }
+}
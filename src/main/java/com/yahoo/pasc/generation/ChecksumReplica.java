@@ -0,0 +1,44 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc.generation;
+
+import com.yahoo.pasc.KeyEnumerator;
+import com.yahoo.pasc.ProcessState;
+
+/**
+ * Replica of a process state that keeps a checksum per field and per entry of indexed fields instead of a copy
+ * of their values, generated by {@link ChecksumReplicaGenerator}.
+ * 
+ * Getters read the process state and check the value against its checksum. Setters store the value until the
+ * writes are cleared, so it's read back by the replica execution, and update its checksum.
+ */
+public interface ChecksumReplica {
+
+    /**
+     * Computes the checksums of the given state.
+     * 
+     * @param state The process state
+     * @param keys Enumerates the keys in use of the indexed fields that aren't dense, entries not enumerated
+     *        are expected to hold the default value of their type
+     */
+    public <T extends ProcessState> void setState(T state, KeyEnumerator<T> keys);
+
+    /**
+     * Drops the values written since the last call, their checksums are kept.
+     */
+    public void clearWrites();
+}
@@ -0,0 +1,533 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc.generation;
+
+import static com.yahoo.pasc.generation.GeneratorUtil.addNewLines;
+import static com.yahoo.pasc.generation.GeneratorUtil.clearTracking;
+import static com.yahoo.pasc.generation.GeneratorUtil.getCopy;
+import static com.yahoo.pasc.generation.GeneratorUtil.getMapGet;
+import static com.yahoo.pasc.generation.GeneratorUtil.getMapName;
+import static com.yahoo.pasc.generation.GeneratorUtil.getNewArray;
+import static com.yahoo.pasc.generation.GeneratorUtil.getObjectCast;
+import static com.yahoo.pasc.generation.GeneratorUtil.getPrimitiveName;
+import static com.yahoo.pasc.generation.GeneratorUtil.isImmutable;
+import static com.yahoo.pasc.generation.GeneratorUtil.obtainAccessibleFields;
+
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.List;
+
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtField;
+import javassist.CtMethod;
+import javassist.CtNewMethod;
+
+import org.objenesis.Objenesis;
+import org.objenesis.ObjenesisStd;
+import org.objenesis.instantiator.ObjectInstantiator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.stringtemplate.v4.ST;
+
+import com.yahoo.pasc.FieldProtection;
+import com.yahoo.pasc.KeyEnumerator;
+import com.yahoo.pasc.ProcessState;
+
+/**
+ * Generates the {@link ChecksumReplica} class of a state, a subclass of the state that overrides its accessors.
+ * 
+ * The replica is instantiated without running the constructors of the state, so the fields of the state class
+ * aren't allocated. Each plain field takes a long checksum, each dense field a long array and the rest of the
+ * indexed fields a map from key to checksum holding the entries whose value isn't the default one. Objects read
+ * from the state are cloned, as the replica execution may modify them.
+ * 
+ * Fields annotated with {@link com.yahoo.pasc.Protection} override the protection of the generated replica:
+ * fields protected by a full replica keep a copy of their values, filled from the state when the replica is
+ * created, and unprotected fields keep nothing, their reads go to the state unchecked.
+ */
+public class ChecksumReplicaGenerator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChecksumReplicaGenerator.class);
+
+    private static final String CHECKSUMMER = "com.yahoo.pasc.generation.Checksummer";
+
+    private Objenesis objenesis = new ObjenesisStd();
+    private ObjectInstantiator instantiator;
+
+    private Class<?> stateType;
+    private String className;
+    private String replicaClassName;
+    private FieldProtection defaultProtection;
+
+    private static Object lock = new Object();
+
+    public ChecksumReplicaGenerator(ProcessState state) {
+        this(state, FieldProtection.CHECKSUM);
+    }
+
+    /**
+     * @param state The process state
+     * @param defaultProtection Protection of the fields that aren't annotated with {@link com.yahoo.pasc.Protection}
+     */
+    public ChecksumReplicaGenerator(ProcessState state, FieldProtection defaultProtection) {
+        this.stateType = state.getClass();
+        this.defaultProtection = defaultProtection;
+        className = stateType.getName();
+        replicaClassName = className + getSuffix(defaultProtection);
+        synchronized (lock) {
+            Class<?> replicaClass;
+            try {
+                replicaClass = Class.forName(replicaClassName);
+            } catch (ClassNotFoundException ignore) {
+                List<AccessibleField> fields = obtainAccessibleFields(stateType);
+                checkChecksummedFields(fields);
+                try {
+                    replicaClass = generateCtClass(ClassPool.getDefault(), fields).toClass();
+                } catch (Exception ex) {
+                    throw new RuntimeException("Error constructing checksum replica class: " + replicaClassName, ex);
+                }
+            }
+            instantiator = objenesis.getInstantiatorOf(replicaClass);
+        }
+    }
+
+    /**
+     * Checks whether a field of the given state class isn't protected by a full replica, so it needs a generated
+     * replica with a {@link FieldProtection#REPLICA} default protection.
+     */
+    public static boolean hasPartialProtection(Class<?> stateType) {
+        return GeneratorUtil.hasPartialProtection(stateType);
+    }
+
+    private static String getSuffix(FieldProtection defaultProtection) {
+        switch (defaultProtection) {
+        case REPLICA: return "PartialReplica";
+        case NONE: return "UnprotectedReplica";
+        default: return "ChecksumReplica";
+        }
+    }
+
+    private FieldProtection protectionOf(AccessibleField af) {
+        return af.getProtection() == null ? defaultProtection : af.getProtection();
+    }
+
+    /**
+     * Creates a replica of the given state.
+     * 
+     * @param state The process state
+     * @param keys Enumerates the keys in use of the indexed fields that aren't dense, entries that aren't
+     *             enumerated are expected to hold the default value
+     * @return the replica, an instance of the state class
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends ProcessState> T getReplica(T state, KeyEnumerator<T> keys) {
+        ChecksumReplica replica = (ChecksumReplica) instantiator.newInstance();
+        replica.setState(state, keys);
+        return (T) replica;
+    }
+
+    /**
+     * Rejects the checksummed fields whose values aren't checksummed by their content, the state and the replica
+     * hold different copies of each value, see {@link ChecksumGenerator#checksumsContent(Type)}.
+     */
+    private void checkChecksummedFields(List<AccessibleField> fields) {
+        for (AccessibleField af : fields) {
+            if (protectionOf(af) != FieldProtection.CHECKSUM || af.getType().isPrimitive()) {
+                continue;
+            }
+            if (!ChecksumGenerator.checksumsContent(getGenericType(af))) {
+                throw new IllegalArgumentException("Field " + af.getName() + " of " + className 
+                        + " can't be checksummed by content, protect it with @Protection(FieldProtection.REPLICA)");
+            }
+        }
+    }
+
+    private Type getGenericType(AccessibleField af) {
+        Class<?>[] key = af.isIndexed() ? new Class<?>[] { af.getIndexType() } : new Class<?>[0];
+        try {
+            if (af.getGetter() != null) {
+                return stateType.getDeclaredMethod(af.getGetter(), key).getGenericReturnType();
+            }
+            Class<?>[] parameters = Arrays.copyOf(key, key.length + 1);
+            parameters[key.length] = af.getType();
+            Type[] types = stateType.getDeclaredMethod(af.getSetter(), parameters).getGenericParameterTypes();
+            return types[key.length];
+        } catch (NoSuchMethodException e) {
+            return af.getType();
+        }
+    }
+
+    private CtClass generateCtClass(ClassPool pool, List<AccessibleField> fields) throws Exception {
+
+        CtClass replicaCtClass = pool.makeClass(replicaClassName);
+        replicaCtClass.setInterfaces(new CtClass[] { pool.get(ChecksumReplica.class.getName()) });
+        replicaCtClass.setSuperclass(pool.get(className));
+
+        generateFields(replicaCtClass, fields);
+
+        CtMethod setState = CtNewMethod.make(buildSetState(fields), replicaCtClass);
+        replicaCtClass.addMethod(setState);
+        CtMethod clearWrites = CtNewMethod.make(buildClearWrites(fields), replicaCtClass);
+        replicaCtClass.addMethod(clearWrites);
+
+        for (AccessibleField af : fields) {
+            boolean copy = protectionOf(af) == FieldProtection.REPLICA;
+            if (af.getGetter() != null) {
+                String template = copy ? (af.isIndexed() ? getterCopyMulti : getterCopySingle)
+                        : (af.isIndexed() ? getterMulti : getterSingle);
+                CtMethod getter = CtNewMethod.make(buildAccessor(template, af), replicaCtClass);
+                replicaCtClass.addMethod(getter);
+            }
+            if (af.getSetter() != null) {
+                String template = copy ? (af.isIndexed() ? setterCopyMulti : setterCopySingle)
+                        : (af.isIndexed() ? setterMulti : setterSingle);
+                CtMethod setter = CtNewMethod.make(buildAccessor(template, af), replicaCtClass);
+                replicaCtClass.addMethod(setter);
+            }
+        }
+
+        return replicaCtClass;
+    }
+
+    private void generateFields(CtClass replicaCtClass, List<AccessibleField> fields) throws CannotCompileException {
+        replicaCtClass.addField(CtField.make(String.format("%s state;", className), replicaCtClass));
+        for (AccessibleField af : fields) {
+            String name = af.getName();
+            Class<?> type = af.getType();
+            FieldProtection protection = protectionOf(af);
+            if (protection == FieldProtection.REPLICA) {
+                String copyType;
+                if (af.isDense()) {
+                    copyType = getPrimitiveName(type) + "[]";
+                } else if (af.isIndexed()) {
+                    copyType = getMapName(af.getIndexType(), type);
+                } else {
+                    copyType = getPrimitiveName(type);
+                }
+                replicaCtClass.addField(CtField.make(String.format("%s %sCopy;", copyType, name), replicaCtClass));
+            } else if (af.isIndexed()) {
+                Class<?> keyType = af.getIndexType();
+                // unprotected fields keep their writes only
+                if (protection == FieldProtection.CHECKSUM) {
+                    if (af.isDense()) {
+                        replicaCtClass.addField(CtField.make(String.format("long[] %sChecksums;", name), 
+                                replicaCtClass));
+                    } else {
+                        replicaCtClass.addField(CtField.make(String.format("%s %sChecksums;", 
+                                getMapName(keyType, long.class), name), replicaCtClass));
+                    }
+                }
+                replicaCtClass.addField(CtField.make(String.format("%s %sWrites;", 
+                        getMapName(keyType, type), name), replicaCtClass));
+                replicaCtClass.addField(CtField.make(String.format("int %sWritesSinceSpike;", name), 
+                        replicaCtClass));
+            } else {
+                if (protection == FieldProtection.CHECKSUM) {
+                    replicaCtClass.addField(CtField.make(String.format("long %sChecksum;", name), replicaCtClass));
+                }
+                replicaCtClass.addField(CtField.make(String.format("boolean %sWritten;", name), replicaCtClass));
+                replicaCtClass.addField(CtField.make(String.format("%s %sValue;", getPrimitiveName(type), name), 
+                        replicaCtClass));
+            }
+        }
+    }
+
+    private String getterSingle = addNewLines(
+            "public final $type$ $getter$() {" +
+            "   if ($var$Written) return $var$Value;" +
+            "   $type$ temp = state.$getter$();" +
+            "   $if(checked)$" +
+            "       long sum = $checksum$;" +
+            "       if (sum != $var$Checksum) {" +
+            "           throw new com.yahoo.pasc.exceptions.VariableCorruptionException(\"$var$\", sum, $var$Checksum);" +
+            "       }" +
+            "   $endif$" +
+            "   return $clone$;" +
+            "}"
+            );
+
+    private String getterMulti = addNewLines(
+            "public final $type$ $getter$($typeKey$ _key) {" +
+            //  Written by the replica execution, return it
+            "   if ($var$Writes != null && $var$Writes.containsKey(_key)) {" +
+            "       return $objectCast$ $var$Writes.$mapGet$(_key);" +
+            "   }" +
+            "   $type$ temp = state.$getter$(_key);" +
+            "   $if(checked)$" +
+            "       long sum = $checksum$;" +
+            "       long expected = $expected$;" +
+            "       if (sum != expected) {" +
+            "           throw new com.yahoo.pasc.exceptions.VariableCorruptionException(\"$var$\", sum, expected);" +
+            "       }" +
+            "   $endif$" +
+            "   return $clone$;" +
+            "}"
+            );
+
+    private String setterSingle = addNewLines(
+            "public final void $setter$($type$ _value) {" +
+            "   $var$Written = true;" +
+            "   $var$Value = _value;" +
+            "   $if(checked)$" +
+            "       $var$Checksum = $checksum$;" +
+            "   $endif$" +
+            "}"
+            );
+
+    private String setterMulti = addNewLines(
+            "public final void $setter$($typeKey$ _key, $type$ _value) {" +
+            "   if ($var$Writes == null) $var$Writes = new $writesName$();" +
+            "   $var$Writes.put(_key, _value);" +
+            "   $if(checked)$" +
+            "       long sum = $checksum$;" +
+            "       $if(dense)$" +
+            "           $var$Checksums[_key] = sum;" +
+            "       $endif$" +
+            "       $if(!dense)$" +
+            //          Only entries that don't hold the default value are kept
+            "           if (sum == $var$Checksums.defaultReturnValue()) $var$Checksums.$remove$(_key);" +
+            "           else $var$Checksums.put(_key, sum);" +
+            "       $endif$" +
+            "   $endif$" +
+            "}"
+            );
+
+    private String getterCopySingle = addNewLines(
+            "public final $type$ $getter$() {" +
+            "   return $var$Copy;" +
+            "}"
+            );
+
+    private String getterCopyMulti = addNewLines(
+            "public final $type$ $getter$($typeKey$ _key) {" +
+            "   $if(dense)$" +
+            "       return $var$Copy[_key];" +
+            "   $endif$" +
+            "   $if(!dense)$" +
+            "       return $objectCast$ $var$Copy.$mapGet$(_key);" +
+            "   $endif$" +
+            "}"
+            );
+
+    private String setterCopySingle = addNewLines(
+            "public final void $setter$($type$ _value) {" +
+            "   $var$Copy = _value;" +
+            "}"
+            );
+
+    private String setterCopyMulti = addNewLines(
+            "public final void $setter$($typeKey$ _key, $type$ _value) {" +
+            "   $if(dense)$" +
+            "       $var$Copy[_key] = _value;" +
+            "   $endif$" +
+            "   $if(!dense)$" +
+            "       $var$Copy.put(_key, _value);" +
+            "   $endif$" +
+            "}"
+            );
+
+    private String buildAccessor(String template, AccessibleField af) {
+        ST method = new ST(template, '$', '$');
+        Class<?> type = af.getType();
+        boolean getter = template == getterSingle || template == getterMulti;
+        method.add("type", getPrimitiveName(type));
+        method.add("var", af.getName());
+        method.add("getter", af.getGetter());
+        method.add("setter", af.getSetter());
+        method.add("checked", protectionOf(af) == FieldProtection.CHECKSUM);
+        method.add("checksum", checksumOf(type, getter ? "temp" : "_value"));
+        method.add("clone", type.isPrimitive() || isImmutable(type) ? "temp" 
+                : getObjectCast(type) + " com.yahoo.pasc.PascRuntime.clone(temp)");
+        method.add("objectCast", getObjectCast(type));
+        if (af.isIndexed()) {
+            Class<?> keyType = af.getIndexType();
+            method.add("typeKey", getPrimitiveName(keyType));
+            method.add("mapGet", getMapGet(keyType, type));
+            method.add("writesName", getMapName(keyType, type));
+            method.add("dense", af.isDense());
+            method.add("remove", keyType.isPrimitive() ? "remove" : "removeLong");
+            if (af.isDense()) {
+                method.add("expected", af.getName() + "Checksums[_key]");
+            } else {
+                method.add("expected", String.format("%sChecksums.%s(_key)", af.getName(), 
+                        getMapGet(keyType, long.class)));
+            }
+        }
+        String result = method.render();
+        LOG.trace("Method: {}", result);
+        return result;
+    }
+
+    private String buildSetState(List<AccessibleField> fields) {
+        StringBuilder method = new StringBuilder();
+        method.append("public void setState(com.yahoo.pasc.ProcessState s, com.yahoo.pasc.KeyEnumerator keys) {\n");
+        method.append(String.format("state = (%s) s;\n", className));
+        for (AccessibleField af : fields) {
+            String name = af.getName();
+            Class<?> type = af.getType();
+            String typeName = getPrimitiveName(type);
+            String getter = af.getGetter();
+            FieldProtection protection = protectionOf(af);
+            if (protection == FieldProtection.REPLICA) {
+                appendCopy(method, af);
+            } else if (protection == FieldProtection.NONE) {
+                if (af.isIndexed()) {
+                    method.append(String.format("%sWrites = null;\n", name));
+                } else {
+                    method.append(String.format("%sWritten = false;\n", name));
+                }
+            } else if (af.isDense()) {
+                int size = af.getDenseSize();
+                method.append(String.format("%sChecksums = new long[%d];\n", name, size));
+                if (getter != null) {
+                    method.append(String.format("for (int %sKey = 0; %sKey < %d; %sKey++) {\n", 
+                            name, name, size, name));
+                    method.append(String.format("    %s %sTemp = state.%s(%sKey);\n", typeName, name, getter, name));
+                    method.append(String.format("    %sChecksums[%sKey] = %s;\n", 
+                            name, name, checksumOf(type, name + "Temp")));
+                    method.append("}\n");
+                } else {
+                    method.append(String.format("java.util.Arrays.fill(%sChecksums, %dL);\n", 
+                            name, defaultChecksum(type)));
+                }
+            } else if (af.isIndexed()) {
+                Class<?> keyType = af.getIndexType();
+                method.append(String.format("%sChecksums = new %s();\n", name, getMapName(keyType, long.class)));
+                method.append(String.format("%sChecksums.defaultReturnValue(%dL);\n", name, defaultChecksum(type)));
+                if (getter != null) {
+                    method.append(String.format("java.lang.Iterable %sKeys = keys == null ? null : keys.keys(s, \"%s\");\n", 
+                            name, name));
+                    method.append(String.format("if (%sKeys != null) {\n", name));
+                    method.append(String.format("    java.util.Iterator %sIt = %sKeys.iterator();\n", name, name));
+                    method.append(String.format("    while (%sIt.hasNext()) {\n", name));
+                    method.append(String.format("        %s %sKey = %s;\n", getPrimitiveName(keyType), name, 
+                            unbox(keyType, name + "It.next()")));
+                    method.append(String.format("        %s %sTemp = state.%s(%sKey);\n", typeName, name, getter, name));
+                    method.append(String.format("        long %sSum = %s;\n", name, checksumOf(type, name + "Temp")));
+                    method.append(String.format("        if (%sSum != %dL) %sChecksums.put(%sKey, %sSum);\n", 
+                            name, defaultChecksum(type), name, name, name));
+                    method.append("    }\n");
+                    method.append("}\n");
+                }
+                method.append(String.format("%sWrites = null;\n", name));
+            } else {
+                if (getter != null) {
+                    method.append(String.format("%s %sTemp = state.%s();\n", typeName, name, getter));
+                    method.append(String.format("%sChecksum = %s;\n", name, checksumOf(type, name + "Temp")));
+                } else {
+                    method.append(String.format("%sChecksum = %dL;\n", name, defaultChecksum(type)));
+                }
+                method.append(String.format("%sWritten = false;\n", name));
+            }
+        }
+        method.append("}\n");
+        LOG.trace("Method: {}", method);
+        return method.toString();
+    }
+
+    /**
+     * Appends the code that copies a field protected by a full replica from the state.
+     */
+    private void appendCopy(StringBuilder method, AccessibleField af) {
+        String name = af.getName();
+        Class<?> type = af.getType();
+        String getter = af.getGetter();
+        if (af.isDense()) {
+            int size = af.getDenseSize();
+            method.append(String.format("%sCopy = %s;\n", name, getNewArray(type, size)));
+            if (getter != null) {
+                method.append(String.format("for (int %sKey = 0; %sKey < %d; %sKey++) {\n", name, name, size, name));
+                method.append(String.format("    %sCopy[%sKey] = %s;\n", name, name, 
+                        getCopy(type, String.format("state.%s(%sKey)", getter, name))));
+                method.append("}\n");
+            }
+        } else if (af.isIndexed()) {
+            Class<?> keyType = af.getIndexType();
+            method.append(String.format("%sCopy = new %s();\n", name, getMapName(keyType, type)));
+            if (getter != null) {
+                method.append(String.format("java.lang.Iterable %sKeys = keys == null ? null : keys.keys(s, \"%s\");\n", 
+                        name, name));
+                method.append(String.format("if (%sKeys != null) {\n", name));
+                method.append(String.format("    java.util.Iterator %sIt = %sKeys.iterator();\n", name, name));
+                method.append(String.format("    while (%sIt.hasNext()) {\n", name));
+                method.append(String.format("        %s %sKey = %s;\n", getPrimitiveName(keyType), name, 
+                        unbox(keyType, name + "It.next()")));
+                method.append(String.format("        %sCopy.put(%sKey, %s);\n", name, name, 
+                        getCopy(type, String.format("state.%s(%sKey)", getter, name))));
+                method.append("    }\n");
+                method.append("}\n");
+            }
+        } else if (getter != null) {
+            method.append(String.format("%sCopy = %s;\n", name, getCopy(type, String.format("state.%s()", getter))));
+        }
+    }
+
+    private String buildClearWrites(List<AccessibleField> fields) {
+        StringBuilder method = new StringBuilder();
+        method.append("public void clearWrites() {\n");
+        for (AccessibleField af : fields) {
+            String name = af.getName();
+            Class<?> type = af.getType();
+            if (protectionOf(af) == FieldProtection.REPLICA) {
+                continue;
+            } else if (af.isIndexed()) {
+                method.append(clearTracking(name + "Writes"));
+            } else {
+                method.append(String.format("%sWritten = false;\n", name));
+                if (!type.isPrimitive()) {
+                    method.append(String.format("%sValue = null;\n", name));
+                }
+            }
+        }
+        method.append("}\n");
+        LOG.trace("Method: {}", method);
+        return method.toString();
+    }
+
+    /**
+     * Builds the expression that computes the checksum of a value, as Checksummer.checksum() of its boxed value
+     * would do.
+     */
+    private static String checksumOf(Class<?> type, String value) {
+        if (type == boolean.class) {
+            return String.format("%s.checksum(%s ? 1L : 0L)", CHECKSUMMER, value);
+        } else if (type == float.class) {
+            return String.format("%s.checksum((long) Float.floatToIntBits(%s))", CHECKSUMMER, value);
+        } else if (type == double.class) {
+            return String.format("%s.checksum(Double.doubleToLongBits(%s))", CHECKSUMMER, value);
+        } else if (type.isPrimitive()) {
+            return String.format("%s.checksum((long) %s)", CHECKSUMMER, value);
+        }
+        return String.format("%s.checksum((Object) %s)", CHECKSUMMER, value);
+    }
+
+    private static long defaultChecksum(Class<?> type) {
+        return type.isPrimitive() ? Checksummer.checksum(0L) : Checksummer.checksum((Object) null);
+    }
+
+    private static String unbox(Class<?> type, String value) {
+        if (!type.isPrimitive()) {
+            return getObjectCast(type) + " " + value;
+        }
+        String name = getPrimitiveName(type);
+        String wrapper = type == int.class ? "Integer" : type == char.class ? "Character" 
+                : Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        return String.format("((java.lang.%s) %s).%sValue()", wrapper, value, name);
+    }
+}
@@ -0,0 +1,259 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc.generation;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Base class of the generated field by field checksummers, and 64 bit checksum functions.
+ * 
+ * The checksum mixes whole fields at a time with multiplications and rotations (the xxHash64 round and
+ * avalanche), so computing it is a single pass over the fields without intermediate buffers.
+ * 
+ * @see ChecksumGenerator
+ */
+public abstract class Checksummer {
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    static final long SEED = 0x27D4EB2F165667C5L;
+
+    /**
+     * Mixes all the checksummed fields of the given object into the hash, the object must be an instance of
+     * the class this checksummer was generated for.
+     * 
+     * @param hash current hash
+     * @param object object to mix in
+     * @return the updated hash
+     */
+    public abstract long mixFields(long hash, Object object);
+
+    /**
+     * Computes the checksum of an object.
+     * 
+     * User classes are checksummed field by field with a generated checksummer, JDK classes not handled
+     * explicitly and classes that can't be checksummed field by field fall back to their hashCode().
+     * 
+     * @param object object to checksum
+     * @return the checksum
+     */
+    public static long checksum(Object object) {
+        return finish(mixObject(SEED, object));
+    }
+
+    /**
+     * Computes the checksum of an object field by field.
+     * 
+     * @param object object to checksum
+     * @return the checksum
+     * @throws IllegalArgumentException if the class of the object can't be checksummed field by field
+     */
+    public static long checksumFields(Object object) {
+        Checksummer checksummer = ChecksumGenerator.getChecksummer(object.getClass());
+        if (checksummer == null) {
+            throw new IllegalArgumentException("Cannot checksum " + object.getClass() + " field by field");
+        }
+        return finish(checksummer.mixFields(SEED, object));
+    }
+
+    /**
+     * Computes the checksum of a primitive value.
+     * 
+     * @param value value to checksum, floating point values must be passed as their raw bits
+     * @return the checksum
+     */
+    public static long checksum(long value) {
+        return finish(mix(SEED, value));
+    }
+
+    /**
+     * Computes the checksum of a range of a buffer, reading it in place 8 bytes at a time. The checksum depends
+     * on the byte order of the buffer.
+     * 
+     * @param buffer heap or direct buffer
+     * @param offset absolute position of the range
+     * @param length length of the range
+     * @return the checksum
+     */
+    public static long checksum(ByteBuffer buffer, int offset, int length) {
+        long hash = mix(SEED, length);
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            hash = mix(hash, buffer.getLong(offset + i));
+        }
+        for (; i < length; ++i) {
+            hash = mix(hash, buffer.get(offset + i));
+        }
+        return finish(hash);
+    }
+
+    public static long mix(long hash, long value) {
+        hash += value * PRIME2;
+        hash = (hash << 31) | (hash >>> 33);
+        return hash * PRIME1;
+    }
+
+    public static long mixObject(long hash, Object value) {
+        if (value == null) {
+            return mix(hash, PRIME3);
+        }
+        if (value instanceof String) {
+            String string = (String) value;
+            int length = string.length();
+            hash = mix(hash, length);
+            int i = 0;
+            for (; i + 4 <= length; i += 4) {
+                hash = mix(hash, ((long) string.charAt(i) << 48) | ((long) string.charAt(i + 1) << 32)
+                        | ((long) string.charAt(i + 2) << 16) | string.charAt(i + 3));
+            }
+            for (; i < length; ++i) {
+                hash = mix(hash, string.charAt(i));
+            }
+            return hash;
+        }
+        if (value instanceof Double) {
+            return mix(hash, Double.doubleToLongBits((Double) value));
+        }
+        if (value instanceof Float) {
+            return mix(hash, Float.floatToIntBits((Float) value));
+        }
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte
+                || value instanceof AtomicInteger || value instanceof AtomicLong) {
+            return mix(hash, ((Number) value).longValue());
+        }
+        if (value instanceof BigInteger) {
+            return mixArray(hash, ((BigInteger) value).toByteArray());
+        }
+        if (value instanceof BigDecimal) {
+            BigDecimal decimal = (BigDecimal) value;
+            return mixArray(mix(hash, decimal.scale()), decimal.unscaledValue().toByteArray());
+        }
+        if (value instanceof Number) {
+            // longValue() alone truncates fractions and high bits
+            Number number = (Number) value;
+            return mix(mix(hash, number.longValue()), Double.doubleToLongBits(number.doubleValue()));
+        }
+        if (value instanceof Boolean) {
+            return mix(hash, ((Boolean) value) ? 1 : 0);
+        }
+        if (value instanceof Character) {
+            return mix(hash, (Character) value);
+        }
+        if (value instanceof Enum) {
+            return mix(hash, ((Enum<?>) value).ordinal());
+        }
+        Class<?> type = value.getClass();
+        if (type.isArray()) {
+            return mixArray(hash, value);
+        }
+        if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            hash = mix(hash, list.size());
+            for (Object element : list) {
+                hash = mixObject(hash, element);
+            }
+            return hash;
+        }
+        Checksummer checksummer = ChecksumGenerator.getChecksummer(type);
+        if (checksummer != null) {
+            return checksummer.mixFields(hash, value);
+        }
+        return mix(hash, value.hashCode());
+    }
+
+    private static long mixArray(long hash, Object array) {
+        if (array instanceof byte[]) {
+            byte[] bytes = (byte[]) array;
+            hash = mix(hash, bytes.length);
+            int i = 0;
+            for (; i + 8 <= bytes.length; i += 8) {
+                long word = 0;
+                for (int j = 0; j < 8; ++j) {
+                    word = (word << 8) | (bytes[i + j] & 0xFF);
+                }
+                hash = mix(hash, word);
+            }
+            for (; i < bytes.length; ++i) {
+                hash = mix(hash, bytes[i]);
+            }
+        } else if (array instanceof int[]) {
+            int[] ints = (int[]) array;
+            hash = mix(hash, ints.length);
+            for (int value : ints) {
+                hash = mix(hash, value);
+            }
+        } else if (array instanceof long[]) {
+            long[] longs = (long[]) array;
+            hash = mix(hash, longs.length);
+            for (long value : longs) {
+                hash = mix(hash, value);
+            }
+        } else if (array instanceof short[]) {
+            short[] shorts = (short[]) array;
+            hash = mix(hash, shorts.length);
+            for (short value : shorts) {
+                hash = mix(hash, value);
+            }
+        } else if (array instanceof char[]) {
+            char[] chars = (char[]) array;
+            hash = mix(hash, chars.length);
+            for (char value : chars) {
+                hash = mix(hash, value);
+            }
+        } else if (array instanceof boolean[]) {
+            boolean[] booleans = (boolean[]) array;
+            hash = mix(hash, booleans.length);
+            for (boolean value : booleans) {
+                hash = mix(hash, value ? 1 : 0);
+            }
+        } else if (array instanceof float[]) {
+            float[] floats = (float[]) array;
+            hash = mix(hash, floats.length);
+            for (float value : floats) {
+                hash = mix(hash, Float.floatToIntBits(value));
+            }
+        } else if (array instanceof double[]) {
+            double[] doubles = (double[]) array;
+            hash = mix(hash, doubles.length);
+            for (double value : doubles) {
+                hash = mix(hash, Double.doubleToLongBits(value));
+            }
+        } else {
+            Object[] objects = (Object[]) array;
+            hash = mix(hash, objects.length);
+            for (Object value : objects) {
+                hash = mixObject(hash, value);
+            }
+        }
+        return hash;
+    }
+
+    static long finish(long hash) {
+        hash ^= hash >>> 33;
+        hash *= PRIME2;
+        hash ^= hash >>> 29;
+        hash *= PRIME3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+}
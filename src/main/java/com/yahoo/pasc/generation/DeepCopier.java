@@ -0,0 +1,190 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc.generation;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import com.yahoo.pasc.CloneableDeep;
+import com.yahoo.pasc.EqualsDeep;
+import com.yahoo.pasc.PascRuntime;
+
+/**
+ * Base class of the generated field by field deep copiers.
+ * 
+ * Generated subclasses access the fields through Unsafe, see {@link UnsafeAccess}, using offsets computed when the class was generated,
+ * so private fields and fields declared in superclasses are handled without reflection. An identity map is
+ * threaded through the copy, so objects reachable through several references are copied once and cycles
+ * through fields of any type are preserved.
+ * 
+ * @see DeepCopierGenerator
+ */
+public abstract class DeepCopier {
+
+    protected Class<?> type;
+
+    /**
+     * Creates a deep copy of the given object, which must be an instance of the class this copier was generated
+     * for.
+     * 
+     * @param object Object to be cloned
+     * @return a fresh copy of the received object
+     */
+    public Object cloneDeep(Object object) {
+        return cloneDeep(object, new IdentityHashMap<Object, Object>(8));
+    }
+
+    /**
+     * Creates a deep copy of the given object, sharing the copies of the objects that were already copied, so
+     * shared and cyclic references are copied once.
+     * 
+     * @param object Object to be cloned
+     * @param copies Maps the objects already copied to their copies
+     * @return a fresh copy of the received object
+     */
+    public abstract Object cloneDeep(Object object, IdentityHashMap<Object, Object> copies);
+
+    /**
+     * Compares two instances of the class this copier was generated for, field by field.
+     * 
+     * @param o1 first object to compare
+     * @param o2 second object to compare
+     * @return true if both objects are equal
+     */
+    public boolean equalsDeep(Object o1, Object o2) {
+        return equalsDeep(o1, o2, new IdentityHashMap<Object, Object>(8));
+    }
+
+    /**
+     * Compares two instances of the class this copier was generated for, field by field. Pairs that are
+     * already under comparison are taken as equal, so cyclic references are compared once.
+     * 
+     * @param o1 first object to compare
+     * @param o2 second object to compare
+     * @param compared Maps the objects already under comparison to the object they are compared with
+     * @return true if both objects are equal
+     */
+    public abstract boolean equalsDeep(Object o1, Object o2, IdentityHashMap<Object, Object> compared);
+
+    /**
+     * Allocates an instance of the class this copier was generated for, without running its constructors.
+     */
+    protected abstract Object newInstance();
+
+    /**
+     * Copies a primitive array, or returns its copy if it was already copied.
+     */
+    protected static Object copyOf(Object array, IdentityHashMap<Object, Object> copies) {
+        if (array == null) {
+            return null;
+        }
+        Object copy = copies.get(array);
+        if (copy == null) {
+            int length = Array.getLength(array);
+            copy = Array.newInstance(array.getClass().getComponentType(), length);
+            System.arraycopy(array, 0, copy, 0, length);
+            copies.put(array, copy);
+        }
+        return copy;
+    }
+
+    protected static Object[] cloneArray(Object[] array, IdentityHashMap<Object, Object> copies) {
+        if (array == null) {
+            return null;
+        }
+        Object[] copy = (Object[]) copies.get(array);
+        if (copy != null) {
+            return copy;
+        }
+        copy = Arrays.copyOf(array, array.length);
+        copies.put(array, copy);
+        for (int i = 0; i < copy.length; ++i) {
+            copy[i] = cloneObject(copy[i], copies);
+        }
+        return copy;
+    }
+
+    /**
+     * Deep clones a referenced object, or returns its copy if it was already copied. Objects with a copier of
+     * their own are copied with the same copies, the rest go through PascRuntime.clone().
+     */
+    protected static Object cloneObject(Object object, IdentityHashMap<Object, Object> copies) {
+        if (object == null) {
+            return null;
+        }
+        Object copy = copies.get(object);
+        if (copy != null) {
+            return copy;
+        }
+        if (object instanceof Object[]) {
+            return cloneArray((Object[]) object, copies);
+        }
+        if (!(object instanceof CloneableDeep)) {
+            DeepCopier copier = DeepCopierGenerator.getCopier(object.getClass());
+            if (copier != null) {
+                return copier.cloneDeep(object, copies);
+            }
+        }
+        copy = PascRuntime.clone(object);
+        copies.put(object, copy);
+        return copy;
+    }
+
+    protected static boolean equalsArray(Object[] a1, Object[] a2, IdentityHashMap<Object, Object> compared) {
+        if (a1 == a2) {
+            return true;
+        }
+        if (a1 == null || a2 == null || a1.length != a2.length) {
+            return false;
+        }
+        for (int i = 0; i < a1.length; ++i) {
+            if (!equalsObject(a1[i], a2[i], compared)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares two referenced objects. Objects with a copier of their own are compared with the same pairs
+     * under comparison, the rest go through PascRuntime.compare().
+     */
+    protected static boolean equalsObject(Object o1, Object o2, IdentityHashMap<Object, Object> compared) {
+        if (o1 == o2) {
+            return true;
+        }
+        if (o1 == null || o2 == null) {
+            return false;
+        }
+        if (!(o1 instanceof EqualsDeep) && o1.getClass() == o2.getClass()) {
+            DeepCopier copier = DeepCopierGenerator.getCopier(o1.getClass());
+            if (copier != null) {
+                return copier.equalsDeep(o1, o2, compared);
+            }
+        }
+        return PascRuntime.compare(o1, o2);
+    }
+
+    protected static boolean equalsImmutable(Object o1, Object o2) {
+        return o1 == o2 || (o1 != null && o1.equals(o2));
+    }
+
+    void setType(Class<?> type) {
+        this.type = type;
+    }
+}
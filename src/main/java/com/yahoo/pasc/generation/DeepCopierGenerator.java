@@ -0,0 +1,210 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc.generation;
+
+import static com.yahoo.pasc.generation.GeneratorUtil.getFastUtilsName;
+import static com.yahoo.pasc.generation.GeneratorUtil.getPrimitiveName;
+import static com.yahoo.pasc.generation.GeneratorUtil.isImmutable;
+import static com.yahoo.pasc.generation.GeneratorUtil.isJdkClass;
+import static com.yahoo.pasc.generation.GeneratorUtil.obtainInstanceFields;
+import static com.yahoo.pasc.generation.GeneratorUtil.supportsFieldByField;
+
+import java.lang.reflect.Field;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.CtNewMethod;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yahoo.pasc.CloneableDeep;
+import com.yahoo.pasc.EqualsDeep;
+import com.yahoo.pasc.ReadOnly;
+
+/**
+ * Generates field by field deep copiers, used by PascRuntime.clone() and PascRuntime.compare() for classes that
+ * don't implement {@link CloneableDeep} or {@link EqualsDeep}.
+ * 
+ * Primitive fields and immutable values are copied directly, primitive arrays are copied in bulk and the
+ * remaining references are cloned recursively. Objects reached more than once are copied once, so aliases and
+ * cycles through fields typed Object or an interface are preserved. Transient fields are ignored, as in the
+ * reflective fallback. Copiers aren't generated for JDK classes, arrays and classes that can reference
+ * themselves through their declared field types, those keep using the reflective fallback.
+ * 
+ * Copiers are generated once per class and cached.
+ */
+public class DeepCopierGenerator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DeepCopierGenerator.class);
+
+    private static final DeepCopier NONE = new DeepCopier() {
+        @Override
+        public Object cloneDeep(Object object, IdentityHashMap<Object, Object> copies) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equalsDeep(Object o1, Object o2, IdentityHashMap<Object, Object> compared) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected Object newInstance() {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    private static final ConcurrentMap<Class<?>, DeepCopier> copiers = new ConcurrentHashMap<Class<?>, DeepCopier>();
+    private static Object lock = new Object();
+
+    /**
+     * Obtains the deep copier of the given class, generating it if needed.
+     * 
+     * @param type class of the objects to copy
+     * @return the copier of this class, or null if the class must use the reflective fallback
+     */
+    public static DeepCopier getCopier(Class<?> type) {
+        DeepCopier copier = copiers.get(type);
+        if (copier == null) {
+            synchronized (lock) {
+                copier = copiers.get(type);
+                if (copier == null) {
+                    copier = generate(type);
+                    copiers.put(type, copier);
+                }
+            }
+        }
+        return copier == NONE ? null : copier;
+    }
+
+    private static DeepCopier generate(Class<?> type) {
+        if (!supportsFieldByField(type)) {
+            return NONE;
+        }
+        String copierClassName = type.getName() + "DeepCopier";
+        try {
+            Class<?> copierClass;
+            try {
+                copierClass = Class.forName(copierClassName);
+            } catch (ClassNotFoundException ignore) {
+                copierClass = generateClass(type, copierClassName);
+            }
+            DeepCopier copier = (DeepCopier) copierClass.newInstance();
+            copier.setType(type);
+            return copier;
+        } catch (Exception ex) {
+            LOG.warn("Error constructing deep copier class: " + copierClassName, ex);
+            return NONE;
+        }
+    }
+
+    private static Class<?> generateClass(Class<?> type, String copierClassName) throws Exception {
+        List<Field> fields = obtainInstanceFields(type);
+
+        ClassPool pool = ClassPool.getDefault();
+        CtClass copierCtClass = pool.makeClass(copierClassName);
+        copierCtClass.setSuperclass(pool.get(DeepCopier.class.getName()));
+        UnsafeAccess.addUnsafeField(copierCtClass);
+        UnsafeAccess.addNewInstance(copierCtClass);
+
+        CtMethod cloneDeep = CtNewMethod.make(buildCloneDeep(fields), copierCtClass);
+        copierCtClass.addMethod(cloneDeep);
+        CtMethod equalsDeep = CtNewMethod.make(buildEqualsDeep(fields), copierCtClass);
+        copierCtClass.addMethod(equalsDeep);
+
+        return copierCtClass.toClass();
+    }
+
+    private static String buildCloneDeep(List<Field> fields) {
+        StringBuilder method = new StringBuilder();
+        method.append("public Object cloneDeep(Object source, java.util.IdentityHashMap copies) {\n");
+        method.append("Object copy = newInstance();\n");
+        method.append("copies.put(source, copy);\n");
+        for (Field field : fields) {
+            Class<?> type = field.getType();
+            long offset = UnsafeAccess.objectFieldOffset(field);
+            if (type.isPrimitive()) {
+                String name = getFastUtilsName(type);
+                method.append(String.format("unsafe.put%s(copy, %dL, unsafe.get%s(source, %dL));\n", 
+                        name, offset, name, offset));
+            } else if (isImmutable(type) || ReadOnly.class.isAssignableFrom(type)) {
+                method.append(String.format("unsafe.putObject(copy, %dL, unsafe.getObject(source, %dL));\n", 
+                        offset, offset));
+            } else if (type.isArray() && type.getComponentType().isPrimitive()) {
+                method.append(String.format("unsafe.putObject(copy, %dL, copyOf(unsafe.getObject(source, %dL), copies));\n",
+                        offset, offset));
+            } else if (type.isArray()) {
+                method.append(String.format("unsafe.putObject(copy, %dL, cloneArray((Object[]) unsafe.getObject(source, %dL), copies));\n",
+                        offset, offset));
+            } else {
+                method.append(String.format(
+                        "unsafe.putObject(copy, %dL, cloneObject(unsafe.getObject(source, %dL), copies));\n",
+                        offset, offset));
+            }
+        }
+        method.append("return copy;\n");
+        method.append("}\n");
+        LOG.trace("Method: {}", method);
+        return method.toString();
+    }
+
+    private static String buildEqualsDeep(List<Field> fields) {
+        StringBuilder method = new StringBuilder();
+        method.append("public boolean equalsDeep(Object o1, Object o2, java.util.IdentityHashMap compared) {\n");
+        method.append("if (o1 == o2 || compared.get(o1) == o2) return true;\n");
+        method.append("compared.put(o1, o2);\n");
+        for (Field field : fields) {
+            Class<?> type = field.getType();
+            long offset = UnsafeAccess.objectFieldOffset(field);
+            if (type == float.class) {
+                method.append(String.format("if (Float.floatToIntBits(unsafe.getFloat(o1, %dL)) != " +
+                        "Float.floatToIntBits(unsafe.getFloat(o2, %dL))) return false;\n", offset, offset));
+            } else if (type == double.class) {
+                method.append(String.format("if (Double.doubleToLongBits(unsafe.getDouble(o1, %dL)) != " +
+                        "Double.doubleToLongBits(unsafe.getDouble(o2, %dL))) return false;\n", offset, offset));
+            } else if (type.isPrimitive()) {
+                String name = getFastUtilsName(type);
+                method.append(String.format("if (unsafe.get%s(o1, %dL) != unsafe.get%s(o2, %dL)) return false;\n", 
+                        name, offset, name, offset));
+            } else if (isImmutable(type)) {
+                method.append(String.format(
+                        "if (!equalsImmutable(unsafe.getObject(o1, %dL), unsafe.getObject(o2, %dL))) return false;\n",
+                        offset, offset));
+            } else if (type.isArray() && type.getComponentType().isPrimitive()) {
+                String array = getPrimitiveName(type.getComponentType()) + "[]";
+                method.append(String.format("if (!java.util.Arrays.equals((%s) unsafe.getObject(o1, %dL), " +
+                        "(%s) unsafe.getObject(o2, %dL))) return false;\n", array, offset, array, offset));
+            } else if (type.isArray()) {
+                method.append(String.format("if (!equalsArray((Object[]) unsafe.getObject(o1, %dL), " +
+                        "(Object[]) unsafe.getObject(o2, %dL), compared)) return false;\n", offset, offset));
+            } else {
+                method.append(String.format("if (!equalsObject(unsafe.getObject(o1, %dL), " +
+                        "unsafe.getObject(o2, %dL), compared)) return false;\n", offset, offset));
+            }
+        }
+        method.append("return true;\n");
+        method.append("}\n");
+        LOG.trace("Method: {}", method);
+        return method.toString();
+    }
+}
@@ -18,13 +18,29 @@ package com.yahoo.pasc.generation;
 
 import org.objenesis.instantiator.ObjectInstantiator;
 
+import com.yahoo.pasc.ModificationListener;
 import com.yahoo.pasc.ProcessState;
+import com.yahoo.pasc.metrics.PascMetrics;
 
 public interface Encapsulator {
     public void setReadOnly(boolean readOnly);
     public void setCheckState(boolean checkState);
     public void applyModifications(boolean toReplica, Encapsulator replica);
+    /**
+     * Applies the modifications of an execution without a replica execution to the state and to the replica.
+     */
+    public void applySingleExecution();
 //    public boolean checkState();
     public <T extends ProcessState> void setState(T state, T replica, ObjectInstantiator objenesis);
     public void reset();
+    /**
+     * Records the accesses of the last message to the indexed fields, including the read sets of the replica
+     * execution held by the light encapsulator, like {@link #applyModifications(boolean, Encapsulator)} reads its
+     * modifications. Light encapsulators don't record anything.
+     * 
+     * @param metrics sink of the metrics
+     * @param replica light encapsulator of the replica execution, null if the message had a single execution
+     */
+    public void recordMetrics(PascMetrics metrics, Encapsulator replica);
+    public void setModificationListener(ModificationListener listener);
 }
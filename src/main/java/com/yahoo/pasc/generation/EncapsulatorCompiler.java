@@ -0,0 +1,138 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc.generation;
+
+import java.io.File;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.LoaderClassPath;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yahoo.pasc.ProcessState;
+
+/**
+ * Generates the encapsulator classes at build time, writing them next to the compiled state classes.
+ * 
+ * The generators look for an already compiled encapsulator before building one, so states whose
+ * encapsulators were generated at build time skip the runtime generation. Run it after compiling the
+ * classes, e.g. in the process-classes phase with exec-maven-plugin:
+ * 
+ * <pre>
+ * java com.yahoo.pasc.generation.EncapsulatorCompiler target/classes [stateClass ...]
+ * </pre>
+ * 
+ * When no state classes are given, every concrete {@link ProcessState} found in the directory is processed.
+ * The state classes must not change after their encapsulators are generated.
+ */
+public class EncapsulatorCompiler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EncapsulatorCompiler.class);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: EncapsulatorCompiler <classes directory> [state class ...]");
+            System.exit(1);
+        }
+        File directory = new File(args[0]);
+        List<String> states = Arrays.asList(args).subList(1, args.length);
+        
+        URLClassLoader loader = new URLClassLoader(new URL[] { directory.toURI().toURL() },
+                EncapsulatorCompiler.class.getClassLoader());
+        if (states.isEmpty()) {
+            states = findStates(directory, loader);
+        }
+        compile(directory, loader, states);
+    }
+
+    /**
+     * Generates the encapsulator and light encapsulator classes of the given states.
+     * 
+     * @param directory directory where the class files are written
+     * @param loader class loader of the state classes
+     * @param states names of the state classes
+     * @return names of the generated classes
+     */
+    public static List<String> compile(File directory, ClassLoader loader, List<String> states) throws Exception {
+        ClassPool pool = new ClassPool(true);
+        pool.appendClassPath(new LoaderClassPath(loader));
+
+        List<String> generated = new ArrayList<String>();
+        for (String state : states) {
+            Class<?> stateType = Class.forName(state, false, loader);
+
+            CtClass light = new LightEncapsulatorGenerator(stateType).generateCtClass(pool);
+            light.writeFile(directory.getPath());
+            generated.add(light.getName());
+
+            CtClass encapsulator = new EncapsulatorGenerator(stateType).generateCtClass(pool);
+            encapsulator.writeFile(directory.getPath());
+            generated.add(encapsulator.getName());
+
+            LOG.info("Generated encapsulators of {}", state);
+        }
+        return generated;
+    }
+
+    /**
+     * Finds the concrete state classes in a directory of compiled classes.
+     * 
+     * @param directory root of the compiled classes
+     * @param loader class loader of the classes in the directory
+     * @return names of the state classes found
+     */
+    public static List<String> findStates(File directory, ClassLoader loader) {
+        List<String> states = new ArrayList<String>();
+        findStates(directory, "", loader, states);
+        return states;
+    }
+
+    private static void findStates(File directory, String packagePrefix, ClassLoader loader, List<String> states) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isDirectory()) {
+                findStates(file, packagePrefix + name + ".", loader, states);
+            } else if (name.endsWith(".class")) {
+                String className = packagePrefix + name.substring(0, name.length() - ".class".length());
+                Class<?> type;
+                try {
+                    type = Class.forName(className, false, loader);
+                } catch (Throwable t) {
+                    LOG.debug("Skipping class " + className, t);
+                    continue;
+                }
+                if (ProcessState.class.isAssignableFrom(type) && !Encapsulator.class.isAssignableFrom(type)
+                        && !type.isInterface() && !Modifier.isAbstract(type.getModifiers())
+                        && !type.isAnonymousClass() && !type.isLocalClass()) {
+                    states.add(className);
+                }
+            }
+        }
+    }
+}
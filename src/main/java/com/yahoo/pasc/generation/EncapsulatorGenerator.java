@@ -17,15 +17,17 @@
 package com.yahoo.pasc.generation;
 
 import static com.yahoo.pasc.generation.GeneratorUtil.addNewLines;
+import static com.yahoo.pasc.generation.GeneratorUtil.clearSlots;
+import static com.yahoo.pasc.generation.GeneratorUtil.clearTracking;
+import static com.yahoo.pasc.generation.GeneratorUtil.getBoxed;
+import static com.yahoo.pasc.generation.GeneratorUtil.getCopy;
 import static com.yahoo.pasc.generation.GeneratorUtil.getEntrySetName;
-import static com.yahoo.pasc.generation.GeneratorUtil.getIteratorName;
 import static com.yahoo.pasc.generation.GeneratorUtil.getKeyName;
 import static com.yahoo.pasc.generation.GeneratorUtil.getMapGet;
 import static com.yahoo.pasc.generation.GeneratorUtil.getMapName;
-import static com.yahoo.pasc.generation.GeneratorUtil.getNextCall;
+import static com.yahoo.pasc.generation.GeneratorUtil.getNewArray;
 import static com.yahoo.pasc.generation.GeneratorUtil.getObjectCast;
 import static com.yahoo.pasc.generation.GeneratorUtil.getPrimitiveName;
-import static com.yahoo.pasc.generation.GeneratorUtil.getSetName;
 import static com.yahoo.pasc.generation.GeneratorUtil.getShortMapName;
 import static com.yahoo.pasc.generation.GeneratorUtil.getValueName;
 import static com.yahoo.pasc.generation.GeneratorUtil.obtainAccessibleFields;
@@ -55,6 +57,7 @@ public class EncapsulatorGenerator {
     private Objenesis objenesis = new ObjenesisStd();
     private ObjectInstantiator instantiator;
 
+    private Class<?> stateType;
     private String className;
     private String facadeClassName;
 
@@ -62,13 +65,8 @@ public class EncapsulatorGenerator {
     private static Object lock = new Object();
 
     public EncapsulatorGenerator(ProcessState state) {
+        this(state.getClass());
         synchronized(lock) {
-    
-            Class<?> stateType = state.getClass();
-            className = stateType.getName();
-            facadeClassName = className + "Encapsulator";
-            
-            
             try {
                 facadeClass = Class.forName(facadeClassName);
     
@@ -76,25 +74,13 @@ public class EncapsulatorGenerator {
                 return;
             } catch (ClassNotFoundException ignore) {
             }
-            
-            List<AccessibleField> fields = obtainAccessibleFields(stateType);
-    
-            ClassPool pool = ClassPool.getDefault();
-            CtClass facadeCtClass = pool.makeClass(facadeClassName);
     
             try {
-                facadeCtClass.setInterfaces(new CtClass[] { pool.get("com.yahoo.pasc.generation.Encapsulator") });
-                facadeCtClass.setSuperclass(pool.get(className));
-
-                generateFields(facadeCtClass, fields);
-
-                generateEncapsulatorInterfaceMethods(facadeCtClass, fields);
-
-                generateGettersAndSetters(facadeCtClass, fields);
-
-                generateToString(facadeCtClass, fields);
-
-                facadeClass = facadeCtClass.toClass();
+                if (AsmEncapsulatorGenerator.ENABLED) {
+                    facadeClass = AsmEncapsulatorGenerator.generateEncapsulator(stateType);
+                } else {
+                    facadeClass = generateCtClass(ClassPool.getDefault()).toClass();
+                }
 
                 instantiator = objenesis.getInstantiatorOf(facadeClass);
             } catch (Exception ex) {
@@ -103,6 +89,34 @@ public class EncapsulatorGenerator {
         }
     }
 
+    EncapsulatorGenerator(Class<?> stateType) {
+        this.stateType = stateType;
+        className = stateType.getName();
+        facadeClassName = className + "Encapsulator";
+    }
+
+    /**
+     * Builds the encapsulator class without loading it. The light encapsulator class of the same state must
+     * be available in the pool.
+     */
+    CtClass generateCtClass(ClassPool pool) throws Exception {
+        List<AccessibleField> fields = obtainAccessibleFields(stateType);
+
+        CtClass facadeCtClass = pool.makeClass(facadeClassName);
+        facadeCtClass.setInterfaces(new CtClass[] { pool.get("com.yahoo.pasc.generation.Encapsulator") });
+        facadeCtClass.setSuperclass(pool.get(className));
+
+        generateFields(facadeCtClass, fields);
+
+        generateEncapsulatorInterfaceMethods(facadeCtClass, fields);
+
+        generateGettersAndSetters(facadeCtClass, fields);
+
+        generateToString(facadeCtClass, fields);
+
+        return facadeCtClass;
+    }
+
     public <T extends ProcessState> Encapsulator getEncapsulator(T state, T replica) {
         Encapsulator encapsulator = (Encapsulator) instantiator.newInstance();
         encapsulator.setState(state, replica, instantiator);
@@ -120,25 +134,46 @@ public class EncapsulatorGenerator {
         facadeCtClass.addField(readOnly);
         CtField checkState = CtField.make("private boolean checkState;", facadeCtClass);
         facadeCtClass.addField(checkState);
+        CtField listener = CtField.make("private com.yahoo.pasc.ModificationListener modificationListener;", 
+                facadeCtClass);
+        facadeCtClass.addField(listener);
 
         for (AccessibleField af : fields) {
             boolean indexed = af.isIndexed();
             String name = af.getName();
             Class<?> type = af.getType();
-            if (indexed) {
+            if (af.isDense()) {
+                CtField bits = CtField.make(String.format("long[] %sWrittenBits;", name), facadeCtClass);
+                facadeCtClass.addField(bits);
+                CtField values = CtField.make(String.format("%s[] %sWrittenValues;", getPrimitiveName(type), name), 
+                        facadeCtClass);
+                facadeCtClass.addField(values);
+                CtField lowWord = CtField.make(String.format("int %sLowWord;", name), facadeCtClass);
+                facadeCtClass.addField(lowWord);
+                CtField highWord = CtField.make(String.format("int %sHighWord;", name), facadeCtClass);
+                facadeCtClass.addField(highWord);
+                CtField gets = CtField.make(String.format("int %sGets;", name), facadeCtClass);
+                facadeCtClass.addField(gets);
+                CtField cacheHits = CtField.make(String.format("int %sCacheHits;", name), facadeCtClass);
+                facadeCtClass.addField(cacheHits);
+            } else if (indexed) {
                 Class<?> keyType = af.getIndexType();
-                CtField read = CtField.make(String.format("%s %sRead = new %s();", 
-                        getSetName(keyType), name, getSetName(keyType), name), facadeCtClass);
-                facadeCtClass.addField(read);
-                CtField written = CtField.make(String.format("private %s %sWritten = new %s();", 
-                        getMapName(keyType, type), name, getMapName(keyType, type)), facadeCtClass);
+                CtField written = CtField.make(String.format("private %s %sWritten;", 
+                        getMapName(keyType, type), name), facadeCtClass);
                 facadeCtClass.addField(written);
-                CtField latestValue = CtField.make(String.format("%s %sLatestValue;", getPrimitiveName(type), name), facadeCtClass);
-                facadeCtClass.addField(latestValue);
-                CtField latestKey = CtField.make(String.format("%s %sLatestKey;", getPrimitiveName(keyType), name), facadeCtClass);
-                facadeCtClass.addField(latestKey);
-                CtField cacheValid = CtField.make(String.format("boolean %sCacheValid;", name), facadeCtClass);
-                facadeCtClass.addField(cacheValid);
+                facadeCtClass.addField(CtField.make(String.format("int %sWrittenSinceSpike;", name), facadeCtClass));
+                CtField keys = CtField.make(String.format("%s[] %sKeys;", getPrimitiveName(keyType), name), facadeCtClass);
+                facadeCtClass.addField(keys);
+                CtField values = CtField.make(String.format("%s[] %sValues;", getPrimitiveName(type), name), facadeCtClass);
+                facadeCtClass.addField(values);
+                CtField cached = CtField.make(String.format("int %sCached;", name), facadeCtClass);
+                facadeCtClass.addField(cached);
+                CtField victim = CtField.make(String.format("int %sVictim;", name), facadeCtClass);
+                facadeCtClass.addField(victim);
+                CtField gets = CtField.make(String.format("int %sGets;", name), facadeCtClass);
+                facadeCtClass.addField(gets);
+                CtField cacheHits = CtField.make(String.format("int %sCacheHits;", name), facadeCtClass);
+                facadeCtClass.addField(cacheHits);
             } else {
                 CtField read = CtField.make(String.format("boolean %sRead;", name), facadeCtClass);
                 facadeCtClass.addField(read);
@@ -153,6 +188,15 @@ public class EncapsulatorGenerator {
     private void generateGettersAndSetters(CtClass facadeCtClass, List<AccessibleField> fields)
             throws CannotCompileException {
         for (AccessibleField af : fields) {
+            if (af.isDense()) {
+                CtMethod mark = CtNewMethod.make(buildCacheMethod(markTemplate, af), facadeCtClass);
+                facadeCtClass.addMethod(mark);
+            } else if (af.isIndexed()) {
+                CtMethod findSlot = CtNewMethod.make(buildCacheMethod(findSlotTemplate, af), facadeCtClass);
+                facadeCtClass.addMethod(findSlot);
+                CtMethod newSlot = CtNewMethod.make(buildCacheMethod(newSlotTemplate, af), facadeCtClass);
+                facadeCtClass.addMethod(newSlot);
+            }
             if (af.getGetter() != null) {
                 CtMethod getter = CtNewMethod.make(buildGetter(af), facadeCtClass);
                 facadeCtClass.addMethod(getter);
@@ -177,7 +221,9 @@ public class EncapsulatorGenerator {
         
         ST setterTemplate;
 
-        if (indexed) {
+        if (af.isDense()) {
+            setterTemplate = new ST(setterDense, '$', '$');
+        } else if (indexed) {
             setterTemplate = new ST(setterMulti, '$', '$');
             Class<?> keyType = af.getIndexType(); 
             primitiveKey = keyType.isPrimitive();
@@ -200,20 +246,22 @@ public class EncapsulatorGenerator {
             "public final $type$ $getter$() {" +
             "   if(!$var$Written) {" +
             "       if(!$var$Read) {" +
-            // If never read must be checked
+            // If never read must be checked, unless the replica execution is checking it concurrently
             "           $var$Read = true;" +
+            "           $if(checked)$" +
             "           $if(primitive)$ " +
-            "               if(state.$getter$() != replica.$getter$()) {" +
+            "               if(checkState && state.$getter$() != replica.$getter$()) {" +
             "                   throw new com.yahoo.pasc.exceptions.VariableCorruptionException(\"$var$\", " +
             "                       state.$getter$(), replica.$getter$());" +
             "               }" +
             "           $endif$" +
             "           $if(!primitive)$" +
-            "               if(!com.yahoo.pasc.PascRuntime.compare(state.$getter$(), replica.$getter$())) {" +
+            "               if(checkState && !com.yahoo.pasc.PascRuntime.compare(state.$getter$(), replica.$getter$())) {" +
             "                   throw new com.yahoo.pasc.exceptions.VariableCorruptionException(\"$var$\", " +
             "                       state.$getter$(), replica.$getter$());" +
             "               }" +
             "           $endif$" +
+            "           $endif$" +
             "       }" +
             // If never written must be cloned
             "       $var$Written = true;" +
@@ -226,54 +274,119 @@ public class EncapsulatorGenerator {
 
     private String getterMulti = addNewLines(
             "public final $type$ $getter$($typeKey$ _key) {" +
-            "   if($var$CacheValid) {" +
-            "       if (" +
-            "       $if(primitiveKey)$ " +
-            "           $var$LatestKey == _key" +
+            "   $var$Gets++;" +
+            "   int slot = $var$FindSlot(_key);" +
+            "   if (slot >= 0) {" +
+            //      Cache hit, return it
+            "       $var$CacheHits++;" +
+            "       return $var$Values[slot];" +
+            "   }" +
+            "   $type$ temp;" +
+            "   if ($var$Written != null && $var$Written.containsKey(_key)) {" +
+            //      Written map hit (key has been read and cloned already). Return value in map, but don't check it
+            "       temp = $objectCast$ $var$Written.$mapGet$(_key);" +
+            "   } else {" +
+            //      Cache and map miss. Check replica, unless the replica execution is checking it concurrently
+            "       $if(primitive)$ " +
+            "           temp = state.$getter$(_key);" +
+            "           $if(checked)$" +
+            "           if(checkState && temp != replica.$getter$(_key)) {" +
+            "               throw new com.yahoo.pasc.exceptions.VariableCorruptionException(\"$var$\", temp, replica.$getter$(_key));" +
+            "           }" +
+            "           $endif$" +
+            "       $endif$" +
+            "       $if(!primitive)$" +
+            "           temp = $objectCast$ com.yahoo.pasc.PascRuntime.clone(state.$getter$(_key));" +
+            "           $if(checked)$" +
+            "           if(checkState && !com.yahoo.pasc.PascRuntime.compare(temp, replica.$getter$(_key))) {" +
+            "               throw new com.yahoo.pasc.exceptions.VariableCorruptionException(\"$var$\", temp, replica.$getter$(_key));" +
+            "           }" +
+            "           $endif$" +
+            "       $endif$" +
+            "   }" +
+            //  Write in cache, the key spilled from it (if any) has been moved to the map
+            "   slot = $var$NewSlot();" +
+            "   $var$Keys[slot] = _key;" +
+            "   $var$Values[slot] = temp;" +
+            "   return temp;" +
+            "}"
+            );
+
+    private String findSlotTemplate = addNewLines(
+            "private final int $var$FindSlot($typeKey$ _key) {" +
+            "   for (int i = 0; i < $var$Cached; i++) {" +
+            "       $if(primitiveKey)$" +
+            "           if ($var$Keys[i] == _key) return i;" +
             "       $endif$" +
             "       $if(!primitiveKey)$" +
-            "           $var$LatestKey.equals(_key)" +
+            "           $typeKey$ cached = $var$Keys[i];" +
+            "           if (cached == _key || (cached != null && cached.equals(_key))) return i;" +
             "       $endif$" +
-            "           ) {" +
-            //          Cache hit, return it
-            "           return $var$LatestValue;" +
-            "       } else {" +
-            //			Cache miss, clean it and move cached value to map
-            "   		$var$Written.put($var$LatestKey, $var$LatestValue);" +
-            "			if ($var$Written.containsKey(_key)) {" +	
-            //          Written map hit (key has been read and cloned already). 
-            //			Return value in map, but don't check it, and put it in cache.
-            "				$type$ temp = $objectCast$ $var$Written.$mapGet$(_key);" +
-            "       		$var$LatestValue = temp;" +
-            "       		$var$LatestKey = _key;" +
-            "       		return temp;" +
-            "			}" +
-            "       }" +
             "   }" +
-            //	Cache and map miss. Overwrite cache (if it was dirty, it was cleaned already)
-            //  Check replica
+            "   return -1;" +
+            "}"
+            );
+
+    private String newSlotTemplate = addNewLines(
+            "private final int $var$NewSlot() {" +
+            "   int slot;" +
+            "   if ($var$Cached < $var$Keys.length) {" +
+            "       slot = $var$Cached;" +
+            "       $var$Cached = slot + 1;" +
+            "       return slot;" +
+            "   }" +
+            //  Cache full, spill the oldest key to the map, created on the first spill
+            "   slot = $var$Victim;" +
+            "   $var$Victim = slot + 1 == $var$Keys.length ? 0 : slot + 1;" +
+            "   if ($var$Written == null) $var$Written = new $mapName$();" +
+            "   $var$Written.put($var$Keys[slot], $var$Values[slot]);" +
+            "   return slot;" +
+            "}"
+            );
+
+    private String getterDense = addNewLines(
+            "public final $type$ $getter$(int _key) {" +
+            "   $var$Gets++;" +
+            "   if (($var$WrittenBits[_key >> 6] & (1L << _key)) != 0) {" +
+            //      Already read or written, return it
+            "       $var$CacheHits++;" +
+            "       return $var$WrittenValues[_key];" +
+            "   }" +
+            //  Check replica, unless the replica execution is checking it concurrently
             "   $if(primitive)$ " +
             "       $type$ temp = state.$getter$(_key);" +
-            "       if(temp != replica.$getter$(_key)) {" +
+            "       $if(checked)$" +
+            "       if(checkState && temp != replica.$getter$(_key)) {" +
             "           throw new com.yahoo.pasc.exceptions.VariableCorruptionException(\"$var$\", temp, replica.$getter$(_key));" +
             "       }" +
+            "       $endif$" +
             "   $endif$" +
             "   $if(!primitive)$" +
             "       $type$ temp = $objectCast$ com.yahoo.pasc.PascRuntime.clone(state.$getter$(_key));" +
-            "       if(!com.yahoo.pasc.PascRuntime.compare(temp, replica.$getter$(_key))) {" +
+            "       $if(checked)$" +
+            "       if(checkState && !com.yahoo.pasc.PascRuntime.compare(temp, replica.$getter$(_key))) {" +
             "           throw new com.yahoo.pasc.exceptions.VariableCorruptionException(\"$var$\", temp, replica.$getter$(_key));" +
             "       }" +
+            "       $endif$" +
             "   $endif$" +
-            //  Write in cache
-            "   $var$CacheValid = true;" +
-            "   $var$LatestValue = temp;" +
-            "   $var$LatestKey = _key;" +
+            "   $var$WrittenValues[_key] = temp;" +
+            "   $var$Mark(_key);" +
             "   return temp;" +
             "}"
             );
 
+    private String markTemplate = addNewLines(
+            "private final void $var$Mark(int _key) {" +
+            "   int word = _key >> 6;" +
+            "   $var$WrittenBits[word] = $var$WrittenBits[word] | (1L << _key);" +
+            "   if (word < $var$LowWord) $var$LowWord = word;" +
+            "   if (word >= $var$HighWord) $var$HighWord = word + 1;" +
+            "}"
+            );
+
     private String setterSingle = addNewLines(
             "public final void $setter$($type$ _value) {" +
+            "   if (readOnly) throw new IllegalStateException(\"Field $var$ written by a read only handler\");" +
             "   $var$Written = true;" +
             "   $var$Read = true;" +
             "   $var$Ref = _value;" +
@@ -282,26 +395,36 @@ public class EncapsulatorGenerator {
 
     private String setterMulti = addNewLines(
             "public final void $setter$($typeKey$ _key, $type$ _value) {" +
-            "   if ($var$CacheValid) {" +
-            "       if (" +
-            "           $if(primitiveKey)$" +
-            "               $var$LatestKey != _key" +
-            "           $endif$" +
-            "           $if(!primitiveKey)$" +
-            "               ($var$LatestKey == null && _key != null) || ($var$LatestKey != null && !$var$LatestKey.equals(_key))" +
-            "           $endif$" +
-            "               ) {" +
-            //			Overwrite map
-            "           $var$Written.put($var$LatestKey, $var$LatestValue);" +
-            "       }" +
+            "   if (readOnly) throw new IllegalStateException(\"Field $var$ written by a read only handler\");" +
+            "   int slot = $var$FindSlot(_key);" +
+            "   if (slot < 0) {" +
+            "       slot = $var$NewSlot();" +
+            "       $var$Keys[slot] = _key;" +
             "   }" +
             //  Update cache
-            "   $var$CacheValid = true;" +
-            "   $var$LatestValue = _value;" +
-            "   $var$LatestKey = _key;" +
+            "   $var$Values[slot] = _value;" +
             "}"
             );
 
+    private String setterDense = addNewLines(
+            "public final void $setter$(int _key, $type$ _value) {" +
+            "   if (readOnly) throw new IllegalStateException(\"Field $var$ written by a read only handler\");" +
+            "   $var$WrittenValues[_key] = _value;" +
+            "   $var$Mark(_key);" +
+            "}"
+            );
+
+    private String buildCacheMethod(String template, AccessibleField af) {
+        ST method = new ST(template, '$', '$');
+        method.add("typeKey", getPrimitiveName(af.getIndexType()));
+        method.add("var", af.getName());
+        method.add("primitiveKey", af.getIndexType().isPrimitive());
+        method.add("mapName", getMapName(af.getIndexType(), af.getType()));
+        String result = method.render();
+        LOG.trace("Method: {}", result);
+        return result;
+    }
+
     private String buildGetter(AccessibleField af) {
         Class<?> type = af.getType();
 
@@ -318,7 +441,9 @@ public class EncapsulatorGenerator {
         
         ST getterTemplate;
 
-        if (indexed) {
+        if (af.isDense()) {
+            getterTemplate = new ST(getterDense, '$', '$');
+        } else if (indexed) {
             getterTemplate = new ST(getterMulti, '$', '$');
             Class<?> keyType = af.getIndexType();
             mapGet = getMapGet(keyType, type);
@@ -334,6 +459,7 @@ public class EncapsulatorGenerator {
         getterTemplate.add("var", name);
         getterTemplate.add("primitive", primitive);
         getterTemplate.add("primitiveKey", primitiveKey);
+        getterTemplate.add("checked", af.isChecked());
         getterTemplate.add("objectCast", getObjectCast(type));
         getterTemplate.add("mapGet", mapGet);
         
@@ -350,9 +476,10 @@ public class EncapsulatorGenerator {
         
         for (AccessibleField af : fields) {
             String name = af.getName();
-            if (af.isIndexed()) {
+            if (af.isDense()) {
+                continue;
+            } else if (af.isIndexed()) {
                 method.append(String.format("sb.append(\"%s writes: \" + %sWritten + \"\\n\"); \n", name, name));
-                method.append(String.format("sb.append(\"%s reads: \" + %sRead + \"\\n\"); \n", name, name));
             } else {
                 method.append(String.format("sb.append(\"%s written? \" + Boolean.valueOf(%sWritten).toString() + \" read? \" + Boolean.valueOf(%sRead).toString() + \"\\n\"); \n", name, name, name));
                 method.append(String.format("sb.append(\"%s value: \" + %sRef + \"\\n\"); \n", name, name));
@@ -371,6 +498,7 @@ public class EncapsulatorGenerator {
             "" +
             "   $variableApplications$" +
             "" +
+            "   if (!toReplica && modificationListener != null) modificationListener.committed();" +
             "}");
     
     private String applySingle = addNewLines(
@@ -380,50 +508,178 @@ public class EncapsulatorGenerator {
             "       if(!$var$Read)" +
             "           throw new com.yahoo.pasc.exceptions.AsymmetricalChangesException(\"$var$\", null, null);" +
             "       temp.$setter$($var$Ref);" +
+            "       if (!toReplica && modificationListener != null)" +
+            "           modificationListener.modified(\"$var$\", null, $boxedRef$);" +
             "   }");
     
     private String applyMulti = addNewLines(
-            "   if ($var$CacheValid) {" +
+            "   if ($var$Cached > 0 || lightEncap.$var$Cached > 0) {" +
             "       $typeKey$ tempKey;" +
             "       $typeKey$ replicaKey;" +
-            // First apply changes from the map
-            "       if ($var$Written != null && !$var$Written.isEmpty()) {" +
+            // First apply changes from the map, both sides must have spilled the same keys
+            "       int spilled = $var$Written == null ? 0 : $var$Written.size();" +
+            "       int lightSpilled = lightEncap.$var$Read == null ? 0 : lightEncap.$var$Read.size();" +
+            "       if (spilled != lightSpilled)" +
+            "           throw new com.yahoo.pasc.exceptions.AsymmetricalChangesException(\"$var$\", null, null);" +
+            "       if (spilled > 0) {" +
             "           it.unimi.dsi.fastutil.objects.ObjectIterator it = $var$Written.$entrySetName$().fastIterator();" +
-            "           $iteratorName$ itl = lightEncap.$var$Read.iterator();" +
             "           while(it.hasNext()) {" +
             "               $mapName$.Entry entry = ($mapName$.Entry) it.next();" +
             "               tempKey = entry.get$keyName$();" +
-            "               replicaKey = $castKey$ itl.$nextName$();" +
-            "               $if(primitiveKey)$" +
-            "                   if(tempKey != replicaKey) " +
-            "                       throw new com.yahoo.pasc.exceptions.AsymmetricalChangesException(\"$var$\", tempKey, replicaKey);" +
-            "               $endif$" +
-            "               $if(!primitiveKey)$" +
-            "                   if(!((Object)tempKey).equals(replicaKey)) " +
-            "                       throw new com.yahoo.pasc.exceptions.AsymmetricalChangesException(\"$var$\", tempKey, replicaKey);" +
-            "               $endif$" +
+            "               if (!lightEncap.$var$Read.contains(tempKey)) " +
+            "                   throw new com.yahoo.pasc.exceptions.AsymmetricalChangesException(\"$var$\", String.valueOf(tempKey), null);" +
             "               temp.$setter$($castKey$ tempKey, $castValue$ entry.get$valueName$());" +
+            "               if (!toReplica && modificationListener != null)" +
+            "                   modificationListener.modified(\"$var$\", $boxedKey$, $boxedEntry$);" +
             "           }" +
-            "           if (itl.hasNext())  " +
-            "               throw new com.yahoo.pasc.exceptions.AsymmetricalChangesException(\"$var$\", null, itl.next());" +
-            "       } else if (($var$Read != null && !$var$Read.isEmpty()) || " +
-            "               (lightEncap.$var$Read != null && !lightEncap.$var$Read.isEmpty()))  " +
-            "           throw new com.yahoo.pasc.exceptions.AsymmetricalChangesException(\"$var$\", null, null);" +
+            "       }" +
             // then apply changes from the cache (modified last)
-            "       tempKey = $var$LatestKey;" +
-            "       replicaKey = lightEncap.$var$LatestKey;" +
-            "       $if(primitiveKey)$" +
-            "           if(tempKey != replicaKey) " +
-            "               throw new com.yahoo.pasc.exceptions.AsymmetricalChangesException(\"$var$\", tempKey, replicaKey);" +
-            "       $endif$" +
-            "       $if(!primitiveKey)$" +
-            "           if(!((Object)tempKey).equals(replicaKey)) " +
-            "               throw new com.yahoo.pasc.exceptions.AsymmetricalChangesException(\"$var$\", tempKey, replicaKey);" +
-            "       $endif$" +
-            "       temp.$setter$($var$LatestKey, $var$LatestValue);" +
+            "       if ($var$Cached != lightEncap.$var$Cached)" +
+            "           throw new com.yahoo.pasc.exceptions.AsymmetricalChangesException(\"$var$\", null, null);" +
+            "       for (int i = 0; i < $var$Cached; i++) {" +
+            "           tempKey = $var$Keys[i];" +
+            "           replicaKey = lightEncap.$var$Keys[i];" +
+            "           $if(primitiveKey)$" +
+            "               if(tempKey != replicaKey) " +
+            "                   throw new com.yahoo.pasc.exceptions.AsymmetricalChangesException(\"$var$\", tempKey, replicaKey);" +
+            "           $endif$" +
+            "           $if(!primitiveKey)$" +
+            "               if(!((Object)tempKey).equals(replicaKey)) " +
+            "                   throw new com.yahoo.pasc.exceptions.AsymmetricalChangesException(\"$var$\", tempKey, replicaKey);" +
+            "           $endif$" +
+            "           temp.$setter$(tempKey, $var$Values[i]);" +
+            "           if (!toReplica && modificationListener != null)" +
+            "               modificationListener.modified(\"$var$\", $boxedKey$, $boxedValue$);" +
+            "       }" +
+            "   }"
+            );
+
+    private String applyDense = addNewLines(
+            "   if ($var$HighWord > 0 || lightEncap.$var$HighWord > 0) {" +
+            "       int low = Math.min($var$LowWord, lightEncap.$var$LowWord);" +
+            "       int high = Math.max($var$HighWord, lightEncap.$var$HighWord);" +
+            // Both sides must have touched the same keys, apply them in order
+            "       for (int w = low; w < high; w++) {" +
+            "           long word = $var$WrittenBits[w];" +
+            "           if (word != lightEncap.$var$ReadBits[w])" +
+            "               throw new com.yahoo.pasc.exceptions.AsymmetricalChangesException(\"$var$\", null, null);" +
+            "           while (word != 0L) {" +
+            "               int key = (w << 6) + Long.numberOfTrailingZeros(word);" +
+            "               temp.$setter$(key, $var$WrittenValues[key]);" +
+            "               if (!toReplica && modificationListener != null)" +
+            "                   modificationListener.modified(\"$var$\", Integer.valueOf(key), $boxedValue$);" +
+            "               word = word & (word - 1L);" +
+            "           }" +
+            "       }" +
+            "   }"
+            );
+
+    private String applySingleExecution = addNewLines(
+            "public void applySingleExecution() {" +
+            "" +
+            "   $variableApplications$" +
+            "" +
+            "   if (modificationListener != null) modificationListener.committed();" +
+            "}");
+
+    // Without a replica execution, the replica gets its own copy of each value
+    private String applySingleSingle = addNewLines(
+            "   if($var$Written) {" +
+            "       state.$setter$($var$Ref);" +
+            "       replica.$setter$($replicaRef$);" +
+            "       if (modificationListener != null)" +
+            "           modificationListener.modified(\"$var$\", null, $boxedRef$);" +
+            "   }");
+
+    private String applySingleMulti = addNewLines(
+            "   if ($var$Cached > 0) {" +
+            "       if ($var$Written != null) {" +
+            "           it.unimi.dsi.fastutil.objects.ObjectIterator it = $var$Written.$entrySetName$().fastIterator();" +
+            "           while(it.hasNext()) {" +
+            "               $mapName$.Entry entry = ($mapName$.Entry) it.next();" +
+            "               $typeKey$ tempKey = $castKey$ entry.get$keyName$();" +
+            "               $type$ tempValue = $castValue$ entry.get$valueName$();" +
+            "               state.$setter$(tempKey, tempValue);" +
+            "               replica.$setter$(tempKey, $replicaTemp$);" +
+            "               if (modificationListener != null)" +
+            "                   modificationListener.modified(\"$var$\", $boxedKey$, $boxedTemp$);" +
+            "           }" +
+            "       }" +
+            "       for (int i = 0; i < $var$Cached; i++) {" +
+            "           state.$setter$($var$Keys[i], $var$Values[i]);" +
+            "           replica.$setter$($var$Keys[i], $replicaValue$);" +
+            "           if (modificationListener != null)" +
+            "               modificationListener.modified(\"$var$\", $boxedCachedKey$, $boxedValue$);" +
+            "       }" +
+            "   }"
+            );
+
+    private String applySingleDense = addNewLines(
+            "   for (int w = $var$LowWord; w < $var$HighWord; w++) {" +
+            "       long word = $var$WrittenBits[w];" +
+            "       while (word != 0L) {" +
+            "           int key = (w << 6) + Long.numberOfTrailingZeros(word);" +
+            "           state.$setter$(key, $var$WrittenValues[key]);" +
+            "           replica.$setter$(key, $replicaValue$);" +
+            "           if (modificationListener != null)" +
+            "               modificationListener.modified(\"$var$\", Integer.valueOf(key), $boxedValue$);" +
+            "           word = word & (word - 1L);" +
+            "       }" +
             "   }"
             );
 
+    private String buildApplySingleExecution(List<AccessibleField> fields) {
+        String applications = "";
+
+        for (AccessibleField af : fields) {
+            if (af.getSetter() == null) {
+                continue;
+            }
+
+            String name = af.getName();
+            Class<?> value = af.getType();
+
+            ST application;
+            if (af.isDense()) {
+                application = new ST(applySingleDense, '$', '$');
+                application.add("replicaValue", getCopy(value, name + "WrittenValues[key]"));
+                application.add("boxedValue", getBoxed(value, name + "WrittenValues[key]"));
+            } else if (af.isIndexed()) {
+                application = new ST(applySingleMulti, '$', '$');
+                Class<?> key = af.getIndexType();
+                application.add("type", getPrimitiveName(value));
+                application.add("typeKey", getPrimitiveName(key));
+                application.add("mapName", getShortMapName(key, value));
+                application.add("castKey", getObjectCast(key));
+                application.add("castValue", getObjectCast(value));
+                application.add("keyName", getKeyName(key));
+                application.add("valueName", getValueName(value));
+                application.add("entrySetName", getEntrySetName(key, value));
+                application.add("replicaTemp", getCopy(value, "tempValue"));
+                application.add("replicaValue", getCopy(value, name + "Values[i]"));
+                application.add("boxedKey", getBoxed(key, "tempKey"));
+                application.add("boxedTemp", getBoxed(value, "tempValue"));
+                application.add("boxedCachedKey", getBoxed(key, name + "Keys[i]"));
+                application.add("boxedValue", getBoxed(value, name + "Values[i]"));
+            } else {
+                application = new ST(applySingleSingle, '$', '$');
+                application.add("replicaRef", getCopy(value, name + "Ref"));
+                application.add("boxedRef", getBoxed(value, name + "Ref"));
+            }
+
+            application.add("var", name);
+            application.add("setter", af.getSetter());
+            applications += application.render();
+        }
+
+        ST method = new ST(applySingleExecution, '$', '$');
+        method.add("variableApplications", applications);
+
+        String result = method.render();
+        LOG.trace("Method: {}", result);
+        return result;
+    }
+
     private String buildApplyModifications(List<AccessibleField> fields) {
         String applications = "";
         
@@ -437,21 +693,27 @@ public class EncapsulatorGenerator {
             boolean primitiveKey = false;
             
             ST application;
-            if (af.isIndexed()) {
+            if (af.isDense()) {
+                application = new ST(applyDense, '$', '$');
+                application.add("boxedValue", getBoxed(value, name + "WrittenValues[key]"));
+            } else if (af.isIndexed()) {
                 application = new ST(applyMulti, '$', '$');
                 Class<?> key = af.getIndexType();
                 application.add("typeKey", getPrimitiveName(key));
-                application.add("iteratorName", getIteratorName(key));
                 application.add("mapName", getShortMapName(key, value));
                 application.add("castKey", getObjectCast(key));
                 application.add("castValue", getObjectCast(value));
-                application.add("nextName", getNextCall(key));
                 application.add("keyName", getKeyName(key));
                 application.add("valueName", getValueName(value));
                 application.add("entrySetName", getEntrySetName(key, value));
+                application.add("boxedKey", getBoxed(key, "tempKey"));
+                application.add("boxedEntry", getBoxed(value, 
+                        getObjectCast(value) + " entry.get" + getValueName(value) + "()"));
+                application.add("boxedValue", getBoxed(value, name + "Values[i]"));
                 primitiveKey = key.isPrimitive();
             } else {
                 application = new ST(applySingle, '$', '$');
+                application.add("boxedRef", getBoxed(value, name + "Ref"));
             }
             
             application.add("var", name);
@@ -475,12 +737,51 @@ public class EncapsulatorGenerator {
         CtMethod setCheckState = CtNewMethod.make(
                 "public void setCheckState(boolean checkState) { this.checkState = checkState; } \n", facadeCtClass);
         facadeCtClass.addMethod(setCheckState);
+        CtMethod setModificationListener = CtNewMethod.make(
+                "public void setModificationListener(com.yahoo.pasc.ModificationListener listener) { " +
+                "this.modificationListener = listener; } \n", facadeCtClass);
+        facadeCtClass.addMethod(setModificationListener);
         CtMethod applyModifications = CtNewMethod.make(buildApplyModifications(fields), facadeCtClass);
         facadeCtClass.addMethod(applyModifications);
+        CtMethod applySingleExecution = CtNewMethod.make(buildApplySingleExecution(fields), facadeCtClass);
+        facadeCtClass.addMethod(applySingleExecution);
         CtMethod reset = CtNewMethod.make(buildReset(fields), facadeCtClass);
         facadeCtClass.addMethod(reset);
         CtMethod setState = CtNewMethod.make(buildSetState(fields), facadeCtClass);
         facadeCtClass.addMethod(setState);
+        CtMethod recordMetrics = CtNewMethod.make(buildRecordMetrics(fields), facadeCtClass);
+        facadeCtClass.addMethod(recordMetrics);
+    }
+
+    private String buildRecordMetrics(List<AccessibleField> fields) {
+        StringBuilder method = new StringBuilder();
+        method.append("public void recordMetrics(com.yahoo.pasc.metrics.PascMetrics metrics, " +
+                "com.yahoo.pasc.generation.Encapsulator lightEncapsulator) {\n");
+        method.append(String.format("%sLightEncapsulator lightEncap = (%sLightEncapsulator) lightEncapsulator; \n", 
+                className, className));
+        for (AccessibleField af : fields) {
+            String name = af.getName();
+            if (af.isDense()) {
+                method.append("{ \n");
+                method.append("int count = 0; \n");
+                method.append(String.format("for (int w = %sLowWord; w < %sHighWord; w++) " +
+                        "count += Long.bitCount(%sWrittenBits[w]); \n", name, name, name));
+                method.append("int read = 0; \n");
+                method.append(String.format("if (lightEncap != null) for (int w = lightEncap.%sLowWord; " +
+                        "w < lightEncap.%sHighWord; w++) read += Long.bitCount(lightEncap.%sReadBits[w]); \n", 
+                        name, name, name));
+                method.append(String.format("metrics.recordIndexedField(\"%s\", %sCacheHits, %sGets - %sCacheHits, " +
+                        "count, read, 0); \n", name, name, name, name));
+                method.append("} \n");
+            } else if (af.isIndexed()) {
+                method.append(String.format("metrics.recordIndexedField(\"%s\", %sCacheHits, %sGets - %sCacheHits, " +
+                        "%sWritten == null ? 0 : %sWritten.size(), " +
+                        "lightEncap == null || lightEncap.%sRead == null ? 0 : lightEncap.%sRead.size(), %sCached); \n", 
+                        name, name, name, name, name, name, name, name, name));
+            }
+        }
+        method.append("}\n");
+        return method.toString();
     }
 
     private String buildReset(List<AccessibleField> fields) {
@@ -488,10 +789,31 @@ public class EncapsulatorGenerator {
         method.append("public void reset() {\n");
         for (AccessibleField af : fields) {
             String name = af.getName();
-            if (af.isIndexed()) {
-                method.append(String.format("if (%sRead != null) %sRead.clear(); \n", name, name));
-                method.append(String.format("if (%sWritten != null) %sWritten.clear(); \n", name, name));
-                method.append(String.format("%sCacheValid = false; \n", name));
+            if (af.isDense()) {
+                if (!af.getType().isPrimitive()) {
+                    // null the written values so they don't outlive the message
+                    method.append(String.format("for (int w = %sLowWord; w < %sHighWord; w++) { \n", name, name));
+                    method.append(String.format("    long word = %sWrittenBits[w]; \n", name));
+                    method.append("    while (word != 0L) { \n");
+                    method.append(String.format("        %sWrittenValues[(w << 6) + Long.numberOfTrailingZeros(word)] "
+                            + "= null; \n", name));
+                    method.append("        word = word & (word - 1L); \n");
+                    method.append("    } \n");
+                    method.append("} \n");
+                }
+                method.append(String.format("for (int w = %sLowWord; w < %sHighWord; w++) %sWrittenBits[w] = 0L; \n", 
+                        name, name, name));
+                method.append(String.format("%sLowWord = %sWrittenBits.length; \n", name, name));
+                method.append(String.format("%sHighWord = 0; \n", name));
+                method.append(String.format("%sGets = 0; \n", name));
+                method.append(String.format("%sCacheHits = 0; \n", name));
+            } else if (af.isIndexed()) {
+                method.append(clearTracking(name + "Written"));
+                method.append(clearSlots(af));
+                method.append(String.format("%sCached = 0; \n", name));
+                method.append(String.format("%sVictim = 0; \n", name));
+                method.append(String.format("%sGets = 0; \n", name));
+                method.append(String.format("%sCacheHits = 0; \n", name));
             } else {
                 method.append(String.format("%sRead = false; \n", name));
                 method.append(String.format("%sWritten = false; \n", name));
@@ -508,15 +830,21 @@ public class EncapsulatorGenerator {
         method.append(String.format("this.state = (%s) state;\n", className));
         method.append(String.format("this.replica = (%s) replica;\n", className));
         method.append("this.instantiator = instantiator;\n");
+        method.append("this.checkState = true;\n");
         for (AccessibleField af : fields) {
             Class<?> type = af.getType();
             String name = af.getName();
-            if (af.isIndexed()) {
+            if (af.isDense()) {
+                int size = af.getDenseSize();
+                method.append(String.format("%sWrittenBits = new long[%d];", name, (size + 63) / 64));
+                method.append(String.format("%sWrittenValues = %s;", name, getNewArray(type, size)));
+                method.append(String.format("%sLowWord = %sWrittenBits.length;", name, name));
+                method.append(String.format("%sHighWord = 0;", name));
+            } else if (af.isIndexed()) {
                 Class<?> typeKey = af.getIndexType();
-                method.append(String.format("%sRead = new %s();", 
-                        name, getSetName(typeKey), name));
-                method.append(String.format("%sWritten = new %s();", 
-                        name, getMapName(typeKey, type)));
+                method.append(String.format("%sWritten = null;", name));
+                method.append(String.format("%sKeys = %s;", name, getNewArray(typeKey, af.getCacheSize())));
+                method.append(String.format("%sValues = %s;", name, getNewArray(type, af.getCacheSize())));
             }
         }
         method.append("}\n");
@@ -16,16 +16,50 @@
 
 package com.yahoo.pasc.generation;
 
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.objectweb.asm.Type;
 
+import com.yahoo.pasc.Dense;
+import com.yahoo.pasc.FieldProtection;
+import com.yahoo.pasc.KeyCache;
+import com.yahoo.pasc.Protection;
+import com.yahoo.pasc.ReadOnly;
+
 class GeneratorUtil {
 
+    /**
+     * Key tracking structures that held more entries than this are dropped instead of cleared once
+     * {@link #SPIKE_RESETS} smaller messages followed, so a spike doesn't leave a large table to be zeroed on
+     * every later message, while handlers that always touch many keys keep reusing theirs.
+     */
+    static final int MAX_RETAINED_KEYS = 64;
+
+    static final int SPIKE_RESETS = 16;
+
+    /**
+     * Builds the statements that clear a key tracking structure after a message, see {@link #MAX_RETAINED_KEYS}.
+     * The int field named after the structure with a SinceSpike suffix counts the messages since it was large.
+     */
+    static String clearTracking(String field) {
+        return String.format("if (%1$s != null) { \n"
+                + "    if (%1$s.size() > %2$d) %1$sSinceSpike = 1; \n"
+                + "    else if (%1$sSinceSpike > 0) { \n"
+                + "        %1$sSinceSpike++; \n"
+                + "        if (%1$sSinceSpike > %3$d) { %1$s = null; %1$sSinceSpike = 0; } \n"
+                + "    } \n"
+                + "    if (%1$s != null) %1$s.clear(); \n"
+                + "} \n", field, MAX_RETAINED_KEYS, SPIKE_RESETS);
+    }
+
     static String addNewLines(String string) {
         return string.replaceAll("([^ ])   ", "$1\n   ").replaceAll(";}",";\n}").replaceAll("}}","}\n}")
                 .replaceAll("<<", "<<\n").replace(">>", "\n>>\n");
@@ -140,6 +174,37 @@ class GeneratorUtil {
         return "(" + type.getCanonicalName() + ")";
     }
 
+    /**
+     * Builds the expression that boxes a value of the given type, Javassist doesn't box automatically.
+     */
+    static String getBoxed(Class<?> type, String value) {
+        if (!type.isPrimitive()) return value;
+        return getWrapper(type).getName() + ".valueOf(" + value + ")";
+    }
+
+    /**
+     * Builds the expression that deep copies a value, values that can't be modified are shared.
+     */
+    static String getCopy(Class<?> type, String value) {
+        if (type.isPrimitive() || isImmutable(type)) return value;
+        return getObjectCast(type) + " com.yahoo.pasc.PascRuntime.clone(" + value + ")";
+    }
+
+    static Class<?> getWrapper(Class<?> type) {
+        Type fieldType = Type.getType(type);
+        switch (fieldType.getSort()) {
+        case Type.BOOLEAN: return Boolean.class;
+        case Type.BYTE: return Byte.class;
+        case Type.CHAR: return Character.class;
+        case Type.SHORT: return Short.class;
+        case Type.INT: return Integer.class;
+        case Type.LONG: return Long.class;
+        case Type.FLOAT: return Float.class;
+        case Type.DOUBLE: return Double.class;
+        default: return type;
+        }
+    }
+
     static String getPrimitiveName(Class<?> type) {
         Type fieldType = Type.getType(type);
         switch (fieldType.getSort()) {
@@ -164,6 +229,98 @@ class GeneratorUtil {
         }
     }
 
+    /**
+     * Builds the expression that creates an array of the given component type, which can be an array itself.
+     */
+    static String getNewArray(Class<?> type, int length) {
+        StringBuilder dimensions = new StringBuilder();
+        while (type.isArray()) {
+            dimensions.append("[]");
+            type = type.getComponentType();
+        }
+        return "new " + getPrimitiveName(type) + "[" + length + "]" + dimensions;
+    }
+
+    /**
+     * Builds the statements that null the cache slots of an indexed field used since the last reset, so they
+     * don't retain keys and values.
+     */
+    static String clearSlots(AccessibleField af) {
+        boolean keys = !af.getIndexType().isPrimitive();
+        boolean values = !af.getType().isPrimitive();
+        if (!keys && !values) {
+            return "";
+        }
+        String name = af.getName();
+        StringBuilder statements = new StringBuilder();
+        statements.append(String.format("for (int i = 0; i < %sCached; i++) { \n", name));
+        if (keys) {
+            statements.append(String.format("    %sKeys[i] = null; \n", name));
+        }
+        if (values) {
+            statements.append(String.format("    %sValues[i] = null; \n", name));
+        }
+        statements.append("} \n");
+        return statements.toString();
+    }
+
+    static boolean isImmutable(Class<?> type) {
+        return type == String.class || type == Integer.class || type == Long.class || type == Boolean.class
+                || type == Byte.class || type == Character.class || type == Short.class || type == Float.class
+                || type == Double.class || type == Class.class || type.isEnum();
+    }
+
+    static boolean isJdkClass(Class<?> type) {
+        String name = type.getName();
+        return name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("sun.");
+    }
+
+    static List<Field> obtainInstanceFields(Class<?> type) {
+        List<Field> fields = new ArrayList<Field>();
+        for (Class<?> current = type; current != null && current != Object.class; 
+                current = current.getSuperclass()) {
+            for (Field field : current.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers)) {
+                    fields.add(field);
+                }
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Checks whether field by field code can be generated for a class: it must be a user class that can't
+     * reference itself through its fields, otherwise the generated code could go into an endless recursion.
+     */
+    static boolean supportsFieldByField(Class<?> type) {
+        return supportsFieldByField(type, new HashSet<Class<?>>());
+    }
+
+    private static boolean supportsFieldByField(Class<?> type, Set<Class<?>> visiting) {
+        if (type.isArray() || type.isInterface() || type.isPrimitive() || isJdkClass(type)
+                || ReadOnly.class.isAssignableFrom(type)) {
+            return false;
+        }
+        if (!visiting.add(type)) {
+            // self referencing class
+            return false;
+        }
+        for (Field field : obtainInstanceFields(type)) {
+            Class<?> fieldType = field.getType();
+            if (fieldType.isPrimitive() || isImmutable(fieldType) || fieldType.isArray() || isJdkClass(fieldType)
+                    || ReadOnly.class.isAssignableFrom(fieldType)) {
+                continue;
+            }
+            if (visiting.contains(fieldType) 
+                    || (!fieldType.isInterface() && !supportsFieldByField(fieldType, visiting))) {
+                return false;
+            }
+        }
+        visiting.remove(type);
+        return true;
+    }
+
     static List<AccessibleField> obtainAccessibleFields(Class<?> type) {
         Map<String, AccessibleField> afs = new HashMap<String, AccessibleField>();
         for (Method method : type.getDeclaredMethods()) {
@@ -188,6 +345,24 @@ class GeneratorUtil {
                         af.setIndexType(method.getParameterTypes()[0]);
                     }
                 }
+                KeyCache cache = method.getAnnotation(KeyCache.class);
+                if (cache != null) {
+                    if (cache.value() < 1) {
+                        throw new IllegalArgumentException("Invalid key cache size for " + name + ": " + cache.value());
+                    }
+                    af.setCacheSize(cache.value());
+                }
+                Dense dense = method.getAnnotation(Dense.class);
+                if (dense != null) {
+                    if (dense.value() < 1) {
+                        throw new IllegalArgumentException("Invalid dense size for " + name + ": " + dense.value());
+                    }
+                    af.setDenseSize(dense.value());
+                }
+                Protection protection = method.getAnnotation(Protection.class);
+                if (protection != null) {
+                    af.setProtection(protection.value());
+                }
                 if (setter) {
                     af.setSetter(methodName);
                     if (method.getParameterTypes().length > 1) {
@@ -200,6 +375,26 @@ class GeneratorUtil {
                 }
             }
         }
-        return new ArrayList<AccessibleField>(afs.values());
+        List<AccessibleField> fields = new ArrayList<AccessibleField>(afs.values());
+        for (AccessibleField af : fields) {
+            if (af.isDense() && af.getIndexType() != int.class) {
+                throw new IllegalArgumentException("Dense field " + af.getName() + " must be indexed by int");
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Checks whether a field of the state isn't protected by a full replica, so the state needs a generated
+     * replica, see {@link ChecksumReplicaGenerator}.
+     */
+    static boolean hasPartialProtection(Class<?> type) {
+        for (AccessibleField af : obtainAccessibleFields(type)) {
+            FieldProtection protection = af.getProtection();
+            if (protection != null && protection != FieldProtection.REPLICA) {
+                return true;
+            }
+        }
+        return false;
     }
 }
\ No newline at end of file
@@ -17,6 +17,9 @@
 package com.yahoo.pasc.generation;
 
 import static com.yahoo.pasc.generation.GeneratorUtil.addNewLines;
+import static com.yahoo.pasc.generation.GeneratorUtil.clearSlots;
+import static com.yahoo.pasc.generation.GeneratorUtil.clearTracking;
+import static com.yahoo.pasc.generation.GeneratorUtil.getNewArray;
 import static com.yahoo.pasc.generation.GeneratorUtil.getPrimitiveName;
 import static com.yahoo.pasc.generation.GeneratorUtil.getSetName;
 import static com.yahoo.pasc.generation.GeneratorUtil.obtainAccessibleFields;
@@ -44,6 +47,7 @@ public class LightEncapsulatorGenerator {
     private Objenesis objenesis = new ObjenesisStd();
     private ObjectInstantiator instantiator;
 
+    private Class<?> stateType;
     private String className;
     private String facadeClassName;
     
@@ -51,14 +55,8 @@ public class LightEncapsulatorGenerator {
     private static Object lock = new Object();
 
     public LightEncapsulatorGenerator(ProcessState state) {
+        this(state.getClass());
         synchronized(lock) {
-            Class<?> type = state.getClass();
-    
-            className = type.getName();
-            facadeClassName = className + "LightEncapsulator";
-            
-            List<AccessibleField> fields = obtainAccessibleFields(type);
-    
             try {
                 facadeClass = Class.forName(facadeClassName);
     
@@ -67,20 +65,12 @@ public class LightEncapsulatorGenerator {
             } catch (ClassNotFoundException ignore) {
             }
     
-            ClassPool pool = ClassPool.getDefault();
-            CtClass facadeCtClass = pool.makeClass(facadeClassName);
-    
             try {
-                facadeCtClass.setInterfaces(new CtClass[] { pool.get("com.yahoo.pasc.generation.Encapsulator") });
-                facadeCtClass.setSuperclass(pool.get(className));
-                
-                generateFields(facadeCtClass, fields);
-                
-                generateEncapsulatorInterfaceMethods(facadeCtClass, fields);
-        
-                generateGettersAndSetters(facadeCtClass, fields);
-        
-                facadeClass = facadeCtClass.toClass();
+                if (AsmEncapsulatorGenerator.ENABLED) {
+                    facadeClass = AsmEncapsulatorGenerator.generateLightEncapsulator(stateType);
+                } else {
+                    facadeClass = generateCtClass(ClassPool.getDefault()).toClass();
+                }
                 
                 instantiator = objenesis.getInstantiatorOf(facadeClass);
             } catch (Exception ex) {
@@ -89,6 +79,31 @@ public class LightEncapsulatorGenerator {
         }
     }
 
+    LightEncapsulatorGenerator(Class<?> stateType) {
+        this.stateType = stateType;
+        className = stateType.getName();
+        facadeClassName = className + "LightEncapsulator";
+    }
+
+    /**
+     * Builds the light encapsulator class without loading it.
+     */
+    CtClass generateCtClass(ClassPool pool) throws Exception {
+        List<AccessibleField> fields = obtainAccessibleFields(stateType);
+
+        CtClass facadeCtClass = pool.makeClass(facadeClassName);
+        facadeCtClass.setInterfaces(new CtClass[] { pool.get("com.yahoo.pasc.generation.Encapsulator") });
+        facadeCtClass.setSuperclass(pool.get(className));
+        
+        generateFields(facadeCtClass, fields);
+        
+        generateEncapsulatorInterfaceMethods(facadeCtClass, fields);
+
+        generateGettersAndSetters(facadeCtClass, fields);
+
+        return facadeCtClass;
+    }
+
     public <T extends ProcessState> Encapsulator getLightEncapsulator(T state, T replica) {
         Encapsulator encapsulator = (Encapsulator) instantiator.newInstance();
         encapsulator.setState(state, replica, instantiator);
@@ -112,17 +127,26 @@ public class LightEncapsulatorGenerator {
                 CtField encapsulator = CtField.make(String.format("com.yahoo.pasc.generation.EncapsulatorGenerator %sEncapsulatorGenerator;", name), facadeCtClass);
                 facadeCtClass.addField(encapsulator);
             }
-            if (indexed) {
+            if (af.isDense()) {
+                CtField bits = CtField.make(String.format("long[] %sReadBits;", name), facadeCtClass);
+                facadeCtClass.addField(bits);
+                CtField lowWord = CtField.make(String.format("int %sLowWord;", name), facadeCtClass);
+                facadeCtClass.addField(lowWord);
+                CtField highWord = CtField.make(String.format("int %sHighWord;", name), facadeCtClass);
+                facadeCtClass.addField(highWord);
+            } else if (indexed) {
                 Class<?> typeKey = af.getIndexType();
-                CtField read = CtField.make(String.format("%s %sRead = new %s();", 
-                        getSetName(typeKey), name, getSetName(typeKey), name), facadeCtClass);
+                CtField read = CtField.make(String.format("%s %sRead;", getSetName(typeKey), name), facadeCtClass);
                 facadeCtClass.addField(read);
-                CtField latestKey = CtField.make(String.format("%s %sLatestKey;", getPrimitiveName(typeKey), name), facadeCtClass);
-                facadeCtClass.addField(latestKey);
-                CtField cacheValid = CtField.make(String.format("boolean %sCacheValid;", name), facadeCtClass);
-                facadeCtClass.addField(cacheValid);
-                CtField latestValue = CtField.make(String.format("%s %sLatestValue;", getPrimitiveName(type), name), facadeCtClass);
-                facadeCtClass.addField(latestValue);
+                facadeCtClass.addField(CtField.make(String.format("int %sReadSinceSpike;", name), facadeCtClass));
+                CtField keys = CtField.make(String.format("%s[] %sKeys;", getPrimitiveName(typeKey), name), facadeCtClass);
+                facadeCtClass.addField(keys);
+                CtField values = CtField.make(String.format("%s[] %sValues;", getPrimitiveName(type), name), facadeCtClass);
+                facadeCtClass.addField(values);
+                CtField cached = CtField.make(String.format("int %sCached;", name), facadeCtClass);
+                facadeCtClass.addField(cached);
+                CtField victim = CtField.make(String.format("int %sVictim;", name), facadeCtClass);
+                facadeCtClass.addField(victim);
             } else {
                 CtField read = CtField.make(String.format("boolean %sRead;", name), facadeCtClass);
                 facadeCtClass.addField(read);
@@ -135,6 +159,15 @@ public class LightEncapsulatorGenerator {
     private void generateGettersAndSetters(CtClass facadeCtClass, List<AccessibleField> fields)
             throws CannotCompileException {
         for (AccessibleField af : fields) {
+            if (af.isDense()) {
+                CtMethod mark = CtNewMethod.make(buildCacheMethod(markTemplate, af), facadeCtClass);
+                facadeCtClass.addMethod(mark);
+            } else if (af.isIndexed()) {
+                CtMethod findSlot = CtNewMethod.make(buildCacheMethod(findSlotTemplate, af), facadeCtClass);
+                facadeCtClass.addMethod(findSlot);
+                CtMethod newSlot = CtNewMethod.make(buildCacheMethod(newSlotTemplate, af), facadeCtClass);
+                facadeCtClass.addMethod(newSlot);
+            }
             if (af.getGetter() != null) {
                 CtMethod getter = CtNewMethod.make(buildGetter(af), facadeCtClass);
                 facadeCtClass.addMethod(getter);
@@ -150,6 +183,7 @@ public class LightEncapsulatorGenerator {
             "   if(!$var$Read) {" +
             // If never read must be checked
             "       $var$Read = true;" +
+            "       $if(checked)$" +
             "       $if(primitive)$ " +
             "           if(state.$getter$() != replica.$getter$()) {" +
             "               throw new com.yahoo.pasc.exceptions.VariableCorruptionException(\"$var$\", " +
@@ -162,6 +196,7 @@ public class LightEncapsulatorGenerator {
             "                   state.$getter$(), replica.$getter$());" +
             "           }" +
             "       $endif$" +
+            "       $endif$" +
             "   }" +
             "   return state.$getter$();" +
             "}"
@@ -169,46 +204,98 @@ public class LightEncapsulatorGenerator {
 
     private String getterMulti = addNewLines(
             "public final $type$ $getter$($typeKey$ _key) {" +
-            "   if($var$CacheValid) {" +
-            "       if (" +
-            "       $if(primitiveKey)$ " +
-            "           $var$LatestKey == _key" +
+            "   int slot = $var$FindSlot(_key);" +
+            "   if (slot >= 0) {" +
+            //      Cache hit, return it
+            "       return $var$Values[slot];" +
+            "   }" +
+            "   $type$ temp = state.$getter$(_key);" +
+            //  Unless the key has been read and checked already, check replica
+            "   $if(checked)$" +
+            "   if ($var$Read == null || !$var$Read.contains(_key)) {" +
+            "       $if(primitive)$ " +
+            "           if(temp != replica.$getter$(_key)) {" +
+            "               throw new com.yahoo.pasc.exceptions.VariableCorruptionException(\"$var$\", temp, replica.$getter$(_key));" +
+            "           }" +
+            "       $endif$" +
+            "       $if(!primitive)$" +
+            "           if(!com.yahoo.pasc.PascRuntime.compare(temp, replica.$getter$(_key))) {" +
+            "               throw new com.yahoo.pasc.exceptions.VariableCorruptionException(\"$var$\", temp, replica.$getter$(_key));" +
+            "           }" +
+            "       $endif$" +
+            "   }" +
+            "   $endif$" +
+            "   slot = $var$NewSlot();" +
+            "   $var$Keys[slot] = _key;" +
+            "   $var$Values[slot] = temp;" +
+            "   return temp;" +
+            "}"
+            );
+
+    private String findSlotTemplate = addNewLines(
+            "private final int $var$FindSlot($typeKey$ _key) {" +
+            "   for (int i = 0; i < $var$Cached; i++) {" +
+            "       $if(primitiveKey)$" +
+            "           if ($var$Keys[i] == _key) return i;" +
             "       $endif$" +
             "       $if(!primitiveKey)$" +
-            "           $var$LatestKey.equals(_key)" +
+            "           $typeKey$ cached = $var$Keys[i];" +
+            "           if (cached == _key || (cached != null && cached.equals(_key))) return i;" +
             "       $endif$" +
-            "           ) {" +
-            //          Cache hit, return it
-            "           return $var$LatestValue;" +
-            "       } " +
-            "       $var$Read.add($var$LatestKey);" +
-            "       if ($var$Read.contains(_key)) {" +
-            //          Written map hit (key has been read and cloned already). 
-            //			Return value in map, but don't check it, and put it in cache.
-            "			$var$LatestKey = _key;" +
-            "           $var$LatestValue = state.$getter$(_key);" +
-            "           return $var$LatestValue;" +
-            "       }" +
-            "   }	" +
-            //  Check replica
+            "   }" +
+            "   return -1;" +
+            "}"
+            );
+
+    private String newSlotTemplate = addNewLines(
+            "private final int $var$NewSlot() {" +
+            "   int slot;" +
+            "   if ($var$Cached < $var$Keys.length) {" +
+            "       slot = $var$Cached;" +
+            "       $var$Cached = slot + 1;" +
+            "       return slot;" +
+            "   }" +
+            //  Cache full, spill the oldest key to the read set, as the encapsulator does with its written map
+            "   slot = $var$Victim;" +
+            "   $var$Victim = slot + 1 == $var$Keys.length ? 0 : slot + 1;" +
+            "   if ($var$Read == null) $var$Read = new $setName$();" +
+            "   $var$Read.add($var$Keys[slot]);" +
+            "   return slot;" +
+            "}"
+            );
+
+    private String getterDense = addNewLines(
+            "public final $type$ $getter$(int _key) {" +
             "   $type$ temp = state.$getter$(_key);" +
-            "   $if(primitive)$ " +
-            "       if(temp != replica.$getter$(_key)) {" +
-            "           throw new com.yahoo.pasc.exceptions.VariableCorruptionException(\"$var$\", temp, replica.$getter$(_key));" +
-            "       }" +
-            "   $endif$" +
-            "   $if(!primitive)$" +
-            "       if(!com.yahoo.pasc.PascRuntime.compare(temp, replica.$getter$(_key))) {" +
-            "           throw new com.yahoo.pasc.exceptions.VariableCorruptionException(\"$var$\", temp, replica.$getter$(_key));" +
-            "       }" +
-            "   $endif$" +
-            "   $var$CacheValid = true;" +
-            "   $var$LatestKey = _key;" +
-            "   $var$LatestValue = temp;" +
+            //  Unless the key has been read and checked already, check replica
+            "   if (($var$ReadBits[_key >> 6] & (1L << _key)) == 0) {" +
+            "       $if(checked)$" +
+            "       $if(primitive)$ " +
+            "           if(temp != replica.$getter$(_key)) {" +
+            "               throw new com.yahoo.pasc.exceptions.VariableCorruptionException(\"$var$\", temp, replica.$getter$(_key));" +
+            "           }" +
+            "       $endif$" +
+            "       $if(!primitive)$" +
+            "           if(!com.yahoo.pasc.PascRuntime.compare(temp, replica.$getter$(_key))) {" +
+            "               throw new com.yahoo.pasc.exceptions.VariableCorruptionException(\"$var$\", temp, replica.$getter$(_key));" +
+            "           }" +
+            "       $endif$" +
+            "       $endif$" +
+            "       $var$Mark(_key);" +
+            "   }" +
             "   return temp;" +
             "}"
             );
 
+    private String markTemplate = addNewLines(
+            "private final void $var$Mark(int _key) {" +
+            "   int word = _key >> 6;" +
+            "   $var$ReadBits[word] = $var$ReadBits[word] | (1L << _key);" +
+            "   if (word < $var$LowWord) $var$LowWord = word;" +
+            "   if (word >= $var$HighWord) $var$HighWord = word + 1;" +
+            "}"
+            );
+
     private String setterSingle = addNewLines(
             "public final void $setter$($type$ _value) {" +
             "   $var$Read = true;" +
@@ -218,26 +305,32 @@ public class LightEncapsulatorGenerator {
 
     private String setterMulti = addNewLines(
             "public final void $setter$($typeKey$ _key, $type$ _value) {" +
-            "   if ($var$CacheValid) {" +
-            "       if (" +
-            "           $if(primitiveKey)$" +
-            "               $var$LatestKey != _key" +
-            "           $endif$" +
-            "           $if(!primitiveKey)$" +
-            "               ($var$LatestKey == null && _key != null) || " +
-            "               ($var$LatestKey != null && !$var$LatestKey.equals(_key))" +
-            "           $endif$" +
-            "               ) {" +
-            "           $var$Read.add($var$LatestKey);" +
-            "       }" +
+            "   int slot = $var$FindSlot(_key);" +
+            "   if (slot < 0) {" +
+            "       slot = $var$NewSlot();" +
+            "       $var$Keys[slot] = _key;" +
             "   }" +
-            "   $var$CacheValid = true;" +
-            "   $var$LatestKey = _key;" +
-            "   $var$LatestValue = _value;" +
+            "   $var$Values[slot] = _value;" +
             "   state.$setter$(_key, _value);" +
             "}"
             );
 
+    private String setterDense = addNewLines(
+            "public final void $setter$(int _key, $type$ _value) {" +
+            "   $var$Mark(_key);" +
+            "   state.$setter$(_key, _value);" +
+            "}"
+            );
+
+    private String buildCacheMethod(String template, AccessibleField af) {
+        ST method = new ST(template, '$', '$');
+        method.add("typeKey", getPrimitiveName(af.getIndexType()));
+        method.add("var", af.getName());
+        method.add("primitiveKey", af.getIndexType().isPrimitive());
+        method.add("setName", getSetName(af.getIndexType()));
+        return method.render();
+    }
+
     private String buildSetter(AccessibleField af) {
         Class<?> type = af.getType();
 
@@ -251,7 +344,9 @@ public class LightEncapsulatorGenerator {
         
         ST setterTemplate;
 
-        if (indexed) {
+        if (af.isDense()) {
+            setterTemplate = new ST(setterDense, '$', '$');
+        } else if (indexed) {
             setterTemplate = new ST(setterMulti, '$', '$');
             Class<?> keyType = af.getIndexType(); 
             primitiveKey = keyType.isPrimitive();
@@ -285,7 +380,9 @@ public class LightEncapsulatorGenerator {
         
         ST getterTemplate;
     
-        if (indexed) {
+        if (af.isDense()) {
+            getterTemplate = new ST(getterDense, '$', '$');
+        } else if (indexed) {
             getterTemplate = new ST(getterMulti, '$', '$');
             Class<?> keyType = af.getIndexType();
             primitiveKey = keyType.isPrimitive();
@@ -300,6 +397,7 @@ public class LightEncapsulatorGenerator {
         getterTemplate.add("var", name);
         getterTemplate.add("primitive", primitive);
         getterTemplate.add("primitiveKey", primitiveKey);
+        getterTemplate.add("checked", af.isChecked());
         
         String result =  getterTemplate.render();
         return result;
@@ -310,9 +408,16 @@ public class LightEncapsulatorGenerator {
         method.append("public void reset() {\n");
         for (AccessibleField af : fields) {
             String name = af.getName();
-            if (af.isIndexed()) {
-                method.append(String.format("if (%sRead != null) %sRead.clear(); \n", name, name));
-                method.append(String.format("%sCacheValid = false;; \n", name));
+            if (af.isDense()) {
+                method.append(String.format("for (int w = %sLowWord; w < %sHighWord; w++) %sReadBits[w] = 0L; \n", 
+                        name, name, name));
+                method.append(String.format("%sLowWord = %sReadBits.length; \n", name, name));
+                method.append(String.format("%sHighWord = 0; \n", name));
+            } else if (af.isIndexed()) {
+                method.append(clearTracking(name + "Read"));
+                method.append(clearSlots(af));
+                method.append(String.format("%sCached = 0; \n", name));
+                method.append(String.format("%sVictim = 0; \n", name));
             } else {
                 method.append(String.format("%sRead = false; \n", name));
             }
@@ -329,11 +434,21 @@ public class LightEncapsulatorGenerator {
         CtMethod setCheckState = CtNewMethod.make(
                 "public void setCheckState(boolean checkState) { } \n", facadeCtClass);
         facadeCtClass.addMethod(setCheckState);
+        CtMethod setModificationListener = CtNewMethod.make(
+                "public void setModificationListener(com.yahoo.pasc.ModificationListener listener) { } \n", 
+                facadeCtClass);
+        facadeCtClass.addMethod(setModificationListener);
         CtMethod applyModifications = CtNewMethod.make(
                 "public void applyModifications(boolean toReplica, com.yahoo.pasc.generation.Encapsulator encapsulator) {}\n", facadeCtClass);
         facadeCtClass.addMethod(applyModifications);
+        CtMethod applySingleExecution = CtNewMethod.make("public void applySingleExecution() {}\n", facadeCtClass);
+        facadeCtClass.addMethod(applySingleExecution);
         CtMethod reset = CtNewMethod.make(buildReset(fields), facadeCtClass);
         facadeCtClass.addMethod(reset);
+        CtMethod recordMetrics = CtNewMethod.make(
+                "public void recordMetrics(com.yahoo.pasc.metrics.PascMetrics metrics, " +
+                "com.yahoo.pasc.generation.Encapsulator encapsulator) { } \n", facadeCtClass);
+        facadeCtClass.addMethod(recordMetrics);
         CtMethod getClone = CtNewMethod.make(
                 "public com.yahoo.pasc.generation.Encapsulator getClone() { return null; } \n", facadeCtClass);
         facadeCtClass.addMethod(getClone);
@@ -350,10 +465,15 @@ public class LightEncapsulatorGenerator {
         method.append("this.instantiator = instantiator;\n");
         for (AccessibleField af : fields) {
             String name = af.getName();
-            if (af.isIndexed()) {
+            if (af.isDense()) {
+                method.append(String.format("%sReadBits = new long[%d];", name, (af.getDenseSize() + 63) / 64));
+                method.append(String.format("%sLowWord = %sReadBits.length;", name, name));
+                method.append(String.format("%sHighWord = 0;", name));
+            } else if (af.isIndexed()) {
                 Class<?> typeKey = af.getIndexType();
-                method.append(String.format("%sRead = new %s();", 
-                        name, getSetName(typeKey), name));
+                method.append(String.format("%sRead = null;", name));
+                method.append(String.format("%sKeys = %s;", name, getNewArray(typeKey, af.getCacheSize())));
+                method.append(String.format("%sValues = %s;", name, getNewArray(af.getType(), af.getCacheSize())));
             }
         }
         method.append("}\n");
@@ -0,0 +1,340 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.yahoo.pasc.generation;
+
+import java.nio.ByteBuffer;
+
+import com.yahoo.pasc.ChecksummedMessage;
+import com.yahoo.pasc.Message;
+import com.yahoo.pasc.exceptions.CorruptionException;
+import com.yahoo.pasc.exceptions.InputMessageException;
+
+/**
+ * Base class of the generated message codecs, which encode messages into byte buffers and decode them in place.
+ * 
+ * Each message is encoded as a frame holding the length of its fields, the non transient fields in declaration
+ * order and a checksum of the frame, so frames can be verified with {@link #verify(ByteBuffer)} before they are
+ * decoded. Fields are written in the byte order of the buffer, both sides must use the same one. Messages
+ * extending {@link ChecksummedMessage} have their checksum checked while encoding and recomputed while decoding,
+ * in the same pass, so the decoded message is ready to be verified by the runtime.
+ * 
+ * @see MessageCodecGenerator
+ */
+public abstract class MessageCodec {
+
+    private static final int HEADER_SIZE = 4;
+    private static final int TRAILER_SIZE = 8;
+
+    protected Class<?> type;
+    // declared types of the reference fields, in encoding order
+    private Class<?>[] types;
+    private Object[][] constants;
+
+    /**
+     * Encodes a message at the position of the buffer, advancing it.
+     * 
+     * @param message message of the class this codec was generated for
+     * @param buffer heap or direct buffer
+     * @return the size of the frame
+     * @throws java.nio.BufferOverflowException if the frame doesn't fit in the buffer
+     * @throws InputMessageException if the message doesn't match its checksum
+     */
+    public abstract int encode(Message message, ByteBuffer buffer);
+
+    /**
+     * Verifies and decodes the frame at the position of the buffer, advancing it past the frame.
+     * 
+     * @param buffer heap or direct buffer
+     * @return the decoded message
+     * @throws CorruptionException if the frame is truncated or doesn't match its checksum
+     */
+    public abstract Message decode(ByteBuffer buffer);
+
+    /**
+     * Obtains the codec of the given message class, generating it if needed.
+     * 
+     * @throws IllegalArgumentException if a field of the class can't be encoded
+     */
+    public static MessageCodec getCodec(Class<? extends Message> type) {
+        return MessageCodecGenerator.getCodec(type);
+    }
+
+    /**
+     * Checks the frame at the position of the buffer against its checksum, without decoding it nor moving the
+     * position.
+     * 
+     * @return true if the frame is complete and matches its checksum
+     */
+    public static boolean verify(ByteBuffer buffer) {
+        int start = buffer.position();
+        int available = buffer.limit() - start - HEADER_SIZE - TRAILER_SIZE;
+        if (available < 0) {
+            return false;
+        }
+        int length = buffer.getInt(start);
+        if (length < 0 || length > available) {
+            return false;
+        }
+        return buffer.getLong(start + HEADER_SIZE + length) == Checksummer.checksum(buffer, start, 
+                HEADER_SIZE + length);
+    }
+
+    /**
+     * Checks whether fields of the given type can be encoded: primitives, boxed values, strings, enums and
+     * arrays of primitives.
+     */
+    static boolean isSupported(Class<?> type) {
+        if (type.isArray()) {
+            return type.getComponentType().isPrimitive();
+        }
+        return type.isPrimitive() || type == String.class || type.isEnum() || type == Boolean.class
+                || type == Byte.class || type == Character.class || type == Short.class || type == Integer.class
+                || type == Long.class || type == Float.class || type == Double.class;
+    }
+
+    void setTypes(Class<?> type, Class<?>[] types) {
+        this.type = type;
+        this.types = types;
+        this.constants = new Object[types.length][];
+        for (int i = 0; i < types.length; ++i) {
+            constants[i] = types[i].getEnumConstants();
+        }
+    }
+
+    /**
+     * Allocates an instance of the message class this codec was generated for, without running its constructors.
+     */
+    protected abstract Object newInstance();
+
+    protected static int beginFrame(ByteBuffer buffer) {
+        int start = buffer.position();
+        buffer.putInt(0);
+        return start;
+    }
+
+    protected static int endFrame(ByteBuffer buffer, int start) {
+        int length = buffer.position() - start - HEADER_SIZE;
+        buffer.putInt(start, length);
+        buffer.putLong(Checksummer.checksum(buffer, start, HEADER_SIZE + length));
+        return buffer.position() - start;
+    }
+
+    protected static int beginDecode(ByteBuffer buffer) {
+        if (!verify(buffer)) {
+            throw new CorruptionException("Corrupted message frame at " + buffer.position());
+        }
+        int start = buffer.position();
+        buffer.position(start + HEADER_SIZE);
+        return start;
+    }
+
+    protected static void endDecode(ByteBuffer buffer, int start) {
+        int end = start + HEADER_SIZE + buffer.getInt(start);
+        if (buffer.position() != end) {
+            throw new CorruptionException("Message frame length mismatch at " + start);
+        }
+        buffer.position(end + TRAILER_SIZE);
+    }
+
+    protected static long startFields() {
+        return Checksummer.SEED;
+    }
+
+    protected static long finishFields(long hash) {
+        return Checksummer.finish(hash);
+    }
+
+    protected static void checkChecksum(Message message, long computed, long stored) {
+        if (computed != stored) {
+            throw new InputMessageException("Checksum mismatch while encoding.", message, null);
+        }
+    }
+
+    protected void putObject(ByteBuffer buffer, Object value, int field) {
+        Class<?> type = types[field];
+        if (type.isArray()) {
+            putArray(buffer, value);
+        } else if (type == String.class) {
+            if (value == null) {
+                buffer.putInt(-1);
+            } else {
+                String string = (String) value;
+                buffer.putInt(string.length());
+                buffer.asCharBuffer().put(string);
+                buffer.position(buffer.position() + 2 * string.length());
+            }
+        } else if (type.isEnum()) {
+            buffer.putInt(value == null ? -1 : ((Enum<?>) value).ordinal());
+        } else if (value == null) {
+            buffer.put((byte) 0);
+        } else {
+            buffer.put((byte) 1);
+            if (value instanceof Boolean) {
+                buffer.put((Boolean) value ? (byte) 1 : (byte) 0);
+            } else if (value instanceof Byte) {
+                buffer.put((Byte) value);
+            } else if (value instanceof Character) {
+                buffer.putChar((Character) value);
+            } else if (value instanceof Short) {
+                buffer.putShort((Short) value);
+            } else if (value instanceof Integer) {
+                buffer.putInt((Integer) value);
+            } else if (value instanceof Long) {
+                buffer.putLong((Long) value);
+            } else if (value instanceof Float) {
+                buffer.putInt(Float.floatToRawIntBits((Float) value));
+            } else {
+                buffer.putLong(Double.doubleToRawLongBits((Double) value));
+            }
+        }
+    }
+
+    protected Object getObject(ByteBuffer buffer, int field) {
+        Class<?> type = types[field];
+        if (type.isArray()) {
+            return getArray(buffer, type.getComponentType());
+        } else if (type == String.class) {
+            int length = buffer.getInt();
+            if (length < 0) {
+                return null;
+            }
+            char[] chars = new char[length];
+            buffer.asCharBuffer().get(chars);
+            buffer.position(buffer.position() + 2 * length);
+            return new String(chars);
+        } else if (type.isEnum()) {
+            int ordinal = buffer.getInt();
+            return ordinal < 0 ? null : constants[field][ordinal];
+        } else if (buffer.get() == 0) {
+            return null;
+        } else if (type == Boolean.class) {
+            return buffer.get() != 0;
+        } else if (type == Byte.class) {
+            return buffer.get();
+        } else if (type == Character.class) {
+            return buffer.getChar();
+        } else if (type == Short.class) {
+            return buffer.getShort();
+        } else if (type == Integer.class) {
+            return buffer.getInt();
+        } else if (type == Long.class) {
+            return buffer.getLong();
+        } else if (type == Float.class) {
+            return Float.intBitsToFloat(buffer.getInt());
+        } else {
+            return Double.longBitsToDouble(buffer.getLong());
+        }
+    }
+
+    private static void putArray(ByteBuffer buffer, Object array) {
+        if (array == null) {
+            buffer.putInt(-1);
+            return;
+        }
+        if (array instanceof byte[]) {
+            byte[] bytes = (byte[]) array;
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        } else if (array instanceof boolean[]) {
+            boolean[] booleans = (boolean[]) array;
+            buffer.putInt(booleans.length);
+            for (boolean value : booleans) {
+                buffer.put(value ? (byte) 1 : (byte) 0);
+            }
+        } else if (array instanceof char[]) {
+            char[] chars = (char[]) array;
+            buffer.putInt(chars.length);
+            buffer.asCharBuffer().put(chars);
+            buffer.position(buffer.position() + 2 * chars.length);
+        } else if (array instanceof short[]) {
+            short[] shorts = (short[]) array;
+            buffer.putInt(shorts.length);
+            buffer.asShortBuffer().put(shorts);
+            buffer.position(buffer.position() + 2 * shorts.length);
+        } else if (array instanceof int[]) {
+            int[] ints = (int[]) array;
+            buffer.putInt(ints.length);
+            buffer.asIntBuffer().put(ints);
+            buffer.position(buffer.position() + 4 * ints.length);
+        } else if (array instanceof long[]) {
+            long[] longs = (long[]) array;
+            buffer.putInt(longs.length);
+            buffer.asLongBuffer().put(longs);
+            buffer.position(buffer.position() + 8 * longs.length);
+        } else if (array instanceof float[]) {
+            float[] floats = (float[]) array;
+            buffer.putInt(floats.length);
+            buffer.asFloatBuffer().put(floats);
+            buffer.position(buffer.position() + 4 * floats.length);
+        } else {
+            double[] doubles = (double[]) array;
+            buffer.putInt(doubles.length);
+            buffer.asDoubleBuffer().put(doubles);
+            buffer.position(buffer.position() + 8 * doubles.length);
+        }
+    }
+
+    private static Object getArray(ByteBuffer buffer, Class<?> component) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new CorruptionException("Invalid array length in message frame: " + length);
+        }
+        if (component == byte.class) {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return bytes;
+        } else if (component == boolean.class) {
+            boolean[] booleans = new boolean[length];
+            for (int i = 0; i < length; ++i) {
+                booleans[i] = buffer.get() != 0;
+            }
+            return booleans;
+        } else if (component == char.class) {
+            char[] chars = new char[length];
+            buffer.asCharBuffer().get(chars);
+            buffer.position(buffer.position() + 2 * length);
+            return chars;
+        } else if (component == short.class) {
+            short[] shorts = new short[length];
+            buffer.asShortBuffer().get(shorts);
+            buffer.position(buffer.position() + 2 * length);
+            return shorts;
+        } else if (component == int.class) {
+            int[] ints = new int[length];
+            buffer.asIntBuffer().get(ints);
+            buffer.position(buffer.position() + 4 * length);
+            return ints;
+        } else if (component == long.class) {
+            long[] longs = new long[length];
+            buffer.asLongBuffer().get(longs);
+            buffer.position(buffer.position() + 8 * length);
+            return longs;
+        } else if (component == float.class) {
+            float[] floats = new float[length];
+            buffer.asFloatBuffer().get(floats);
+            buffer.position(buffer.position() + 4 * length);
+            return floats;
+        } else {
+            double[] doubles = new double[length];
+            buffer.asDoubleBuffer().get(doubles);
+            buffer.position(buffer.position() + 8 * length);
+            return doubles;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.yahoo.pasc.generation;
+
+import static com.yahoo.pasc.generation.GeneratorUtil.getFastUtilsName;
+import static com.yahoo.pasc.generation.GeneratorUtil.obtainInstanceFields;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.CtNewMethod;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yahoo.pasc.ChecksummedMessage;
+import com.yahoo.pasc.Message;
+
+/**
+ * Generates message codecs, which encode messages into byte buffers field by field.
+ * 
+ * Primitive fields are read and written directly through Unsafe, the remaining ones through
+ * MessageCodec.putObject() and getObject(). For messages extending {@link ChecksummedMessage}, fields are mixed
+ * into a checksum as they are encoded or decoded, in the same order as the checksummer generated by
+ * {@link ChecksumGenerator}, so no extra pass over the message is needed. Transient fields are ignored.
+ * 
+ * Codecs are generated once per class and cached.
+ */
+public class MessageCodecGenerator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MessageCodecGenerator.class);
+
+    private static final ConcurrentMap<Class<?>, MessageCodec> codecs = new ConcurrentHashMap<Class<?>, MessageCodec>();
+    private static Object lock = new Object();
+
+    /**
+     * Obtains the codec of the given message class, generating it if needed.
+     * 
+     * @param type class of the messages to encode
+     * @return the codec of this class
+     * @throws IllegalArgumentException if a field of the class can't be encoded
+     */
+    public static MessageCodec getCodec(Class<? extends Message> type) {
+        MessageCodec codec = codecs.get(type);
+        if (codec == null) {
+            synchronized (lock) {
+                codec = codecs.get(type);
+                if (codec == null) {
+                    codec = generate(type);
+                    codecs.put(type, codec);
+                }
+            }
+        }
+        return codec;
+    }
+
+    private static MessageCodec generate(Class<?> type) {
+        List<Field> fields = new ArrayList<Field>();
+        List<Class<?>> types = new ArrayList<Class<?>>();
+        for (Field field : obtainInstanceFields(type)) {
+            if (field.getDeclaringClass() == ChecksummedMessage.class) {
+                continue;
+            }
+            if (!MessageCodec.isSupported(field.getType())) {
+                throw new IllegalArgumentException("Cannot encode field " + field.getName() + " of type " 
+                        + field.getType().getName());
+            }
+            fields.add(field);
+            if (!field.getType().isPrimitive()) {
+                types.add(field.getType());
+            }
+        }
+        String codecClassName = type.getName() + "Codec";
+        try {
+            Class<?> codecClass;
+            try {
+                codecClass = Class.forName(codecClassName);
+            } catch (ClassNotFoundException ignore) {
+                codecClass = generateClass(type, fields, codecClassName);
+            }
+            MessageCodec codec = (MessageCodec) codecClass.newInstance();
+            codec.setTypes(type, types.toArray(new Class<?>[types.size()]));
+            return codec;
+        } catch (Exception ex) {
+            throw new RuntimeException("Error constructing message codec class: " + codecClassName, ex);
+        }
+    }
+
+    private static Class<?> generateClass(Class<?> type, List<Field> fields, String codecClassName) 
+            throws Exception {
+        boolean checksummed = ChecksummedMessage.class.isAssignableFrom(type);
+        long checksumOffset = checksummed ? 
+                UnsafeAccess.objectFieldOffset(ChecksummedMessage.class.getDeclaredField("checksum")) : 0;
+
+        ClassPool pool = ClassPool.getDefault();
+        CtClass codecCtClass = pool.makeClass(codecClassName);
+        codecCtClass.setSuperclass(pool.get(MessageCodec.class.getName()));
+        UnsafeAccess.addUnsafeField(codecCtClass);
+        UnsafeAccess.addNewInstance(codecCtClass);
+
+        CtMethod encode = CtNewMethod.make(buildEncode(fields, checksummed, checksumOffset), codecCtClass);
+        codecCtClass.addMethod(encode);
+        CtMethod decode = CtNewMethod.make(buildDecode(fields, checksummed, checksumOffset), codecCtClass);
+        codecCtClass.addMethod(decode);
+
+        return codecCtClass.toClass();
+    }
+
+    private static String buildEncode(List<Field> fields, boolean checksummed, long checksumOffset) {
+        StringBuilder method = new StringBuilder();
+        method.append("public int encode(com.yahoo.pasc.Message message, java.nio.ByteBuffer buffer) {\n");
+        method.append("int start = beginFrame(buffer);\n");
+        method.append("long hash = startFields();\n");
+        int object = 0;
+        for (Field field : fields) {
+            Class<?> type = field.getType();
+            long offset = UnsafeAccess.objectFieldOffset(field);
+            method.append("{\n");
+            if (type.isPrimitive()) {
+                String name = getFastUtilsName(type);
+                method.append(String.format("%s value = unsafe.get%s(message, %dL);\n", type.getName(), name, offset));
+                method.append(String.format("buffer.%s;\n", put(type, "value")));
+            } else {
+                method.append(String.format("Object value = unsafe.getObject(message, %dL);\n", offset));
+                method.append(String.format("putObject(buffer, value, %d);\n", object++));
+            }
+            if (checksummed) {
+                method.append(String.format("hash = %s;\n", mix(type)));
+            }
+            method.append("}\n");
+        }
+        if (checksummed) {
+            method.append(String.format("checkChecksum(message, finishFields(hash), unsafe.getLong(message, %dL));\n",
+                    checksumOffset));
+        }
+        method.append("return endFrame(buffer, start);\n");
+        method.append("}\n");
+        LOG.trace("Method: {}", method);
+        return method.toString();
+    }
+
+    private static String buildDecode(List<Field> fields, boolean checksummed, long checksumOffset) {
+        StringBuilder method = new StringBuilder();
+        method.append("public com.yahoo.pasc.Message decode(java.nio.ByteBuffer buffer) {\n");
+        method.append("int start = beginDecode(buffer);\n");
+        method.append("Object message = newInstance();\n");
+        method.append("long hash = startFields();\n");
+        int object = 0;
+        for (Field field : fields) {
+            Class<?> type = field.getType();
+            long offset = UnsafeAccess.objectFieldOffset(field);
+            method.append("{\n");
+            if (type.isPrimitive()) {
+                String name = getFastUtilsName(type);
+                method.append(String.format("%s value = %s;\n", type.getName(), get(type)));
+                method.append(String.format("unsafe.put%s(message, %dL, value);\n", name, offset));
+            } else {
+                method.append(String.format("Object value = getObject(buffer, %d);\n", object++));
+                method.append(String.format("unsafe.putObject(message, %dL, value);\n", offset));
+            }
+            if (checksummed) {
+                method.append(String.format("hash = %s;\n", mix(type)));
+            }
+            method.append("}\n");
+        }
+        method.append("endDecode(buffer, start);\n");
+        if (checksummed) {
+            method.append(String.format("unsafe.putLong(message, %dL, finishFields(hash));\n", checksumOffset));
+        }
+        method.append("return (com.yahoo.pasc.Message) message;\n");
+        method.append("}\n");
+        LOG.trace("Method: {}", method);
+        return method.toString();
+    }
+
+    private static String put(Class<?> type, String value) {
+        if (type == boolean.class) {
+            return String.format("put(%s ? (byte) 1 : (byte) 0)", value);
+        } else if (type == byte.class) {
+            return String.format("put(%s)", value);
+        } else if (type == float.class) {
+            return String.format("putInt(Float.floatToRawIntBits(%s))", value);
+        } else if (type == double.class) {
+            return String.format("putLong(Double.doubleToRawLongBits(%s))", value);
+        }
+        return String.format("put%s(%s)", getFastUtilsName(type), value);
+    }
+
+    private static String get(Class<?> type) {
+        if (type == boolean.class) {
+            return "buffer.get() != 0";
+        } else if (type == byte.class) {
+            return "buffer.get()";
+        } else if (type == float.class) {
+            return "Float.intBitsToFloat(buffer.getInt())";
+        } else if (type == double.class) {
+            return "Double.longBitsToDouble(buffer.getLong())";
+        }
+        return String.format("buffer.get%s()", getFastUtilsName(type));
+    }
+
+    /**
+     * Mixes a field value into the hash as the checksummers generated by {@link ChecksumGenerator} do.
+     */
+    private static String mix(Class<?> type) {
+        if (type == float.class) {
+            return "com.yahoo.pasc.generation.Checksummer.mix(hash, (long) Float.floatToIntBits(value))";
+        } else if (type == double.class) {
+            return "com.yahoo.pasc.generation.Checksummer.mix(hash, Double.doubleToLongBits(value))";
+        } else if (type == boolean.class) {
+            return "com.yahoo.pasc.generation.Checksummer.mix(hash, value ? 1L : 0L)";
+        } else if (type.isPrimitive()) {
+            return "com.yahoo.pasc.generation.Checksummer.mix(hash, (long) value)";
+        }
+        return "com.yahoo.pasc.generation.Checksummer.mixObject(hash, value)";
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.yahoo.pasc.generation;
+
+/**
+ * Base class of the generated comparators, which compare the entries of a state and its replica through direct
+ * calls to the getters of the state class.
+ * 
+ * Fields are identified by their position in {@link #getFieldNames()}. Primitive values are compared without
+ * boxing them, values are only boxed by {@link #get(int, Object, Object)} to report a mismatch.
+ * 
+ * @see StateComparatorGenerator
+ */
+public abstract class StateComparator {
+
+    /**
+     * @return names of the fields with a getter, in the order of their ids
+     */
+    public abstract String[] getFieldNames();
+
+    /**
+     * Compares a field that isn't indexed.
+     * 
+     * @return true if the state and the replica hold the same value
+     */
+    public abstract boolean compare(int field, Object state, Object replica);
+
+    /**
+     * Compares a range of entries of a dense field.
+     * 
+     * @param from first index compared
+     * @param to index after the last one compared
+     * @return the first index whose entries differ, or -1 if all are the same
+     */
+    public abstract int compare(int field, Object state, Object replica, int from, int to);
+
+    /**
+     * Compares an entry of an indexed field.
+     * 
+     * @param key key of the entry, boxed if the field is indexed by a primitive type
+     * @return true if the state and the replica hold the same value
+     */
+    public abstract boolean compare(int field, Object state, Object replica, Object key);
+
+    /**
+     * Reads a value through its getter, boxed if it's primitive.
+     * 
+     * @param key key of the entry, ignored if the field isn't indexed
+     */
+    public abstract Object get(int field, Object target, Object key);
+}
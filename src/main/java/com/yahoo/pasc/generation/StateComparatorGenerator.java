@@ -0,0 +1,240 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.yahoo.pasc.generation;
+
+import static com.yahoo.pasc.generation.GeneratorUtil.getBoxed;
+import static com.yahoo.pasc.generation.GeneratorUtil.getPrimitiveName;
+import static com.yahoo.pasc.generation.GeneratorUtil.getWrapper;
+import static com.yahoo.pasc.generation.GeneratorUtil.isImmutable;
+import static com.yahoo.pasc.generation.GeneratorUtil.obtainAccessibleFields;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.CtNewMethod;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Generates the {@link StateComparator} of a state class, used by the {@link StateScrubber}.
+ * 
+ * Each method switches on the id of the field and calls the getters of the state and the replica directly.
+ * Primitive values are compared with ==, floating point ones by their bits, immutable values with equals() and
+ * the rest with PascRuntime.compare(). Fields without getter get no id.
+ * 
+ * Comparators are generated once per state class and cached.
+ */
+public class StateComparatorGenerator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StateComparatorGenerator.class);
+
+    private static final ConcurrentMap<Class<?>, StateComparator> comparators = 
+            new ConcurrentHashMap<Class<?>, StateComparator>();
+    private static Object lock = new Object();
+
+    /**
+     * Obtains the comparator of the given state class, generating it if needed.
+     * 
+     * @param stateType class of the state and the replica
+     */
+    public static StateComparator getComparator(Class<?> stateType) {
+        StateComparator comparator = comparators.get(stateType);
+        if (comparator == null) {
+            synchronized (lock) {
+                comparator = comparators.get(stateType);
+                if (comparator == null) {
+                    comparator = generate(stateType);
+                    comparators.put(stateType, comparator);
+                }
+            }
+        }
+        return comparator;
+    }
+
+    private static StateComparator generate(Class<?> stateType) {
+        String comparatorClassName = stateType.getName() + "Comparator";
+        try {
+            Class<?> comparatorClass;
+            try {
+                comparatorClass = Class.forName(comparatorClassName);
+            } catch (ClassNotFoundException ignore) {
+                comparatorClass = generateClass(stateType, comparatorClassName);
+            }
+            return (StateComparator) comparatorClass.newInstance();
+        } catch (Exception ex) {
+            throw new RuntimeException("Error constructing comparator class: " + comparatorClassName, ex);
+        }
+    }
+
+    private static Class<?> generateClass(Class<?> stateType, String comparatorClassName) throws Exception {
+        List<AccessibleField> fields = new ArrayList<AccessibleField>();
+        for (AccessibleField af : obtainAccessibleFields(stateType)) {
+            if (af.getGetter() != null) {
+                fields.add(af);
+            }
+        }
+        String className = stateType.getName();
+
+        ClassPool pool = ClassPool.getDefault();
+        CtClass comparatorCtClass = pool.makeClass(comparatorClassName);
+        comparatorCtClass.setSuperclass(pool.get(StateComparator.class.getName()));
+
+        for (String method : new String[] { buildGetFieldNames(fields), buildCompare(fields, className),
+                buildCompareRange(fields, className), buildCompareKey(fields, className), 
+                buildGet(fields, className) }) {
+            LOG.trace("Method: {}", method);
+            CtMethod ctMethod = CtNewMethod.make(method, comparatorCtClass);
+            comparatorCtClass.addMethod(ctMethod);
+        }
+        return comparatorCtClass.toClass();
+    }
+
+    private static String buildGetFieldNames(List<AccessibleField> fields) {
+        StringBuilder method = new StringBuilder();
+        method.append("public String[] getFieldNames() {\n");
+        method.append(String.format("String[] names = new String[%d];\n", fields.size()));
+        for (int i = 0; i < fields.size(); i++) {
+            method.append(String.format("names[%d] = \"%s\";\n", i, fields.get(i).getName()));
+        }
+        method.append("return names;\n");
+        method.append("}\n");
+        return method.toString();
+    }
+
+    private static String buildCompare(List<AccessibleField> fields, String className) {
+        StringBuilder method = new StringBuilder();
+        method.append("public boolean compare(int field, Object state, Object replica) {\n");
+        method.append("switch (field) {\n");
+        for (int i = 0; i < fields.size(); i++) {
+            AccessibleField af = fields.get(i);
+            if (af.isIndexed()) {
+                continue;
+            }
+            String type = getPrimitiveName(af.getType());
+            method.append(String.format("case %d: {\n", i));
+            method.append(String.format("%s a = ((%s) state).%s();\n", type, className, af.getGetter()));
+            method.append(String.format("%s b = ((%s) replica).%s();\n", type, className, af.getGetter()));
+            method.append(String.format("return %s;\n", getEquals(af.getType())));
+            method.append("}\n");
+        }
+        method.append("default: throw new IllegalArgumentException(\"Not a plain field: \" + field);\n");
+        method.append("}\n");
+        method.append("}\n");
+        return method.toString();
+    }
+
+    private static String buildCompareRange(List<AccessibleField> fields, String className) {
+        StringBuilder method = new StringBuilder();
+        method.append("public int compare(int field, Object state, Object replica, int from, int to) {\n");
+        method.append("switch (field) {\n");
+        for (int i = 0; i < fields.size(); i++) {
+            AccessibleField af = fields.get(i);
+            if (!af.isDense()) {
+                continue;
+            }
+            String type = getPrimitiveName(af.getType());
+            method.append(String.format("case %d: {\n", i));
+            method.append(String.format("%s s = (%s) state;\n", className, className));
+            method.append(String.format("%s r = (%s) replica;\n", className, className));
+            method.append("for (int key = from; key < to; key++) {\n");
+            method.append(String.format("%s a = s.%s(key);\n", type, af.getGetter()));
+            method.append(String.format("%s b = r.%s(key);\n", type, af.getGetter()));
+            method.append(String.format("if (!(%s)) return key;\n", getEquals(af.getType())));
+            method.append("}\n");
+            method.append("return -1;\n");
+            method.append("}\n");
+        }
+        method.append("default: throw new IllegalArgumentException(\"Not a dense field: \" + field);\n");
+        method.append("}\n");
+        method.append("}\n");
+        return method.toString();
+    }
+
+    private static String buildCompareKey(List<AccessibleField> fields, String className) {
+        StringBuilder method = new StringBuilder();
+        method.append("public boolean compare(int field, Object state, Object replica, Object key) {\n");
+        method.append("switch (field) {\n");
+        for (int i = 0; i < fields.size(); i++) {
+            AccessibleField af = fields.get(i);
+            if (!af.isIndexed()) {
+                continue;
+            }
+            String type = getPrimitiveName(af.getType());
+            method.append(String.format("case %d: {\n", i));
+            method.append(String.format("%s k = %s;\n", getPrimitiveName(af.getIndexType()), 
+                    getUnboxed(af.getIndexType(), "key")));
+            method.append(String.format("%s a = ((%s) state).%s(k);\n", type, className, af.getGetter()));
+            method.append(String.format("%s b = ((%s) replica).%s(k);\n", type, className, af.getGetter()));
+            method.append(String.format("return %s;\n", getEquals(af.getType())));
+            method.append("}\n");
+        }
+        method.append("default: throw new IllegalArgumentException(\"Not an indexed field: \" + field);\n");
+        method.append("}\n");
+        method.append("}\n");
+        return method.toString();
+    }
+
+    private static String buildGet(List<AccessibleField> fields, String className) {
+        StringBuilder method = new StringBuilder();
+        method.append("public Object get(int field, Object target, Object key) {\n");
+        method.append("switch (field) {\n");
+        for (int i = 0; i < fields.size(); i++) {
+            AccessibleField af = fields.get(i);
+            String key = af.isIndexed() ? getUnboxed(af.getIndexType(), "key") : "";
+            String value = String.format("((%s) target).%s(%s)", className, af.getGetter(), key);
+            method.append(String.format("case %d: return %s;\n", i, getBoxed(af.getType(), value)));
+        }
+        method.append("default: throw new IllegalArgumentException(\"Unknown field: \" + field);\n");
+        method.append("}\n");
+        method.append("}\n");
+        return method.toString();
+    }
+
+    /**
+     * Builds the expression comparing the values a and b of the given type.
+     */
+    private static String getEquals(Class<?> type) {
+        if (type == float.class) {
+            return "Float.floatToIntBits(a) == Float.floatToIntBits(b)";
+        }
+        if (type == double.class) {
+            return "Double.doubleToLongBits(a) == Double.doubleToLongBits(b)";
+        }
+        if (type.isPrimitive()) {
+            return "a == b";
+        }
+        if (isImmutable(type)) {
+            return "a == null ? b == null : a.equals(b)";
+        }
+        return "com.yahoo.pasc.PascRuntime.compare(a, b)";
+    }
+
+    /**
+     * Builds the expression that unboxes an Object of the given type, Javassist doesn't unbox automatically.
+     */
+    private static String getUnboxed(Class<?> type, String value) {
+        if (type.isPrimitive()) {
+            return String.format("((%s) %s).%sValue()", getWrapper(type).getName(), value, type.getName());
+        }
+        return String.format("(%s) %s", getPrimitiveName(type), value);
+    }
+}
@@ -0,0 +1,264 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc.generation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.yahoo.pasc.KeyEnumerator;
+import com.yahoo.pasc.OrderedKeyEnumerator;
+import com.yahoo.pasc.PascRuntime;
+import com.yahoo.pasc.ProcessState;
+import com.yahoo.pasc.exceptions.VariableCorruptionException;
+
+/**
+ * Compares the whole state against the replica incrementally, so corruptions of entries that no handler reads
+ * are detected too.
+ * 
+ * Each call to scrub() compares entries until its time slice is over, resuming where the previous one left off.
+ * Entries are compared through a generated {@link StateComparator}, so primitive values aren't boxed. Fields
+ * without getter aren't scrubbed. The keys of indexed fields are obtained from a {@link KeyEnumerator}, except
+ * for dense fields, when the scrubber reaches the field. An {@link OrderedKeyEnumerator} is asked at each slice
+ * for the keys following the last one compared, other enumerators have their keys copied at once, so large
+ * fields are better enumerated in order. Slices are skipped while the time spent scrubbing exceeds the given
+ * share of the time elapsed since the scrubber was created.
+ * 
+ * The scrubber must not run concurrently with the handlers, see {@link PascRuntime#scrub()}.
+ *
+ * @param <S> state class used by this application
+ */
+public class StateScrubber<S extends ProcessState> {
+
+    // entries compared between reads of the clock
+    private static final int CLOCK_INTERVAL = 8;
+
+    private final KeyEnumerator<S> enumerator;
+    private final OrderedKeyEnumerator<S> orderedEnumerator;
+    private final StateComparator comparator;
+    private final long sliceNanos;
+    private final double maxShare;
+    private final long created;
+    private final List<ScrubbedField> fields = new ArrayList<ScrubbedField>();
+
+    private long spent;
+    private long passes;
+
+    private int current = -1;
+    // next index of a plain or dense field, or of the copied keys
+    private int next;
+    private Object[] keys = new Object[16];
+    private int count;
+    // keys of an ordered field for the current slice, resumed after the last compared key
+    private Iterator<?> cursor;
+    private Object last;
+    private boolean resumed;
+    private boolean exhausted;
+
+    private static class ScrubbedField {
+        String name;
+        int id;
+        boolean indexed;
+        int denseSize;
+    }
+
+    /**
+     * Creates a scrubber for the given state class.
+     * 
+     * @param stateType Class of the state and replica
+     * @param enumerator Enumerates the keys of indexed fields, can be null if there are none or all are dense
+     * @param sliceNanos Maximum duration of each call to scrub()
+     * @param maxShare Maximum fraction of the elapsed time spent scrubbing, between 0 and 1
+     */
+    public StateScrubber(Class<?> stateType, KeyEnumerator<S> enumerator, long sliceNanos, double maxShare) {
+        this.enumerator = enumerator;
+        this.orderedEnumerator = enumerator instanceof OrderedKeyEnumerator 
+                ? (OrderedKeyEnumerator<S>) enumerator : null;
+        this.comparator = StateComparatorGenerator.getComparator(stateType);
+        this.sliceNanos = sliceNanos;
+        this.maxShare = maxShare;
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        String[] names = comparator.getFieldNames();
+        for (int i = 0; i < names.length; i++) {
+            ids.put(names[i], i);
+        }
+        for (AccessibleField af : GeneratorUtil.obtainAccessibleFields(stateType)) {
+            if (af.getGetter() == null || (af.isIndexed() && !af.isDense() && enumerator == null)) {
+                continue;
+            }
+            ScrubbedField field = new ScrubbedField();
+            field.name = af.getName();
+            field.id = ids.get(field.name);
+            field.indexed = af.isIndexed();
+            field.denseSize = af.getDenseSize();
+            fields.add(field);
+        }
+        this.created = System.nanoTime();
+    }
+
+    /**
+     * Compares entries of the state and the replica until the time slice is over.
+     * 
+     * @param state Process state
+     * @param replica Replica of the process state
+     * @throws VariableCorruptionException if an entry of the state and the replica differ
+     */
+    public void scrub(S state, S replica) {
+        if (fields.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        if (spent > maxShare * (start - created)) {
+            return;
+        }
+        long deadline = start + sliceNanos;
+        try {
+            while (true) {
+                if (!compareNext(state, replica)) {
+                    nextField(state);
+                } 
+                if (System.nanoTime() >= deadline) {
+                    return;
+                }
+            }
+        } finally {
+            // the state may be modified before the next slice
+            cursor = null;
+            spent += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * @return number of complete passes over the state
+     */
+    public long getPasses() {
+        return passes;
+    }
+
+    private void nextField(S state) {
+        if (++current == fields.size()) {
+            current = 0;
+            passes++;
+        }
+        ScrubbedField field = fields.get(current);
+        next = 0;
+        count = 0;
+        last = null;
+        resumed = false;
+        exhausted = false;
+        if (field.indexed && field.denseSize == 0 && orderedEnumerator == null) {
+            Iterable<?> enumerated = enumerator.keys(state, field.name);
+            if (enumerated != null) {
+                for (Object key : enumerated) {
+                    if (count == keys.length) {
+                        Object[] grown = new Object[keys.length * 2];
+                        System.arraycopy(keys, 0, grown, 0, count);
+                        keys = grown;
+                    }
+                    keys[count++] = key;
+                }
+            }
+        }
+    }
+
+    /**
+     * Compares up to CLOCK_INTERVAL entries of the current field.
+     * 
+     * @return false if the current field has no more entries
+     */
+    private boolean compareNext(S state, S replica) {
+        if (current < 0) {
+            return false;
+        }
+        ScrubbedField field = fields.get(current);
+        if (!field.indexed) {
+            if (next > 0) {
+                return false;
+            }
+            next = 1;
+            if (!comparator.compare(field.id, state, replica)) {
+                throw corruption(field, state, replica, null);
+            }
+            return true;
+        }
+        if (field.denseSize > 0) {
+            if (next >= field.denseSize) {
+                return false;
+            }
+            int to = Math.min(next + CLOCK_INTERVAL, field.denseSize);
+            int differing = comparator.compare(field.id, state, replica, next, to);
+            if (differing >= 0) {
+                next = differing + 1;
+                throw corruption(field, state, replica, Integer.valueOf(differing));
+            }
+            next = to;
+            return true;
+        }
+        if (orderedEnumerator == null) {
+            if (next >= count) {
+                return false;
+            }
+            int to = Math.min(next + CLOCK_INTERVAL, count);
+            while (next < to) {
+                Object key = keys[next];
+                // the copied keys mustn't outlive the pass
+                keys[next++] = null;
+                compare(field, key, state, replica);
+            }
+            return true;
+        }
+        if (exhausted) {
+            return false;
+        }
+        if (cursor == null) {
+            Iterable<?> enumerated = resumed ? orderedEnumerator.keysAfter(state, field.name, last)
+                    : orderedEnumerator.keys(state, field.name);
+            resumed = true;
+            if (enumerated == null) {
+                exhausted = true;
+                return false;
+            }
+            cursor = enumerated.iterator();
+        }
+        int compared = 0;
+        while (compared < CLOCK_INTERVAL && cursor.hasNext()) {
+            last = cursor.next();
+            compared++;
+            compare(field, last, state, replica);
+        }
+        if (compared == 0) {
+            exhausted = true;
+            cursor = null;
+            last = null;
+            return false;
+        }
+        return true;
+    }
+
+    private void compare(ScrubbedField field, Object key, S state, S replica) {
+        if (!comparator.compare(field.id, state, replica, key)) {
+            throw corruption(field, state, replica, key);
+        }
+    }
+
+    private VariableCorruptionException corruption(ScrubbedField field, S state, S replica, Object key) {
+        return new VariableCorruptionException(field.name, comparator.get(field.id, state, key), 
+                comparator.get(field.id, replica, key));
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.yahoo.pasc.generation;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+import javassist.CannotCompileException;
+import javassist.CtClass;
+import javassist.CtField;
+import javassist.CtNewMethod;
+
+/**
+ * Holds the sun.misc.Unsafe instance used by the generated classes.
+ * 
+ * The instance is typed Object and only generated code names its class, so the sources compile without
+ * warnings about internal APIs. Generated classes get a static field holding it with {@link #addUnsafeField}.
+ */
+public final class UnsafeAccess {
+
+    /** The sun.misc.Unsafe instance */
+    public static final Object UNSAFE;
+    private static final Method objectFieldOffset;
+
+    static {
+        try {
+            Class<?> type = Class.forName("sun.misc.Unsafe");
+            Field field = type.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            UNSAFE = field.get(null);
+            objectFieldOffset = type.getMethod("objectFieldOffset", Field.class);
+        } catch (Exception e) {
+            throw new IllegalStateException("Couldn't access sun.misc.Unsafe", e);
+        }
+    }
+
+    private UnsafeAccess() {
+    }
+
+    /**
+     * Obtains the offset of a field, for the generated code to access it.
+     */
+    static long objectFieldOffset(Field field) {
+        try {
+            return (Long) objectFieldOffset.invoke(UNSAFE, field);
+        } catch (Exception e) {
+            throw new IllegalStateException("Couldn't obtain the offset of " + field, e);
+        }
+    }
+
+    /**
+     * Adds the static unsafe field to a generated class.
+     */
+    static void addUnsafeField(CtClass ctClass) throws CannotCompileException {
+        ctClass.addField(CtField.make("static final sun.misc.Unsafe unsafe = (sun.misc.Unsafe) " 
+                + UnsafeAccess.class.getName() + ".UNSAFE;", ctClass));
+    }
+
+    /**
+     * Adds a newInstance() method to a generated class that allocates instances of its type field without
+     * running their constructors.
+     */
+    static void addNewInstance(CtClass ctClass) throws CannotCompileException {
+        ctClass.addMethod(CtNewMethod.make(
+                "protected Object newInstance() {\n" +
+                "try {\n" +
+                "    return unsafe.allocateInstance(type);\n" +
+                "} catch (InstantiationException e) {\n" +
+                "    throw new IllegalStateException(\"Couldn't instantiate \" + type, e);\n" +
+                "}\n" +
+                "}\n", ctClass));
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the accesses to a field of the state. Sizes are sampled once per message.
+ */
+public class FieldMetrics implements FieldMetricsMBean {
+
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private final AtomicLong samples = new AtomicLong();
+    private final AtomicLong writtenSize = new AtomicLong();
+    private final AtomicLong maxWrittenSize = new AtomicLong();
+    private final AtomicLong readSize = new AtomicLong();
+    private final AtomicLong maxReadSize = new AtomicLong();
+    private final AtomicLong cachedKeys = new AtomicLong();
+    private final AtomicLong maxCachedKeys = new AtomicLong();
+    private final AtomicLong corruptions = new AtomicLong();
+
+    public void recordAccesses(int hits, int misses, int written, int read, int cached) {
+        cacheHits.addAndGet(hits);
+        cacheMisses.addAndGet(misses);
+        samples.incrementAndGet();
+        writtenSize.addAndGet(written);
+        readSize.addAndGet(read);
+        cachedKeys.addAndGet(cached);
+        updateMax(maxWrittenSize, written);
+        updateMax(maxReadSize, read);
+        updateMax(maxCachedKeys, cached);
+    }
+
+    public void recordCorruption() {
+        corruptions.incrementAndGet();
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        long hits = cacheHits.get();
+        long total = hits + cacheMisses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public double getMeanWrittenSize() {
+        long n = samples.get();
+        return n == 0 ? 0 : (double) writtenSize.get() / n;
+    }
+
+    @Override
+    public long getMaxWrittenSize() {
+        return maxWrittenSize.get();
+    }
+
+    @Override
+    public double getMeanReadSize() {
+        long n = samples.get();
+        return n == 0 ? 0 : (double) readSize.get() / n;
+    }
+
+    @Override
+    public long getMaxReadSize() {
+        return maxReadSize.get();
+    }
+
+    @Override
+    public double getMeanCachedKeys() {
+        long n = samples.get();
+        return n == 0 ? 0 : (double) cachedKeys.get() / n;
+    }
+
+    @Override
+    public long getMaxCachedKeys() {
+        return maxCachedKeys.get();
+    }
+
+    @Override
+    public long getCorruptions() {
+        return corruptions.get();
+    }
+
+    @Override
+    public void reset() {
+        cacheHits.set(0);
+        cacheMisses.set(0);
+        samples.set(0);
+        writtenSize.set(0);
+        maxWrittenSize.set(0);
+        readSize.set(0);
+        maxReadSize.set(0);
+        cachedKeys.set(0);
+        maxCachedKeys.set(0);
+        corruptions.set(0);
+    }
+}
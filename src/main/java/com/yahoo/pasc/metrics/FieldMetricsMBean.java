@@ -0,0 +1,45 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc.metrics;
+
+/**
+ * Accesses to a field of the state.
+ */
+public interface FieldMetricsMBean {
+
+    public long getCacheHits();
+
+    public long getCacheMisses();
+
+    public double getCacheHitRatio();
+
+    public double getMeanWrittenSize();
+
+    public long getMaxWrittenSize();
+
+    public double getMeanReadSize();
+
+    public long getMaxReadSize();
+
+    public double getMeanCachedKeys();
+
+    public long getMaxCachedKeys();
+
+    public long getCorruptions();
+
+    public void reset();
+}
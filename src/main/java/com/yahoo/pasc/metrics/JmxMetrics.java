@@ -0,0 +1,177 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Metrics sink exposing the metrics as MBeans.
+ * 
+ * Each phase of each handler gets a {@link LatencyHistogram} named
+ * <code>domain:type=Handler,handler=&lt;handler class&gt;,phase=&lt;phase&gt;</code> and each field gets its
+ * {@link FieldMetrics} named <code>domain:type=Field,field=&lt;field&gt;</code>. The MBeans are registered the
+ * first time a handler or field is recorded, afterwards recording doesn't allocate.
+ */
+public class JmxMetrics implements PascMetrics {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JmxMetrics.class);
+
+    public static final String DEFAULT_DOMAIN = "com.yahoo.pasc";
+
+    private final String domain;
+    private final MBeanServer server;
+    private final ConcurrentMap<Object, LatencyHistogram[]> handlers = 
+            new ConcurrentHashMap<Object, LatencyHistogram[]>();
+    private final ConcurrentMap<String, FieldMetrics> fields = new ConcurrentHashMap<String, FieldMetrics>();
+    private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+    public JmxMetrics() {
+        this(DEFAULT_DOMAIN);
+    }
+
+    public JmxMetrics(String domain) {
+        this(domain, ManagementFactory.getPlatformMBeanServer());
+    }
+
+    public JmxMetrics(String domain, MBeanServer server) {
+        this.domain = domain;
+        this.server = server;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return true;
+    }
+
+    @Override
+    public void recordPhase(Object handler, Phase phase, long nanos) {
+        LatencyHistogram[] histograms = handlers.get(handler);
+        if (histograms == null) {
+            histograms = registerHandler(handler);
+        }
+        histograms[phase.ordinal()].record(nanos);
+    }
+
+    @Override
+    public void recordIndexedField(String field, int cacheHits, int cacheMisses, int writtenSize, int readSize, 
+            int cachedKeys) {
+        getFieldMetrics(field).recordAccesses(cacheHits, cacheMisses, writtenSize, readSize, cachedKeys);
+    }
+
+    @Override
+    public void recordCorruption(String field) {
+        getFieldMetrics(field).recordCorruption();
+    }
+
+    /**
+     * @return the latencies of a phase of a handler, or null if it hasn't been recorded yet
+     */
+    public LatencyHistogram getHistogram(Object handler, Phase phase) {
+        LatencyHistogram[] histograms = handlers.get(handler);
+        return histograms == null ? null : histograms[phase.ordinal()];
+    }
+
+    /**
+     * @return the metrics of a field, registering them if needed
+     */
+    public FieldMetrics getFieldMetrics(String field) {
+        FieldMetrics metrics = fields.get(field);
+        if (metrics == null) {
+            metrics = registerField(field);
+        }
+        return metrics;
+    }
+
+    private synchronized LatencyHistogram[] registerHandler(Object handler) {
+        LatencyHistogram[] histograms = handlers.get(handler);
+        if (histograms != null) {
+            return histograms;
+        }
+        Phase[] phases = Phase.values();
+        histograms = new LatencyHistogram[phases.length];
+        String name = handler.getClass().getName();
+        int instance = 0;
+        while (isRegistered(String.format("%s:type=Handler,handler=%s%s,phase=%s", domain, name, 
+                suffix(instance), phases[0]))) {
+            ++instance;
+        }
+        for (Phase phase : phases) {
+            histograms[phase.ordinal()] = new LatencyHistogram();
+            register(String.format("%s:type=Handler,handler=%s%s,phase=%s", domain, name, suffix(instance), phase), 
+                    histograms[phase.ordinal()]);
+        }
+        handlers.put(handler, histograms);
+        return histograms;
+    }
+
+    private synchronized FieldMetrics registerField(String field) {
+        FieldMetrics metrics = fields.get(field);
+        if (metrics != null) {
+            return metrics;
+        }
+        metrics = new FieldMetrics();
+        register(String.format("%s:type=Field,field=%s", domain, field), metrics);
+        fields.put(field, metrics);
+        return metrics;
+    }
+
+    private static String suffix(int instance) {
+        return instance == 0 ? "" : "-" + instance;
+    }
+
+    private boolean isRegistered(String name) {
+        try {
+            return server.isRegistered(new ObjectName(name));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private void register(String name, Object mbean) {
+        try {
+            ObjectName objectName = new ObjectName(name);
+            server.registerMBean(mbean, objectName);
+            registered.add(objectName);
+        } catch (Exception e) {
+            LOG.warn("Couldn't register MBean " + name, e);
+        }
+    }
+
+    /**
+     * Unregisters all the MBeans registered by this sink.
+     */
+    public synchronized void unregister() {
+        for (ObjectName name : registered) {
+            try {
+                server.unregisterMBean(name);
+            } catch (Exception e) {
+                LOG.warn("Couldn't unregister MBean " + name, e);
+            }
+        }
+        registered.clear();
+    }
+}
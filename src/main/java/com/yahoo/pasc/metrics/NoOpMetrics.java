@@ -0,0 +1,46 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc.metrics;
+
+/**
+ * Metrics sink that discards everything, used by default.
+ */
+public final class NoOpMetrics implements PascMetrics {
+
+    public static final NoOpMetrics INSTANCE = new NoOpMetrics();
+
+    private NoOpMetrics() {
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return false;
+    }
+
+    @Override
+    public void recordPhase(Object handler, Phase phase, long nanos) {
+    }
+
+    @Override
+    public void recordIndexedField(String field, int cacheHits, int cacheMisses, int writtenSize, int readSize, 
+            int cachedKeys) {
+    }
+
+    @Override
+    public void recordCorruption(String field) {
+    }
+}
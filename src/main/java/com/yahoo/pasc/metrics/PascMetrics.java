@@ -0,0 +1,82 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc.metrics;
+
+/**
+ * Sink of the runtime and encapsulator metrics.
+ * 
+ * Methods are called from the message handling path, implementations must be thread safe and shouldn't
+ * allocate once the handlers and fields have been seen.
+ * 
+ * @see NoOpMetrics
+ * @see JmxMetrics
+ */
+public interface PascMetrics {
+
+    /**
+     * Phases of the protected message handling.
+     */
+    public enum Phase {
+        /** Clone and verification of the input message */
+        INPUT_CLONE,
+        /** Handler execution on the state */
+        STATE_PASS,
+        /** Handler execution on the replica */
+        REPLICA_PASS,
+        /** Application of the modifications to the state */
+        APPLY_MODIFICATIONS,
+        /** Comparison of the descriptors of both executions */
+        DESCRIPTOR_COMPARE,
+        /** Storage of the replicas or CRCs of the output messages */
+        OUTPUT_CRC
+    }
+
+    /**
+     * @return false if the runtime can skip collecting metrics
+     */
+    public boolean isEnabled();
+
+    /**
+     * Records the duration of a phase.
+     * 
+     * @param handler handler of the message
+     * @param phase phase
+     * @param nanos duration in nanoseconds
+     */
+    public void recordPhase(Object handler, Phase phase, long nanos);
+
+    /**
+     * Records the accesses of a message to an indexed field of the state.
+     * 
+     * @param field name of the field
+     * @param cacheHits reads served by the key cache
+     * @param cacheMisses reads not served by the key cache
+     * @param writtenSize entries spilled from the key cache to the written map
+     * @param readSize entries spilled from the key cache of the replica execution to its read set, 0 if the 
+     *            message had a single execution
+     * @param cachedKeys keys held in the key cache
+     */
+    public void recordIndexedField(String field, int cacheHits, int cacheMisses, int writtenSize, int readSize, 
+            int cachedKeys);
+
+    /**
+     * Records a corruption detected on a field of the state.
+     * 
+     * @param field name of the field
+     */
+    public void recordCorruption(String field);
+}
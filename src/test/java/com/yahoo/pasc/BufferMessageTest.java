@@ -0,0 +1,217 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.yahoo.pasc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.yahoo.pasc.exceptions.CorruptionException;
+import com.yahoo.pasc.exceptions.InputMessageException;
+
+public class BufferMessageTest {
+
+    @Test
+    public void readInPlace() {
+        ByteBuffer network = ByteBuffer.allocateDirect(64);
+        write(new BMessage(3, 30), network);
+        write(new BMessage(4, 40), network);
+        network.flip();
+
+        BMessage first = new BMessage(network);
+        BMessage second = new BMessage(network);
+        assertEquals(0, network.remaining());
+        assertEquals(3, first.getKey());
+        assertEquals(40, second.getValue());
+        assertTrue(first.verify());
+        assertTrue(second.verify());
+
+        // shares the bytes of the network buffer
+        network.putLong(4, 31);
+        assertEquals(31, first.getValue());
+        assertFalse(first.verify());
+    }
+
+    @Test
+    public void handleReceivedMessages() {
+        PascRuntime<State> runtime = createRuntime(new Handler());
+        ByteBuffer network = ByteBuffer.allocateDirect(64);
+        write(new BMessage(1, 7), network);
+        write(new BMessage(2, 5), network);
+        network.flip();
+        // corrupted on the wire
+        network.put(BMessage.SIZE + BufferMessage.CHECKSUM_SIZE + 4, (byte) 1);
+
+        assertEquals(1, runtime.handleMessage(new BMessage(network)).size());
+        assertEquals(7, runtime.getState().getTotal());
+        assertTrue(runtime.handleMessage(new BMessage(network)).isEmpty());
+        assertEquals(7, runtime.getState().getTotal());
+    }
+
+    @Test
+    public void cloneAndCompare() {
+        BMessage m = new BMessage(5, 7);
+        m.storeReplica(m);
+        BMessage copy = PascRuntime.clone(m);
+        assertNotSame(m, copy);
+        assertEquals(BMessage.SIZE, copy.size());
+        assertEquals(7, copy.getValue());
+        assertTrue(copy.verify());
+        assertTrue(PascRuntime.compare(m, copy));
+
+        copy.setValue(8);
+        assertEquals(7, m.getValue());
+        assertFalse(PascRuntime.compare(m, copy));
+        assertFalse(copy.verify());
+        copy.setValue(7);
+        copy.buffer.put(BMessage.SIZE - 1, (byte) 1);
+        assertFalse(PascRuntime.compare(m, copy));
+    }
+
+    @Test
+    public void runtimeOperation() {
+        PascRuntime<State> runtime = createRuntime(new Handler());
+        BMessage m = new BMessage(5, 7);
+        m.storeReplica(m);
+
+        List<Message> messages = runtime.handleMessage(m);
+        assertEquals(1, messages.size());
+        BMessage response = (BMessage) messages.get(0);
+        assertTrue(response.verify());
+        assertEquals(7, response.getValue());
+        assertEquals(7, runtime.getState().getTotal());
+    }
+
+    @Test
+    public void runtimeDetectCorruptMessage() {
+        PascRuntime<State> runtime = createRuntime(new Handler() {
+            @Override
+            public List<BMessage> processMessage(BMessage message, State state) {
+                message.setKey(message.getKey() + 1);
+                return super.processMessage(message, state);
+            }
+        });
+        BMessage m = new BMessage(5, 7);
+        m.storeReplica(m);
+        try {
+            runtime.handleMessage(m);
+            fail("Should detect corrupt message");
+        } catch (InputMessageException e) {
+            //ignore
+        }
+    }
+
+    private static void write(BMessage message, ByteBuffer network) {
+        message.storeReplica(message);
+        message.writeTo(network);
+    }
+
+    private PascRuntime<State> createRuntime(Handler handler) {
+        PascRuntime<State> runtime = new PascRuntime<State>();
+        runtime.setState(new State());
+        runtime.addHandler(BMessage.class, handler);
+        runtime.setFailureHandler(new FailureHandler() {
+            @Override
+            public void handleFailure(Exception e) {
+                if (e instanceof CorruptionException) {
+                    throw (CorruptionException) e;
+                }
+                throw new RuntimeException(e);
+            }
+        });
+        return runtime;
+    }
+
+    public static class State implements ProcessState {
+        long total;
+
+        public long getTotal() {
+            return total;
+        }
+
+        public void setTotal(long total) {
+            this.total = total;
+        }
+    }
+
+    private static class BMessage extends BufferMessage<BMessage> {
+        static final int SIZE = 13;
+
+        public BMessage(int key, long value) {
+            super(SIZE);
+            setKey(key);
+            setValue(value);
+        }
+
+        public BMessage(ByteBuffer source) {
+            super(source, SIZE);
+        }
+
+        private BMessage(BMessage other) {
+            super(other);
+        }
+
+        public int getKey() {
+            return buffer.getInt(0);
+        }
+
+        public void setKey(int key) {
+            buffer.putInt(0, key);
+        }
+
+        public long getValue() {
+            return buffer.getLong(4);
+        }
+
+        public void setValue(long value) {
+            buffer.putLong(4, value);
+        }
+
+        @Override
+        public BMessage cloneDeep() {
+            return new BMessage(this);
+        }
+    }
+
+    private static class Handler implements MessageHandler<BMessage, State, BMessage> {
+
+        @Override
+        public boolean guardPredicate(BMessage receivedMessage) {
+            return true;
+        }
+
+        @Override
+        public List<BMessage> processMessage(BMessage message, State state) {
+            long total = state.getTotal() + message.getValue();
+            state.setTotal(total);
+            return Arrays.asList(new BMessage(message.getKey(), total));
+        }
+
+        @Override
+        public List<Message> getOutputMessages(State state, List<BMessage> descriptors) {
+            return descriptors == null ? null : Collections.<Message>unmodifiableList(descriptors);
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yahoo.pasc.exceptions.VariableCorruptionException;
+import com.yahoo.pasc.generation.ChecksumReplica;
+
+public class ChecksumReplicaTest {
+
+    private PascRuntime<State> runtime;
+    private List<Exception> failures;
+
+    @Before
+    public void setUp() {
+        runtime = new PascRuntime<State>();
+        State state = new State();
+        state.balances.put("k1", 10L);
+        state.accounts.put(1, new Account(5));
+        runtime.setChecksummedState(state, new KeyEnumerator<State>() {
+            @Override
+            public Iterable<?> keys(State state, String field) {
+                return field.equals("balance") ? state.balances.keySet() : state.accounts.keySet();
+            }
+        });
+        runtime.addHandler(TMessage.class, new Handler());
+        failures = new ArrayList<Exception>();
+        runtime.setFailureHandler(new FailureHandler() {
+            @Override
+            public void handleFailure(Exception e) {
+                failures.add(e);
+            }
+        });
+    }
+
+    @Test
+    public void checksumReplica() {
+        assertTrue(runtime.getReplica() instanceof ChecksumReplica);
+        // the fields of the state aren't copied
+        assertNull(runtime.getReplica().counts);
+        assertNull(runtime.getReplica().balances);
+
+        for (int key : new int[] { 1, 2, 1, 3, 1 }) {
+            List<Message> responses = runtime.handleMessage(new TMessage(key, 10));
+            assertEquals(1, responses.size());
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+        State state = runtime.getState();
+        assertEquals(5, state.total);
+        assertEquals(3, state.counts[1]);
+        assertEquals(40L, (long) state.balances.get("k1"));
+        assertEquals(10L, (long) state.balances.get("k3"));
+        assertEquals(20L, state.accounts.get(1).amount);
+    }
+
+    @Test
+    public void parallelExecution() {
+        runtime.setParallelExecution(true);
+        try {
+            for (int i = 0; i < 100; ++i) {
+                runtime.handleMessage(new TMessage(i % 7, 2));
+            }
+        } finally {
+            runtime.setParallelExecution(false);
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertEquals(100, runtime.getState().total);
+        assertEquals(40L, (long) runtime.getState().balances.get("k1"));
+    }
+
+    @Test
+    public void detectCorruptions() {
+        runtime.handleMessage(new TMessage(2, 10));
+        runtime.getState().counts[2] = 7;
+        runtime.handleMessage(new TMessage(2, 10));
+        assertEquals(1, failures.size());
+        assertEquals("count", ((VariableCorruptionException) failures.get(0)).getVariable());
+
+        runtime.getState().accounts.get(1).amount = 1000;
+        runtime.handleMessage(new TMessage(1, 10));
+        assertEquals(2, failures.size());
+        assertEquals("account", ((VariableCorruptionException) failures.get(1)).getVariable());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectIdentityChecksums() {
+        new PascRuntime<NodeState>().setChecksummedState(new NodeState(), null);
+    }
+
+    @Test
+    public void replicateIdentityChecksummedFields() {
+        PascRuntime<ProtectedNodeState> nodeRuntime = new PascRuntime<ProtectedNodeState>();
+        nodeRuntime.setChecksummedState(new ProtectedNodeState(), null);
+        nodeRuntime.addHandler(TMessage.class, new NodeHandler<ProtectedNodeState>());
+        nodeRuntime.setFailureHandler(new FailureHandler() {
+            @Override
+            public void handleFailure(Exception e) {
+                failures.add(e);
+            }
+        });
+        for (int i = 0; i < 3; ++i) {
+            nodeRuntime.handleMessage(new TMessage(1, 10));
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertEquals(30L, nodeRuntime.getState().node.amount);
+    }
+
+    public static class Node {
+        long amount;
+        Node next;
+    }
+
+    public static class NodeState implements ProcessState {
+        Node node;
+
+        public Node getNode() {
+            return node;
+        }
+
+        public void setNode(Node node) {
+            this.node = node;
+        }
+    }
+
+    public static class ProtectedNodeState extends NodeState {
+        @Override
+        @Protection(FieldProtection.REPLICA)
+        public Node getNode() {
+            return node;
+        }
+
+        @Override
+        public void setNode(Node node) {
+            this.node = node;
+        }
+    }
+
+    private static class NodeHandler<S extends NodeState> implements MessageHandler<TMessage, S, Long> {
+
+        @Override
+        public boolean guardPredicate(TMessage receivedMessage) {
+            return true;
+        }
+
+        @Override
+        public List<Long> processMessage(TMessage message, S state) {
+            Node node = state.getNode();
+            if (node == null) {
+                node = new Node();
+            }
+            node.amount += message.amount;
+            state.setNode(node);
+            return Arrays.asList(node.amount);
+        }
+
+        @Override
+        public List<Message> getOutputMessages(S state, List<Long> descriptors) {
+            return Arrays.<Message>asList(new TMessage(0, descriptors.get(0)));
+        }
+    }
+
+    public static class Account {
+        long amount;
+
+        public Account() {
+        }
+
+        Account(long amount) {
+            this.amount = amount;
+        }
+    }
+
+    public static class State implements ProcessState {
+        int total;
+        int counts[] = new int[64];
+        Map<String, Long> balances = new HashMap<String, Long>();
+        Map<Integer, Account> accounts = new HashMap<Integer, Account>();
+
+        public int getTotal() {
+            return total;
+        }
+
+        public void setTotal(int total) {
+            this.total = total;
+        }
+
+        @Dense(64)
+        public int getCount(int key) {
+            return counts[key];
+        }
+
+        public void setCount(int key, int count) {
+            counts[key] = count;
+        }
+
+        public long getBalance(String key) {
+            Long balance = balances.get(key);
+            return balance == null ? 0 : balance;
+        }
+
+        public void setBalance(String key, long balance) {
+            balances.put(key, balance);
+        }
+
+        public Account getAccount(Integer key) {
+            return accounts.get(key);
+        }
+
+        public void setAccount(Integer key, Account account) {
+            accounts.put(key, account);
+        }
+    }
+
+    private static class TMessage extends Message implements EqualsDeep<TMessage> {
+        int key;
+        long amount;
+        int crc;
+
+        public TMessage(int key, long amount) {
+            this.key = key;
+            this.amount = amount;
+            this.crc = key;
+        }
+
+        @Override
+        protected boolean verify() {
+            return crc == key;
+        }
+
+        @Override
+        public void storeReplica(Message m) {
+            crc = ((TMessage) m).key;
+        }
+
+        @Override
+        public boolean equalsDeep(TMessage other) {
+            return key == other.key && amount == other.amount;
+        }
+    }
+
+    private static class Handler implements MessageHandler<TMessage, State, Long> {
+
+        @Override
+        public boolean guardPredicate(TMessage receivedMessage) {
+            return true;
+        }
+
+        @Override
+        public List<Long> processMessage(TMessage message, State state) {
+            state.setTotal(state.getTotal() + 1);
+            state.setCount(message.key, state.getCount(message.key) + 1);
+            String key = "k" + message.key;
+            state.setBalance(key, state.getBalance(key) + message.amount);
+            Account account = state.getAccount(message.key);
+            if (account == null) {
+                account = new Account();
+            }
+            account.amount += message.amount / 2;
+            state.setAccount(message.key, account);
+            return Arrays.asList(state.getBalance(key));
+        }
+
+        @Override
+        public List<Message> getOutputMessages(State state, List<Long> descriptors) {
+            return Arrays.<Message>asList(new TMessage(0, descriptors.get(0)));
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.yahoo.pasc.exceptions.CorruptionException;
+import com.yahoo.pasc.exceptions.InputMessageException;
+import com.yahoo.pasc.generation.Checksummer;
+
+public class ChecksummedMessageTest {
+
+    @Test
+    public void verifyStoredChecksum() {
+        CMessage m = new CMessage(5, "five");
+        assertFalse(m.verify());
+        m.storeReplica(m);
+        assertTrue(m.verify());
+        
+        CMessage copy = PascRuntime.clone(m);
+        assertTrue(copy.verify());
+        assertEquals(m.getChecksum(), copy.getChecksum());
+    }
+
+    @Test
+    public void detectCorruptFields() {
+        CMessage m = new CMessage(5, "five");
+        m.storeReplica(m);
+
+        m.a++;
+        assertFalse(m.verify());
+        m.a--;
+        assertTrue(m.verify());
+
+        m.values[2] = 0.5;
+        assertFalse(m.verify());
+        m.values[2] = 2;
+        assertTrue(m.verify());
+
+        m.name = "fivE";
+        assertFalse(m.verify());
+        m.name = "five";
+        assertTrue(m.verify());
+
+        m.ignored = 7;
+        assertTrue(m.verify());
+    }
+
+    @Test
+    public void checksumBigNumbersByContent() {
+        assertFalse(checksum(new BigDecimal("1.5")) == checksum(new BigDecimal("1.2")));
+        assertFalse(checksum(new BigDecimal("1.5")) == checksum(new BigDecimal("1.50")));
+        assertFalse(checksum(BigInteger.ONE.shiftLeft(64).add(BigInteger.ONE)) == checksum(BigInteger.ONE));
+        assertEquals(checksum(new BigDecimal("1.5")), checksum(new BigDecimal("1.5")));
+        assertEquals(checksum(7), checksum(7L));
+    }
+
+    private static long checksum(Object value) {
+        return Checksummer.mixObject(0, value);
+    }
+
+    @Test
+    public void runtimeOperation() {
+        PascRuntime<State> runtime = createRuntime(new Handler());
+        CMessage m = new CMessage(5, "five");
+        m.storeReplica(m);
+
+        List<Message> messages = runtime.handleMessage(m);
+        assertEquals(1, messages.size());
+        CMessage response = (CMessage) messages.get(0);
+        assertTrue(response.verify());
+        assertEquals(5, response.a);
+        assertEquals(5, runtime.getState().getA());
+    }
+
+    @Test
+    public void runtimeDetectCorruptMessage() {
+        PascRuntime<State> runtime = createRuntime(new Handler() {
+            @Override
+            public List<CMessage> processMessage(CMessage message, State state) {
+                message.values[0]++;
+                return super.processMessage(message, state);
+            }
+        });
+        CMessage m = new CMessage(5, "five");
+        m.storeReplica(m);
+        try {
+            runtime.handleMessage(m);
+            fail("Should detect corrupt message");
+        } catch (InputMessageException e) {
+            //ignore
+        }
+    }
+
+    private PascRuntime<State> createRuntime(Handler handler) {
+        PascRuntime<State> runtime = new PascRuntime<State>();
+        runtime.setState(new State());
+        runtime.addHandler(CMessage.class, handler);
+        runtime.setFailureHandler(new FailureHandler() {
+            @Override
+            public void handleFailure(Exception e) {
+                if (e instanceof CorruptionException) {
+                    throw (CorruptionException) e;
+                }
+                throw new RuntimeException(e);
+            }
+        });
+        return runtime;
+    }
+
+    public static class State implements ProcessState {
+        int a;
+
+        public int getA() {
+            return a;
+        }
+
+        public void setA(int a) {
+            this.a = a;
+        }
+    }
+
+    private static class CMessage extends ChecksummedMessage {
+        int a;
+        String name;
+        double values[] = { 0, 1, 2 };
+        transient int ignored;
+
+        public CMessage(int a, String name) {
+            this.a = a;
+            this.name = name;
+        }
+    }
+
+    private static class Handler implements MessageHandler<CMessage, State, CMessage> {
+
+        @Override
+        public boolean guardPredicate(CMessage receivedMessage) {
+            return true;
+        }
+
+        @Override
+        public List<CMessage> processMessage(CMessage message, State state) {
+            int a = state.getA() + message.a;
+            state.setA(a);
+            return Arrays.asList(new CMessage(a, message.name));
+        }
+
+        @Override
+        public List<Message> getOutputMessages(State state, List<CMessage> descriptors) {
+            return descriptors == null ? null : Collections.<Message>unmodifiableList(descriptors);
+        }
+    }
+}
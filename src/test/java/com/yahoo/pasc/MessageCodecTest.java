@@ -0,0 +1,168 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.yahoo.pasc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.yahoo.pasc.exceptions.CorruptionException;
+import com.yahoo.pasc.exceptions.InputMessageException;
+import com.yahoo.pasc.generation.MessageCodec;
+
+public class MessageCodecTest {
+
+    @Test
+    public void encodeAndDecode() {
+        for (ByteBuffer buffer : new ByteBuffer[] { ByteBuffer.allocate(4096), ByteBuffer.allocateDirect(4096) }) {
+            MessageCodec codec = MessageCodec.getCodec(CMessage.class);
+            CMessage m1 = new CMessage(5, "five");
+            m1.storeReplica(m1);
+            CMessage m2 = new CMessage(-6, null);
+            m2.values = null;
+            m2.unit = null;
+            m2.boxed = null;
+            m2.storeReplica(m2);
+
+            int size = codec.encode(m1, buffer);
+            assertEquals(size, buffer.position());
+            codec.encode(m2, buffer);
+            buffer.flip();
+
+            assertTrue(MessageCodec.verify(buffer));
+            CMessage d1 = (CMessage) codec.decode(buffer);
+            assertEquals(size, buffer.position());
+            CMessage d2 = (CMessage) codec.decode(buffer);
+            assertFalse(buffer.hasRemaining());
+
+            // the checksum is computed while decoding
+            assertTrue(d1.verify());
+            assertEquals(m1.getChecksum(), d1.getChecksum());
+            assertEquals(5, d1.a);
+            assertEquals(-5L, d1.b);
+            assertEquals("five", d1.name);
+            assertArrayEquals(m1.values, d1.values, 0);
+            assertEquals(TimeUnit.SECONDS, d1.unit);
+            assertEquals(Integer.valueOf(55), d1.boxed);
+            assertEquals(0, d1.ignored);
+
+            assertTrue(d2.verify());
+            assertEquals(-6, d2.a);
+            assertNull(d2.name);
+            assertNull(d2.values);
+            assertNull(d2.unit);
+            assertNull(d2.boxed);
+        }
+    }
+
+    @Test
+    public void plainMessages() {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        MessageCodec codec = MessageCodec.getCodec(PMessage.class);
+        PMessage m = new PMessage();
+        m.value = 42;
+        m.flag = true;
+        m.storeReplica(m);
+        codec.encode(m, buffer);
+        buffer.flip();
+        PMessage decoded = (PMessage) codec.decode(buffer);
+        assertTrue(decoded.verify());
+        assertEquals(42, decoded.value);
+        assertTrue(decoded.flag);
+    }
+
+    @Test
+    public void detectCorruptions() {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        MessageCodec codec = MessageCodec.getCodec(CMessage.class);
+        CMessage m = new CMessage(5, "five");
+        m.storeReplica(m);
+        int size = codec.encode(m, buffer);
+
+        buffer.put(size / 2, (byte) (buffer.get(size / 2) ^ 1));
+        buffer.flip();
+        assertFalse(MessageCodec.verify(buffer));
+        try {
+            codec.decode(buffer);
+            fail("Corruption not detected");
+        } catch (CorruptionException e) {
+        }
+
+        buffer.limit(size - 1);
+        assertFalse(MessageCodec.verify(buffer));
+
+        // corrupted after storing the checksum
+        m.a++;
+        buffer.clear();
+        try {
+            codec.encode(m, buffer);
+            fail("Corruption not detected");
+        } catch (InputMessageException e) {
+        }
+
+        try {
+            MessageCodec.getCodec(UnsupportedMessage.class);
+            fail("Unsupported field accepted");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    private static class CMessage extends ChecksummedMessage {
+        int a;
+        long b;
+        String name;
+        double[] values = { 0, 1, 2 };
+        TimeUnit unit = TimeUnit.SECONDS;
+        Integer boxed = 55;
+        transient int ignored;
+
+        CMessage(int a, String name) {
+            this.a = a;
+            this.b = -a;
+            this.name = name;
+            this.ignored = a;
+        }
+    }
+
+    private static class PMessage extends Message {
+        int value;
+        boolean flag;
+        int crc;
+
+        @Override
+        protected boolean verify() {
+            return crc == (flag ? -value : value);
+        }
+
+        @Override
+        public void storeReplica(Message m) {
+            PMessage p = (PMessage) m;
+            crc = p.flag ? -p.value : p.value;
+        }
+    }
+
+    private static class UnsupportedMessage extends ChecksummedMessage {
+        Object value;
+    }
+}
@@ -0,0 +1,240 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yahoo.pasc.exceptions.CorruptionException;
+import com.yahoo.pasc.exceptions.VariableCorruptionException;
+import com.yahoo.pasc.metrics.FieldMetrics;
+import com.yahoo.pasc.metrics.JmxMetrics;
+import com.yahoo.pasc.metrics.PascMetrics.Phase;
+
+public class MetricsTest {
+
+    private PascRuntime<State> runtime;
+    private JmxMetrics metrics;
+    private Handler handler;
+
+    @Before
+    public void setUp() {
+        runtime = new PascRuntime<State>();
+        runtime.setState(new State());
+        handler = new Handler();
+        runtime.addHandler(MMessage.class, handler);
+        runtime.setFailureHandler(new FailureHandler() {
+            @Override
+            public void handleFailure(Exception e) {
+                if (e instanceof CorruptionException) {
+                    throw (CorruptionException) e;
+                }
+                throw new RuntimeException(e);
+            }
+        });
+        metrics = new JmxMetrics("com.yahoo.pasc.test");
+        runtime.setMetrics(metrics);
+    }
+
+    @After
+    public void tearDown() {
+        metrics.unregister();
+    }
+
+    @Test
+    public void recordPhases() throws Exception {
+        runtime.handleMessage(newMessage("x"));
+        for (Phase phase : Phase.values()) {
+            assertEquals(phase.toString(), 1, metrics.getHistogram(handler, phase).getCount());
+        }
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.yahoo.pasc.test:type=Handler,handler=" + Handler.class.getName() 
+                + ",phase=STATE_PASS");
+        assertEquals(1L, server.getAttribute(name, "Count"));
+    }
+
+    @Test
+    public void recordIndexedFields() {
+        runtime.handleMessage(newMessage("x"));
+        FieldMetrics c = metrics.getFieldMetrics("c");
+        // first read of each execution misses, the second one hits
+        assertEquals(1, c.getCacheHits());
+        assertEquals(1, c.getCacheMisses());
+        assertEquals(0, c.getMaxWrittenSize());
+        assertEquals(0, c.getMaxReadSize());
+
+        runtime.handleMessage(newMessage("y"));
+        assertEquals(2, c.getCacheHits());
+        assertEquals(3, c.getCacheMisses());
+        assertEquals(1, c.getMaxWrittenSize());
+        // the replica execution spills the same key to its read set
+        assertEquals(1, c.getMaxReadSize());
+        assertEquals(0.5, c.getMeanReadSize(), 0);
+
+        FieldMetrics d = metrics.getFieldMetrics("d");
+        assertEquals(1, d.getMaxWrittenSize());
+        assertEquals(1, d.getMaxReadSize());
+    }
+
+    @Test
+    public void recordCorruptions() {
+        runtime.getReplica().setA(5);
+        try {
+            runtime.handleMessage(newMessage("x"));
+            fail("Should detect corrupt replica");
+        } catch (VariableCorruptionException e) {
+            assertEquals("a", e.getVariable());
+        }
+        assertEquals(1, metrics.getFieldMetrics("a").getCorruptions());
+    }
+
+    @Test
+    public void noAllocationsPerMessage() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        MMessage m = newMessage(null);
+        m.setCloned(PascRuntime.clone(m));
+        int messages = 10000;
+        for (int i = 0; i < 10 * messages; ++i) {
+            runtime.handleMessage(m);
+        }
+        long threadId = Thread.currentThread().getId();
+        long calibration = threads.getThreadAllocatedBytes(threadId);
+        long start = threads.getThreadAllocatedBytes(threadId);
+        calibration = start - calibration;
+        for (int i = 0; i < messages; ++i) {
+            runtime.handleMessage(m);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - start - calibration;
+        // an object per message would take 16 bytes at least, the tolerance covers the few objects allocated once
+        // by the JVM itself while measuring, e.g. when compiling the loop
+        assertTrue("Allocated " + allocated + " bytes", allocated < messages);
+        assertEquals(11 * messages, metrics.getHistogram(handler, Phase.STATE_PASS).getCount());
+    }
+
+    private MMessage newMessage(String key) {
+        MMessage m = new MMessage(key);
+        m.storeReplica(m);
+        return m;
+    }
+
+    public static class State implements ProcessState {
+        int a;
+        long c[] = new long[16];
+        int d[] = new int[16];
+
+        public int getA() {
+            return a;
+        }
+
+        public void setA(int a) {
+            this.a = a;
+        }
+
+        // a single cached key, to see the spills to the written map
+        @KeyCache(1)
+        public long getC(String key) {
+            return c[key.length()];
+        }
+
+        public void setC(String key, long value) {
+            c[key.length()] = value;
+        }
+
+        @Dense(16)
+        public int getD(int key) {
+            return d[key];
+        }
+
+        public void setD(int key, int value) {
+            d[key] = value;
+        }
+    }
+
+    private static class MMessage extends Message implements EqualsDeep<MMessage> {
+        String key;
+        String crc;
+
+        public MMessage(String key) {
+            this.key = key;
+        }
+
+        @Override
+        protected boolean verify() {
+            return key == null ? crc == null : key.equals(crc);
+        }
+
+        @Override
+        public void storeReplica(Message m) {
+            crc = ((MMessage) m).key;
+        }
+
+        @Override
+        public boolean equalsDeep(MMessage other) {
+            return key == null ? other.key == null : key.equals(other.key);
+        }
+    }
+
+    private static class Handler implements MessageHandler<MMessage, State, String> {
+
+        @Override
+        public boolean guardPredicate(MMessage receivedMessage) {
+            return true;
+        }
+
+        @Override
+        public List<String> processMessage(MMessage message, State state) {
+            state.setA(state.getA() + 1);
+            if (message.key == null) {
+                return null;
+            }
+            state.setC(message.key, state.getC(message.key) + state.getC(message.key));
+            state.setD(message.key.length(), state.getD(message.key.length()) + 1);
+            if (message.key.equals("y")) {
+                state.setC("x", state.getC("x") + 1);
+            }
+            return Arrays.asList(message.key);
+        }
+
+        @Override
+        public List<Message> getOutputMessages(State state, List<String> descriptors) {
+            if (descriptors == null) {
+                return null;
+            }
+            MMessage response = new MMessage(descriptors.get(0));
+            return Collections.<Message>singletonList(response);
+        }
+    }
+}
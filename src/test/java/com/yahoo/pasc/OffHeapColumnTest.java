@@ -0,0 +1,131 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.yahoo.pasc.exceptions.VariableCorruptionException;
+
+public class OffHeapColumnTest {
+
+    @Test
+    public void cloneAndCompare() {
+        IntColumn column = new IntColumn(5);
+        column.set(4, 7);
+        IntColumn copy = column.cloneDeep();
+        assertEquals(5, copy.capacity());
+        assertEquals(7, copy.get(4));
+        assertTrue(column.equalsDeep(copy));
+
+        copy.set(0, 1);
+        assertEquals(0, column.get(0));
+        assertFalse(column.equalsDeep(copy));
+        assertFalse(column.equalsDeep(new IntColumn(6)));
+        try {
+            column.get(5);
+            fail("Didn't raise exception");
+        } catch (IndexOutOfBoundsException e) {
+            //ignore
+        }
+    }
+
+    @Test
+    public void replicatedColumn() {
+        PascRuntime<State> runtime = new PascRuntime<State>();
+        runtime.setState(new State());
+        runtime.addHandler(CMessage.class, new Handler());
+        final List<Exception> failures = new ArrayList<Exception>();
+        runtime.setFailureHandler(new FailureHandler() {
+            @Override
+            public void handleFailure(Exception e) {
+                failures.add(e);
+            }
+        });
+        assertNotSame(runtime.getState().values, runtime.getReplica().values);
+
+        for (int i = 0; i < 10; ++i) {
+            runtime.handleMessage(new CMessage(i % 3));
+        }
+        assertTrue(failures.isEmpty());
+        assertEquals(4, runtime.getState().values.get(0));
+        assertTrue(PascRuntime.compare(runtime.getState(), runtime.getReplica()));
+
+        runtime.getState().values.set(2, 100);
+        assertFalse(PascRuntime.compare(runtime.getState(), runtime.getReplica()));
+        runtime.handleMessage(new CMessage(2));
+        assertEquals(1, failures.size());
+        assertEquals("value", ((VariableCorruptionException) failures.get(0)).getVariable());
+    }
+
+    public static class State implements ProcessState {
+        LongColumn values = new LongColumn(1000);
+
+        @Dense(1000)
+        public long getValue(int key) {
+            return values.get(key);
+        }
+
+        public void setValue(int key, long value) {
+            values.set(key, value);
+        }
+    }
+
+    private static class CMessage extends Message {
+        int key;
+
+        public CMessage(int key) {
+            this.key = key;
+        }
+
+        @Override
+        protected boolean verify() {
+            return true;
+        }
+
+        @Override
+        public void storeReplica(Message m) {
+        }
+    }
+
+    private static class Handler implements MessageHandler<CMessage, State, Integer> {
+
+        @Override
+        public boolean guardPredicate(CMessage receivedMessage) {
+            return true;
+        }
+
+        @Override
+        public List<Integer> processMessage(CMessage message, State state) {
+            state.setValue(message.key, state.getValue(message.key) + 1);
+            return null;
+        }
+
+        @Override
+        public List<Message> getOutputMessages(State state, List<Integer> descriptors) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yahoo.pasc.exceptions.CorruptionException;
+
+public class PartitionedRuntimeTest {
+
+    private static final int PARTITIONS = 4;
+    private static final int SIZE = 64;
+
+    private PartitionedPascRuntime<State> runtime;
+
+    @Before
+    public void setUp() {
+        runtime = new PartitionedPascRuntime<State>(PARTITIONS, new MessagePartitioner() {
+            @Override
+            public int partition(Message message, int partitions) {
+                return ((KeyMessage) message).key % partitions;
+            }
+        });
+        List<State> states = new ArrayList<State>();
+        for (int i = 0; i < PARTITIONS; ++i) {
+            states.add(new State());
+        }
+        runtime.setStates(states);
+        runtime.addHandler(KeyMessage.class, new Handler());
+        runtime.setFailureHandler(new FailureHandler() {
+            @Override
+            public void handleFailure(Exception e) {
+                if (e instanceof CorruptionException) {
+                    throw (CorruptionException) e;
+                }
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        runtime.shutdown();
+    }
+
+    @Test
+    public void partitionedOperation() throws Exception {
+        List<Future<List<Message>>> results = new ArrayList<Future<List<Message>>>();
+        for (int i = 0; i < SIZE * 10; ++i) {
+            KeyMessage m = new KeyMessage(i % SIZE);
+            m.storeReplica(m);
+            results.add(runtime.handleMessage(m));
+        }
+        for (Future<List<Message>> result : results) {
+            assertEquals(1, result.get().size());
+        }
+        for (int p = 0; p < PARTITIONS; ++p) {
+            State state = runtime.getRuntime(p).getState();
+            for (int key = 0; key < SIZE; ++key) {
+                assertEquals(key % PARTITIONS == p ? 10 : 0, state.getCount(key));
+            }
+        }
+    }
+
+    @Test
+    public void independentStates() {
+        assertNotSame(runtime.getRuntime(0).getState(), runtime.getRuntime(1).getState());
+        assertNotSame(runtime.getRuntime(0).getReplica(), runtime.getRuntime(1).getReplica());
+    }
+
+    private static class State implements ProcessState {
+        long counts[] = new long[SIZE];
+
+        public long getCount(int key) {
+            return counts[key];
+        }
+
+        public void setCount(int key, long count) {
+            counts[key] = count;
+        }
+    }
+
+    private static class KeyMessage extends Message implements EqualsDeep<KeyMessage> {
+        int key;
+        int crc;
+
+        public KeyMessage(int key) {
+            this.key = key;
+        }
+
+        @Override
+        protected boolean verify() {
+            return key == crc;
+        }
+
+        @Override
+        public void storeReplica(Message m) {
+            crc = ((KeyMessage) m).key;
+        }
+
+        @Override
+        public boolean equalsDeep(KeyMessage other) {
+            return this.key == other.key;
+        }
+    }
+
+    private static class Handler extends DescriptorlessMessageHandler<KeyMessage, State> {
+        @Override
+        public boolean guardPredicate(KeyMessage receivedMessage) {
+            return true;
+        }
+
+        @Override
+        public List<Message> processMessage(KeyMessage message, State state) {
+            state.setCount(message.key, state.getCount(message.key) + 1);
+            return Arrays.<Message>asList(new KeyMessage(message.key));
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.yahoo.pasc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.yahoo.pasc.exceptions.CorruptionException;
+
+public class PascExecutorTest {
+
+    private static final int SIZE = 16;
+    private static final int PRODUCERS = 4;
+    private static final int MESSAGES = 2000;
+
+    @Test
+    public void manyProducers() throws Exception {
+        for (PascExecutor.WaitStrategy waitStrategy : PascExecutor.WaitStrategy.values()) {
+            PascRuntime<State> runtime = createRuntime();
+            // smaller than the number of messages, so producers wait for free slots
+            final PascExecutor<State> executor = new PascExecutor<State>(runtime, 64, waitStrategy);
+            final AtomicInteger handled = new AtomicInteger();
+            final PascExecutor.ResultSink sink = new PascExecutor.ResultSink() {
+                @Override
+                public void handled(Message receivedMessage, List<Message> outputMessages) {
+                    assertEquals(1, outputMessages.size());
+                    handled.incrementAndGet();
+                }
+
+                @Override
+                public void failed(Message receivedMessage, Throwable cause) {
+                }
+            };
+            List<Thread> producers = new ArrayList<Thread>();
+            for (int p = 0; p < PRODUCERS; ++p) {
+                producers.add(new Thread() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < MESSAGES; ++i) {
+                            executor.submit(newMessage(i % SIZE), sink);
+                        }
+                    }
+                });
+            }
+            for (Thread producer : producers) {
+                producer.start();
+            }
+            for (Thread producer : producers) {
+                producer.join();
+            }
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+            assertEquals(PRODUCERS * MESSAGES, handled.get());
+            for (int key = 0; key < SIZE; ++key) {
+                assertEquals(PRODUCERS * MESSAGES / SIZE, runtime.getState().getCount(key));
+            }
+            assertTrue(PascRuntime.compare(runtime.getState(), runtime.getReplica()));
+        }
+    }
+
+    @Test
+    public void futureResults() throws Exception {
+        PascExecutor<State> executor = new PascExecutor<State>(createRuntime(), 8, 
+                PascExecutor.WaitStrategy.PARK);
+        Future<List<Message>> result = executor.submit(newMessage(3));
+        assertEquals(3, ((KeyMessage) result.get().get(0)).key);
+
+        // corrupt messages are dropped
+        KeyMessage corrupt = newMessage(4);
+        corrupt.crc++;
+        assertTrue(executor.submit(corrupt).get().isEmpty());
+
+        try {
+            executor.submit(newMessage(-1)).get();
+            fail("Should report the failure");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RuntimeException);
+        }
+        assertEquals(1, executor.submit(newMessage(4)).get().size());
+
+        executor.shutdown();
+        try {
+            executor.submit(newMessage(5));
+            fail("Should reject messages after shutting down");
+        } catch (RejectedExecutionException e) {
+            //ignore
+        }
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 10000)
+    public void sinkFailures() throws Exception {
+        PascExecutor<State> executor = new PascExecutor<State>(createRuntime(), 8, 
+                PascExecutor.WaitStrategy.PARK);
+        PascExecutor.ResultSink sink = new PascExecutor.ResultSink() {
+            @Override
+            public void handled(Message receivedMessage, List<Message> outputMessages) {
+                throw new IllegalStateException("handled");
+            }
+
+            @Override
+            public void failed(Message receivedMessage, Throwable cause) {
+                throw new IllegalStateException("failed");
+            }
+        };
+        // more messages than slots, the writer must keep taking them out
+        for (int i = 0; i < 20; ++i) {
+            executor.submit(newMessage(i % 2 == 0 ? i % SIZE : -1), sink);
+        }
+        assertEquals(1, executor.submit(newMessage(4)).get(10, TimeUnit.SECONDS).size());
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    private static KeyMessage newMessage(int key) {
+        KeyMessage m = new KeyMessage(key);
+        m.storeReplica(m);
+        return m;
+    }
+
+    private PascRuntime<State> createRuntime() {
+        PascRuntime<State> runtime = new PascRuntime<State>();
+        runtime.setState(new State());
+        runtime.addHandler(KeyMessage.class, new Handler());
+        runtime.setFailureHandler(new FailureHandler() {
+            @Override
+            public void handleFailure(Exception e) {
+                if (e instanceof CorruptionException) {
+                    throw (CorruptionException) e;
+                }
+                throw new RuntimeException(e);
+            }
+        });
+        return runtime;
+    }
+
+    public static class State implements ProcessState {
+        long counts[] = new long[SIZE];
+
+        public long getCount(int key) {
+            return counts[key];
+        }
+
+        public void setCount(int key, long count) {
+            counts[key] = count;
+        }
+    }
+
+    private static class KeyMessage extends Message implements EqualsDeep<KeyMessage> {
+        int key;
+        int crc;
+
+        public KeyMessage(int key) {
+            this.key = key;
+        }
+
+        @Override
+        protected boolean verify() {
+            return key == crc;
+        }
+
+        @Override
+        public void storeReplica(Message m) {
+            crc = ((KeyMessage) m).key;
+        }
+
+        @Override
+        public boolean equalsDeep(KeyMessage other) {
+            return this.key == other.key;
+        }
+    }
+
+    private static class Handler extends DescriptorlessMessageHandler<KeyMessage, State> {
+        @Override
+        public boolean guardPredicate(KeyMessage receivedMessage) {
+            return true;
+        }
+
+        @Override
+        public List<Message> processMessage(KeyMessage message, State state) {
+            if (message.key < 0) {
+                throw new IllegalArgumentException("Invalid key " + message.key);
+            }
+            state.setCount(message.key, state.getCount(message.key) + 1);
+            return Arrays.<Message>asList(new KeyMessage(message.key));
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.yahoo.pasc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yahoo.pasc.exceptions.VariableCorruptionException;
+import com.yahoo.pasc.generation.ChecksumReplica;
+
+public class ProtectionTest {
+
+    private PascRuntime<State> runtime;
+    private Handler handler;
+    private List<Exception> failures;
+
+    @Before
+    public void setUp() {
+        runtime = new PascRuntime<State>();
+        State state = new State();
+        state.total = 1;
+        state.balances.put("k1", 10L);
+        state.cache.put(1, "v1");
+        runtime.setState(state, new KeyEnumerator<State>() {
+            @Override
+            public Iterable<?> keys(State state, String field) {
+                return field.equals("balance") ? state.balances.keySet() : state.cache.keySet();
+            }
+        });
+        handler = new Handler();
+        runtime.addHandler(TMessage.class, handler);
+        runtime.addHandler(SingleMessage.class, handler, HandlerProtection.SINGLE);
+        runtime.addHandler(UnprotectedMessage.class, handler, HandlerProtection.NONE);
+        failures = new ArrayList<Exception>();
+        runtime.setFailureHandler(new FailureHandler() {
+            @Override
+            public void handleFailure(Exception e) {
+                failures.add(e);
+            }
+        });
+    }
+
+    @Test
+    public void partialReplica() {
+        assertTrue(runtime.getReplica() instanceof ChecksumReplica);
+        // the fields of the state aren't allocated, the replica keeps its own copies
+        assertNull(runtime.getReplica().counts);
+        assertEquals(1, runtime.getReplica().getTotal());
+        assertEquals("v1", runtime.getReplica().getCache(1));
+
+        for (int key : new int[] { 1, 2, 1, 3, 1 }) {
+            List<Message> responses = runtime.handleMessage(new TMessage(key, 10));
+            assertEquals(1, responses.size());
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+        State state = runtime.getState();
+        assertEquals(6, state.total);
+        assertEquals(3, state.counts[1]);
+        assertEquals(40L, (long) state.balances.get("k1"));
+        assertEquals(6, runtime.getReplica().getTotal());
+        assertEquals(3, runtime.getReplica().getCount(1));
+        assertEquals(10, handler.executions);
+    }
+
+    @Test
+    public void singleExecution() {
+        for (int key : new int[] { 1, 2, 1 }) {
+            List<Message> responses = runtime.handleMessage(new SingleMessage(key, 10));
+            assertEquals(1, responses.size());
+            assertTrue(responses.get(0).verify());
+        }
+        assertEquals(3, handler.executions);
+        // the replica got the modifications, dual executions still agree
+        runtime.handleMessage(new TMessage(1, 10));
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertEquals(5, runtime.getState().total);
+        assertEquals(5, runtime.getReplica().getTotal());
+        assertEquals(40L, (long) runtime.getState().balances.get("k1"));
+
+        // reads are still checked
+        runtime.getState().counts[2] = 7;
+        runtime.handleMessage(new SingleMessage(2, 10));
+        assertEquals(1, failures.size());
+        assertEquals("count", ((VariableCorruptionException) failures.get(0)).getVariable());
+    }
+
+    @Test
+    public void unprotectedExecution() {
+        runtime.getState().total = 100;
+        List<Message> responses = runtime.handleMessage(new UnprotectedMessage(1, 10));
+        assertEquals(1, responses.size());
+        assertTrue(responses.get(0).verify());
+        assertEquals(1, handler.executions);
+        // nothing is checked, but the modifications reach the replica
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertEquals(101, runtime.getState().total);
+        assertEquals(101, runtime.getReplica().getTotal());
+
+        runtime.handleMessage(new TMessage(1, 10));
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertEquals(102, runtime.getState().total);
+    }
+
+    @Test
+    public void unprotectedField() {
+        runtime.getState().cache.put(1, "corrupted");
+        runtime.handleMessage(new TMessage(1, 10));
+        assertTrue(failures.toString(), failures.isEmpty());
+
+        runtime.getState().balances.put("k1", 1000L);
+        runtime.handleMessage(new TMessage(1, 10));
+        assertEquals(1, failures.size());
+        assertEquals("balance", ((VariableCorruptionException) failures.get(0)).getVariable());
+    }
+
+    public static class State implements ProcessState {
+        int total;
+        int counts[] = new int[64];
+        Map<String, Long> balances = new HashMap<String, Long>();
+        Map<Integer, String> cache = new HashMap<Integer, String>();
+
+        public int getTotal() {
+            return total;
+        }
+
+        public void setTotal(int total) {
+            this.total = total;
+        }
+
+        @Dense(64)
+        public int getCount(int key) {
+            return counts[key];
+        }
+
+        public void setCount(int key, int count) {
+            counts[key] = count;
+        }
+
+        @Protection(FieldProtection.CHECKSUM)
+        public long getBalance(String key) {
+            Long balance = balances.get(key);
+            return balance == null ? 0 : balance;
+        }
+
+        public void setBalance(String key, long balance) {
+            balances.put(key, balance);
+        }
+
+        @Protection(FieldProtection.NONE)
+        public String getCache(Integer key) {
+            return cache.get(key);
+        }
+
+        public void setCache(Integer key, String value) {
+            cache.put(key, value);
+        }
+    }
+
+    private static class TMessage extends Message implements EqualsDeep<TMessage> {
+        int key;
+        long amount;
+        int crc;
+
+        public TMessage(int key, long amount) {
+            this.key = key;
+            this.amount = amount;
+            this.crc = key;
+        }
+
+        @Override
+        protected boolean verify() {
+            return crc == key;
+        }
+
+        @Override
+        public void storeReplica(Message m) {
+            crc = ((TMessage) m).key;
+        }
+
+        @Override
+        public boolean equalsDeep(TMessage other) {
+            return key == other.key && amount == other.amount;
+        }
+    }
+
+    private static class SingleMessage extends TMessage {
+        public SingleMessage(int key, long amount) {
+            super(key, amount);
+        }
+    }
+
+    private static class UnprotectedMessage extends TMessage {
+        public UnprotectedMessage(int key, long amount) {
+            super(key, amount);
+        }
+    }
+
+    private static class Handler implements MessageHandler<TMessage, State, Long> {
+        int executions;
+
+        @Override
+        public boolean guardPredicate(TMessage receivedMessage) {
+            return true;
+        }
+
+        @Override
+        public List<Long> processMessage(TMessage message, State state) {
+            executions++;
+            state.setTotal(state.getTotal() + 1);
+            state.setCount(message.key, state.getCount(message.key) + 1);
+            String key = "k" + message.key;
+            state.setBalance(key, state.getBalance(key) + message.amount);
+            if (state.getCache(message.key) == null) {
+                state.setCache(message.key, key);
+            }
+            return Arrays.asList(state.getBalance(key));
+        }
+
+        @Override
+        public List<Message> getOutputMessages(State state, List<Long> descriptors) {
+            TMessage response = new TMessage(0, descriptors.get(0));
+            response.crc = -1;
+            return Arrays.<Message>asList(response);
+        }
+    }
+}
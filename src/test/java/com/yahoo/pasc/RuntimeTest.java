@@ -18,13 +18,17 @@ package com.yahoo.pasc;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -199,6 +203,72 @@ public class RuntimeTest {
         }
     }
     
+    @Test
+    public void subclassDispatch() {
+        Message m = new SubMessage(5);
+        m.storeReplica(m);
+        State s = runtime.getState();
+        List<Message> messages = runtime.handleMessage(m);
+        assertEquals(1, messages.size());
+        assertEquals(5, s.getA());
+
+        runtime.addHandler(SubMessage.class, new Handler() {
+            @Override
+            public List<TMessage> processMessage(TMessage message, State state) {
+                state.setB(state.getB() + message.a);
+                return super.processMessage(message, state);
+            }
+        });
+        m = new SubMessage(3);
+        m.storeReplica(m);
+        runtime.handleMessage(m);
+        assertEquals(8, s.getA());
+        assertEquals(3, s.getB());
+
+        m = new TMessage(2);
+        m.storeReplica(m);
+        runtime.handleMessage(m);
+        assertEquals(10, s.getA());
+        assertEquals(3, s.getB());
+    }
+
+    @Test
+    public void noAllocationsPerMessage() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        runtime.addHandler(TMessage.class, new Handler() {
+            @Override
+            public List<TMessage> processMessage(TMessage message, State state) {
+                state.setA(state.getA() + message.a);
+                state.setC("key", state.getC("key") + message.a);
+                return null;
+            }
+        });
+        TMessage m = new TMessage(1);
+        m.storeReplica(m);
+        m.setCloned(PascRuntime.clone(m));
+
+        int messages = 10000;
+        for (int i = 0; i < 10 * messages; ++i) {
+            runtime.handleMessage(m);
+        }
+        long threadId = Thread.currentThread().getId();
+        long calibration = threads.getThreadAllocatedBytes(threadId);
+        long start = threads.getThreadAllocatedBytes(threadId);
+        calibration = start - calibration;
+        for (int i = 0; i < messages; ++i) {
+            runtime.handleMessage(m);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - start - calibration;
+        // an object per message would take 16 bytes at least, the tolerance covers the few objects allocated once
+        // by the JVM itself while measuring, e.g. when compiling the loop
+        assertTrue("Allocated " + allocated + " bytes", allocated < messages);
+        assertEquals(11 * messages, runtime.getState().getA());
+    }
+
     @Test
     public void ignoreCorruptInconmingMessage() {
         Message m = new TMessage(5);
@@ -321,6 +391,235 @@ public class RuntimeTest {
         }
     }
 
+    @Test
+    public void batchOperation() {
+        State s = runtime.getState();
+        int initial = s.getA();
+        List<Message> batch = new ArrayList<Message>();
+        for (int i = 1; i <= 3; ++i) {
+            Message m = new TMessage(i);
+            m.storeReplica(m);
+            batch.add(m);
+        }
+        List<Message> messages = runtime.handleMessages(batch);
+        assertNotNull(messages);
+        assertEquals(3, messages.size());
+        assertEquals(initial + 1, ((TMessage) messages.get(0)).a);
+        assertEquals(initial + 3, ((TMessage) messages.get(1)).a);
+        assertEquals(initial + 6, ((TMessage) messages.get(2)).a);
+        assertEquals(6, s.getA() - initial);
+        assertEquals(s.getA(), runtime.getReplica().getA());
+    }
+
+    @Test
+    public void batchSeesPreviousWrites() {
+        State s = runtime.getState();
+        runtime.addHandler(TMessage.class, new Handler() {
+            @Override
+            public List<TMessage> processMessage(TMessage message, State state) {
+                String key = Integer.toString(message.a);
+                long c = state.getC(key) + 1;
+                state.setC(key, c);
+                state.setC("other", c);
+                return Arrays.asList(new TMessage((int) c));
+            }
+        });
+        List<Message> batch = new ArrayList<Message>();
+        for (int i : new int[] { 1, 2, 1, 1 }) {
+            Message m = new TMessage(i);
+            m.storeReplica(m);
+            batch.add(m);
+        }
+        List<Message> messages = runtime.handleMessages(batch);
+        assertEquals(4, messages.size());
+        assertEquals(3, ((TMessage) messages.get(3)).a);
+        assertEquals(3, s.getC("1"));
+        assertEquals(1, s.getC("2"));
+        assertEquals(3, s.getC("other"));
+    }
+
+    @Test
+    public void rejectInconsistentBatch() {
+        State s = runtime.getState();
+        int initial = s.getA();
+        runtime.addHandler(TMessage.class, new Handler() {
+            private boolean firstRun = true;
+
+            @Override
+            public List<TMessage> processMessage(TMessage message, State state) {
+                if (firstRun && message.a == 2) {
+                    state.setA(state.getA()+1);
+                    firstRun = false;
+                }
+                return super.processMessage(message, state);
+            }
+        });
+        List<Message> batch = new ArrayList<Message>();
+        for (int i = 1; i <= 3; ++i) {
+            Message m = new TMessage(i);
+            m.storeReplica(m);
+            batch.add(m);
+        }
+        try {
+            runtime.handleMessages(batch);
+            fail("Should detect inconsistent messages");
+        } catch (MessagesGenerationException e) {
+            //ignore
+        }
+        assertEquals(initial, s.getA());
+    }
+
+    @Test
+    public void parallelExecution() {
+        runtime.setParallelExecution(true);
+        try {
+            State s = runtime.getState();
+            int initial = s.getA();
+            for (int i = 1; i <= 10; ++i) {
+                Message m = new TMessage(i);
+                m.storeReplica(m);
+                List<Message> messages = runtime.handleMessage(m);
+                assertEquals(1, messages.size());
+            }
+            assertEquals(55, s.getA() - initial);
+            assertEquals(s.getA(), runtime.getReplica().getA());
+        } finally {
+            runtime.setParallelExecution(false);
+        }
+    }
+
+    @Test
+    public void parallelIndexedVariables() {
+        runtime.setParallelExecution(true);
+        try {
+            State s = runtime.getState();
+            runtime.addHandler(TMessage.class, new Handler() {
+                @Override
+                public List<TMessage> processMessage(TMessage message, State state) {
+                    String key = Integer.toString(message.a);
+                    state.setC(key, state.getC(key) + 1);
+                    state.setC("other", state.getC("other") + message.a);
+                    return null;
+                }
+            });
+            for (int i : new int[] { 1, 2, 1 }) {
+                Message m = new TMessage(i);
+                m.storeReplica(m);
+                runtime.handleMessage(m);
+            }
+            assertEquals(2, s.getC("1"));
+            assertEquals(1, s.getC("2"));
+            assertEquals(4, s.getC("other"));
+            assertEquals(4, runtime.getReplica().getC("other"));
+        } finally {
+            runtime.setParallelExecution(false);
+        }
+    }
+
+    @Test
+    public void parallelDetectCorruptReplica() {
+        runtime.setParallelExecution(true);
+        try {
+            Message m = new TMessage(5);
+            m.storeReplica(m);
+            State s = runtime.getState();
+            State r = runtime.getReplica();
+            r.setA(s.getA() + 2);
+            try {
+                runtime.handleMessage(m);
+                fail("Should detect corrupt replica");
+            } catch (VariableCorruptionException e) {
+                //ignore
+            }
+        } finally {
+            runtime.setParallelExecution(false);
+        }
+    }
+
+    @Test
+    public void parallelDetectInconsistentChange() {
+        runtime.setParallelExecution(true);
+        try {
+            Message m = new TMessage(5);
+            m.storeReplica(m);
+            runtime.addHandler(TMessage.class, new Handler() {
+                @Override
+                public List<TMessage> processMessage(TMessage message, State state) {
+                    if (Thread.currentThread().getName().equals("pasc-replica")) {
+                        state.setB(state.getB()+1);
+                    } else {
+                        state.setA(state.getA()+1);
+                    }
+                    return null;
+                }
+            });
+            try {
+                runtime.handleMessage(m);
+                fail("Should detect inconsistent change");
+            } catch (AsymmetricalChangesException e) {
+                //ignore
+            }
+        } finally {
+            runtime.setParallelExecution(false);
+        }
+    }
+
+    @Test
+    public void readOnlyHandler() {
+        TMessage m = new TMessage(5);
+        m.storeReplica(m);
+        runtime.handleMessage(m);
+
+        QueryHandler query = new QueryHandler();
+        runtime.addHandler(TMessage.class, query);
+        m = new TMessage(1);
+        m.storeReplica(m);
+        List<Message> messages = runtime.handleMessage(m);
+        assertEquals(1, messages.size());
+        assertEquals(6, ((TMessage) messages.get(0)).a);
+        assertEquals(1, query.executions);
+        assertEquals(5, runtime.getState().getA());
+    }
+
+    @Test
+    public void readOnlyDetectCorruptReplica() {
+        runtime.addHandler(TMessage.class, new QueryHandler());
+        runtime.getReplica().setC("foo", 3);
+        Message m = new TMessage(5);
+        m.storeReplica(m);
+        try {
+            runtime.handleMessage(m);
+            fail("Should detect corrupt replica");
+        } catch (VariableCorruptionException e) {
+            //ignore
+        }
+    }
+
+    @Test
+    public void readOnlyRejectsWrites() {
+        runtime.addHandler(TMessage.class, new QueryHandler() {
+            @Override
+            public List<TMessage> processMessage(TMessage message, State state) {
+                state.setB(message.a);
+                return super.processMessage(message, state);
+            }
+        });
+        Message m = new TMessage(5);
+        m.storeReplica(m);
+        try {
+            runtime.handleMessage(m);
+            fail("Should reject writes");
+        } catch (RuntimeException e) {
+            assertEquals(IllegalStateException.class, e.getCause().getClass());
+        }
+        assertEquals(0, runtime.getState().getB());
+
+        // the encapsulator accepts writes again for other handlers
+        runtime.addHandler(TMessage.class, new Handler());
+        runtime.handleMessage(m);
+        assertEquals(5, runtime.getState().getA());
+    }
+
     private static class State implements ProcessState{
         int a;
         int b;
@@ -377,6 +676,12 @@ public class RuntimeTest {
         }
     }
     
+    private static class SubMessage extends TMessage {
+        public SubMessage(int a) {
+            super(a);
+        }
+    }
+
     private static class Handler implements MessageHandler<TMessage, State, TMessage> {
 
         @Override
@@ -399,4 +704,14 @@ public class RuntimeTest {
         }
         
     }
+
+    private static class QueryHandler extends Handler implements ReadOnlyMessageHandler<TMessage, State, TMessage> {
+        int executions;
+
+        @Override
+        public List<TMessage> processMessage(TMessage message, State state) {
+            executions++;
+            return Arrays.asList(new TMessage(state.getA() + (int) state.getC("foo") + message.a));
+        }
+    }
 }
@@ -0,0 +1,230 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yahoo.pasc.exceptions.VariableCorruptionException;
+import com.yahoo.pasc.generation.StateScrubber;
+
+public class ScrubberTest {
+
+    private PascRuntime<State> runtime;
+    private List<Exception> failures;
+
+    @Before
+    public void setUp() {
+        runtime = new PascRuntime<State>();
+        State state = new State();
+        state.names.put(1, "one");
+        state.names.put(2, "two");
+        runtime.setState(state);
+        runtime.addHandler(SMessage.class, new Handler());
+        failures = new ArrayList<Exception>();
+        runtime.setFailureHandler(new FailureHandler() {
+            @Override
+            public void handleFailure(Exception e) {
+                failures.add(e);
+            }
+        });
+        runtime.setScrubber(new KeyEnumerator<State>() {
+            @Override
+            public Iterable<?> keys(State state, String field) {
+                return state.names.keySet();
+            }
+        }, 1000000000L, 1.0);
+    }
+
+    @Test
+    public void cleanPass() {
+        runtime.setScrubber(null, 100000L, 1.0);
+        for (int i = 0; i < 100000 && runtime.getScrubber().getPasses() < 2; ++i) {
+            runtime.scrub();
+        }
+        // a slice can complete several passes over such a small state
+        assertTrue(runtime.getScrubber().getPasses() >= 2);
+        assertTrue(failures.isEmpty());
+    }
+
+    @Test
+    public void scrubWhileModified() {
+        KeyEnumerator<State> copied = new KeyEnumerator<State>() {
+            @Override
+            public Iterable<?> keys(State state, String field) {
+                return state.names.keySet();
+            }
+        };
+        OrderedKeyEnumerator<State> ordered = new OrderedKeyEnumerator<State>() {
+            @Override
+            public Iterable<?> keys(State state, String field) {
+                return state.names.keySet();
+            }
+
+            @Override
+            public Iterable<?> keysAfter(State state, String field, Object after) {
+                return state.names.tailMap((Integer) after, false).keySet();
+            }
+        };
+        for (KeyEnumerator<State> enumerator : Arrays.asList(copied, ordered)) {
+            State state = new State();
+            State replica = new State();
+            for (int i = 0; i < 100; i++) {
+                state.names.put(i, "value" + i);
+                replica.names.put(i, "value" + i);
+            }
+            replica.names.put(99, "corrupt");
+            StateScrubber<State> scrubber = new StateScrubber<State>(State.class, enumerator, 1, 1.0);
+            VariableCorruptionException detected = null;
+            for (int i = 0; i < 100000 && detected == null; i++) {
+                try {
+                    scrubber.scrub(state, replica);
+                } catch (VariableCorruptionException e) {
+                    detected = e;
+                }
+                // a hot field, modified between every two slices
+                state.names.remove(1000 + i - 1);
+                replica.names.remove(1000 + i - 1);
+                state.names.put(1000 + i, "added");
+                replica.names.put(1000 + i, "added");
+            }
+            assertNotNull(detected);
+            assertEquals("name", detected.getVariable());
+        }
+    }
+
+    @Test
+    public void noAllocationsPerSlice() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        // plain and dense fields, compared through the generated getters without boxing
+        runtime.setScrubber(null, 1000, 1.0);
+        int slices = 10000;
+        for (int i = 0; i < 10 * slices; ++i) {
+            runtime.scrub();
+        }
+        long threadId = Thread.currentThread().getId();
+        long calibration = threads.getThreadAllocatedBytes(threadId);
+        long start = threads.getThreadAllocatedBytes(threadId);
+        calibration = start - calibration;
+        for (int i = 0; i < slices; ++i) {
+            runtime.scrub();
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - start - calibration;
+        // a boxed value per slice would take 16 bytes at least, the tolerance covers the few objects allocated
+        // once by the JVM itself while measuring, e.g. when compiling the loop
+        assertTrue("Allocated " + allocated + " bytes", allocated < slices);
+        assertTrue(failures.isEmpty());
+    }
+
+    @Test
+    public void detectColdCorruptions() {
+        runtime.getReplica().names.put(2, "deux");
+        runtime.scrub();
+        assertEquals(1, failures.size());
+        assertEquals("name", ((VariableCorruptionException) failures.get(0)).getVariable());
+
+        runtime.getReplica().names.put(2, "two");
+        runtime.getReplica().counts[42] = 1;
+        runtime.scrub();
+        assertEquals(2, failures.size());
+        assertEquals("count", ((VariableCorruptionException) failures.get(1)).getVariable());
+    }
+
+    @Test
+    public void rejectMessageOnCorruption() {
+        runtime.getReplica().counts[7] = 1;
+        runtime.handleMessage(new SMessage());
+        assertEquals(1, failures.size());
+        assertEquals(0, runtime.getState().total);
+
+        runtime.setScrubber(null, 0, 0);
+        assertNull(runtime.getScrubber());
+    }
+
+    public static class State implements ProcessState {
+        int total;
+        int counts[] = new int[100];
+        TreeMap<Integer, String> names = new TreeMap<Integer, String>();
+
+        public int getTotal() {
+            return total;
+        }
+
+        public void setTotal(int total) {
+            this.total = total;
+        }
+
+        @Dense(100)
+        public int getCount(int key) {
+            return counts[key];
+        }
+
+        public void setCount(int key, int count) {
+            counts[key] = count;
+        }
+
+        public String getName(Integer key) {
+            return names.get(key);
+        }
+    }
+
+    private static class SMessage extends Message {
+        @Override
+        protected boolean verify() {
+            return true;
+        }
+
+        @Override
+        public void storeReplica(Message m) {
+        }
+    }
+
+    private static class Handler implements MessageHandler<SMessage, State, Integer> {
+
+        @Override
+        public boolean guardPredicate(SMessage receivedMessage) {
+            return true;
+        }
+
+        @Override
+        public List<Integer> processMessage(SMessage message, State state) {
+            state.setTotal(state.getTotal() + 1);
+            return null;
+        }
+
+        @Override
+        public List<Message> getOutputMessages(State state, List<Integer> descriptors) {
+            return null;
+        }
+    }
+}
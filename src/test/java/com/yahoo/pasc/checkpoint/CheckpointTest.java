@@ -0,0 +1,418 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.yahoo.pasc.checkpoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.yahoo.pasc.CompositeModificationListener;
+import com.yahoo.pasc.Dense;
+import com.yahoo.pasc.KeyEnumerator;
+import com.yahoo.pasc.Message;
+import com.yahoo.pasc.MessageHandler;
+import com.yahoo.pasc.PascRuntime;
+import com.yahoo.pasc.ProcessState;
+import com.yahoo.pasc.exceptions.CorruptionException;
+import com.yahoo.pasc.exceptions.VariableCorruptionException;
+
+public class CheckpointTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final KeyEnumerator<State> KEYS = new KeyEnumerator<State>() {
+        @Override
+        public Iterable<?> keys(State state, String field) {
+            return state.names.keySet();
+        }
+    };
+
+    private File directory;
+    private State state;
+    private PascRuntime<State> runtime;
+    private StateCheckpointer<State> checkpointer;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = new File(folder.getRoot(), "checkpoints");
+        state = new State();
+        runtime = new PascRuntime<State>(true);
+        runtime.setState(state);
+        runtime.addHandler(SetMessage.class, new Handler());
+        checkpointer = new StateCheckpointer<State>(directory, State.class, KEYS);
+        runtime.setModificationListener(checkpointer);
+    }
+
+    @Test
+    public void incrementalCheckpoints() throws IOException {
+        assertFalse(checkpointer.checkpoint());
+        runtime.handleMessage(new SetMessage(1, "one"));
+        runtime.handleMessage(new SetMessage(2, "two"));
+        assertTrue(checkpointer.checkpoint());
+        runtime.handleMessage(new SetMessage(1, "uno"));
+        assertTrue(checkpointer.checkpoint());
+        // more keys than the encapsulator caches
+        runtime.handleMessage(new SetMessage(100, "many", 200));
+        assertTrue(checkpointer.checkpoint());
+        assertEquals(3, checkpointer.getSegments());
+
+        assertRestored();
+    }
+
+    @Test
+    public void compaction() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            runtime.handleMessage(new SetMessage(i, "value" + i));
+            checkpointer.checkpoint();
+        }
+        assertTrue(checkpointer.compact());
+        assertEquals(0, checkpointer.getSegments());
+        assertFalse(checkpointer.compact());
+        assertEquals(1, directory.list().length);
+
+        runtime.handleMessage(new SetMessage(3, "three"));
+        checkpointer.checkpoint();
+        assertEquals(2, directory.list().length);
+        assertRestored();
+
+        checkpointer.writeImage(state);
+        assertEquals(1, directory.list().length);
+        assertRestored();
+    }
+
+    @Test
+    public void backgroundCheckpoints() throws Exception {
+        checkpointer.start(1, 3);
+        for (int i = 0; i < 20; i++) {
+            runtime.handleMessage(new SetMessage(i % 7, "value" + i));
+            Thread.sleep(2);
+        }
+        checkpointer.stop();
+        assertRestored();
+    }
+
+    @Test
+    public void rejectImagesWithoutKeys() throws IOException {
+        runtime.handleMessage(new SetMessage(1, "one"));
+        checkpointer.checkpoint();
+        try {
+            new StateCheckpointer<State>(directory, State.class, null).writeImage(state);
+            fail("Image written without the keys of names");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(1, directory.list().length);
+        assertRestored();
+    }
+
+    @Test
+    public void overwriteStaleTempFiles() throws IOException {
+        // left by a crash between writing a segment and renaming it
+        directory.mkdirs();
+        RandomAccessFile stale = new RandomAccessFile(new File(directory, 
+                String.format("segment-%019d.ckp.tmp", 1)), "rw");
+        stale.setLength(4096);
+        stale.close();
+
+        runtime.handleMessage(new SetMessage(1, "one"));
+        assertTrue(checkpointer.checkpoint());
+        assertRestored();
+    }
+
+    @Test
+    public void detectCorruptedSegments() throws IOException {
+        runtime.handleMessage(new SetMessage(1, "one"));
+        checkpointer.checkpoint();
+        File segment = directory.listFiles()[0];
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.seek(file.length() - 1);
+        file.write('x');
+        file.close();
+        try {
+            new StateCheckpointer<State>(directory, State.class, KEYS).restore(new State());
+            fail("Corruption not detected");
+        } catch (CorruptionException e) {
+        }
+    }
+
+    @Test
+    public void largeStrings() throws Exception {
+        // longer than the 64KB of writeUTF(), with chars of every encoded length
+        StringBuilder large = new StringBuilder();
+        while (large.length() < 100000) {
+            large.append("a\u00e9\u20ac\u0000\ud800");
+        }
+        File logFile = new File(folder.getRoot(), "log");
+        WriteAheadLog<State> log = new WriteAheadLog<State>(logFile, State.class, 4);
+        runtime.setModificationListener(log);
+        runtime.handleMessage(new SetMessage(1, large.toString()));
+        log.close();
+        assertEquals(large.toString(), state.names.get(1));
+
+        State replayed = new State();
+        assertEquals(1, new WriteAheadLog<State>(logFile, State.class, 4).replay(replayed));
+        assertSame(state, replayed);
+
+        checkpointer.writeImage(state);
+        assertRestored();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        runtime.exportState(Channels.newChannel(bytes), KEYS);
+        State imported = new State();
+        new PascRuntime<State>(true).importState(Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())), 
+                imported, new State());
+        assertSame(state, imported);
+    }
+
+    @Test
+    public void replayLog() throws Exception {
+        File logFile = new File(folder.getRoot(), "log");
+        WriteAheadLog<State> log = new WriteAheadLog<State>(logFile, State.class, 4);
+        runtime.setModificationListener(log);
+        for (int i = 0; i < 10; i++) {
+            runtime.handleMessage(new SetMessage(i % 3, "value" + i));
+        }
+        runtime.handleMessage(new SetMessage(100, "many", 200));
+        log.close();
+
+        State replayed = new State();
+        assertEquals(11, new WriteAheadLog<State>(logFile, State.class, 4).replay(replayed));
+        assertSame(state, replayed);
+    }
+
+    @Test
+    public void discardTornRecords() throws Exception {
+        File logFile = new File(folder.getRoot(), "log");
+        WriteAheadLog<State> log = new WriteAheadLog<State>(logFile, State.class, 1);
+        runtime.setModificationListener(log);
+        runtime.handleMessage(new SetMessage(1, "one"));
+        runtime.handleMessage(new SetMessage(2, "two"));
+        log.close();
+        RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+        file.setLength(file.length() - 3);
+        file.close();
+
+        // the second record is lost, appending continues after the first one
+        log = new WriteAheadLog<State>(logFile, State.class, 1);
+        State replayed = new State();
+        assertEquals(1, log.replay(replayed));
+        assertEquals("one", replayed.names.get(1));
+        assertNull(replayed.names.get(2));
+
+        runtime.setModificationListener(log);
+        runtime.handleMessage(new SetMessage(3, "three"));
+        log.close();
+        replayed = new State();
+        assertEquals(2, new WriteAheadLog<State>(logFile, State.class, 1).replay(replayed));
+        assertEquals("three", replayed.names.get(3));
+
+        log = new WriteAheadLog<State>(logFile, State.class, 1);
+        log.clear();
+        assertEquals(0, log.replay(new State()));
+        log.close();
+    }
+
+    @Test
+    public void combineImageAndLog() throws Exception {
+        File logFile = new File(folder.getRoot(), "log");
+        WriteAheadLog<State> log = new WriteAheadLog<State>(logFile, State.class, 1);
+        runtime.setModificationListener(new CompositeModificationListener(checkpointer, log));
+        for (int i = 0; i < 5; i++) {
+            runtime.handleMessage(new SetMessage(i, "value" + i));
+        }
+        checkpointer.writeImage(state);
+        log.clear();
+        runtime.handleMessage(new SetMessage(2, "two"));
+        runtime.handleMessage(new SetMessage(7, "seven"));
+        log.close();
+
+        State restored = new State();
+        new StateCheckpointer<State>(directory, State.class, KEYS).restore(restored);
+        assertEquals("value2", restored.names.get(2));
+        assertEquals(2, new WriteAheadLog<State>(logFile, State.class, 1).replay(restored));
+        assertSame(state, restored);
+    }
+
+    @Test
+    public void transferState() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            runtime.handleMessage(new SetMessage(i * 10, "value" + i, 10));
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        // total, names and the 8 counts that aren't 0
+        assertEquals(1 + 100 + 8, runtime.exportState(Channels.newChannel(bytes), KEYS));
+
+        PascRuntime<State> restarted = new PascRuntime<State>(true);
+        restarted.addHandler(SetMessage.class, new Handler());
+        State imported = new State();
+        restarted.importState(Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())), imported,
+                new State());
+        assertSame(state, imported);
+        restarted.handleMessage(new SetMessage(5, "five"));
+        assertEquals("five", imported.names.get(5));
+
+        // small chunks
+        StateTransfer<State> transfer = new StateTransfer<State>(State.class, KEYS, 64);
+        bytes.reset();
+        transfer.exportState(state, null, Channels.newChannel(bytes));
+        State replica = new State();
+        imported = new State();
+        transfer.importState(Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())), imported, 
+                replica);
+        assertSame(state, imported);
+        assertSame(state, replica);
+
+        byte[] corrupted = bytes.toByteArray();
+        corrupted[corrupted.length / 2] ^= 1;
+        try {
+            transfer.importState(Channels.newChannel(new ByteArrayInputStream(corrupted)), new State(), null);
+            fail("Corruption not detected");
+        } catch (CorruptionException e) {
+        }
+        try {
+            transfer.importState(Channels.newChannel(new ByteArrayInputStream(corrupted, 0, 100)), new State(), 
+                    null);
+            fail("Truncation not detected");
+        } catch (CorruptionException e) {
+        }
+
+        bytes.reset();
+        try {
+            new StateTransfer<State>(State.class, null, 64).exportState(state, null, Channels.newChannel(bytes));
+            fail("State exported without the keys of names");
+        } catch (IllegalStateException expected) {
+            assertEquals(0, bytes.size());
+        }
+
+        replica.counts[3]++;
+        try {
+            transfer.exportState(state, replica, Channels.newChannel(bytes));
+            fail("Corruption not detected");
+        } catch (VariableCorruptionException e) {
+            assertEquals("count", e.getVariable());
+        }
+    }
+
+    private void assertRestored() throws IOException {
+        State restored = new State();
+        new StateCheckpointer<State>(directory, State.class, KEYS).restore(restored);
+        assertSame(state, restored);
+    }
+
+    private static void assertSame(State state, State restored) {
+        assertEquals(state.total, restored.total);
+        assertEquals(state.names, restored.names);
+        for (int i = 0; i < state.counts.length; i++) {
+            assertEquals(state.counts[i], restored.counts[i]);
+        }
+    }
+
+    public static class State implements ProcessState {
+        int total;
+        long counts[] = new long[16];
+        Map<Integer, String> names = new HashMap<Integer, String>();
+
+        public int getTotal() {
+            return total;
+        }
+
+        public void setTotal(int total) {
+            this.total = total;
+        }
+
+        @Dense(16)
+        public long getCount(int key) {
+            return counts[key];
+        }
+
+        public void setCount(int key, long count) {
+            counts[key] = count;
+        }
+
+        public String getName(Integer key) {
+            return names.get(key);
+        }
+
+        public void setName(Integer key, String name) {
+            names.put(key, name);
+        }
+    }
+
+    private static class SetMessage extends Message {
+        final int key;
+        final String name;
+        final int keys;
+
+        SetMessage(int key, String name) {
+            this(key, name, 1);
+        }
+
+        SetMessage(int key, String name, int keys) {
+            this.key = key;
+            this.name = name;
+            this.keys = keys;
+        }
+
+        @Override
+        protected boolean verify() {
+            return true;
+        }
+
+        @Override
+        public void storeReplica(Message m) {
+        }
+    }
+
+    private static class Handler implements MessageHandler<SetMessage, State, Integer> {
+
+        @Override
+        public boolean guardPredicate(SetMessage receivedMessage) {
+            return true;
+        }
+
+        @Override
+        public List<Integer> processMessage(SetMessage message, State state) {
+            state.setTotal(state.getTotal() + 1);
+            for (int i = 0; i < message.keys; i++) {
+                state.setName(message.key + i, message.name);
+            }
+            state.setCount(message.key % 16, state.getCount(message.key % 16) + message.key + 1);
+            return null;
+        }
+
+        @Override
+        public List<Message> getOutputMessages(State state, List<Integer> descriptors) {
+            return null;
+        }
+    }
+}
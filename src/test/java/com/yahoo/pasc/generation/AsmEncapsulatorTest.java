@@ -0,0 +1,349 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc.generation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.objenesis.ObjenesisStd;
+import org.objenesis.instantiator.ObjectInstantiator;
+
+import com.yahoo.pasc.Dense;
+import com.yahoo.pasc.KeyCache;
+import com.yahoo.pasc.ProcessState;
+import com.yahoo.pasc.exceptions.AsymmetricalChangesException;
+import com.yahoo.pasc.exceptions.VariableCorruptionException;
+
+public class AsmEncapsulatorTest {
+    private static ObjectInstantiator instantiator;
+    private static ObjectInstantiator lightInstantiator;
+    private State state;
+    private State replica;
+    private Encapsulator encapsulator;
+    private Encapsulator lightEncapsulator;
+    private State wrappedState;
+    private State lightlyWrappedState;
+
+    @BeforeClass
+    public static void initClass() {
+        ObjenesisStd objenesis = new ObjenesisStd();
+        lightInstantiator = objenesis.getInstantiatorOf(AsmEncapsulatorGenerator.generateLightEncapsulator(State.class));
+        instantiator = objenesis.getInstantiatorOf(AsmEncapsulatorGenerator.generateEncapsulator(State.class));
+    }
+
+    @Before
+    public void setUp() {
+        state = new State();
+        replica = new State();
+        encapsulator = (Encapsulator) instantiator.newInstance();
+        encapsulator.setState(state, replica, instantiator);
+        lightEncapsulator = (Encapsulator) lightInstantiator.newInstance();
+        lightEncapsulator.setState(replica, state, lightInstantiator);
+        wrappedState = (State) encapsulator;
+        lightlyWrappedState = (State) lightEncapsulator;
+    }
+
+    @Test
+    public void checkOverrides() throws SecurityException, NoSuchMethodException {
+        for (Encapsulator enc : new Encapsulator[] { encapsulator, lightEncapsulator }) {
+            assertEquals(State.class, enc.getClass().getSuperclass());
+            assertNotSame(State.class.getDeclaredMethod("getA"), enc.getClass().getDeclaredMethod("getA"));
+            enc.getClass().getDeclaredMethod("setCount", int.class, long.class);
+            enc.getClass().getDeclaredMethod("getLabel", String.class);
+        }
+    }
+
+    @Test
+    public void incrementalUpdates() {
+        wrappedState.setA(wrappedState.getA() + 5);
+        wrappedState.setRatio(0.5);
+        wrappedState.setName(wrappedState.getName() + "!");
+        assertEquals(5, wrappedState.getA());
+        assertEquals(0, state.getA());
+
+        lightlyWrappedState.setA(lightlyWrappedState.getA() + 5);
+        lightlyWrappedState.setRatio(0.5);
+        lightlyWrappedState.setName(lightlyWrappedState.getName() + "!");
+        assertEquals(5, replica.getA());
+
+        encapsulator.applyModifications(false, lightEncapsulator);
+        assertEquals(5, state.getA());
+        assertEquals(0.5, state.getRatio(), 0);
+        assertEquals("name!", state.getName());
+    }
+
+    @Test
+    public void indexedUpdates() {
+        for (State s : new State[] { wrappedState, lightlyWrappedState }) {
+            for (int i = 0; i < 4; ++i) {
+                s.setCount(i, s.getCount(i) + i);
+            }
+            s.setCount(1, s.getCount(1) + 10);
+            s.setLabel("x", s.getLabel("x") + "y");
+            s.setLabel("z", "w");
+        }
+        assertEquals(11, wrappedState.getCount(1));
+        assertEquals(0, state.getCount(1));
+        assertEquals(11, replica.getCount(1));
+
+        encapsulator.applyModifications(false, lightEncapsulator);
+        assertEquals(11, state.getCount(1));
+        assertEquals(3, state.getCount(3));
+        assertEquals("xy", state.getLabel("x"));
+        assertEquals("w", state.getLabel("z"));
+        assertTrue(encapsulator.toString().contains("a written? false read? false"));
+
+        encapsulator.reset();
+        lightEncapsulator.reset();
+        assertEquals(3, wrappedState.getCount(3));
+    }
+
+    @Test
+    public void consistentStates() {
+        wrappedState.setA(5);
+        try {
+            encapsulator.applyModifications(false, lightEncapsulator);
+            fail("Didn't raise exception");
+        } catch (AsymmetricalChangesException e) {
+            //ignore
+        }
+    }
+
+    @Test
+    public void consistentIndexedStates() {
+        wrappedState.setCount(1, 5);
+        wrappedState.setCount(2, 5);
+        lightlyWrappedState.setCount(1, 5);
+        lightlyWrappedState.setCount(3, 5);
+        try {
+            encapsulator.applyModifications(false, lightEncapsulator);
+            fail("Didn't raise exception");
+        } catch (AsymmetricalChangesException e) {
+            //ignore
+        }
+    }
+
+    @Test
+    public void checkInconsistentReplica() {
+        replica.setA(5);
+        try {
+            wrappedState.getA();
+            fail("Didn't raise exception");
+        } catch (VariableCorruptionException e) {
+            //ignore
+        }
+        try {
+            lightlyWrappedState.getA();
+            fail("Didn't raise exception");
+        } catch (VariableCorruptionException e) {
+            //ignore
+        }
+    }
+
+    @Test
+    public void checkInconsistentIndexedReplica() {
+        replica.setCount(2, 5);
+        replica.setLabel("x", "corrupt");
+        try {
+            wrappedState.getCount(2);
+            fail("Didn't raise exception");
+        } catch (VariableCorruptionException e) {
+            //ignore
+        }
+        try {
+            wrappedState.getLabel("x");
+            fail("Didn't raise exception");
+        } catch (VariableCorruptionException e) {
+            //ignore
+        }
+        try {
+            lightlyWrappedState.getCount(2);
+            fail("Didn't raise exception");
+        } catch (VariableCorruptionException e) {
+            //ignore
+        }
+    }
+
+    @Test
+    public void releaseCachedSlots() throws Exception {
+        for (State s : Arrays.asList(wrappedState, lightlyWrappedState)) {
+            s.setLabel("y", s.getLabel("x") + "y");
+        }
+        encapsulator.applyModifications(false, lightEncapsulator);
+        assertEquals("xy", state.getLabel("y"));
+        encapsulator.reset();
+        lightEncapsulator.reset();
+
+        for (Encapsulator enc : Arrays.asList(encapsulator, lightEncapsulator)) {
+            for (String name : new String[] { "labelKeys", "labelValues" }) {
+                Field slots = enc.getClass().getDeclaredField(name);
+                slots.setAccessible(true);
+                for (Object slot : (Object[]) slots.get(enc)) {
+                    assertNull(slot);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void dropTrackingAfterSpike() throws Exception {
+        Field written = encapsulator.getClass().getDeclaredField("countWritten");
+        written.setAccessible(true);
+        Field read = lightEncapsulator.getClass().getDeclaredField("countRead");
+        read.setAccessible(true);
+
+        touch(100);
+        touch(100);
+        Object spikeWritten = written.get(encapsulator);
+        Object spikeRead = read.get(lightEncapsulator);
+        assertNotNull(spikeWritten);
+        assertNotNull(spikeRead);
+        for (int i = 0; i < GeneratorUtil.SPIKE_RESETS - 1; ++i) {
+            touch(10);
+            assertSame(spikeWritten, written.get(encapsulator));
+            assertSame(spikeRead, read.get(lightEncapsulator));
+        }
+        touch(10);
+        assertNull(written.get(encapsulator));
+        assertNull(read.get(lightEncapsulator));
+
+        touch(10);
+        assertEquals(GeneratorUtil.SPIKE_RESETS + 3, state.getCount(9));
+        assertNotNull(written.get(encapsulator));
+        assertNotNull(read.get(lightEncapsulator));
+    }
+
+    private void touch(int keys) {
+        for (State s : Arrays.asList(wrappedState, lightlyWrappedState)) {
+            for (int i = 0; i < keys; ++i) {
+                s.setCount(i, s.getCount(i) + 1);
+            }
+        }
+        encapsulator.applyModifications(false, lightEncapsulator);
+        encapsulator.reset();
+        lightEncapsulator.reset();
+    }
+
+    @Test
+    public void releaseDenseValues() throws Exception {
+        for (State s : Arrays.asList(wrappedState, lightlyWrappedState)) {
+            s.setTag(3, "a");
+            s.setTag(100, "b");
+        }
+        encapsulator.applyModifications(false, lightEncapsulator);
+        assertEquals("b", state.getTag(100));
+        encapsulator.reset();
+        lightEncapsulator.reset();
+
+        Field values = encapsulator.getClass().getDeclaredField("tagWrittenValues");
+        values.setAccessible(true);
+        for (Object value : (Object[]) values.get(encapsulator)) {
+            assertNull(value);
+        }
+        assertEquals("a", wrappedState.getTag(3));
+    }
+
+    @Test
+    public void onlyCheckOnFirstRead() {
+        replica.setA(5);
+        wrappedState.setA(8);
+        assertEquals(8, wrappedState.getA());
+    }
+
+    @Test
+    public void skipChecksWhenDisabled() {
+        replica.setA(5);
+        encapsulator.setCheckState(false);
+        assertEquals(0, wrappedState.getA());
+    }
+
+    public static class State implements ProcessState {
+        int a;
+        String name = "name";
+        double ratio;
+        long counts[] = new long[128];
+        String tags[] = new String[128];
+        Map<String, String> labels = new HashMap<String, String>();
+
+        public State() {
+            labels.put("x", "x");
+        }
+
+        public int getA() {
+            return a;
+        }
+
+        public void setA(int a) {
+            this.a = a;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public double getRatio() {
+            return ratio;
+        }
+
+        public void setRatio(double ratio) {
+            this.ratio = ratio;
+        }
+
+        @KeyCache(2)
+        public long getCount(int i) {
+            return counts[i];
+        }
+
+        public void setCount(int i, long count) {
+            counts[i] = count;
+        }
+
+        @Dense(128)
+        public String getTag(int i) {
+            return tags[i];
+        }
+
+        public void setTag(int i, String tag) {
+            tags[i] = tag;
+        }
+
+        public String getLabel(String key) {
+            return labels.get(key);
+        }
+
+        public void setLabel(String key, String label) {
+            labels.put(key, label);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc.generation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.yahoo.pasc.PascRuntime;
+
+public class DeepCopierTest {
+
+    @Test
+    public void copyAllFields() {
+        Value value = new Value(3, "three");
+        Value copy = PascRuntime.clone(value);
+
+        assertNotSame(value, copy);
+        assertEquals(3, copy.getBase());
+        assertEquals("three", copy.name);
+        assertEquals(0.5, copy.ratio, 0);
+        assertNotSame(value.counts, copy.counts);
+        assertArrayEquals(value.counts, copy.counts);
+        assertNotSame(value.nested, copy.nested);
+        assertEquals(value.nested.id, copy.nested.id);
+        assertNotSame(value.children, copy.children);
+        assertNotSame(value.children[0], copy.children[0]);
+        assertEquals(value.children[0].id, copy.children[0].id);
+        assertNull(copy.cache);
+        assertTrue(PascRuntime.compare(value, copy));
+    }
+
+    @Test
+    public void detectDifferences() {
+        Value value = new Value(3, "three");
+
+        Value copy = PascRuntime.clone(value);
+        copy.counts[1]++;
+        assertFalse(PascRuntime.compare(value, copy));
+
+        copy = PascRuntime.clone(value);
+        copy.nested.id++;
+        assertFalse(PascRuntime.compare(value, copy));
+
+        copy = PascRuntime.clone(value);
+        copy.setBase(4);
+        assertFalse(PascRuntime.compare(value, copy));
+
+        copy = PascRuntime.clone(value);
+        copy.children[0].id++;
+        assertFalse(PascRuntime.compare(value, copy));
+
+        copy = PascRuntime.clone(value);
+        copy.cache = "ignored";
+        assertTrue(PascRuntime.compare(value, copy));
+    }
+
+    @Test
+    public void generatedOnce() {
+        DeepCopier copier = DeepCopierGenerator.getCopier(Value.class);
+        assertNotNull(copier);
+        assertSame(copier, DeepCopierGenerator.getCopier(Value.class));
+    }
+
+    @Test
+    public void fallbackForUnsupportedClasses() {
+        assertNull(DeepCopierGenerator.getCopier(Node.class));
+        assertNull(DeepCopierGenerator.getCopier(String.class));
+        assertNull(DeepCopierGenerator.getCopier(int[].class));
+
+        Node node = new Node();
+        node.next = new Node();
+        Node copy = PascRuntime.clone(node);
+        assertNotSame(node.next, copy.next);
+    }
+
+    @Test
+    public void preserveCycles() {
+        Linked linked = new Linked();
+        linked.value = 7;
+        linked.ref = linked;
+        assertNotNull(DeepCopierGenerator.getCopier(Linked.class));
+
+        Linked copy = PascRuntime.clone(linked);
+        assertNotSame(linked, copy);
+        assertEquals(7, copy.value);
+        assertSame(copy, copy.ref);
+        assertTrue(PascRuntime.compare(linked, copy));
+
+        copy.value++;
+        assertFalse(PascRuntime.compare(linked, copy));
+    }
+
+    @Test
+    public void preserveAliases() {
+        Aliased aliased = new Aliased();
+        aliased.a = new int[] { 1, 2 };
+        aliased.b = aliased.a;
+        aliased.first = new Nested();
+        aliased.second = aliased.first;
+
+        Aliased copy = PascRuntime.clone(aliased);
+        assertNotSame(aliased.a, copy.a);
+        assertSame(copy.a, copy.b);
+        assertNotSame(aliased.first, copy.first);
+        assertSame(copy.first, copy.second);
+        assertTrue(PascRuntime.compare(aliased, copy));
+    }
+
+    private static class Base {
+        private int base;
+
+        public int getBase() {
+            return base;
+        }
+
+        public void setBase(int base) {
+            this.base = base;
+        }
+    }
+
+    private static class Nested {
+        long id;
+    }
+
+    private static class Value extends Base {
+        private String name;
+        private double ratio = 0.5;
+        private int counts[] = new int[] { 1, 2, 3 };
+        private Nested nested = new Nested();
+        private Nested children[] = new Nested[] { new Nested() };
+        private transient String cache = "cached";
+
+        public Value(int base, String name) {
+            setBase(base);
+            this.name = name;
+            nested.id = base;
+            children[0].id = base * 2;
+        }
+    }
+
+    private static class Node {
+        Node next;
+    }
+
+    private static class Linked {
+        int value;
+        Object ref;
+    }
+
+    private static class Aliased {
+        int a[];
+        int b[];
+        Object first;
+        Object second;
+    }
+}
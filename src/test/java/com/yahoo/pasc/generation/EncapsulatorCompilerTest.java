@@ -0,0 +1,116 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.pasc.generation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objenesis.ObjenesisStd;
+import org.objenesis.instantiator.ObjectInstantiator;
+
+import com.yahoo.pasc.ProcessState;
+import com.yahoo.pasc.exceptions.VariableCorruptionException;
+
+public class EncapsulatorCompilerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void findStates() throws Exception {
+        File classes = new File(CompiledState.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        List<String> states = EncapsulatorCompiler.findStates(classes, getClass().getClassLoader());
+        assertTrue(states.contains(CompiledState.class.getName()));
+        assertFalse(states.contains(ProcessState.class.getName()));
+    }
+
+    @Test
+    public void compileEncapsulators() throws Exception {
+        File directory = folder.getRoot();
+        List<String> generated = EncapsulatorCompiler.compile(directory, getClass().getClassLoader(), 
+                Arrays.asList(CompiledState.class.getName()));
+        assertEquals(Arrays.asList(CompiledState.class.getName() + "LightEncapsulator", 
+                CompiledState.class.getName() + "Encapsulator"), generated);
+        for (String name : generated) {
+            assertTrue(new File(directory, name.replace('.', '/') + ".class").isFile());
+        }
+
+        ClassLoader loader = new URLClassLoader(new URL[] { directory.toURI().toURL() }, getClass().getClassLoader());
+        CompiledState state = new CompiledState();
+        CompiledState replica = new CompiledState();
+        CompiledState encapsulator = newEncapsulator(loader.loadClass(generated.get(1)), state, replica);
+        CompiledState lightEncapsulator = newEncapsulator(loader.loadClass(generated.get(0)), replica, state);
+
+        encapsulator.setA(encapsulator.getA() + 1);
+        encapsulator.setCount(3, 7);
+        lightEncapsulator.setA(lightEncapsulator.getA() + 1);
+        lightEncapsulator.setCount(3, 7);
+        ((Encapsulator) encapsulator).applyModifications(false, (Encapsulator) lightEncapsulator);
+        assertEquals(1, state.getA());
+        assertEquals(7, state.getCount(3));
+        assertEquals(1, replica.getA());
+        assertEquals(7, replica.getCount(3));
+
+        ((Encapsulator) encapsulator).reset();
+        replica.setA(5);
+        try {
+            encapsulator.getA();
+            fail("Should detect corrupt replica");
+        } catch (VariableCorruptionException e) {
+            // ignore
+        }
+    }
+
+    private CompiledState newEncapsulator(Class<?> type, CompiledState state, CompiledState replica) {
+        ObjectInstantiator instantiator = new ObjenesisStd().getInstantiatorOf(type);
+        Encapsulator encapsulator = (Encapsulator) instantiator.newInstance();
+        encapsulator.setState(state, replica, instantiator);
+        return (CompiledState) encapsulator;
+    }
+
+    public static class CompiledState implements ProcessState {
+        int a;
+        long counts[] = new long[8];
+
+        public int getA() {
+            return a;
+        }
+
+        public void setA(int a) {
+            this.a = a;
+        }
+
+        public long getCount(int i) {
+            return counts[i];
+        }
+
+        public void setCount(int i, long count) {
+            counts[i] = count;
+        }
+    }
+}
@@ -17,16 +17,24 @@
 package com.yahoo.pasc.generation;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.yahoo.pasc.Dense;
+import com.yahoo.pasc.KeyCache;
 import com.yahoo.pasc.ProcessState;
 import com.yahoo.pasc.exceptions.AsymmetricalChangesException;
 import com.yahoo.pasc.exceptions.VariableCorruptionException;
@@ -150,6 +158,194 @@ public class EncapsulatorTest {
         }
     }
  
+    @Test
+    public void spillCachedKeys() {
+        IndexedState state = new IndexedState();
+        IndexedState replica = new IndexedState();
+        Encapsulator lightEncapsulator = new LightEncapsulatorGenerator(state).getLightEncapsulator(replica, state);
+        Encapsulator encapsulator = new EncapsulatorGenerator(state).getEncapsulator(state, replica);
+
+        for (IndexedState s : Arrays.asList((IndexedState) encapsulator, (IndexedState) lightEncapsulator)) {
+            // more keys than cached ones, revisiting spilled keys
+            for (int round = 0; round < 3; ++round) {
+                for (int i = 0; i < 5; ++i) {
+                    s.setValue(i, s.getValue(i) + i);
+                }
+            }
+            s.setValue(0, s.getValue(4) + 100);
+        }
+        assertEquals(0, state.getValue(0));
+
+        encapsulator.applyModifications(false, lightEncapsulator);
+        assertEquals(112, state.getValue(0));
+        for (int i = 1; i < 5; ++i) {
+            assertEquals(3 * i, state.getValue(i));
+            assertEquals(3 * i, replica.getValue(i));
+        }
+
+        encapsulator.reset();
+        lightEncapsulator.reset();
+        ((IndexedState) encapsulator).setValue(1, 0);
+        ((IndexedState) encapsulator).setValue(2, 0);
+        ((IndexedState) encapsulator).setValue(3, 0);
+        ((IndexedState) lightEncapsulator).setValue(1, 0);
+        ((IndexedState) lightEncapsulator).setValue(3, 0);
+        ((IndexedState) lightEncapsulator).setValue(2, 0);
+        try {
+            encapsulator.applyModifications(false, lightEncapsulator);
+            fail("Didn't raise exception");
+        } catch (AsymmetricalChangesException e) {
+            //ignore
+        }
+    }
+
+    @Test
+    public void dropTrackingAfterSpike() throws Exception {
+        IndexedState state = new IndexedState();
+        IndexedState replica = new IndexedState();
+        Encapsulator lightEncapsulator = new LightEncapsulatorGenerator(state).getLightEncapsulator(replica, state);
+        Encapsulator encapsulator = new EncapsulatorGenerator(state).getEncapsulator(state, replica);
+        Field written = encapsulator.getClass().getDeclaredField("valueWritten");
+        written.setAccessible(true);
+        Field read = lightEncapsulator.getClass().getDeclaredField("valueRead");
+        read.setAccessible(true);
+
+        touch(encapsulator, lightEncapsulator, 100);
+        assertEquals(1, state.getValue(99));
+        Object spikeWritten = written.get(encapsulator);
+        Object spikeRead = read.get(lightEncapsulator);
+        assertNotNull(spikeWritten);
+        assertNotNull(spikeRead);
+
+        // handlers that keep touching many keys reuse the same structures
+        touch(encapsulator, lightEncapsulator, 100);
+        assertEquals(2, state.getValue(99));
+        assertSame(spikeWritten, written.get(encapsulator));
+        assertSame(spikeRead, read.get(lightEncapsulator));
+
+        for (int i = 0; i < GeneratorUtil.SPIKE_RESETS - 1; ++i) {
+            touch(encapsulator, lightEncapsulator, 10);
+            assertSame(spikeWritten, written.get(encapsulator));
+            assertSame(spikeRead, read.get(lightEncapsulator));
+        }
+        touch(encapsulator, lightEncapsulator, 10);
+        assertNull(written.get(encapsulator));
+        assertNull(read.get(lightEncapsulator));
+
+        touch(encapsulator, lightEncapsulator, 10);
+        assertEquals(GeneratorUtil.SPIKE_RESETS + 3, state.getValue(9));
+        assertNotNull(written.get(encapsulator));
+        assertNotNull(read.get(lightEncapsulator));
+    }
+
+    private static void touch(Encapsulator encapsulator, Encapsulator lightEncapsulator, int keys) {
+        for (IndexedState s : Arrays.asList((IndexedState) encapsulator, (IndexedState) lightEncapsulator)) {
+            for (int i = 0; i < keys; ++i) {
+                s.setValue(i, s.getValue(i) + 1);
+            }
+        }
+        encapsulator.applyModifications(false, lightEncapsulator);
+        encapsulator.reset();
+        lightEncapsulator.reset();
+    }
+
+    @Test
+    public void releaseCachedSlots() throws Exception {
+        LabelState state = new LabelState();
+        LabelState replica = new LabelState();
+        Encapsulator lightEncapsulator = new LightEncapsulatorGenerator(state).getLightEncapsulator(replica, state);
+        Encapsulator encapsulator = new EncapsulatorGenerator(state).getEncapsulator(state, replica);
+
+        for (Encapsulator enc : Arrays.asList(encapsulator, lightEncapsulator)) {
+            ((LabelState) enc).setLabel("x", ((LabelState) enc).getLabel("y") + "x");
+        }
+        encapsulator.applyModifications(false, lightEncapsulator);
+        assertEquals("nullx", state.getLabel("x"));
+        encapsulator.reset();
+        lightEncapsulator.reset();
+
+        for (Encapsulator enc : Arrays.asList(encapsulator, lightEncapsulator)) {
+            for (String name : new String[] { "labelKeys", "labelValues" }) {
+                Field slots = enc.getClass().getDeclaredField(name);
+                slots.setAccessible(true);
+                for (Object slot : (Object[]) slots.get(enc)) {
+                    assertNull(slot);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void denseFields() {
+        DenseState state = new DenseState();
+        DenseState replica = new DenseState();
+        Encapsulator lightEncapsulator = new LightEncapsulatorGenerator(state).getLightEncapsulator(replica, state);
+        Encapsulator encapsulator = new EncapsulatorGenerator(state).getEncapsulator(state, replica);
+
+        for (DenseState s : Arrays.asList((DenseState) encapsulator, (DenseState) lightEncapsulator)) {
+            // keys in several words, touched out of order
+            for (int i : new int[] { 150, 3, 64, 70, 3 }) {
+                s.setCount(i, s.getCount(i) + i);
+            }
+            s.getCount(99);
+        }
+        assertEquals(0, state.getCount(150));
+
+        encapsulator.applyModifications(false, lightEncapsulator);
+        assertEquals(150, state.getCount(150));
+        assertEquals(6, state.getCount(3));
+        assertEquals(64, state.getCount(64));
+        assertEquals(70, replica.getCount(70));
+        assertEquals(0, state.getCount(99));
+
+        encapsulator.reset();
+        lightEncapsulator.reset();
+        ((DenseState) encapsulator).setCount(1, 0);
+        ((DenseState) encapsulator).setCount(130, 0);
+        ((DenseState) lightEncapsulator).setCount(1, 0);
+        ((DenseState) lightEncapsulator).setCount(131, 0);
+        try {
+            encapsulator.applyModifications(false, lightEncapsulator);
+            fail("Didn't raise exception");
+        } catch (AsymmetricalChangesException e) {
+            //ignore
+        }
+
+        encapsulator.reset();
+        lightEncapsulator.reset();
+        replica.setCount(5, 1);
+        try {
+            ((DenseState) encapsulator).getCount(5);
+            fail("Didn't raise exception");
+        } catch (VariableCorruptionException e) {
+            //ignore
+        }
+    }
+
+    @Test
+    public void releaseDenseValues() throws Exception {
+        DenseState state = new DenseState();
+        DenseState replica = new DenseState();
+        Encapsulator lightEncapsulator = new LightEncapsulatorGenerator(state).getLightEncapsulator(replica, state);
+        Encapsulator encapsulator = new EncapsulatorGenerator(state).getEncapsulator(state, replica);
+
+        for (DenseState s : Arrays.asList((DenseState) encapsulator, (DenseState) lightEncapsulator)) {
+            s.setTag(3, "a");
+            s.setTag(150, "b");
+        }
+        encapsulator.applyModifications(false, lightEncapsulator);
+        assertEquals("b", state.getTag(150));
+        encapsulator.reset();
+        lightEncapsulator.reset();
+
+        Field values = encapsulator.getClass().getDeclaredField("tagWrittenValues");
+        values.setAccessible(true);
+        for (Object value : (Object[]) values.get(encapsulator)) {
+            assertNull(value);
+        }
+        assertEquals("a", ((DenseState) encapsulator).getTag(3));
+    }
+
     @SuppressWarnings("unused")
     private static class State implements ProcessState, Cloneable {
         int a;
@@ -170,4 +366,51 @@ public class EncapsulatorTest {
         }
     }
 
+    public static class IndexedState implements ProcessState {
+        long values[] = new long[128];
+
+        @KeyCache(2)
+        public long getValue(long key) {
+            return values[(int) key];
+        }
+
+        public void setValue(long key, long value) {
+            values[(int) key] = value;
+        }
+    }
+
+    public static class LabelState implements ProcessState {
+        Map<String, String> labels = new HashMap<String, String>();
+
+        public String getLabel(String key) {
+            return labels.get(key);
+        }
+
+        public void setLabel(String key, String label) {
+            labels.put(key, label);
+        }
+    }
+
+    public static class DenseState implements ProcessState {
+        int counts[] = new int[200];
+        String tags[] = new String[200];
+
+        @Dense(200)
+        public int getCount(int key) {
+            return counts[key];
+        }
+
+        public void setCount(int key, int count) {
+            counts[key] = count;
+        }
+
+        @Dense(200)
+        public String getTag(int key) {
+            return tags[key];
+        }
+
+        public void setTag(int key, String tag) {
+            tags[key] = tag;
+        }
+    }
 }